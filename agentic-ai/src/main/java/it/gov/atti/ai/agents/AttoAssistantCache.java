@@ -0,0 +1,326 @@
+package it.gov.atti.ai.agents;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.gov.atti.ai.rag.ModelloEmbeddingLocale;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Cache delle risposte di {@link AttoAssistantAgent}, da usare al posto dell'agente.
+ * <p>
+ * Una richiesta è cercata prima per testo normalizzato (spazi, maiuscole, punteggiatura finale)
+ * e poi per similarità: il testo è trasformato in embedding con il modello locale e confrontato
+ * con le risposte già in cache per la stessa operazione; oltre la soglia di similarità coseno
+ * configurata la risposta è riusata. Le soglie sono distinte per operazione perché una
+ * classificazione dipende da dettagli (importi, urgenza, date) che un oggetto suggerito può
+ * ignorare; una soglia pari a 1 disattiva la ricerca per similarità ed è il default per la
+ * classificazione, dove due atti diversi solo in quei dettagli superano comunque 0.98.
+ * <p>
+ * Le voci scadono dopo {@code atti.ai.cache.durata} dalla scrittura e sono rimosse per uso meno
+ * recente oltre {@code atti.ai.cache.memoria-max-mb}, stimati su testi, risposte ed embedding.
+ * Richieste identiche concorrenti non in cache producono una sola chiamata al modello: le
+ * successive attendono la risposta della prima.
+ * <p>
+ * Le sole chiamate al modello sono misurate anche in {@code atti.ai.modello.chiamate}, con esito
+ * successo o errore: a differenza di {@code atti.ai.cache.latenza} includono le chiamate fallite.
+ */
+@ApplicationScoped
+public class AttoAssistantCache {
+
+    private static final Pattern SPAZI = Pattern.compile("\\s+");
+    private static final Pattern PUNTEGGIATURA_FINALE = Pattern.compile("[\\s.;:,!?]+$");
+
+    @Inject
+    AttoAssistantAgent agente;
+
+    @Inject
+    ModelloEmbeddingLocale embedding;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.ai.cache.durata", defaultValue = "PT24H")
+    Duration durata;
+
+    @ConfigProperty(name = "atti.ai.cache.memoria-max-mb", defaultValue = "64")
+    long memoriaMaxMb;
+
+    @ConfigProperty(name = "atti.ai.cache.soglia-similarita.suggerisci-oggetto", defaultValue = "0.95")
+    double sogliaSuggerisci;
+
+    @ConfigProperty(name = "atti.ai.cache.soglia-similarita.classifica-atto", defaultValue = "1")
+    double sogliaClassifica;
+
+    private Cache<Chiave, Voce> cache;
+    private final Map<Chiave, CompletableFuture<String>> inCorso = new ConcurrentHashMap<>();
+    private final Map<Operazione, Metriche> metriche = new EnumMap<>(Operazione.class);
+
+    @PostConstruct
+    void inizializza() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(memoriaMaxMb * 1024 * 1024)
+                .weigher((Chiave chiave, Voce voce) -> peso(chiave, voce))
+                .expireAfterWrite(durata)
+                .build();
+        Gauge.builder("atti.ai.cache.voci", cache, Cache::estimatedSize)
+                .description("Risposte in cache")
+                .register(registry);
+        Gauge.builder("atti.ai.cache.memoria", cache, c -> c.policy().eviction()
+                        .map(e -> e.weightedSize().orElse(0)).orElse(0L))
+                .description("Memoria stimata occupata dalla cache")
+                .baseUnit("bytes")
+                .register(registry);
+        for (Operazione operazione : Operazione.values()) {
+            metriche.put(operazione, new Metriche(operazione));
+        }
+    }
+
+    /**
+     * Come {@link AttoAssistantAgent#suggerisciOggetto(String)}, con cache.
+     */
+    public String suggerisciOggetto(String descrizione) {
+        return risposta(Operazione.SUGGERISCI_OGGETTO, descrizione, agente::suggerisciOggetto, sogliaSuggerisci);
+    }
+
+    /**
+     * Come {@link AttoAssistantAgent#classificaAtto(String)}, con cache.
+     */
+    public String classificaAtto(String testo) {
+        return risposta(Operazione.CLASSIFICA_ATTO, testo, agente::classificaAtto, sogliaClassifica);
+    }
+
+    /**
+     * Come {@link #classificaAtto(String)} ma senza riuso per similarità, qualunque sia la soglia
+     * configurata: per chi salva la classificazione come definitiva dell'atto.
+     */
+    public String classificaAttoEsatta(String testo) {
+        return risposta(Operazione.CLASSIFICA_ATTO, testo, agente::classificaAtto, 1);
+    }
+
+    /** Svuota la cache, ad esempio dopo un cambio di modello o di prompt */
+    public void svuota() {
+        cache.invalidateAll();
+    }
+
+    private String risposta(Operazione operazione, String testo, Function<String, String> modello, double soglia) {
+        long inizio = System.nanoTime();
+        Metriche misure = metriche.get(operazione);
+        Chiave chiave = new Chiave(operazione, normalizza(testo));
+
+        Voce voce = cache.getIfPresent(chiave);
+        if (voce != null) {
+            return misure.registra(Esito.ESATTA, inizio, voce.risposta());
+        }
+        float[] vettore = null;
+        if (soglia < 1) {
+            vettore = normalizza(embedding.vettore(chiave.testo()));
+            Voce simile = piuSimile(operazione, vettore, soglia);
+            if (simile != null) {
+                return misure.registra(Esito.SIMILE, inizio, simile.risposta());
+            }
+        }
+
+        CompletableFuture<String> nuova = new CompletableFuture<>();
+        CompletableFuture<String> esistente = inCorso.putIfAbsent(chiave, nuova);
+        if (esistente != null) {
+            return misure.registra(Esito.COALESCENTE, inizio, attendi(esistente));
+        }
+        try {
+            // la chiamata precedente può aver scritto la cache dopo la prima lettura
+            voce = cache.getIfPresent(chiave);
+            String risposta = voce != null ? voce.risposta() : misure.chiama(modello, testo);
+            if (voce == null) {
+                cache.put(chiave, new Voce(vettore, risposta));
+            }
+            nuova.complete(risposta);
+            return misure.registra(voce != null ? Esito.ESATTA : Esito.MODELLO, inizio, risposta);
+        } catch (RuntimeException e) {
+            nuova.completeExceptionally(e);
+            throw e;
+        } finally {
+            inCorso.remove(chiave, nuova);
+        }
+    }
+
+    /**
+     * Voce della stessa operazione con la massima similarità coseno, se supera la soglia.
+     * La scansione è lineare: con embedding da 384 dimensioni resta sotto il millisecondo per
+     * migliaia di voci, trascurabile rispetto alla latenza di una chiamata al modello.
+     */
+    private Voce piuSimile(Operazione operazione, float[] vettore, double soglia) {
+        Voce migliore = null;
+        double massima = soglia;
+        for (Map.Entry<Chiave, Voce> voce : cache.asMap().entrySet()) {
+            float[] candidato = voce.getValue().vettore();
+            if (voce.getKey().operazione() != operazione || candidato == null) {
+                continue;
+            }
+            double similarita = prodottoScalare(vettore, candidato);
+            if (similarita >= massima) {
+                massima = similarita;
+                migliore = voce.getValue();
+            }
+        }
+        return migliore;
+    }
+
+    private static String attendi(CompletableFuture<String> risposta) {
+        try {
+            return risposta.join();
+        } catch (CompletionException | CancellationException e) {
+            if (e.getCause() instanceof RuntimeException causa) {
+                throw causa;
+            }
+            throw e;
+        }
+    }
+
+    static String normalizza(String testo) {
+        String compatto = SPAZI.matcher(testo.strip()).replaceAll(" ");
+        return PUNTEGGIATURA_FINALE.matcher(compatto).replaceAll("").toLowerCase(Locale.ITALIAN);
+    }
+
+    static float[] normalizza(float[] vettore) {
+        double norma = Math.sqrt(prodottoScalare(vettore, vettore));
+        if (norma == 0) {
+            return vettore;
+        }
+        float[] normalizzato = new float[vettore.length];
+        for (int i = 0; i < vettore.length; i++) {
+            normalizzato[i] = (float) (vettore[i] / norma);
+        }
+        return normalizzato;
+    }
+
+    static double prodottoScalare(float[] a, float[] b) {
+        double somma = 0;
+        for (int i = 0; i < a.length; i++) {
+            somma += a[i] * b[i];
+        }
+        return somma;
+    }
+
+    /** Stima in byte di una voce: caratteri UTF-16, embedding e intestazioni degli oggetti */
+    private static int peso(Chiave chiave, Voce voce) {
+        int vettore = voce.vettore() == null ? 0 : voce.vettore().length * Float.BYTES;
+        return 2 * (chiave.testo().length() + voce.risposta().length()) + vettore + 128;
+    }
+
+    enum Operazione {
+        SUGGERISCI_OGGETTO("suggerisci-oggetto"),
+        CLASSIFICA_ATTO("classifica-atto");
+
+        final String tag;
+
+        Operazione(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    enum Esito {
+        /** Stesso testo normalizzato già in cache */
+        ESATTA,
+        /** Testo simile oltre la soglia */
+        SIMILE,
+        /** Richiesta identica già in corso, risposta condivisa */
+        COALESCENTE,
+        /** Chiamata al modello */
+        MODELLO
+    }
+
+    record Chiave(Operazione operazione, String testo) {
+    }
+
+    record Voce(float[] vettore, String risposta) {
+    }
+
+    /**
+     * Richieste e latenze per esito di una operazione. Il tasso di successo è esposto come
+     * gauge oltre che ricavabile dai contatori.
+     */
+    private final class Metriche {
+
+        private final Map<Esito, Counter> richieste = new EnumMap<>(Esito.class);
+        private final Map<Esito, Timer> latenze = new EnumMap<>(Esito.class);
+        private final Timer chiamateRiuscite;
+        private final Timer chiamateFallite;
+        private final AtomicLong totali = new AtomicLong();
+        private final AtomicLong servite = new AtomicLong();
+
+        Metriche(Operazione operazione) {
+            for (Esito esito : Esito.values()) {
+                String tag = esito.name().toLowerCase(Locale.ROOT);
+                richieste.put(esito, Counter.builder("atti.ai.cache.richieste")
+                        .description("Richieste all'assistente per esito della cache")
+                        .tag("operazione", operazione.tag)
+                        .tag("esito", tag)
+                        .register(registry));
+                latenze.put(esito, Timer.builder("atti.ai.cache.latenza")
+                        .description("Latenza delle richieste all'assistente per esito della cache")
+                        .tag("operazione", operazione.tag)
+                        .tag("esito", tag)
+                        .publishPercentileHistogram()
+                        .register(registry));
+            }
+            chiamateRiuscite = chiamate(operazione, "successo");
+            chiamateFallite = chiamate(operazione, "errore");
+            Gauge.builder("atti.ai.cache.hit.ratio", this,
+                            m -> m.totali.get() == 0 ? 0 : (double) m.servite.get() / m.totali.get())
+                    .description("Quota di richieste servite senza chiamare il modello")
+                    .tag("operazione", operazione.tag)
+                    .register(registry);
+        }
+
+        private Timer chiamate(Operazione operazione, String esito) {
+            return Timer.builder("atti.ai.modello.chiamate")
+                    .description("Durata delle chiamate al modello LLM")
+                    .tag("operazione", operazione.tag)
+                    .tag("esito", esito)
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofMinutes(2))
+                    .register(registry);
+        }
+
+        String chiama(Function<String, String> modello, String testo) {
+            long inizio = System.nanoTime();
+            try {
+                String risposta = modello.apply(testo);
+                chiamateRiuscite.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+                return risposta;
+            } catch (RuntimeException e) {
+                chiamateFallite.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+                throw e;
+            }
+        }
+
+        String registra(Esito esito, long inizio, String risposta) {
+            latenze.get(esito).record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+            richieste.get(esito).increment();
+            totali.incrementAndGet();
+            if (esito != Esito.MODELLO) {
+                servite.incrementAndGet();
+            }
+            return risposta;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package it.gov.atti.ai.classificazione;
+
+/**
+ * Modello che classifica il testo di un atto, restituendo la risposta testuale
+ * nel formato di {@link it.gov.atti.ai.agents.AttoAssistantAgent#classificaAtto(String)}.
+ */
+@FunctionalInterface
+public interface Classificatore {
+
+    String classifica(String testo);
+}
@@ -0,0 +1,72 @@
+package it.gov.atti.ai.classificazione;
+
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classificazione strutturata di un atto, ricavata dalla risposta testuale dell'agente.
+ *
+ * @param tipo    tipo di atto, es. Determinazione Dirigenziale
+ * @param materia materia, es. Lavori Pubblici
+ * @param urgenza livello di urgenza
+ */
+public record ClassificazioneAtto(String tipo, String materia, Urgenza urgenza) {
+
+    /**
+     * Righe "Tipo di atto: ...", "Materia: ...", "Livello di urgenza: ...", anche numerate o in
+     * grassetto markdown come le restituisce il modello.
+     */
+    private static final Pattern VOCE = Pattern.compile(
+            "^[\\s*#-]*(?:\\d+[.)]\\s*)?\\**\\s*(tipo(?: di atto)?|materia|(?:livello di )?urgenza)\\s*\\**\\s*[:\\-–]\\s*\\**\\s*(.+?)[\\s*.]*$",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    public enum Urgenza {
+        ORDINARIO, URGENTE, INDIFFERIBILE;
+
+        static Urgenza da(String testo) {
+            String minuscolo = testo.toLowerCase(Locale.ITALIAN);
+            if (minuscolo.contains("indifferibil")) {
+                return INDIFFERIBILE;
+            }
+            if (minuscolo.contains("urgent")) {
+                return URGENTE;
+            }
+            if (minuscolo.contains("ordinari")) {
+                return ORDINARIO;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Interpreta la risposta dell'agente.
+     *
+     * @return la classificazione, vuota se manca uno dei tre campi o l'urgenza non è riconosciuta
+     */
+    public static Optional<ClassificazioneAtto> interpreta(String risposta) {
+        if (risposta == null) {
+            return Optional.empty();
+        }
+        String tipo = null;
+        String materia = null;
+        Urgenza urgenza = null;
+        Matcher voce = VOCE.matcher(risposta);
+        while (voce.find()) {
+            String campo = voce.group(1).toLowerCase(Locale.ITALIAN);
+            String valore = voce.group(2).strip();
+            if (campo.startsWith("tipo") && tipo == null) {
+                tipo = valore;
+            } else if (campo.equals("materia") && materia == null) {
+                materia = valore;
+            } else if (campo.endsWith("urgenza") && urgenza == null) {
+                urgenza = Urgenza.da(valore);
+            }
+        }
+        if (tipo == null || materia == null || urgenza == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new ClassificazioneAtto(tipo, materia, urgenza));
+    }
+}
@@ -0,0 +1,337 @@
+package it.gov.atti.ai.classificazione;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.ai.agents.AttoAssistantCache;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classificazione massiva delle determinazioni storiche con {@link AttoAssistantCache#classificaAttoEsatta(String)}:
+ * il risultato è salvato come classificazione definitiva dell'atto, quindi non si riusano
+ * risposte date ad atti solo simili.
+ * <p>
+ * Le determinazioni sono lette a pagine in ordine di id, saltando quelle già presenti in
+ * {@code classificazioni_atto}: la tabella dei risultati fa da checkpoint, quindi un'esecuzione
+ * interrotta riprende dagli atti mancanti. Ogni atto è classificato su un thread virtuale; al più
+ * {@code atti.ai.classificazione.concorrenza} chiamate sono in corso e non più di
+ * {@code atti.ai.classificazione.richieste-al-secondo} partono ogni secondo. La lettura della
+ * pagina successiva attende i permessi di concorrenza, così gli atti letti in anticipo restano
+ * limitati.
+ * <p>
+ * La risposta è interpretata in {@link ClassificazioneAtto} e salvata con il testo originale;
+ * le risposte non interpretabili e gli errori non sono salvati e vengono ritentati
+ * all'esecuzione successiva. L'avanzamento è registrato nel log ogni
+ * {@code atti.ai.classificazione.intervallo-report} ed esposto nelle metriche
+ * {@code atti.ai.classificazione.*}.
+ */
+@ApplicationScoped
+public class ClassificazioneBacklog {
+
+    private static final Logger LOG = Logger.getLogger(ClassificazioneBacklog.class);
+
+    private static final String SQL_PAGINA = """
+            SELECT d.id, d.oggetto, d.importo, d.centro_spesa, d.livello_dirigente
+            FROM determinazioni d
+            WHERE d.id > ?
+              AND NOT EXISTS (SELECT 1 FROM classificazioni_atto c WHERE c.determinazione_id = d.id)
+            ORDER BY d.id
+            LIMIT ?""";
+
+    private static final String SQL_ELIMINA = "DELETE FROM classificazioni_atto WHERE determinazione_id = ?";
+
+    private static final String SQL_INSERISCI = """
+            INSERT INTO classificazioni_atto (determinazione_id, tipo, materia, urgenza, risposta, classificato_il)
+            VALUES (?, ?, ?, ?, ?, ?)""";
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    AttoAssistantCache assistente;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.ai.classificazione.avvio-automatico", defaultValue = "false")
+    boolean avvioAutomatico;
+
+    @ConfigProperty(name = "atti.ai.classificazione.concorrenza", defaultValue = "16")
+    int concorrenza;
+
+    @ConfigProperty(name = "atti.ai.classificazione.richieste-al-secondo", defaultValue = "5")
+    double richiesteAlSecondo;
+
+    @ConfigProperty(name = "atti.ai.classificazione.dimensione-pagina", defaultValue = "500")
+    int dimensionePagina;
+
+    @ConfigProperty(name = "atti.ai.classificazione.intervallo-report", defaultValue = "PT30S")
+    Duration intervalloReport;
+
+    /** Modello usato per classificare; sostituibile con uno stub nei test */
+    Classificatore classificatore;
+
+    private final ReentrantLock inCorso = new ReentrantLock();
+
+    private Counter classificati;
+    private Counter nonInterpretati;
+    private Counter errori;
+    private Timer durataAtto;
+
+    @PostConstruct
+    void inizializza() {
+        if (classificatore == null) {
+            classificatore = testo -> assistente.classificaAttoEsatta(testo);
+        }
+        classificati = contatore("classificato");
+        nonInterpretati = contatore("non-interpretato");
+        errori = contatore("errore");
+        durataAtto = Timer.builder("atti.ai.classificazione.durata")
+                .description("Durata della classificazione di un atto, attesa del limite compresa")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    void avvio(@Observes StartupEvent evento) {
+        if (!avvioAutomatico) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                esegui();
+            } catch (RuntimeException e) {
+                LOG.error("Classificazione del backlog fallita", e);
+            }
+        }, "classificazione-backlog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Classifica tutte le determinazioni non ancora classificate.
+     *
+     * @return riepilogo dell'esecuzione
+     * @throws IllegalStateException se un'altra esecuzione è in corso
+     */
+    public EsitoClassificazione esegui() {
+        if (!inCorso.tryLock()) {
+            throw new IllegalStateException("Classificazione del backlog già in corso");
+        }
+        try {
+            Avanzamento avanzamento = new Avanzamento(System.nanoTime());
+            Semaphore permessi = new Semaphore(concorrenza);
+            LimitatoreRichieste limitatore = new LimitatoreRichieste(richiesteAlSecondo);
+            LOG.infof("Classificazione del backlog avviata: concorrenza %d, %.1f richieste/s",
+                    concorrenza, richiesteAlSecondo);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                long ultimoId = 0;
+                List<AttoDaClassificare> pagina;
+                do {
+                    pagina = leggiPagina(ultimoId);
+                    for (AttoDaClassificare atto : pagina) {
+                        permessi.acquire();
+                        avanzamento.letti.increment();
+                        executor.execute(() -> {
+                            try {
+                                classifica(atto, limitatore, avanzamento);
+                            } finally {
+                                permessi.release();
+                            }
+                        });
+                    }
+                    if (!pagina.isEmpty()) {
+                        ultimoId = pagina.get(pagina.size() - 1).id();
+                    }
+                } while (pagina.size() == dimensionePagina);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Classificazione del backlog interrotta: riprenderà dagli atti mancanti");
+            }
+            EsitoClassificazione esito = avanzamento.esito();
+            LOG.infof("Classificazione del backlog terminata: %s", esito);
+            return esito;
+        } finally {
+            inCorso.unlock();
+        }
+    }
+
+    private void classifica(AttoDaClassificare atto, LimitatoreRichieste limitatore, Avanzamento avanzamento) {
+        long inizio = System.nanoTime();
+        try {
+            limitatore.attendi();
+            String risposta = classificatore.classifica(atto.testo());
+            Optional<ClassificazioneAtto> classificazione = ClassificazioneAtto.interpreta(risposta);
+            if (classificazione.isPresent()) {
+                salva(atto.id(), classificazione.get(), risposta);
+                avanzamento.classificati.increment();
+                classificati.increment();
+            } else {
+                LOG.debugf("Risposta non interpretabile per la determinazione %d: %s", atto.id(), risposta);
+                avanzamento.nonInterpretati.increment();
+                nonInterpretati.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.warnf(e, "Classificazione della determinazione %d fallita", atto.id());
+            avanzamento.errori.increment();
+            errori.increment();
+        } finally {
+            durataAtto.record(Duration.ofNanos(System.nanoTime() - inizio));
+            avanzamento.riporta(intervalloReport);
+        }
+    }
+
+    private List<AttoDaClassificare> leggiPagina(long dopoId) {
+        try (Connection connessione = dataSource.getConnection();
+             PreparedStatement query = connessione.prepareStatement(SQL_PAGINA)) {
+            query.setLong(1, dopoId);
+            query.setInt(2, dimensionePagina);
+            List<AttoDaClassificare> atti = new ArrayList<>(dimensionePagina);
+            try (ResultSet righe = query.executeQuery()) {
+                while (righe.next()) {
+                    double importo = righe.getDouble(3);
+                    atti.add(new AttoDaClassificare(righe.getLong(1), righe.getString(2),
+                            righe.wasNull() ? null : importo, righe.getString(4), righe.getString(5)));
+                }
+            }
+            return atti;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Lettura delle determinazioni da classificare fallita", e);
+        }
+    }
+
+    /** Sostituisce la classificazione dell'atto in un'unica transazione */
+    private void salva(long id, ClassificazioneAtto classificazione, String risposta) {
+        try (Connection connessione = dataSource.getConnection()) {
+            connessione.setAutoCommit(false);
+            try (PreparedStatement elimina = connessione.prepareStatement(SQL_ELIMINA);
+                 PreparedStatement inserisci = connessione.prepareStatement(SQL_INSERISCI)) {
+                elimina.setLong(1, id);
+                elimina.executeUpdate();
+                inserisci.setLong(1, id);
+                inserisci.setString(2, classificazione.tipo());
+                inserisci.setString(3, classificazione.materia());
+                inserisci.setString(4, classificazione.urgenza().name());
+                inserisci.setString(5, risposta);
+                inserisci.setTimestamp(6, Timestamp.valueOf(LocalDateTime.now()));
+                inserisci.executeUpdate();
+                connessione.commit();
+            } catch (SQLException e) {
+                connessione.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Salvataggio della classificazione " + id + " fallito", e);
+        }
+    }
+
+    private Counter contatore(String esito) {
+        return Counter.builder("atti.ai.classificazione.atti")
+                .description("Determinazioni elaborate dalla classificazione del backlog")
+                .tag("esito", esito)
+                .register(registry);
+    }
+
+    /**
+     * Determinazione letta dal database, con i campi utili alla classificazione.
+     */
+    record AttoDaClassificare(long id, String oggetto, Double importo, String centroSpesa, String livelloDirigente) {
+
+        String testo() {
+            StringBuilder testo = new StringBuilder("Determinazione dirigenziale\nOggetto: ").append(oggetto);
+            if (importo != null) {
+                testo.append("\nImporto: ").append(String.format(Locale.ITALY, "%,.2f euro", importo));
+            }
+            if (centroSpesa != null) {
+                testo.append("\nCentro di spesa: ").append(centroSpesa);
+            }
+            if (livelloDirigente != null) {
+                testo.append("\nLivello del dirigente: ").append(livelloDirigente);
+            }
+            return testo.toString();
+        }
+    }
+
+    /**
+     * Contatori di un'esecuzione e report periodico della velocità.
+     */
+    private static final class Avanzamento {
+
+        final long inizio;
+        final LongAdder letti = new LongAdder();
+        final LongAdder classificati = new LongAdder();
+        final LongAdder nonInterpretati = new LongAdder();
+        final LongAdder errori = new LongAdder();
+        final AtomicLong ultimoReport;
+
+        Avanzamento(long inizio) {
+            this.inizio = inizio;
+            this.ultimoReport = new AtomicLong(inizio);
+        }
+
+        void riporta(Duration intervallo) {
+            long ora = System.nanoTime();
+            long ultimo = ultimoReport.get();
+            if (ora - ultimo >= intervallo.toNanos() && ultimoReport.compareAndSet(ultimo, ora)) {
+                LOG.infof("Classificazione del backlog in corso: %s", esito());
+            }
+        }
+
+        EsitoClassificazione esito() {
+            return new EsitoClassificazione(letti.sum(), classificati.sum(), nonInterpretati.sum(), errori.sum(),
+                    Duration.ofNanos(System.nanoTime() - inizio));
+        }
+    }
+
+    /**
+     * Riepilogo di un'esecuzione della classificazione.
+     *
+     * @param letti           determinazioni lette e inviate al modello
+     * @param classificati    classificazioni salvate
+     * @param nonInterpretati risposte senza tipo, materia o urgenza riconoscibili
+     * @param errori          chiamate o salvataggi falliti
+     * @param durata          durata dell'esecuzione
+     */
+    public record EsitoClassificazione(long letti, long classificati, long nonInterpretati, long errori,
+                                       Duration durata) {
+
+        /** Atti elaborati al secondo */
+        public double attiAlSecondo() {
+            long elaborati = classificati + nonInterpretati + errori;
+            return durata.isZero() ? 0 : elaborati * 1_000_000_000d / durata.toNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d letti, %d classificati, %d non interpretati, %d errori in %ds (%.2f atti/s)",
+                    letti, classificati, nonInterpretati, errori, durata.toSeconds(), attiAlSecondo());
+        }
+    }
+}
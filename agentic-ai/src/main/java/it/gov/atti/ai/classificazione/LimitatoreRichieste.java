@@ -0,0 +1,41 @@
+package it.gov.atti.ai.classificazione;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limita le chiamate al modello a un numero massimo al secondo, distanziandole uniformemente.
+ * Ogni chiamante prenota il primo intervallo libero e attende fuori dal lock, così che i thread
+ * virtuali in attesa non trattengano il thread portante.
+ */
+class LimitatoreRichieste {
+
+    private final long intervalloNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long prossimo = System.nanoTime();
+
+    /**
+     * @param richiesteAlSecondo richieste consentite al secondo; 0 o meno per nessun limite
+     */
+    LimitatoreRichieste(double richiesteAlSecondo) {
+        this.intervalloNanos = richiesteAlSecondo > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / richiesteAlSecondo) : 0;
+    }
+
+    void attendi() throws InterruptedException {
+        if (intervalloNanos == 0) {
+            return;
+        }
+        long turno;
+        lock.lock();
+        try {
+            turno = Math.max(prossimo, System.nanoTime());
+            prossimo = turno + intervalloNanos;
+        } finally {
+            lock.unlock();
+        }
+        long attesa = turno - System.nanoTime();
+        if (attesa > 0) {
+            TimeUnit.NANOSECONDS.sleep(attesa);
+        }
+    }
+}
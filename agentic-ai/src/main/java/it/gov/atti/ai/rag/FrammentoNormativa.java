@@ -0,0 +1,11 @@
+package it.gov.atti.ai.rag;
+
+/**
+ * Porzione di un documento normativo indicizzata come unità di ricerca.
+ *
+ * @param documento   identificativo del documento di origine (nome del file nel corpus)
+ * @param riferimento riferimento leggibile, ad esempio "D.Lgs. 267/2000 (TUEL) - Art. 107"
+ * @param testo       testo del frammento
+ */
+public record FrammentoNormativa(String documento, String riferimento, String testo) {
+}
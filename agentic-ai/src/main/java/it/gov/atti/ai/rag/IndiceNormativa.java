@@ -0,0 +1,297 @@
+package it.gov.atti.ai.rag;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.apache.lucene.codecs.KnnVectorsFormat;
+import org.apache.lucene.codecs.lucene99.Lucene99Codec;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswVectorsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indice vettoriale locale della normativa.
+ * <p>
+ * I frammenti sono salvati in un indice Lucene su disco, aperto con {@link MMapDirectory}: i grafi
+ * HNSW dei vettori restano nella page cache del sistema operativo e la ricerca dei k vicini non
+ * richiede di caricarli nello heap. Gli embedding sono calcolati in-process da
+ * {@link ModelloEmbeddingLocale}, senza chiamate a servizi esterni.
+ * <p>
+ * Ogni frammento porta l'id e l'impronta del documento di origine, così che l'ingestione possa
+ * saltare i documenti non modificati e sostituire solo quelli cambiati. L'indice persiste tra
+ * i riavvii: all'avvio viene solo riaperto. I dati del commit registrano il modello di embedding
+ * con cui è stato costruito; se il modello configurato è diverso l'indice è svuotato e
+ * l'ingestione ricalcola tutti i documenti.
+ * <p>
+ * La latenza di {@link #cerca} è esposta su {@code /q/metrics} come {@code atti.rag.ricerca},
+ * separata per fase: calcolo dell'embedding della query e ricerca sul grafo HNSW.
+ */
+@ApplicationScoped
+public class IndiceNormativa {
+
+    private static final Logger LOG = Logger.getLogger(IndiceNormativa.class);
+
+    static final String CAMPO_DOCUMENTO = "documento";
+    static final String CAMPO_IMPRONTA = "impronta";
+    static final String CAMPO_RIFERIMENTO = "riferimento";
+    static final String CAMPO_TESTO = "testo";
+    static final String CAMPO_VETTORE = "vettore";
+
+    /** Chiave dei dati del commit con l'identificativo del modello di embedding */
+    static final String DATO_MODELLO = "modello";
+
+    @Inject
+    ModelloEmbeddingLocale modello;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.rag.indice.percorso", defaultValue = "data/indice-normativa")
+    String percorso;
+
+    /** Connessioni per nodo del grafo HNSW: più alto = richiamo migliore, indice più grande */
+    @ConfigProperty(name = "atti.rag.indice.hnsw-m", defaultValue = "16")
+    int hnswM;
+
+    /** Candidati esaminati in costruzione del grafo */
+    @ConfigProperty(name = "atti.rag.indice.hnsw-beam", defaultValue = "100")
+    int hnswBeam;
+
+    /**
+     * Memoria dei frammenti in attesa di scrittura: ogni riempimento produce un segmento con il
+     * proprio grafo HNSW e la ricerca li visita tutti, quindi pochi segmenti grandi sono più veloci
+     */
+    @ConfigProperty(name = "atti.rag.indice.buffer-mb", defaultValue = "256")
+    int bufferMb;
+
+    private MMapDirectory directory;
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+    private Timer latenzaEmbedding;
+    private Timer latenzaIndice;
+
+    @PostConstruct
+    void apri() throws IOException {
+        directory = new MMapDirectory(Files.createDirectories(Path.of(percorso)));
+        IndexWriterConfig configurazione = new IndexWriterConfig()
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                .setRAMBufferSizeMB(bufferMb)
+                .setCodec(new Lucene99Codec() {
+                    @Override
+                    public KnnVectorsFormat getKnnVectorsFormatForField(String campo) {
+                        return new Lucene99HnswVectorsFormat(hnswM, hnswBeam);
+                    }
+                });
+        writer = new IndexWriter(directory, configurazione);
+        String modelloIndice = null;
+        if (writer.getLiveCommitData() != null) {
+            for (Map.Entry<String, String> dato : writer.getLiveCommitData()) {
+                if (DATO_MODELLO.equals(dato.getKey())) {
+                    modelloIndice = dato.getValue();
+                }
+            }
+        }
+        String modelloCorrente = modello.identificativo();
+        if (!modelloCorrente.equals(modelloIndice)) {
+            if (writer.getDocStats().numDocs > 0) {
+                LOG.warnf("Indice normativa costruito con il modello %s, configurato %s: indice svuotato",
+                        modelloIndice, modelloCorrente);
+                writer.deleteAll();
+            }
+            writer.setLiveCommitData(Map.of(DATO_MODELLO, modelloCorrente).entrySet());
+            writer.commit();
+        }
+        searcherManager = new SearcherManager(writer, null);
+        latenzaEmbedding = latenza("embedding");
+        latenzaIndice = latenza("indice");
+    }
+
+    private Timer latenza(String fase) {
+        return Timer.builder("atti.rag.ricerca")
+                .description("Latenza della ricerca top-k nell'indice normativa per fase")
+                .tag("fase", fase)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @PreDestroy
+    void chiudi() throws IOException {
+        searcherManager.close();
+        writer.close();
+        directory.close();
+    }
+
+    /**
+     * Sostituisce tutti i frammenti di un documento. Le modifiche diventano visibili alla ricerca
+     * dopo {@link #conferma()}.
+     *
+     * @param documento id del documento
+     * @param impronta  impronta del contenuto, confrontata alle ingestioni successive
+     * @param frammenti frammenti del documento
+     */
+    public void sostituisci(String documento, String impronta, List<FrammentoNormativa> frammenti) {
+        List<String> testi = new ArrayList<>(frammenti.size());
+        for (FrammentoNormativa frammento : frammenti) {
+            testi.add(frammento.riferimento() + "\n" + frammento.testo());
+        }
+        List<float[]> vettori = modello.vettori(testi);
+        List<Document> documenti = new ArrayList<>(frammenti.size());
+        for (int i = 0; i < frammenti.size(); i++) {
+            FrammentoNormativa frammento = frammenti.get(i);
+            Document documentoLucene = new Document();
+            documentoLucene.add(new StringField(CAMPO_DOCUMENTO, documento, Field.Store.YES));
+            documentoLucene.add(new StringField(CAMPO_IMPRONTA, impronta, Field.Store.YES));
+            documentoLucene.add(new StoredField(CAMPO_RIFERIMENTO, frammento.riferimento()));
+            documentoLucene.add(new StoredField(CAMPO_TESTO, frammento.testo()));
+            documentoLucene.add(new KnnFloatVectorField(CAMPO_VETTORE, vettori.get(i),
+                    VectorSimilarityFunction.COSINE));
+            documenti.add(documentoLucene);
+        }
+        try {
+            writer.updateDocuments(new Term(CAMPO_DOCUMENTO, documento), documenti);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Indicizzazione di " + documento + " fallita", e);
+        }
+    }
+
+    /**
+     * Elimina tutti i frammenti di un documento.
+     */
+    public void elimina(String documento) {
+        try {
+            writer.deleteDocuments(new Term(CAMPO_DOCUMENTO, documento));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Eliminazione di " + documento + " fallita", e);
+        }
+    }
+
+    /**
+     * Rende persistenti e visibili le modifiche accumulate.
+     */
+    public void conferma() {
+        try {
+            writer.commit();
+            searcherManager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Commit dell'indice normativa fallito", e);
+        }
+    }
+
+    /**
+     * Impronta con cui è stato indicizzato un documento.
+     *
+     * @return l'impronta, o null se il documento non è nell'indice
+     */
+    public String impronta(String documento) {
+        return conSearcher(searcher -> {
+            TopDocs trovati = searcher.search(new TermQuery(new Term(CAMPO_DOCUMENTO, documento)), 1);
+            if (trovati.scoreDocs.length == 0) {
+                return null;
+            }
+            return searcher.storedFields().document(trovati.scoreDocs[0].doc).get(CAMPO_IMPRONTA);
+        });
+    }
+
+    /**
+     * Id di tutti i documenti presenti nell'indice.
+     */
+    public Set<String> documenti() {
+        return conSearcher(searcher -> {
+            Set<String> documenti = new HashSet<>();
+            Terms termini = MultiTerms.getTerms(searcher.getIndexReader(), CAMPO_DOCUMENTO);
+            if (termini != null) {
+                TermsEnum iteratore = termini.iterator();
+                for (BytesRef termine = iteratore.next(); termine != null; termine = iteratore.next()) {
+                    if (iteratore.docFreq() > 0) {
+                        documenti.add(termine.utf8ToString());
+                    }
+                }
+            }
+            return documenti;
+        });
+    }
+
+    /**
+     * Ricerca approssimata dei k frammenti più simili alla query sul grafo HNSW.
+     *
+     * @param query testo della query
+     * @param k     numero massimo di risultati
+     * @return frammenti ordinati per similarità decrescente
+     */
+    public List<RisultatoNormativa> cerca(String query, int k) {
+        float[] vettore = latenzaEmbedding.record(() -> modello.vettore(query));
+        return conSearcher(searcher -> {
+            long inizio = System.nanoTime();
+            TopDocs trovati = searcher.search(new KnnFloatVectorQuery(CAMPO_VETTORE, vettore, k), k);
+            latenzaIndice.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+            StoredFields campi = searcher.storedFields();
+            List<RisultatoNormativa> risultati = new ArrayList<>(trovati.scoreDocs.length);
+            for (ScoreDoc trovato : trovati.scoreDocs) {
+                Document documento = campi.document(trovato.doc);
+                risultati.add(new RisultatoNormativa(new FrammentoNormativa(
+                        documento.get(CAMPO_DOCUMENTO),
+                        documento.get(CAMPO_RIFERIMENTO),
+                        documento.get(CAMPO_TESTO)), trovato.score));
+            }
+            return risultati;
+        });
+    }
+
+    /** Numero di frammenti ricercabili */
+    public int dimensione() {
+        return conSearcher(searcher -> searcher.getIndexReader().numDocs());
+    }
+
+    private <T> T conSearcher(Lettura<T> lettura) {
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                return lettura.esegui(searcher);
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Lettura dell'indice normativa fallita", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Lettura<T> {
+        T esegui(IndexSearcher searcher) throws IOException;
+    }
+}
@@ -0,0 +1,216 @@
+package it.gov.atti.ai.rag;
+
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Ingestione incrementale del corpus normativo nell'{@link IndiceNormativa}.
+ * <p>
+ * Il corpus è una cartella di file di testo ({@code .txt} o {@code .md}), uno per documento
+ * (TUEL, L. 241/1990, D.Lgs. 33/2013, regolamenti dell'ente...): la prima riga non vuota è il
+ * titolo del documento, le righe che iniziano con "Art." o "Articolo" aprono un nuovo articolo.
+ * Ogni articolo è diviso in frammenti di al più {@code atti.rag.frammento.max-caratteri} caratteri
+ * lungo i paragrafi; i paragrafi troppo lunghi sono spezzati con una sovrapposizione.
+ * <p>
+ * All'avvio, in background, solo i documenti nuovi o modificati sono ricalcolati; quelli rimossi
+ * dal corpus sono eliminati dall'indice.
+ */
+@ApplicationScoped
+public class IngestioneNormativa {
+
+    private static final Logger LOG = Logger.getLogger(IngestioneNormativa.class);
+
+    private static final Pattern ARTICOLO = Pattern.compile("^(Art\\.|Articolo)\\s*\\d+.*", Pattern.CASE_INSENSITIVE);
+
+    @Inject
+    IndiceNormativa indice;
+
+    @ConfigProperty(name = "atti.rag.corpus.percorso", defaultValue = "data/normativa")
+    String corpus;
+
+    @ConfigProperty(name = "atti.rag.frammento.max-caratteri", defaultValue = "1200")
+    int maxCaratteri;
+
+    @ConfigProperty(name = "atti.rag.frammento.sovrapposizione", defaultValue = "200")
+    int sovrapposizione;
+
+    private final ReentrantLock inCorso = new ReentrantLock();
+
+    void avvio(@Observes StartupEvent evento) {
+        Thread thread = new Thread(() -> {
+            try {
+                sincronizza();
+            } catch (RuntimeException e) {
+                LOG.error("Ingestione del corpus normativo fallita", e);
+            }
+        }, "normativa-ingestione");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Allinea l'indice al contenuto della cartella del corpus.
+     *
+     * @return riepilogo dell'ingestione
+     */
+    public EsitoIngestione sincronizza() {
+        Path cartella = Path.of(corpus);
+        if (!Files.isDirectory(cartella)) {
+            LOG.warnf("Cartella del corpus normativo %s assente: indice non aggiornato", cartella.toAbsolutePath());
+            return new EsitoIngestione(0, 0, 0);
+        }
+        inCorso.lock();
+        try (Stream<Path> file = Files.list(cartella)) {
+            List<Path> documenti = file
+                    .filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".txt") || p.toString().endsWith(".md"))
+                    .sorted()
+                    .toList();
+            Set<String> daEliminare = indice.documenti();
+            int indicizzati = 0;
+            int invariati = 0;
+            for (Path documento : documenti) {
+                String id = documento.getFileName().toString();
+                daEliminare.remove(id);
+                byte[] contenuto = Files.readAllBytes(documento);
+                String impronta = impronta(contenuto);
+                if (impronta.equals(indice.impronta(id))) {
+                    invariati++;
+                    continue;
+                }
+                List<FrammentoNormativa> frammenti = frammenta(id, new String(contenuto, StandardCharsets.UTF_8));
+                indice.sostituisci(id, impronta, frammenti);
+                indicizzati++;
+                LOG.infof("Documento %s indicizzato: %d frammenti", id, frammenti.size());
+            }
+            daEliminare.forEach(indice::elimina);
+            indice.conferma();
+            EsitoIngestione esito = new EsitoIngestione(indicizzati, invariati, daEliminare.size());
+            LOG.infof("Corpus normativo sincronizzato: %s, %d frammenti nell'indice", esito, indice.dimensione());
+            return esito;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Lettura del corpus normativo fallita", e);
+        } finally {
+            inCorso.unlock();
+        }
+    }
+
+    /**
+     * Divide un documento in frammenti per articolo e dimensione.
+     */
+    List<FrammentoNormativa> frammenta(String documento, String testo) {
+        List<FrammentoNormativa> frammenti = new ArrayList<>();
+        String titolo = null;
+        String articolo = null;
+        List<String> paragrafi = new ArrayList<>();
+        StringBuilder paragrafo = new StringBuilder();
+        for (String riga : testo.split("\\R")) {
+            String pulita = riga.strip();
+            if (titolo == null) {
+                if (!pulita.isEmpty()) {
+                    titolo = pulita.replaceFirst("^#+\\s*", "");
+                }
+                continue;
+            }
+            if (ARTICOLO.matcher(pulita).matches()) {
+                chiudiParagrafo(paragrafo, paragrafi);
+                aggiungi(frammenti, documento, riferimento(titolo, articolo), paragrafi);
+                articolo = pulita;
+                paragrafi.clear();
+            } else if (pulita.isEmpty()) {
+                chiudiParagrafo(paragrafo, paragrafi);
+            } else {
+                if (!paragrafo.isEmpty()) {
+                    paragrafo.append(' ');
+                }
+                paragrafo.append(pulita);
+            }
+        }
+        chiudiParagrafo(paragrafo, paragrafi);
+        aggiungi(frammenti, documento, riferimento(titolo != null ? titolo : documento, articolo), paragrafi);
+        return frammenti;
+    }
+
+    private static void chiudiParagrafo(StringBuilder paragrafo, List<String> paragrafi) {
+        if (!paragrafo.isEmpty()) {
+            paragrafi.add(paragrafo.toString());
+            paragrafo.setLength(0);
+        }
+    }
+
+    private static String riferimento(String titolo, String articolo) {
+        return articolo == null ? titolo : titolo + " - " + articolo;
+    }
+
+    /**
+     * Raggruppa i paragrafi di un articolo in frammenti di al più {@code maxCaratteri}.
+     */
+    private void aggiungi(List<FrammentoNormativa> frammenti, String documento, String riferimento, List<String> paragrafi) {
+        StringBuilder corrente = new StringBuilder();
+        for (String paragrafo : paragrafi) {
+            if (!corrente.isEmpty() && corrente.length() + paragrafo.length() + 1 > maxCaratteri) {
+                frammenti.add(new FrammentoNormativa(documento, riferimento, corrente.toString()));
+                corrente.setLength(0);
+            }
+            if (paragrafo.length() > maxCaratteri) {
+                int passo = Math.max(1, maxCaratteri - sovrapposizione);
+                for (int inizio = 0; inizio < paragrafo.length(); inizio += passo) {
+                    int fine = Math.min(paragrafo.length(), inizio + maxCaratteri);
+                    frammenti.add(new FrammentoNormativa(documento, riferimento, paragrafo.substring(inizio, fine)));
+                    if (fine == paragrafo.length()) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            if (!corrente.isEmpty()) {
+                corrente.append('\n');
+            }
+            corrente.append(paragrafo);
+        }
+        if (!corrente.isEmpty()) {
+            frammenti.add(new FrammentoNormativa(documento, riferimento, corrente.toString()));
+        }
+    }
+
+    /** Impronta del contenuto e dei parametri di frammentazione: cambiarli forza la reindicizzazione */
+    private String impronta(byte[] contenuto) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(contenuto);
+            digest.update((maxCaratteri + "/" + sovrapposizione).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Riepilogo di una sincronizzazione del corpus.
+     *
+     * @param indicizzati documenti nuovi o modificati, ricalcolati
+     * @param invariati   documenti saltati perché non modificati
+     * @param eliminati   documenti rimossi dal corpus ed eliminati dall'indice
+     */
+    public record EsitoIngestione(int indicizzati, int invariati, int eliminati) {
+    }
+}
@@ -0,0 +1,96 @@
+package it.gov.atti.ai.rag;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.AllMiniLmL6V2QuantizedEmbeddingModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.OnnxEmbeddingModel;
+import dev.langchain4j.model.embedding.PoolingMode;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Modello di embedding eseguito in-process, condiviso dall'indice della normativa e dalla cache
+ * delle risposte dell'agente: i vettori prodotti sono normalizzati, quindi la similarità coseno è
+ * un prodotto scalare.
+ * <p>
+ * Il corpus e le richieste sono in italiano: in produzione va configurato con
+ * {@code atti.rag.embedding.modello} e {@code atti.rag.embedding.tokenizer} un modello
+ * multilingue esportato in ONNX, come paraphrase-multilingual-MiniLM-L12-v2 (384 dimensioni,
+ * pooling per media). Senza configurazione è usato il modello incluso nella dipendenza,
+ * all-MiniLM-L6-v2 quantizzato: addestrato solo su testi inglesi, sull'italiano ordina i
+ * frammenti in modo molto meno affidabile e serve solo per sviluppo e test.
+ */
+@ApplicationScoped
+public class ModelloEmbeddingLocale {
+
+    private static final Logger LOG = Logger.getLogger(ModelloEmbeddingLocale.class);
+
+    /** Identificativo del modello incluso, registrato nell'indice al posto del percorso */
+    static final String MODELLO_INCLUSO = "all-minilm-l6-v2-q";
+
+    /** File ONNX del modello multilingue */
+    @ConfigProperty(name = "atti.rag.embedding.modello")
+    Optional<String> percorsoModello = Optional.empty();
+
+    /** tokenizer.json del modello multilingue */
+    @ConfigProperty(name = "atti.rag.embedding.tokenizer")
+    Optional<String> percorsoTokenizer = Optional.empty();
+
+    private EmbeddingModel modello;
+
+    @PostConstruct
+    void carica() {
+        if (percorsoModello.isPresent()) {
+            String tokenizer = percorsoTokenizer.orElseGet(() ->
+                    Path.of(percorsoModello.get()).resolveSibling("tokenizer.json").toString());
+            modello = new OnnxEmbeddingModel(percorsoModello.get(), tokenizer, PoolingMode.MEAN);
+            LOG.infof("Modello di embedding %s caricato", percorsoModello.get());
+        } else {
+            modello = new AllMiniLmL6V2QuantizedEmbeddingModel();
+            LOG.warn("atti.rag.embedding.modello non configurato: uso all-MiniLM-L6-v2, addestrato solo "
+                    + "sull'inglese, poco affidabile sul corpus normativo italiano");
+        }
+    }
+
+    /**
+     * Identificativo del modello in uso: l'indice lo registra e si ricostruisce quando cambia,
+     * perché vettori di modelli diversi non sono confrontabili.
+     */
+    public String identificativo() {
+        return percorsoModello.map(percorso -> Path.of(percorso).toAbsolutePath().normalize().toString())
+                .orElse(MODELLO_INCLUSO);
+    }
+
+    /**
+     * Embedding di un testo.
+     */
+    public float[] vettore(String testo) {
+        return modello.embed(testo).content().vector();
+    }
+
+    /**
+     * Embedding di più testi in un'unica chiamata al modello.
+     */
+    public List<float[]> vettori(List<String> testi) {
+        if (testi.isEmpty()) {
+            return List.of();
+        }
+        List<TextSegment> segmenti = new ArrayList<>(testi.size());
+        for (String testo : testi) {
+            segmenti.add(TextSegment.from(testo));
+        }
+        List<float[]> vettori = new ArrayList<>(testi.size());
+        for (Embedding embedding : modello.embedAll(segmenti).content()) {
+            vettori.add(embedding.vector());
+        }
+        return vettori;
+    }
+}
@@ -1,32 +1,48 @@
 package it.gov.atti.ai.rag;
 
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
 import java.util.List;
 
 /**
  * Servizio RAG (Retrieval-Augmented Generation) per il recupero contestuale
  * della normativa vigente sugli atti amministrativi.
  * Permette all'agente AI di rispondere con riferimenti normativi accurati.
+ * La ricerca è semantica sull'indice vettoriale locale alimentato da {@link IngestioneNormativa}.
  */
 @ApplicationScoped
 public class NormativaRagService {
 
+    /** Riferimenti di base restituiti finché il corpus non è stato indicizzato */
+    static final List<String> RIFERIMENTI_BASE = List.of(
+        "D.Lgs. 267/2000 (TUEL) - Art. 107: Funzioni e responsabilità della dirigenza",
+        "D.Lgs. 267/2000 (TUEL) - Art. 151: Principi in materia di contabilità",
+        "D.Lgs. 267/2000 (TUEL) - Art. 183: Impegno di spesa",
+        "L. 241/1990 - Procedimento amministrativo e diritto di accesso",
+        "D.Lgs. 33/2013 - Trasparenza e pubblicazione atti"
+    );
+
+    @Inject
+    IndiceNormativa indice;
+
+    @ConfigProperty(name = "atti.rag.top-k", defaultValue = "5")
+    int topK;
+
     /**
      * Recupera i riferimenti normativi rilevanti per una determinazione.
      *
      * @param query testo della query per la ricerca semantica
-     * @return lista di riferimenti normativi pertinenti
+     * @return lista di riferimenti normativi pertinenti, nel formato "riferimento: testo"
      */
     public List<String> cercaNormativa(String query) {
-        // Implementazione base con riferimenti statici
-        // In produzione: integrazione con vector store (es. pgvector)
-        return List.of(
-            "D.Lgs. 267/2000 (TUEL) - Art. 107: Funzioni e responsabilità della dirigenza",
-            "D.Lgs. 267/2000 (TUEL) - Art. 151: Principi in materia di contabilità",
-            "D.Lgs. 267/2000 (TUEL) - Art. 183: Impegno di spesa",
-            "L. 241/1990 - Procedimento amministrativo e diritto di accesso",
-            "D.Lgs. 33/2013 - Trasparenza e pubblicazione atti"
-        );
+        if (query == null || query.isBlank() || indice.dimensione() == 0) {
+            return RIFERIMENTI_BASE;
+        }
+        return indice.cerca(query, topK).stream()
+                .map(risultato -> risultato.frammento().riferimento() + ": " + risultato.frammento().testo())
+                .toList();
     }
 
     /**
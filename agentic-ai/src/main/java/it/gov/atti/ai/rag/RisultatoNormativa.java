@@ -0,0 +1,10 @@
+package it.gov.atti.ai.rag;
+
+/**
+ * Frammento restituito da una ricerca semantica.
+ *
+ * @param frammento frammento trovato
+ * @param punteggio similarità con la query, tra 0 e 1
+ */
+public record RisultatoNormativa(FrammentoNormativa frammento, float punteggio) {
+}
@@ -0,0 +1,166 @@
+package it.gov.atti.ai.agents;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della cache delle risposte dell'assistente con un agente stub: normalizzazione del testo
+ * e una sola chiamata al modello per richieste identiche concorrenti.
+ */
+public class AttoAssistantCacheTest {
+
+    private static final int RICHIESTE = 8;
+
+    private final AtomicInteger chiamate = new AtomicInteger();
+    private final CountDownLatch modelloInCorso = new CountDownLatch(1);
+    private final CountDownLatch rilascia = new CountDownLatch(1);
+    private volatile RuntimeException errore;
+
+    @Test
+    public void testNormalizza() {
+        assertEquals("affidamento servizio mensa", AttoAssistantCache.normalizza("  Affidamento   Servizio\tMensa.  "));
+        assertEquals("quale stato", AttoAssistantCache.normalizza("Quale stato?!"));
+        assertEquals("art. 107, comma 3 del tuel", AttoAssistantCache.normalizza("Art. 107, comma 3\ndel TUEL;"));
+    }
+
+    @Test
+    public void testTestoNormalizzatoServitoDallaCache() {
+        rilascia.countDown();
+        AttoAssistantCache cache = cache();
+
+        String prima = cache.classificaAtto("Affidamento servizio mensa");
+        String seconda = cache.classificaAtto("  affidamento   SERVIZIO mensa. ");
+
+        assertEquals(prima, seconda);
+        assertEquals(1, chiamate.get());
+        assertEquals(1, contatore(cache, "esatta"));
+    }
+
+    @Test
+    public void testRichiesteIdenticheConcorrentiUnaSolaChiamata() throws Exception {
+        AttoAssistantCache cache = cache();
+
+        List<Future<String>> risposte = inParallelo(cache);
+
+        for (Future<String> risposta : risposte) {
+            assertEquals("classificazione 1", risposta.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, chiamate.get());
+        assertEquals(RICHIESTE - 1, contatore(cache, "coalescente"));
+    }
+
+    @Test
+    public void testErroreDelModelloCondivisoENonMemorizzato() throws Exception {
+        errore = new IllegalStateException("modello non disponibile");
+        AttoAssistantCache cache = cache();
+
+        List<Future<String>> risposte = inParallelo(cache);
+
+        for (Future<String> risposta : risposte) {
+            ExecutionException fallita = assertThrows(ExecutionException.class, () -> risposta.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalStateException.class, fallita.getCause());
+        }
+        assertEquals(1, chiamate.get());
+        errore = null;
+        assertEquals("classificazione 2", cache.classificaAtto("Affidamento servizio mensa"));
+    }
+
+    /**
+     * Avvia la prima richiesta, attende che sia nel modello, poi avvia le altre e rilascia il
+     * modello solo quando tutte attendono la risposta della prima.
+     */
+    private List<Future<String>> inParallelo(AttoAssistantCache cache) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(RICHIESTE);
+        List<Thread> thread = Collections.synchronizedList(new ArrayList<>());
+        try {
+            List<Future<String>> risposte = new ArrayList<>();
+            risposte.add(executor.submit(() -> cache.classificaAtto("Affidamento servizio mensa")));
+            assertTrue(modelloInCorso.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < RICHIESTE; i++) {
+                risposte.add(executor.submit(() -> {
+                    thread.add(Thread.currentThread());
+                    return cache.classificaAtto("affidamento servizio mensa.");
+                }));
+            }
+            long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!tuttiInAttesa(thread) && System.nanoTime() < limite) {
+                Thread.sleep(10);
+            }
+            rilascia.countDown();
+            for (Future<String> risposta : risposte) {
+                try {
+                    risposta.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    // verificato dal test
+                }
+            }
+            return risposte;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean tuttiInAttesa(List<Thread> thread) {
+        synchronized (thread) {
+            return thread.size() == RICHIESTE - 1
+                    && thread.stream().allMatch(t -> t.getState() == Thread.State.WAITING);
+        }
+    }
+
+    private AttoAssistantCache cache() {
+        AttoAssistantCache cache = new AttoAssistantCache();
+        cache.agente = new AttoAssistantAgent() {
+            @Override
+            public String suggerisciOggetto(String descrizione) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String classificaAtto(String testo) {
+                int chiamata = chiamate.incrementAndGet();
+                modelloInCorso.countDown();
+                try {
+                    rilascia.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                if (errore != null) {
+                    throw errore;
+                }
+                return "classificazione " + chiamata;
+            }
+        };
+        cache.registry = new SimpleMeterRegistry();
+        cache.durata = Duration.ofHours(1);
+        cache.memoriaMaxMb = 1;
+        cache.sogliaSuggerisci = 0.95;
+        cache.sogliaClassifica = 1;
+        cache.inizializza();
+        return cache;
+    }
+
+    private static long contatore(AttoAssistantCache cache, String esito) {
+        return (long) cache.registry.get("atti.ai.cache.richieste")
+                .tag("operazione", "classifica-atto")
+                .tag("esito", esito)
+                .counter().count();
+    }
+}
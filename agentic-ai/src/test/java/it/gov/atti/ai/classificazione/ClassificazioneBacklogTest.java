@@ -0,0 +1,142 @@
+package it.gov.atti.ai.classificazione;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della classificazione del backlog su H2 con un modello stub locale:
+ * risultati strutturati, ripresa dagli atti mancanti e limite di concorrenza.
+ */
+public class ClassificazioneBacklogTest {
+
+    private static final int ATTI = 230;
+    private static final int CONCORRENZA = 8;
+
+    private JdbcDataSource dataSource;
+
+    @BeforeEach
+    public void preparaDatabase() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        try (Connection connessione = dataSource.getConnection(); Statement sql = connessione.createStatement()) {
+            sql.execute("""
+                    CREATE TABLE determinazioni (id BIGINT PRIMARY KEY, oggetto VARCHAR(500), importo DOUBLE PRECISION,
+                        centro_spesa VARCHAR(255), livello_dirigente VARCHAR(10))""");
+            sql.execute("""
+                    CREATE TABLE classificazioni_atto (determinazione_id BIGINT PRIMARY KEY, tipo VARCHAR(255),
+                        materia VARCHAR(255), urgenza VARCHAR(20), risposta TEXT, classificato_il TIMESTAMP NOT NULL)""");
+            try (PreparedStatement inserisci = connessione.prepareStatement(
+                    "INSERT INTO determinazioni VALUES (?, ?, ?, 'CDC-01', 'D2')")) {
+                for (int i = 1; i <= ATTI; i++) {
+                    inserisci.setLong(1, i);
+                    inserisci.setString(2, i % 2 == 0 ? "Manutenzione strade comunali lotto " + i : "Assunzione personale " + i);
+                    inserisci.setDouble(3, 1000.0 * i);
+                    inserisci.addBatch();
+                }
+                inserisci.executeBatch();
+            }
+        }
+    }
+
+    @Test
+    public void testClassificaTuttiEPoiNessunoAllaRipresa() throws SQLException {
+        ClassificazioneBacklog backlog = backlog(ClassificazioneBacklogTest::stub);
+
+        ClassificazioneBacklog.EsitoClassificazione esito = backlog.esegui();
+
+        assertEquals(ATTI, esito.letti());
+        assertEquals(ATTI, esito.classificati());
+        assertEquals(ATTI, conta("SELECT COUNT(*) FROM classificazioni_atto"));
+        assertEquals(ATTI / 2, conta("SELECT COUNT(*) FROM classificazioni_atto WHERE materia = 'Lavori Pubblici' AND urgenza = 'URGENTE'"));
+
+        assertEquals(0, backlog.esegui().letti());
+    }
+
+    @Test
+    public void testRisposteNonInterpretabiliRitentateAllaRipresa() throws SQLException {
+        AtomicInteger inCorso = new AtomicInteger();
+        AtomicInteger massimo = new AtomicInteger();
+        ClassificazioneBacklog primo = backlog(testo -> {
+            massimo.accumulateAndGet(inCorso.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(2);
+                return testo.contains("Assunzione") ? "Non sono in grado di classificare l'atto." : stub(testo);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inCorso.decrementAndGet();
+            }
+        });
+
+        ClassificazioneBacklog.EsitoClassificazione esito = primo.esegui();
+
+        assertEquals(ATTI / 2, esito.classificati());
+        assertEquals(ATTI / 2, esito.nonInterpretati());
+        assertTrue(massimo.get() <= CONCORRENZA, "Chiamate concorrenti oltre il limite: " + massimo.get());
+
+        ClassificazioneBacklog.EsitoClassificazione ripresa = backlog(ClassificazioneBacklogTest::stub).esegui();
+
+        assertEquals(ATTI / 2, ripresa.letti());
+        assertEquals(ATTI, conta("SELECT COUNT(*) FROM classificazioni_atto WHERE tipo IS NOT NULL"));
+    }
+
+    @Test
+    public void testInterpretaRispostaMarkdown() {
+        ClassificazioneAtto classificazione = ClassificazioneAtto.interpreta("""
+                Ecco la classificazione:
+                1. **Tipo di atto**: Determinazione Dirigenziale
+                2. **Materia**: Servizi Sociali
+                3. **Livello di urgenza**: Indifferibile, per la scadenza del contributo.
+                """).orElseThrow();
+
+        assertEquals("Determinazione Dirigenziale", classificazione.tipo());
+        assertEquals("Servizi Sociali", classificazione.materia());
+        assertEquals(ClassificazioneAtto.Urgenza.INDIFFERIBILE, classificazione.urgenza());
+    }
+
+    private ClassificazioneBacklog backlog(Classificatore classificatore) {
+        ClassificazioneBacklog backlog = new ClassificazioneBacklog();
+        backlog.dataSource = dataSource;
+        backlog.registry = new SimpleMeterRegistry();
+        backlog.classificatore = classificatore;
+        backlog.concorrenza = CONCORRENZA;
+        backlog.richiesteAlSecondo = 0;
+        backlog.dimensionePagina = 50;
+        backlog.intervalloReport = Duration.ofSeconds(30);
+        backlog.inizializza();
+        return backlog;
+    }
+
+    /** Modello stub: risposta nel formato dell'agente, decisa da parole chiave dell'oggetto */
+    private static String stub(String testo) {
+        boolean lavori = testo.contains("Manutenzione");
+        return """
+                1. Tipo di atto: Determinazione Dirigenziale
+                2. Materia: %s
+                3. Livello di urgenza: %s
+                """.formatted(lavori ? "Lavori Pubblici" : "Personale", lavori ? "Urgente" : "Ordinario");
+    }
+
+    private long conta(String query) throws SQLException {
+        try (Connection connessione = dataSource.getConnection();
+             Statement sql = connessione.createStatement();
+             ResultSet risultato = sql.executeQuery(query)) {
+            risultato.next();
+            return risultato.getLong(1);
+        }
+    }
+}
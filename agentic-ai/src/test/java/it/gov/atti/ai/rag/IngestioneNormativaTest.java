@@ -0,0 +1,185 @@
+package it.gov.atti.ai.rag;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della frammentazione dei documenti normativi e della sincronizzazione incrementale
+ * dell'indice su una cartella temporanea, con vettori fissi al posto del modello di embedding.
+ */
+public class IngestioneNormativaTest {
+
+    private static final String TUEL = """
+            # Testo unico degli enti locali
+
+            Disposizioni generali.
+
+            Art. 107 - Funzioni e responsabilità della dirigenza
+            Spetta ai dirigenti la direzione degli uffici
+            e dei servizi.
+
+            Sono attribuiti ai dirigenti gli atti di gestione.
+
+            Articolo 151 - Principi in materia di contabilità
+            Gli enti locali ispirano la propria gestione al principio della programmazione.
+            """;
+
+    @TempDir
+    Path cartella;
+
+    private IndiceNormativa indice;
+
+    @AfterEach
+    public void chiudiIndice() throws IOException {
+        if (indice != null) {
+            indice.chiudi();
+        }
+    }
+
+    @Test
+    public void testFrammentiPerArticolo() {
+        List<FrammentoNormativa> frammenti = ingestione(1200, 200).frammenta("tuel.md", TUEL);
+
+        assertEquals(List.of(
+                new FrammentoNormativa("tuel.md", "Testo unico degli enti locali", "Disposizioni generali."),
+                new FrammentoNormativa("tuel.md", "Testo unico degli enti locali - Art. 107 - Funzioni e responsabilità della dirigenza",
+                        "Spetta ai dirigenti la direzione degli uffici e dei servizi.\nSono attribuiti ai dirigenti gli atti di gestione."),
+                new FrammentoNormativa("tuel.md", "Testo unico degli enti locali - Articolo 151 - Principi in materia di contabilità",
+                        "Gli enti locali ispirano la propria gestione al principio della programmazione.")), frammenti);
+    }
+
+    @Test
+    public void testParagrafiRaggruppatiFinoAlMassimo() {
+        String testo = "Regolamento\nArt. 1\naaaaaaaaaa\n\nbbbbbbbbbb\n\ncccccccccc\n";
+
+        List<FrammentoNormativa> frammenti = ingestione(25, 5).frammenta("regolamento.txt", testo);
+
+        assertEquals(List.of("aaaaaaaaaa\nbbbbbbbbbb", "cccccccccc"), testi(frammenti));
+    }
+
+    @Test
+    public void testParagrafoLungoSpezzatoConSovrapposizione() {
+        String paragrafo = "abcdefghijklmnopqrstuvwxy";
+
+        List<FrammentoNormativa> frammenti = ingestione(10, 3).frammenta("legge.txt", "Legge\nArt. 1\n" + paragrafo + "\n\nfine");
+
+        assertEquals(List.of("abcdefghij", "hijklmnopq", "opqrstuvwx", "vwxy", "fine"), testi(frammenti));
+        for (FrammentoNormativa frammento : frammenti) {
+            assertTrue(frammento.testo().length() <= 10);
+            assertEquals("Legge - Art. 1", frammento.riferimento());
+        }
+    }
+
+    @Test
+    public void testSincronizzazioneIncrementale() throws IOException {
+        Path corpus = Files.createDirectories(cartella.resolve("corpus"));
+        Files.writeString(corpus.resolve("tuel.md"), TUEL);
+        Files.writeString(corpus.resolve("l241.txt"), "Legge 241/1990\nArt. 1\nL'attività amministrativa persegue i fini determinati dalla legge.\n");
+        Files.writeString(corpus.resolve("allegato.pdf"), "non indicizzato");
+        indice = indice();
+        IngestioneNormativa ingestione = ingestione(1200, 200);
+        ingestione.indice = indice;
+        ingestione.corpus = corpus.toString();
+
+        assertEquals(new IngestioneNormativa.EsitoIngestione(2, 0, 0), ingestione.sincronizza());
+        assertEquals(Set.of("tuel.md", "l241.txt"), indice.documenti());
+        assertEquals(4, indice.dimensione());
+        String improntaTuel = indice.impronta("tuel.md");
+
+        assertEquals(new IngestioneNormativa.EsitoIngestione(0, 2, 0), ingestione.sincronizza());
+        assertEquals(4, indice.dimensione());
+
+        // documento modificato sostituito, documento rimosso eliminato
+        Files.writeString(corpus.resolve("tuel.md"), "# Testo unico degli enti locali\nArt. 107\nNuovo testo.\n");
+        Files.delete(corpus.resolve("l241.txt"));
+        assertEquals(new IngestioneNormativa.EsitoIngestione(1, 0, 1), ingestione.sincronizza());
+        assertEquals(Set.of("tuel.md"), indice.documenti());
+        assertEquals(1, indice.dimensione());
+        assertNotEquals(improntaTuel, indice.impronta("tuel.md"));
+
+        // i parametri di frammentazione fanno parte dell'impronta
+        ingestione.maxCaratteri = 600;
+        assertEquals(new IngestioneNormativa.EsitoIngestione(1, 0, 0), ingestione.sincronizza());
+    }
+
+    @Test
+    public void testCambioDiModelloRicostruisceLIndice() throws IOException {
+        Path corpus = Files.createDirectories(cartella.resolve("corpus"));
+        Files.writeString(corpus.resolve("tuel.md"), TUEL);
+        indice = indice("modello-a");
+        IngestioneNormativa ingestione = ingestione(1200, 200);
+        ingestione.indice = indice;
+        ingestione.corpus = corpus.toString();
+        assertEquals(new IngestioneNormativa.EsitoIngestione(1, 0, 0), ingestione.sincronizza());
+
+        // riaperto con lo stesso modello l'indice è conservato
+        indice.chiudi();
+        indice = indice("modello-a");
+        ingestione.indice = indice;
+        assertEquals(3, indice.dimensione());
+        assertEquals(new IngestioneNormativa.EsitoIngestione(0, 1, 0), ingestione.sincronizza());
+
+        // con un altro modello i vettori non sono confrontabili: tutto ricalcolato
+        indice.chiudi();
+        indice = indice("modello-b");
+        ingestione.indice = indice;
+        assertEquals(0, indice.dimensione());
+        assertEquals(new IngestioneNormativa.EsitoIngestione(1, 0, 0), ingestione.sincronizza());
+    }
+
+    private static IngestioneNormativa ingestione(int maxCaratteri, int sovrapposizione) {
+        IngestioneNormativa ingestione = new IngestioneNormativa();
+        ingestione.maxCaratteri = maxCaratteri;
+        ingestione.sovrapposizione = sovrapposizione;
+        return ingestione;
+    }
+
+    private IndiceNormativa indice() throws IOException {
+        return indice("vettori-fissi");
+    }
+
+    private IndiceNormativa indice(String identificativoModello) throws IOException {
+        IndiceNormativa indice = new IndiceNormativa();
+        indice.modello = new ModelloEmbeddingLocale() {
+            @Override
+            public String identificativo() {
+                return identificativoModello;
+            }
+
+            @Override
+            public List<float[]> vettori(List<String> testi) {
+                List<float[]> vettori = new ArrayList<>(testi.size());
+                for (String testo : testi) {
+                    float[] vettore = new float[8];
+                    vettore[Math.floorMod(testo.hashCode(), vettore.length)] = 1;
+                    vettori.add(vettore);
+                }
+                return vettori;
+            }
+        };
+        indice.registry = new SimpleMeterRegistry();
+        indice.percorso = cartella.resolve("indice").toString();
+        indice.hnswM = 16;
+        indice.hnswBeam = 100;
+        indice.bufferMb = 16;
+        indice.apri();
+        return indice;
+    }
+
+    private static List<String> testi(List<FrammentoNormativa> frammenti) {
+        return frammenti.stream().map(FrammentoNormativa::testo).toList();
+    }
+}
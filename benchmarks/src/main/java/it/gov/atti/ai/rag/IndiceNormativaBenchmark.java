@@ -0,0 +1,139 @@
+package it.gov.atti.ai.rag;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Latenza della ricerca top-k di IndiceNormativa su un indice HNSW su disco con qualche centinaio
+ * di migliaia di frammenti, con i parametri HNSW e il buffer di scrittura di produzione e le
+ * istruzioni vettoriali di Lucene abilitate ({@code --add-modules jdk.incubator.vector}).
+ * <p>
+ * I frammenti hanno vettori casuali normalizzati di 384 dimensioni, come quelli dei modelli
+ * MiniLM, al posto degli embedding: calcolarli per tutto l'indice richiederebbe ore. La ricerca
+ * misura quindi solo il grafo HNSW con query già trasformate; il costo dell'embedding della query
+ * è misurato a parte da {@link ModelloEmbeddingBenchmark}. Su vettori casuali il grafo
+ * esplora più nodi che su embedding reali, raggruppati per argomento: la latenza è una stima per
+ * eccesso. La costruzione dell'indice, nel setup, richiede alcuni minuti.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g", "--add-modules", "jdk.incubator.vector"})
+public class IndiceNormativaBenchmark {
+
+    private static final int DIMENSIONI = 384;
+    private static final int FRAMMENTI_PER_DOCUMENTO = 1_000;
+    private static final int QUERY = 1_024;
+
+    @Param({"100000", "300000"})
+    int frammenti;
+
+    @Param({"5"})
+    int k;
+
+    Path cartella;
+    IndiceNormativa indice;
+    float[][] query;
+    int prossima;
+
+    @Setup(Level.Trial)
+    public void prepara() throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        query = new float[QUERY][];
+        for (int i = 0; i < QUERY; i++) {
+            query[i] = vettoreCasuale(random);
+        }
+        cartella = Files.createTempDirectory("indice-normativa-benchmark");
+        indice = new IndiceNormativa();
+        indice.modello = new ModelloEmbeddingLocale() {
+            @Override
+            public String identificativo() {
+                return "vettori-casuali";
+            }
+
+            @Override
+            public float[] vettore(String testo) {
+                return query[Integer.parseInt(testo)];
+            }
+
+            @Override
+            public List<float[]> vettori(List<String> testi) {
+                List<float[]> vettori = new ArrayList<>(testi.size());
+                for (int i = 0; i < testi.size(); i++) {
+                    vettori.add(vettoreCasuale(random));
+                }
+                return vettori;
+            }
+        };
+        indice.registry = new SimpleMeterRegistry();
+        indice.percorso = cartella.toString();
+        indice.hnswM = 16;
+        indice.hnswBeam = 100;
+        indice.bufferMb = 256;
+        indice.apri();
+        for (int documento = 0; documento * FRAMMENTI_PER_DOCUMENTO < frammenti; documento++) {
+            List<FrammentoNormativa> blocco = new ArrayList<>(FRAMMENTI_PER_DOCUMENTO);
+            for (int i = 0; i < FRAMMENTI_PER_DOCUMENTO; i++) {
+                blocco.add(new FrammentoNormativa("doc-" + documento, "Art. " + i,
+                        "Testo del frammento " + i + " del documento " + documento));
+            }
+            indice.sostituisci("doc-" + documento, "impronta", blocco);
+        }
+        indice.conferma();
+    }
+
+    @TearDown(Level.Trial)
+    public void chiudi() throws IOException {
+        indice.chiudi();
+        try (Stream<Path> file = Files.walk(cartella)) {
+            for (Path percorso : file.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(percorso);
+            }
+        }
+    }
+
+    /** Ricerca top-k sul grafo HNSW, compresa la lettura dei campi memorizzati dei risultati */
+    @Benchmark
+    public List<RisultatoNormativa> cerca() {
+        prossima = (prossima + 1) % QUERY;
+        return indice.cerca(Integer.toString(prossima), k);
+    }
+
+    private static float[] vettoreCasuale(SplittableRandom random) {
+        float[] vettore = new float[DIMENSIONI];
+        double norma = 0;
+        for (int i = 0; i < DIMENSIONI; i++) {
+            vettore[i] = (float) (random.nextDouble() * 2 - 1);
+            norma += vettore[i] * vettore[i];
+        }
+        float inversa = (float) (1 / Math.sqrt(norma));
+        for (int i = 0; i < DIMENSIONI; i++) {
+            vettore[i] *= inversa;
+        }
+        return vettore;
+    }
+}
@@ -0,0 +1,46 @@
+package it.gov.atti.ai.rag;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedding in-process di una query tipica della ricerca normativa, la prima fase di
+ * IndiceNormativa.cerca. Misura il modello ONNX indicato con
+ * {@code -jvmArgsAppend -Datti.rag.embedding.modello=<file>} (e facoltativamente
+ * {@code atti.rag.embedding.tokenizer}), altrimenti il modello incluso nella dipendenza.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelloEmbeddingBenchmark {
+
+    ModelloEmbeddingLocale modello;
+
+    @Setup(Level.Trial)
+    public void prepara() {
+        modello = new ModelloEmbeddingLocale();
+        modello.percorsoModello = Optional.ofNullable(System.getProperty("atti.rag.embedding.modello"));
+        modello.percorsoTokenizer = Optional.ofNullable(System.getProperty("atti.rag.embedding.tokenizer"));
+        modello.carica();
+    }
+
+    @Benchmark
+    public float[] embeddingQuery() {
+        return modello.vettore("affidamento diretto di servizi sotto soglia e obblighi di pubblicazione");
+    }
+}
@@ -0,0 +1,47 @@
+package it.gov.atti.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Punto di ingresso del jar dei benchmark.
+ * Accetta le stesse opzioni di JMH; se non indicate, i risultati sono salvati in JSON in
+ * {@code jmh-risultati/risultati-<data-ora>.json}, così che le esecuzioni di release diverse
+ * possano essere confrontate con gli strumenti JMH o con un semplice diff.
+ */
+public final class EseguiBenchmark {
+
+    private static final DateTimeFormatter FORMATO_DATA = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private EseguiBenchmark() {
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions riga = new CommandLineOptions(args);
+        if (riga.shouldHelp() || riga.shouldList() || riga.shouldListWithParams() || riga.shouldListProfilers()
+                || riga.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        OptionsBuilder opzioni = new OptionsBuilder();
+        opzioni.parent(riga);
+        if (!riga.getResultFormat().hasValue()) {
+            opzioni.resultFormat(ResultFormatType.JSON);
+        }
+        if (!riga.getResult().hasValue()) {
+            Path cartella = Files.createDirectories(Path.of("jmh-risultati"));
+            opzioni.result(cartella.resolve("risultati-" + LocalDateTime.now().format(FORMATO_DATA) + ".json").toString());
+        }
+        new Runner(opzioni.build()).run();
+    }
+}
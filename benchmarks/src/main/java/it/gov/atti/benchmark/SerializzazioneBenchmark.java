@@ -0,0 +1,89 @@
+package it.gov.atti.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.gov.atti.governance.AuditEvent;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.StatoDeterminazione;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializzazione e deserializzazione JSON delle entità esposte dalle API REST,
+ * con un ObjectMapper configurato come quello di Quarkus (date ISO, non timestamp numerici).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializzazioneBenchmark {
+
+    ObjectMapper mapper;
+    Determinazione determinazione;
+    AuditEvent evento;
+    String determinazioneJson;
+    String eventoJson;
+
+    @Setup
+    public void prepara() throws Exception {
+        mapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+        determinazione = new Determinazione();
+        determinazione.id = 12_345L;
+        determinazione.numero = "DET-2026-123";
+        determinazione.oggetto = "Affidamento del servizio di manutenzione ordinaria degli impianti termici comunali";
+        determinazione.importo = 48_500.0;
+        determinazione.centroSpesa = "CDC-LAVORI-PUBBLICI";
+        determinazione.dirigente = "m.rossi";
+        determinazione.livelloDirigente = "D2";
+        determinazione.stato = StatoDeterminazione.ISTRUTTORIA;
+        determinazione.dataCreazione = LocalDateTime.of(2026, 3, 14, 10, 30);
+
+        evento = new AuditEvent();
+        evento.id = 987_654L;
+        evento.processInstanceId = "4f1c2a9e-8b7d-4e36-9a51-0c2d7e8f6b13";
+        evento.eventType = "TASK_COMPLETATO";
+        evento.userId = "istruttore1";
+        evento.timestamp = LocalDateTime.of(2026, 3, 14, 10, 31, 12);
+        evento.details = "{\"task\":\"Istruttoria\",\"esito\":\"completato\"}";
+
+        determinazioneJson = mapper.writeValueAsString(determinazione);
+        eventoJson = mapper.writeValueAsString(evento);
+    }
+
+    @Benchmark
+    public byte[] serializzaDeterminazione() throws Exception {
+        return mapper.writeValueAsBytes(determinazione);
+    }
+
+    @Benchmark
+    public Determinazione deserializzaDeterminazione() throws Exception {
+        return mapper.readValue(determinazioneJson, Determinazione.class);
+    }
+
+    @Benchmark
+    public byte[] serializzaAuditEvent() throws Exception {
+        return mapper.writeValueAsBytes(evento);
+    }
+
+    @Benchmark
+    public AuditEvent deserializzaAuditEvent() throws Exception {
+        return mapper.readValue(eventoJson, AuditEvent.class);
+    }
+}
@@ -0,0 +1,93 @@
+package it.gov.atti.decisioni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifica di competenza su un blocco di determinazioni, misurata per singola determinazione:
+ * <ul>
+ *   <li>{@code valutazioneSingola}: una chiamata al servizio per atto;</li>
+ *   <li>{@code bloccoSequenziale} e {@code bloccoParallelo}: API batch sotto e sopra la soglia
+ *       di partizionamento, quest'ultima sul pool dedicato del servizio.</li>
+ * </ul>
+ * Il costo di compilazione del DMN non è misurato qui: avviene all'avvio o alla ricarica del
+ * file, non per chiamata.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompetenzaBenchmark {
+
+    private static final int ATTI = 10_000;
+    private static final String[] LIVELLI = {"D1", "D2", "D3"};
+
+    List<RichiestaCompetenza> richieste;
+    CompetenzaService sequenziale;
+    CompetenzaService parallelo;
+
+    @Setup
+    public void prepara() {
+        Random random = new Random(42);
+        richieste = new ArrayList<>(ATTI);
+        for (int i = 0; i < ATTI; i++) {
+            richieste.add(new RichiestaCompetenza(LIVELLI[random.nextInt(LIVELLI.length)], random.nextDouble() * 120_000));
+        }
+        sequenziale = servizio(Integer.MAX_VALUE);
+        parallelo = servizio(1_024);
+    }
+
+    private static CompetenzaService servizio(int sogliaParallelo) {
+        CompetenzaService servizio = new CompetenzaService();
+        servizio.fileModello = Optional.empty();
+        servizio.sogliaParallelo = sogliaParallelo;
+        servizio.inizializza();
+        return servizio;
+    }
+
+    @TearDown
+    public void chiudi() throws IOException {
+        sequenziale.chiudi();
+        parallelo.chiudi();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ATTI)
+    public void valutazioneSingola(Blackhole blackhole) {
+        for (RichiestaCompetenza richiesta : richieste) {
+            blackhole.consume(sequenziale.valuta(richiesta.livelloDirigente(), richiesta.importo()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ATTI)
+    public List<EsitoCompetenza> bloccoSequenziale() {
+        return sequenziale.valuta(richieste);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ATTI)
+    public List<EsitoCompetenza> bloccoParallelo() {
+        return parallelo.valuta(richieste);
+    }
+}
@@ -0,0 +1,124 @@
+package it.gov.atti.governance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrittura degli eventi di audit su H2 in modalità PostgreSQL, misurata per evento:
+ * batch JDBC di AuditBatchWriter contro un INSERT con commit per evento (il comportamento
+ * di POST /audit), più il costo del solo sigillo SHA-256 della catena.
+ * H2 non ha la latenza di rete di PostgreSQL: il rapporto tra le due scritture è una stima
+ * per difetto del guadagno reale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuditBatchBenchmark {
+
+    private static final int BLOCCO = 500;
+
+    Connection connection;
+    List<AuditEvent> eventi;
+
+    @Setup(Level.Trial)
+    public void prepara() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:audit;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS audit_log");
+            statement.execute("CREATE TABLE audit_log (id BIGINT GENERATED BY DEFAULT AS IDENTITY, "
+                    + "process_instance_id VARCHAR(255), event_type VARCHAR(100) NOT NULL, user_id VARCHAR(255), "
+                    + "timestamp TIMESTAMP NOT NULL, details TEXT, catena INTEGER, sequenza BIGINT, "
+                    + "hash_precedente CHAR(64), hash CHAR(64), PRIMARY KEY (id, timestamp))");
+        }
+        eventi = new ArrayList<>(BLOCCO);
+        String hash = CatenaAuditService.HASH_GENESI;
+        for (int i = 0; i < BLOCCO; i++) {
+            AuditEvent evento = new AuditEvent();
+            evento.processInstanceId = "proc-" + (i % 37);
+            evento.eventType = "TASK_COMPLETATO";
+            evento.userId = "istruttore" + (i % 5);
+            evento.timestamp = LocalDateTime.of(2026, 3, 14, 10, 0).plusSeconds(i);
+            evento.details = "{\"task\":\"Istruttoria\",\"indice\":" + i + "}";
+            evento.catena = i % 16;
+            evento.sequenza = (long) i + 1;
+            evento.hashPrecedente = hash;
+            evento.hash = CatenaAuditService.calcolaHash(evento);
+            hash = evento.hash;
+            eventi.add(evento);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void svuota() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("TRUNCATE TABLE audit_log");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void chiudi() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCCO)
+    public void inserimentoBatch() throws SQLException {
+        connection.setAutoCommit(false);
+        AuditBatchWriter.inserisci(connection, eventi);
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCCO)
+    public void inserimentoPerEvento() throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(AuditBatchWriter.INSERT)) {
+            for (AuditEvent evento : eventi) {
+                statement.setString(1, evento.processInstanceId);
+                statement.setString(2, evento.eventType);
+                statement.setString(3, evento.userId);
+                statement.setTimestamp(4, Timestamp.valueOf(evento.timestamp));
+                statement.setString(5, evento.details);
+                statement.setInt(6, evento.catena);
+                statement.setLong(7, evento.sequenza);
+                statement.setString(8, evento.hashPrecedente);
+                statement.setString(9, evento.hash);
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCCO)
+    public void sigilloCatena(Blackhole blackhole) {
+        for (AuditEvent evento : eventi) {
+            blackhole.consume(CatenaAuditService.calcolaHash(evento));
+        }
+    }
+}
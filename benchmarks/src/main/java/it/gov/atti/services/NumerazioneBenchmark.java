@@ -0,0 +1,108 @@
+package it.gov.atti.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Numerazione del registro nelle due modalità di NumerazioneService, con 4 thread concorrenti.
+ * <p>
+ * È un'approssimazione su H2 in memoria, non la misura del contatore reale: riservaIntervallo è
+ * sostituito da un UPDATE atomico equivalente ({@code FINAL TABLE}, al posto di
+ * {@code UPDATE ... RETURNING} e dell'inserimento con {@code ON CONFLICT} di PostgreSQL) per
+ * chiamata (modalità continua) o per blocco (modalità blocchi). Misura la contesa sul lock di
+ * riga e il rapporto tra le due modalità, senza round-trip di rete né commit su disco: i valori
+ * assoluti non valgono per PostgreSQL, per cui servono il test di carico (modulo load-test) o
+ * NumerazioneServiceQueryTest. Il nome del benchmark lo riporta nei risultati.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class NumerazioneBenchmark {
+
+    private static final String URL = "jdbc:h2:mem:numerazione;MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+    private static final int ANNO = 2026;
+
+    @Param({"CONTINUA", "BLOCCHI"})
+    NumerazioneService.Modalita modalita;
+
+    NumerazioneService servizio;
+    Connection schema;
+
+    @Setup(Level.Trial)
+    public void prepara() throws SQLException {
+        schema = DriverManager.getConnection(URL);
+        try (Statement statement = schema.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS contatori_numerazione");
+            statement.execute("CREATE TABLE contatori_numerazione (anno INTEGER PRIMARY KEY, ultimo_numero BIGINT NOT NULL)");
+            statement.execute("INSERT INTO contatori_numerazione VALUES (" + ANNO + ", 0)");
+        }
+        ThreadLocal<Connection> connessioni = ThreadLocal.withInitial(() -> {
+            try {
+                return DriverManager.getConnection(URL);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        servizio = new NumerazioneService() {
+            @Override
+            long riservaIntervallo(int anno, int quantita) {
+                try (PreparedStatement statement = connessioni.get().prepareStatement(
+                        "SELECT ultimo_numero FROM FINAL TABLE (UPDATE contatori_numerazione "
+                                + "SET ultimo_numero = ultimo_numero + ? WHERE anno = ?)")) {
+                    statement.setInt(1, quantita);
+                    statement.setInt(2, anno);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        rs.next();
+                        return rs.getLong(1);
+                    }
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            long riservaBlocco(int anno, int quantita) {
+                return riservaIntervallo(anno, quantita);
+            }
+        };
+        servizio.modalita = modalita;
+        servizio.dimensioneBlocco = 50;
+        servizio.registry = new SimpleMeterRegistry();
+        servizio.registraMetriche();
+    }
+
+    @TearDown(Level.Trial)
+    public void chiudi() throws SQLException {
+        schema.close();
+    }
+
+    @Benchmark
+    public String prossimoNumeroSuH2() {
+        return servizio.prossimoNumero(ANNO);
+    }
+}
@@ -0,0 +1,239 @@
+package it.gov.atti.decisioni;
+
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servizio unico di verifica della competenza dirigenziale, basato sulla decision table
+ * {@code verifica-competenza.dmn} compilata da {@link ModelloCompetenza}.
+ * <p>
+ * Il modello è letto dal classpath oppure, se configurato {@code atti.decisioni.competenza.modello},
+ * da un file esterno: in questo caso la cartella è osservata e ogni modifica del file ricompila il
+ * modello, che sostituisce il precedente senza interrompere le valutazioni in corso. Un DMN non
+ * valido viene scartato e resta attivo l'ultimo modello compilato correttamente.
+ * <p>
+ * Il modello del classpath è compilato nell'inizializzazione statica di {@link ModelloIncluso}:
+ * nell'eseguibile nativo Quarkus inizializza le classi durante la build, quindi il DMN è letto
+ * e compilato una volta da native-image e il modello arriva già pronto nell'heap dell'immagine.
+ */
+@Startup
+@ApplicationScoped
+public class CompetenzaService {
+
+    private static final Logger LOG = Logger.getLogger(CompetenzaService.class);
+
+    /** Percorso del modello nel classpath */
+    public static final String RISORSA_MODELLO = "decisions/verifica-competenza.dmn";
+
+    @ConfigProperty(name = "atti.decisioni.competenza.modello")
+    Optional<String> fileModello;
+
+    @ConfigProperty(name = "atti.decisioni.soglia-parallelo", defaultValue = "4096")
+    int sogliaParallelo;
+
+    @ConfigProperty(name = "atti.decisioni.thread-parallelo", defaultValue = "0")
+    int threadParallelo;
+
+    private volatile ModelloCompetenza modello;
+    private WatchService osservatore;
+    private ExecutorService partizioni;
+    private int numeroThread;
+
+    @PostConstruct
+    void inizializza() {
+        numeroThread = threadParallelo > 0 ? threadParallelo : Runtime.getRuntime().availableProcessors();
+        AtomicInteger contatore = new AtomicInteger();
+        partizioni = Executors.newFixedThreadPool(numeroThread, attivita -> {
+            Thread thread = new Thread(attivita, "competenza-partizione-" + contatore.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        modello = carica();
+        LOG.infof("Modello di competenza caricato: %s", modello);
+        fileModello.map(Path::of).ifPresent(this::osserva);
+    }
+
+    @PreDestroy
+    void chiudi() throws IOException {
+        partizioni.shutdownNow();
+        if (osservatore != null) {
+            osservatore.close();
+        }
+    }
+
+    /**
+     * Verifica la competenza per una singola determinazione.
+     *
+     * @param livelloDirigente livello del dirigente
+     * @param importo          importo della determinazione
+     * @return l'esito della prima regola applicabile
+     */
+    public EsitoCompetenza valuta(String livelloDirigente, Double importo) {
+        return modello.valuta(livelloDirigente, importo);
+    }
+
+    /**
+     * Verifica la competenza per un blocco di determinazioni con lo stesso modello,
+     * anche se nel frattempo ne viene caricato uno nuovo.
+     * Oltre {@code atti.decisioni.soglia-parallelo} richieste il blocco è diviso in partizioni
+     * valutate in parallelo su un pool dedicato di {@code atti.decisioni.thread-parallelo} thread
+     * (0: uno per processore), non sul common pool condiviso con il resto dell'applicazione: il
+     * modello è immutabile e gli esiti sono istanze condivise della tabella compilata, quindi le
+     * partizioni non condividono stato né allocano per richiesta.
+     *
+     * @param richieste determinazioni da valutare
+     * @return gli esiti, nello stesso ordine delle richieste
+     */
+    public List<EsitoCompetenza> valuta(List<RichiestaCompetenza> richieste) {
+        ModelloCompetenza corrente = modello;
+        EsitoCompetenza[] esiti = new EsitoCompetenza[richieste.size()];
+        if (richieste.size() < sogliaParallelo) {
+            valuta(corrente, richieste, esiti, 0, esiti.length);
+            return Arrays.asList(esiti);
+        }
+        int numero = Math.min(numeroThread, esiti.length / sogliaParallelo + 1);
+        int dimensione = (esiti.length + numero - 1) / numero;
+        List<Future<?>> inCorso = new ArrayList<>(numero);
+        for (int p = 0; p < numero; p++) {
+            int da = p * dimensione;
+            int a = Math.min(esiti.length, da + dimensione);
+            inCorso.add(partizioni.submit(() -> valuta(corrente, richieste, esiti, da, a)));
+        }
+        try {
+            for (Future<?> partizione : inCorso) {
+                partizione.get();
+            }
+        } catch (InterruptedException e) {
+            inCorso.forEach(partizione -> partizione.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Valutazione della competenza interrotta", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException causa) {
+                throw causa;
+            }
+            throw new IllegalStateException("Valutazione della competenza fallita", e.getCause());
+        }
+        return Arrays.asList(esiti);
+    }
+
+    private static void valuta(ModelloCompetenza modello, List<RichiestaCompetenza> richieste,
+                               EsitoCompetenza[] esiti, int da, int a) {
+        for (int i = da; i < a; i++) {
+            RichiestaCompetenza richiesta = richieste.get(i);
+            esiti[i] = modello.valuta(richiesta.livelloDirigente(), richiesta.importo());
+        }
+    }
+
+    /** Modello attualmente in uso */
+    public ModelloCompetenza modello() {
+        return modello;
+    }
+
+    /**
+     * Ricompila il modello dal file esterno; il modello del classpath non può cambiare e viene
+     * riattivato così com'è.
+     *
+     * @return il nuovo modello
+     * @throws IllegalArgumentException se il DMN non è valido; il modello precedente resta attivo
+     */
+    public ModelloCompetenza ricarica() {
+        ModelloCompetenza nuovo = carica();
+        modello = nuovo;
+        LOG.infof("Modello di competenza ricaricato: %s", nuovo);
+        return nuovo;
+    }
+
+    private ModelloCompetenza carica() {
+        try {
+            if (fileModello.isPresent()) {
+                Path file = Path.of(fileModello.get());
+                return ModelloCompetenza.compila(Files.readAllBytes(file), file.getFileName().toString());
+            }
+            return ModelloIncluso.MODELLO;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Lettura del modello di competenza fallita", e);
+        }
+    }
+
+    /** Modello distribuito nel classpath, immutabile e quindi compilato una volta sola */
+    private static final class ModelloIncluso {
+
+        static final ModelloCompetenza MODELLO = compila();
+
+        private static ModelloCompetenza compila() {
+            try (InputStream input = CompetenzaService.class.getClassLoader().getResourceAsStream(RISORSA_MODELLO)) {
+                if (input == null) {
+                    throw new IllegalStateException("Modello " + RISORSA_MODELLO + " non trovato nel classpath");
+                }
+                return ModelloCompetenza.compila(input.readAllBytes(), Path.of(RISORSA_MODELLO).getFileName().toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Lettura del modello di competenza fallita", e);
+            }
+        }
+    }
+
+    private void osserva(Path file) {
+        Path cartella = file.toAbsolutePath().getParent();
+        try {
+            osservatore = FileSystems.getDefault().newWatchService();
+            cartella.register(osservatore, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            LOG.warnf(e, "Impossibile osservare %s: il modello non sarà ricaricato automaticamente", cartella);
+            return;
+        }
+        Thread thread = new Thread(() -> ciclo(file.getFileName()), "competenza-dmn-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void ciclo(Path nome) {
+        try {
+            while (true) {
+                WatchKey chiave = osservatore.take();
+                boolean modificato = false;
+                for (WatchEvent<?> evento : chiave.pollEvents()) {
+                    modificato |= nome.equals(evento.context());
+                }
+                if (modificato) {
+                    try {
+                        ricarica();
+                    } catch (RuntimeException e) {
+                        LOG.errorf(e, "Modello di competenza non valido, resta attivo %s", modello);
+                    }
+                }
+                if (!chiave.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // arresto dell'applicazione
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package it.gov.atti.decisioni;
+
+/**
+ * Esito della verifica di competenza dirigenziale.
+ *
+ * @param competente  true se il dirigente è competente per l'importo
+ * @param motivazione motivazione riportata dalla regola applicata
+ * @param regola      id della regola DMN applicata (null se nessuna regola si applica)
+ */
+public record EsitoCompetenza(boolean competente, String motivazione, String regola) {
+}
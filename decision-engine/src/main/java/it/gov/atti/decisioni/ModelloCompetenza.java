@@ -0,0 +1,421 @@
+package it.gov.atti.decisioni;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decision table DMN di verifica competenza compilata in una struttura di lookup in memoria.
+ * <p>
+ * Per ogni livello dirigenziale le soglie di importo citate dalle regole sono ordinate e
+ * dividono l'asse degli importi in segmenti (ogni soglia e ogni intervallo aperto tra due soglie).
+ * L'esito di ciascun segmento è calcolato una volta sola in fase di compilazione applicando
+ * l'hit policy FIRST; la valutazione è quindi una ricerca binaria sulle soglie del livello.
+ * <p>
+ * Sono supportati i test unari usati dalla tabella: stringhe letterali (anche in elenco),
+ * {@code -}, confronti {@code < <= > >=}, uguaglianza e intervalli {@code [a..b]}.
+ * Istanze immutabili: il servizio sostituisce il modello per intero a ogni ricarica.
+ */
+public final class ModelloCompetenza {
+
+    private static final String OUTPUT_COMPETENTE = "competente";
+    private static final String OUTPUT_MOTIVAZIONE = "motivazione";
+
+    private final String id;
+    private final String nome;
+    private final String origine;
+    private final String impronta;
+    private final LocalDateTime caricatoIl;
+    private final List<String> inputs;
+    private final List<String> outputs;
+    private final List<Map<String, String>> regole;
+    private final Map<String, Tabella> tabelle;
+    private final Tabella tabellaGenerica;
+
+    private ModelloCompetenza(String id, String nome, String origine, String impronta, List<String> inputs,
+                              List<String> outputs, List<Map<String, String>> regole,
+                              Map<String, Tabella> tabelle, Tabella tabellaGenerica) {
+        this.id = id;
+        this.nome = nome;
+        this.origine = origine;
+        this.impronta = impronta;
+        this.caricatoIl = LocalDateTime.now();
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.regole = regole;
+        this.tabelle = tabelle;
+        this.tabellaGenerica = tabellaGenerica;
+    }
+
+    /**
+     * Compila il contenuto di un file DMN con una decision table a due input
+     * (livello dirigente stringa, importo numerico) e output 'competente' e 'motivazione'.
+     *
+     * @param contenuto contenuto del file DMN
+     * @param origine   nome del file, riportato nell'elenco delle decisioni
+     * @return il modello compilato
+     * @throws IllegalArgumentException se il DMN non è leggibile o usa costrutti non supportati
+     */
+    public static ModelloCompetenza compila(byte[] contenuto, String origine) {
+        Element definizioni = leggi(contenuto).getDocumentElement();
+        Element tabella = primo(definizioni, "decisionTable");
+        if (tabella == null) {
+            throw new IllegalArgumentException(origine + ": nessuna decisionTable");
+        }
+        String hitPolicy = tabella.getAttribute("hitPolicy");
+        if (!hitPolicy.isEmpty() && !"FIRST".equals(hitPolicy)) {
+            throw new IllegalArgumentException(origine + ": hit policy " + hitPolicy + " non supportata");
+        }
+
+        List<Element> colonneInput = figli(tabella, "input");
+        List<Element> colonneOutput = figli(tabella, "output");
+        if (colonneInput.size() != 2) {
+            throw new IllegalArgumentException(origine + ": attesi due input (livello, importo)");
+        }
+        List<String> inputs = new ArrayList<>();
+        for (Element input : colonneInput) {
+            inputs.add(input.getAttribute("label"));
+        }
+        List<String> outputs = new ArrayList<>();
+        for (Element output : colonneOutput) {
+            outputs.add(output.getAttribute("name"));
+        }
+        int colonnaCompetente = outputs.indexOf(OUTPUT_COMPETENTE);
+        int colonnaMotivazione = outputs.indexOf(OUTPUT_MOTIVAZIONE);
+        if (colonnaCompetente < 0 || colonnaMotivazione < 0) {
+            throw new IllegalArgumentException(origine + ": output 'competente' e 'motivazione' obbligatori");
+        }
+
+        List<Regola> compilate = new ArrayList<>();
+        List<Map<String, String>> regole = new ArrayList<>();
+        for (Element regola : figli(tabella, "rule")) {
+            List<String> ingressi = testi(regola, "inputEntry");
+            List<String> uscite = testi(regola, "outputEntry");
+            if (ingressi.size() != inputs.size() || uscite.size() != outputs.size()) {
+                throw new IllegalArgumentException(origine + ": regola " + regola.getAttribute("id") + " incompleta");
+            }
+            Map<String, String> riga = new LinkedHashMap<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                riga.put(inputs.get(i), ingressi.get(i));
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                riga.put(outputs.get(i), letterale(uscite.get(i)));
+            }
+            regole.add(riga);
+            EsitoCompetenza esito = new EsitoCompetenza(
+                    Boolean.parseBoolean(uscite.get(colonnaCompetente).trim()),
+                    letterale(uscite.get(colonnaMotivazione)),
+                    regola.getAttribute("id"));
+            compilate.add(new Regola(livelli(ingressi.get(0)), Intervallo.di(ingressi.get(1)), esito));
+        }
+
+        Set<String> livelli = new LinkedHashSet<>();
+        for (Regola regola : compilate) {
+            if (regola.livelli != null) {
+                livelli.addAll(regola.livelli);
+            }
+        }
+        Map<String, Tabella> tabelle = new LinkedHashMap<>();
+        for (String livello : livelli) {
+            tabelle.put(livello, Tabella.compila(compilate, livello));
+        }
+        return new ModelloCompetenza(
+                definizioni.getAttribute("id"),
+                definizioni.getAttribute("name"),
+                origine,
+                impronta(contenuto),
+                List.copyOf(inputs),
+                List.copyOf(outputs),
+                List.copyOf(regole),
+                Map.copyOf(tabelle),
+                Tabella.compila(compilate, null));
+    }
+
+    /**
+     * Valuta la competenza per un livello e un importo.
+     *
+     * @param livelloDirigente livello del dirigente (D1, D2, D3, ...)
+     * @param importo          importo della determinazione; null soddisfa solo le regole con importo '-'
+     * @return l'esito della prima regola applicabile, o un esito negativo se nessuna regola si applica
+     */
+    public EsitoCompetenza valuta(String livelloDirigente, Double importo) {
+        Tabella tabella = livelloDirigente != null ? tabelle.get(livelloDirigente) : null;
+        EsitoCompetenza esito = (tabella != null ? tabella : tabellaGenerica).cerca(importo);
+        if (esito != null) {
+            return esito;
+        }
+        return new EsitoCompetenza(false,
+                "Nessuna regola applicabile per livello " + livelloDirigente + " e importo " + importo, null);
+    }
+
+    /** Identificativo del modello DMN */
+    public String id() {
+        return id;
+    }
+
+    /** Nome del modello DMN */
+    public String nome() {
+        return nome;
+    }
+
+    /** Nome del file da cui è stato caricato il modello */
+    public String origine() {
+        return origine;
+    }
+
+    /** Primi caratteri dello SHA-256 del file, cambia a ogni modifica del modello */
+    public String impronta() {
+        return impronta;
+    }
+
+    /** Istante di compilazione */
+    public LocalDateTime caricatoIl() {
+        return caricatoIl;
+    }
+
+    /** Etichette delle colonne di input */
+    public List<String> inputs() {
+        return inputs;
+    }
+
+    /** Nomi delle colonne di output */
+    public List<String> outputs() {
+        return outputs;
+    }
+
+    /** Regole della tabella, una mappa colonna → valore per riga, nell'ordine del DMN */
+    public List<Map<String, String>> regole() {
+        return regole;
+    }
+
+    private static Document leggi(byte[] contenuto) {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(contenuto));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new IllegalArgumentException("DMN non leggibile: " + e.getMessage(), e);
+        }
+    }
+
+    private static Element primo(Element radice, String nome) {
+        NodeList nodi = radice.getElementsByTagNameNS("*", nome);
+        return nodi.getLength() > 0 ? (Element) nodi.item(0) : null;
+    }
+
+    private static List<Element> figli(Element padre, String nome) {
+        List<Element> elementi = new ArrayList<>();
+        for (Node nodo = padre.getFirstChild(); nodo != null; nodo = nodo.getNextSibling()) {
+            if (nodo instanceof Element elemento && nome.equals(elemento.getLocalName())) {
+                elementi.add(elemento);
+            }
+        }
+        return elementi;
+    }
+
+    private static List<String> testi(Element regola, String nome) {
+        List<String> testi = new ArrayList<>();
+        for (Element voce : figli(regola, nome)) {
+            List<Element> testo = figli(voce, "text");
+            testi.add(testo.isEmpty() ? "-" : testo.get(0).getTextContent().trim());
+        }
+        return testi;
+    }
+
+    /** Toglie le virgolette da un letterale stringa FEEL */
+    private static String letterale(String valore) {
+        String testo = valore.trim();
+        if (testo.length() >= 2 && testo.startsWith("\"") && testo.endsWith("\"")) {
+            return testo.substring(1, testo.length() - 1);
+        }
+        return testo;
+    }
+
+    /** Livelli ammessi da un test unario sulla stringa; null se il test è '-' */
+    private static Set<String> livelli(String test) {
+        if ("-".equals(test.trim())) {
+            return null;
+        }
+        Set<String> livelli = new LinkedHashSet<>();
+        for (String voce : test.split(",")) {
+            String livello = voce.trim();
+            if (!livello.startsWith("\"") || !livello.endsWith("\"")) {
+                throw new IllegalArgumentException("Test sul livello non supportato: " + test);
+            }
+            livelli.add(letterale(livello));
+        }
+        return livelli;
+    }
+
+    private static String impronta(byte[] contenuto) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(contenuto);
+            return HexFormat.of().formatHex(hash, 0, 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Regola compilata: livelli ammessi (null = qualsiasi), intervallo di importo ed esito */
+    private record Regola(Set<String> livelli, Intervallo importo, EsitoCompetenza esito) {
+
+        boolean perLivello(String livello) {
+            return livelli == null || (livello != null && livelli.contains(livello));
+        }
+    }
+
+    /** Intervallo di importo di un test unario; null come estremo indica illimitato */
+    private record Intervallo(Double minimo, boolean minimoIncluso, Double massimo, boolean massimoIncluso) {
+
+        static final Intervallo QUALSIASI = new Intervallo(null, false, null, false);
+
+        static Intervallo di(String test) {
+            String t = test.trim();
+            try {
+                if ("-".equals(t)) {
+                    return QUALSIASI;
+                }
+                if (t.startsWith("<=")) {
+                    return new Intervallo(null, false, numero(t.substring(2)), true);
+                }
+                if (t.startsWith("<")) {
+                    return new Intervallo(null, false, numero(t.substring(1)), false);
+                }
+                if (t.startsWith(">=")) {
+                    return new Intervallo(numero(t.substring(2)), true, null, false);
+                }
+                if (t.startsWith(">")) {
+                    return new Intervallo(numero(t.substring(1)), false, null, false);
+                }
+                int separatore = t.indexOf("..");
+                if (separatore > 0) {
+                    char apertura = t.charAt(0);
+                    char chiusura = t.charAt(t.length() - 1);
+                    return new Intervallo(
+                            numero(t.substring(1, separatore)), apertura == '[',
+                            numero(t.substring(separatore + 2, t.length() - 1)), chiusura == ']');
+                }
+                double valore = numero(t);
+                return new Intervallo(valore, true, valore, true);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Test sull'importo non supportato: " + test, e);
+            }
+        }
+
+        private static double numero(String testo) {
+            return Double.parseDouble(testo.trim());
+        }
+
+        boolean contiene(Double importo) {
+            if (importo == null) {
+                return minimo == null && massimo == null;
+            }
+            double valore = importo;
+            boolean sopra = minimo == null || (minimoIncluso ? valore >= minimo : valore > minimo);
+            boolean sotto = massimo == null || (massimoIncluso ? valore <= massimo : valore < massimo);
+            return sopra && sotto;
+        }
+    }
+
+    /**
+     * Lookup compilato per un livello. Con k soglie ordinate s[0..k-1] i segmenti sono 2k+1:
+     * il segmento 2i+1 è il punto s[i], il segmento 2i l'intervallo aperto che precede s[i]
+     * (e il segmento 2k quello che segue l'ultima soglia).
+     */
+    private static final class Tabella {
+        final double[] soglie;
+        final EsitoCompetenza[] segmenti;
+        final EsitoCompetenza esitoSenzaImporto;
+
+        private Tabella(double[] soglie, EsitoCompetenza[] segmenti, EsitoCompetenza esitoSenzaImporto) {
+            this.soglie = soglie;
+            this.segmenti = segmenti;
+            this.esitoSenzaImporto = esitoSenzaImporto;
+        }
+
+        static Tabella compila(List<Regola> regole, String livello) {
+            List<Regola> applicabili = new ArrayList<>();
+            TreeSet<Double> valori = new TreeSet<>();
+            for (Regola regola : regole) {
+                if (regola.perLivello(livello)) {
+                    applicabili.add(regola);
+                    if (regola.importo.minimo != null) {
+                        valori.add(regola.importo.minimo);
+                    }
+                    if (regola.importo.massimo != null) {
+                        valori.add(regola.importo.massimo);
+                    }
+                }
+            }
+            double[] soglie = valori.stream().mapToDouble(Double::doubleValue).toArray();
+            EsitoCompetenza[] segmenti = new EsitoCompetenza[2 * soglie.length + 1];
+            for (int s = 0; s < segmenti.length; s++) {
+                segmenti[s] = primo(applicabili, rappresentante(soglie, s));
+            }
+            return new Tabella(soglie, segmenti, primo(applicabili, null));
+        }
+
+        /** Un importo qualsiasi interno al segmento */
+        private static double rappresentante(double[] soglie, int segmento) {
+            int k = soglie.length;
+            if (k == 0) {
+                return 0;
+            }
+            if (segmento % 2 == 1) {
+                return soglie[segmento / 2];
+            }
+            int dopo = segmento / 2;
+            if (dopo == 0) {
+                return soglie[0] - 1;
+            }
+            if (dopo == k) {
+                return soglie[k - 1] + 1;
+            }
+            return (soglie[dopo - 1] + soglie[dopo]) / 2;
+        }
+
+        private static EsitoCompetenza primo(List<Regola> regole, Double importo) {
+            for (Regola regola : regole) {
+                if (regola.importo.contiene(importo)) {
+                    return regola.esito;
+                }
+            }
+            return null;
+        }
+
+        EsitoCompetenza cerca(Double importo) {
+            if (importo == null) {
+                return esitoSenzaImporto;
+            }
+            int posizione = Arrays.binarySearch(soglie, importo);
+            return segmenti[posizione >= 0 ? 2 * posizione + 1 : 2 * (-posizione - 1)];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ModelloCompetenza[" + origine + ", " + regole.size() + " regole, impronta " + impronta + "]";
+    }
+}
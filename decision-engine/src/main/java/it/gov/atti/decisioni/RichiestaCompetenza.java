@@ -0,0 +1,10 @@
+package it.gov.atti.decisioni;
+
+/**
+ * Dati di una determinazione necessari alla verifica di competenza.
+ *
+ * @param livelloDirigente livello del dirigente firmatario (D1, D2, D3)
+ * @param importo          importo della determinazione in euro
+ */
+public record RichiestaCompetenza(String livelloDirigente, Double importo) {
+}
@@ -0,0 +1,88 @@
+package it.gov.atti.decisioni;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test del modello di competenza compilato a partire dal DMN distribuito con il modulo.
+ */
+class ModelloCompetenzaTest {
+
+    static ModelloCompetenza modello;
+
+    @BeforeAll
+    static void compila() throws IOException {
+        try (InputStream input = ModelloCompetenzaTest.class.getClassLoader()
+                .getResourceAsStream(CompetenzaService.RISORSA_MODELLO)) {
+            modello = ModelloCompetenza.compila(input.readAllBytes(), "verifica-competenza.dmn");
+        }
+    }
+
+    @Test
+    void soglieInclusiveDelDmn() {
+        assertTrue(modello.valuta("D1", 5000.0).competente());
+        assertFalse(modello.valuta("D1", 5000.01).competente());
+        assertTrue(modello.valuta("D2", 50000.0).competente());
+        assertFalse(modello.valuta("D2", 50000.01).competente());
+        assertEquals("Rule_D2_ko", modello.valuta("D2", 1_000_000.0).regola());
+        assertTrue(modello.valuta("D3", 10_000_000.0).competente());
+    }
+
+    @Test
+    void importoNulloOLivelloSconosciuto() {
+        assertTrue(modello.valuta("D3", null).competente());
+        assertFalse(modello.valuta("D1", null).competente());
+        EsitoCompetenza sconosciuto = modello.valuta("D9", 100.0);
+        assertFalse(sconosciuto.competente());
+        assertNull(sconosciuto.regola());
+    }
+
+    @Test
+    void hitPolicyFirstConRegoleSovrapposte() {
+        String dmn = """
+                <definitions xmlns="https://www.omg.org/spec/DMN/20191111/MODEL/" id="t" name="t">
+                  <decision id="d"><decisionTable hitPolicy="FIRST">
+                    <input label="livello"/><input label="importo"/>
+                    <output name="competente"/><output name="motivazione"/>
+                    <rule id="r1"><inputEntry><text>"D1","D2"</text></inputEntry><inputEntry><text>[100..200)</text></inputEntry>
+                      <outputEntry><text>false</text></outputEntry><outputEntry><text>"fascia"</text></outputEntry></rule>
+                    <rule id="r2"><inputEntry><text>-</text></inputEntry><inputEntry><text>&lt; 1000</text></inputEntry>
+                      <outputEntry><text>true</text></outputEntry><outputEntry><text>"base"</text></outputEntry></rule>
+                  </decisionTable></decision>
+                </definitions>
+                """;
+        ModelloCompetenza tabella = ModelloCompetenza.compila(dmn.getBytes(StandardCharsets.UTF_8), "t.dmn");
+        assertEquals("r2", tabella.valuta("D1", 99.99).regola());
+        assertEquals("r1", tabella.valuta("D1", 100.0).regola());
+        assertEquals("r1", tabella.valuta("D2", 150.0).regola());
+        assertEquals("r2", tabella.valuta("D1", 200.0).regola());
+        assertEquals("r2", tabella.valuta("D7", 150.0).regola());
+        assertNull(tabella.valuta("D1", 1000.0).regola());
+    }
+
+    @Test
+    void testNonSupportatoRifiutato() {
+        String dmn = """
+                <definitions xmlns="https://www.omg.org/spec/DMN/20191111/MODEL/" id="t" name="t">
+                  <decision id="d"><decisionTable>
+                    <input label="livello"/><input label="importo"/>
+                    <output name="competente"/><output name="motivazione"/>
+                    <rule id="r1"><inputEntry><text>-</text></inputEntry><inputEntry><text>not(5)</text></inputEntry>
+                      <outputEntry><text>true</text></outputEntry><outputEntry><text>"x"</text></outputEntry></rule>
+                  </decisionTable></decision>
+                </definitions>
+                """;
+        assertThrows(IllegalArgumentException.class,
+                () -> ModelloCompetenza.compila(dmn.getBytes(StandardCharsets.UTF_8), "t.dmn"));
+    }
+}
@@ -3,42 +3,37 @@ import { Card, CardBody, CardTitle, Col, Container, Row, Spinner } from 'design-
 import { useKeycloak } from '@react-keycloak/web';
 import axios from 'axios';
 
-/** Struttura dati di una determinazione */
-interface Determinazione {
-  id: number;
-  numero: string;
-  oggetto: string;
-  importo: number;
-  stato: string;
-  dataCreazione: string;
+/** Aggregati delle determinazioni restituiti da GET /metriche */
+interface MetricheDeterminazioni {
+  totale: number;
+  perStato: Record<string, number>;
 }
 
 /**
  * Dashboard principale con statistiche sulle determinazioni dirigenziali.
  * Mostra contatori per stato: totale, in lavorazione, firmate, pubblicate.
+ * I contatori sono gli aggregati mantenuti dal process engine, senza scaricare l'elenco.
  */
 const Dashboard: React.FC = () => {
   const { keycloak } = useKeycloak();
-  const [determinazioni, setDeterminazioni] = useState<Determinazione[]>([]);
+  const [metriche, setMetriche] = useState<MetricheDeterminazioni | null>(null);
   const [caricamento, setCaricamento] = useState(true);
 
   useEffect(() => {
-    // Recupera tutte le determinazioni dal backend
     axios
-      .get('/determinazioni', {
+      .get('/metriche', {
         headers: { Authorization: `Bearer ${keycloak.token}` },
       })
-      .then((res) => setDeterminazioni(res.data))
+      .then((res) => setMetriche(res.data))
       .catch(console.error)
       .finally(() => setCaricamento(false));
   }, [keycloak.token]);
 
-  const totale = determinazioni.length;
-  const inLavorazione = determinazioni.filter(
-    (d) => d.stato === 'ISTRUTTORIA' || d.stato === 'VISTO_CONTABILE'
-  ).length;
-  const firmate = determinazioni.filter((d) => d.stato === 'FIRMATA').length;
-  const pubblicate = determinazioni.filter((d) => d.stato === 'PUBBLICATA').length;
+  const perStato = metriche?.perStato ?? {};
+  const totale = metriche?.totale ?? 0;
+  const inLavorazione = (perStato.ISTRUTTORIA ?? 0) + (perStato.VISTO_CONTABILE ?? 0);
+  const firmate = perStato.FIRMATA ?? 0;
+  const pubblicate = perStato.PUBBLICATA ?? 0;
 
   if (caricamento) {
     return (
@@ -50,14 +50,14 @@ const MetricheAdmin: React.FC = () => {
   const [contatore, setContatore] = useState(REFRESH_INTERVAL_MS / 1000);
   const intervalloRef = useRef<ReturnType<typeof setInterval> | null>(null);
 
-  /** Carica le metriche Quarkus/Prometheus e le determinazioni */
+  /** Carica le metriche Quarkus/Prometheus e gli aggregati delle determinazioni */
   const caricaMetriche = () => {
     if (!keycloak.token) return;
     setCaricamento(true);
 
     Promise.all([
       axios.get('/q/metrics', { headers: { Authorization: `Bearer ${keycloak.token}` } }).catch(() => null),
-      axios.get('/determinazioni', { headers: { Authorization: `Bearer ${keycloak.token}` } }).catch(() => ({ data: [] })),
+      axios.get('/metriche', { headers: { Authorization: `Bearer ${keycloak.token}` } }).catch(() => ({ data: null })),
     ])
       .then(([metrRes, detRes]) => {
         // Parsing metriche Prometheus (formato testo)
@@ -75,13 +75,13 @@ const MetricheAdmin: React.FC = () => {
           uptime: Math.round(estraiValore(/process_uptime_seconds ([\d.]+)/) / 3600),
         });
 
-        // Calcola statistiche atti
-        const det: Array<{ stato: string }> = detRes?.data ?? [];
+        // Statistiche atti dagli aggregati del process engine (GET /metriche)
+        const perStato: Record<string, number> = detRes?.data?.perStato ?? {};
         setStatistiche({
-          pubblicata: det.filter((d) => d.stato === 'PUBBLICATA').length,
-          inLavorazione: det.filter((d) => ['ISTRUTTORIA', 'VISTO_CONTABILE', 'BOZZA'].includes(d.stato)).length,
-          rifiutata: det.filter((d) => d.stato === 'RIFIUTATA').length,
-          sospesa: det.filter((d) => d.stato === 'SOSPESA').length,
+          pubblicata: perStato.PUBBLICATA ?? 0,
+          inLavorazione: (perStato.ISTRUTTORIA ?? 0) + (perStato.VISTO_CONTABILE ?? 0) + (perStato.BOZZA ?? 0),
+          rifiutata: perStato.RIFIUTATA ?? 0,
+          sospesa: perStato.SOSPESA ?? 0,
         });
 
         setUltimoAggiornamento(new Date());
@@ -63,15 +63,17 @@ const RegoleDMN: React.FC = () => {
             id: 'verifica-competenza',
             nome: 'verifica-competenza.dmn',
             versione: '1.0',
-            numeroRegole: 3,
+            numeroRegole: 5,
             ultimaModifica: new Date().toISOString(),
             descrizione: "Verifica la competenza del dirigente in base al livello e all'importo della determinazione",
-            inputs: ['Livello Dirigente', 'Importo'],
-            outputs: ['Competente', 'Motivazione'],
+            inputs: ['livelloDirigente', 'importo'],
+            outputs: ['competente', 'motivazione'],
             regole: [
-              { 'Livello Dirigente': 'D1', 'Importo': '<= 5000', 'Competente': 'true', 'Motivazione': 'D1 competente fino a €5.000' },
-              { 'Livello Dirigente': 'D2', 'Importo': '<= 25000', 'Competente': 'true', 'Motivazione': 'D2 competente fino a €25.000' },
-              { 'Livello Dirigente': 'D3', 'Importo': '<= 100000', 'Competente': 'true', 'Motivazione': 'D3 competente fino a €100.000' },
+              { livelloDirigente: '"D1"', importo: '<= 5000', competente: 'true', motivazione: 'Competenza D1: fino a 5.000 euro' },
+              { livelloDirigente: '"D1"', importo: '> 5000', competente: 'false', motivazione: 'Importo supera limite D1 (5.000 euro)' },
+              { livelloDirigente: '"D2"', importo: '<= 50000', competente: 'true', motivazione: 'Competenza D2: fino a 50.000 euro' },
+              { livelloDirigente: '"D2"', importo: '> 50000', competente: 'false', motivazione: 'Importo supera limite D2 (50.000 euro)' },
+              { livelloDirigente: '"D3"', importo: '-', competente: 'true', motivazione: 'Competenza D3: nessun limite di importo' },
             ],
           },
         ]);
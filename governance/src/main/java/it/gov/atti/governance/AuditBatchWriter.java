@@ -0,0 +1,76 @@
+package it.gov.atti.governance;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Scrittura a blocchi degli eventi di audit con JDBC batch insert.
+ * Con {@code reWriteBatchedInserts} il driver PostgreSQL trasforma il batch
+ * in INSERT multi-riga, quindi un blocco costa pochi round-trip.
+ */
+@ApplicationScoped
+public class AuditBatchWriter {
+
+    static final String INSERT = "INSERT INTO audit_log "
+            + "(process_instance_id, event_type, user_id, timestamp, details, catena, sequenza, hash_precedente, hash) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    CatenaAuditService catena;
+
+    /**
+     * Sigilla gli eventi nelle rispettive catene di hash e li inserisce in un'unica transazione.
+     *
+     * @param eventi eventi da inserire
+     * @throws IllegalStateException se l'inserimento fallisce; nessun evento del blocco è scritto
+     */
+    public void scrivi(List<AuditEvent> eventi) {
+        if (eventi.isEmpty()) {
+            return;
+        }
+        catena.scriviSigillati(eventi, sigillati -> QuarkusTransaction.requiringNew().run(() -> {
+            try (Connection connection = dataSource.getConnection()) {
+                inserisci(connection, sigillati);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Scrittura batch audit fallita", e);
+            }
+        }));
+    }
+
+    /**
+     * Esegue il batch insert sulla connessione indicata, senza gestire la transazione.
+     */
+    static void inserisci(Connection connection, List<AuditEvent> eventi) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT)) {
+            for (AuditEvent evento : eventi) {
+                statement.setString(1, evento.processInstanceId);
+                statement.setString(2, evento.eventType);
+                statement.setString(3, evento.userId);
+                if (evento.timestamp != null) {
+                    statement.setTimestamp(4, Timestamp.valueOf(evento.timestamp));
+                } else {
+                    statement.setNull(4, Types.TIMESTAMP);
+                }
+                statement.setString(5, evento.details);
+                statement.setObject(6, evento.catena, Types.INTEGER);
+                statement.setObject(7, evento.sequenza, Types.BIGINT);
+                statement.setString(8, evento.hashPrecedente);
+                statement.setString(9, evento.hash);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+}
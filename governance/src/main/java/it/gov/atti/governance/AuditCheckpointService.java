@@ -0,0 +1,341 @@
+package it.gov.atti.governance;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checkpoint periodici delle catene di hash del log di audit.
+ * <p>
+ * Ogni checkpoint registra la testa di tutte le catene e la radice Merkle calcolata su di esse;
+ * i checkpoint sono a loro volta concatenati tramite hash. La verifica di un intervallo
+ * temporale parte quindi dal checkpoint precedente e ricalcola solo gli eventi successivi,
+ * invece di ripercorrere l'intero log.
+ * <p>
+ * Le letture di una catena sono limitate anche su timestamp, così PostgreSQL esclude le
+ * partizioni mensili fuori dall'intervallo. Il timestamp di un evento può precedere il suo
+ * inserimento nella catena (eventi delle determinazioni, coda di ingestione): gli estremi sono
+ * allargati di {@code atti.audit.verifica.ritardo-max}, e un evento registrato con un ritardo
+ * maggiore risulta mancante.
+ */
+@ApplicationScoped
+public class AuditCheckpointService {
+
+    private static final Logger LOG = Logger.getLogger(AuditCheckpointService.class);
+
+    private static final TypeReference<List<CatenaAuditService.Testa>> TIPO_TESTE = new TypeReference<>() {
+    };
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    CatenaAuditService catene;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "atti.audit.export.fetch-size", defaultValue = "1000")
+    int fetchSize;
+
+    @ConfigProperty(name = "atti.audit.verifica.max-anomalie", defaultValue = "100")
+    int maxAnomalie;
+
+    @ConfigProperty(name = "atti.audit.verifica.ritardo-max", defaultValue = "P7D")
+    Duration ritardoMax;
+
+    /**
+     * Registra un nuovo checkpoint con le teste correnti delle catene.
+     */
+    @Scheduled(cron = "{atti.audit.checkpoint.cron}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void checkpoint() {
+        try {
+            crea();
+        } catch (RuntimeException e) {
+            LOG.error("Creazione checkpoint audit fallita", e);
+        }
+    }
+
+    /**
+     * Fotografa le teste delle catene e salva il checkpoint concatenato al precedente.
+     *
+     * @return il checkpoint creato
+     */
+    public Checkpoint crea() {
+        List<CatenaAuditService.Testa> teste = catene.teste();
+        String radice = radiceMerkle(teste);
+        return QuarkusTransaction.requiringNew().call(() -> {
+            try (Connection connection = dataSource.getConnection()) {
+                Checkpoint ultimo = leggi(connection,
+                        "SELECT * FROM audit_checkpoint ORDER BY id DESC LIMIT 1", null);
+                String precedente = ultimo != null ? ultimo.hash() : CatenaAuditService.HASH_GENESI;
+                LocalDateTime ora = LocalDateTime.now();
+                String hash = CatenaAuditService.sha256(precedente + radice);
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "INSERT INTO audit_checkpoint (creato_il, radice, hash_precedente, hash, teste) "
+                                + "VALUES (?, ?, ?, ?, ?) RETURNING id")) {
+                    statement.setTimestamp(1, Timestamp.valueOf(ora));
+                    statement.setString(2, radice);
+                    statement.setString(3, precedente);
+                    statement.setString(4, hash);
+                    statement.setString(5, objectMapper.writeValueAsString(teste));
+                    try (ResultSet rs = statement.executeQuery()) {
+                        rs.next();
+                        return new Checkpoint(rs.getLong(1), ora, radice, precedente, hash, teste);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Verifica gli eventi scritti nell'intervallo indicato.
+     * Per ogni catena controlla la continuità delle sequenze, il collegamento all'hash precedente
+     * e l'hash ricalcolato di ogni evento, tra il checkpoint iniziale e quello finale (o la testa
+     * corrente se 'to' è successivo all'ultimo checkpoint). Verifica inoltre le radici Merkle e il
+     * collegamento dei due checkpoint.
+     *
+     * @param from inizio dell'intervallo (null: dall'origine del log)
+     * @param to   fine dell'intervallo (null: fino alla testa corrente)
+     * @return esito della verifica
+     */
+    public EsitoVerifica verifica(LocalDateTime from, LocalDateTime to) {
+        if (from != null && to != null && !from.isBefore(to)) {
+            throw new IllegalArgumentException("'from' deve precedere 'to'");
+        }
+        return QuarkusTransaction.requiringNew().call(() -> {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.setReadOnly(true);
+                Verifica verifica = new Verifica();
+
+                Checkpoint inizio = from == null ? null : leggi(connection,
+                        "SELECT * FROM audit_checkpoint WHERE creato_il <= ? ORDER BY creato_il DESC, id DESC LIMIT 1", from);
+                Checkpoint fine = to == null ? null : leggi(connection,
+                        "SELECT * FROM audit_checkpoint WHERE creato_il >= ? ORDER BY creato_il, id LIMIT 1", to);
+                if (inizio != null) {
+                    controllaCheckpoint(connection, inizio, verifica);
+                }
+                if (fine != null) {
+                    controllaCheckpoint(connection, fine, verifica);
+                }
+
+                // eventi successivi al checkpoint iniziale e precedenti a quello finale, a meno del ritardo
+                LocalDateTime minimo = inizio != null ? inizio.creatoIl().minus(ritardoMax) : null;
+                LocalDateTime massimo = fine != null ? fine.creatoIl().plus(ritardoMax) : null;
+                for (int indice = 0; indice < catene.numeroCatene(); indice++) {
+                    CatenaAuditService.Testa partenza = inizio != null && indice < inizio.teste().size()
+                            ? inizio.teste().get(indice)
+                            : new CatenaAuditService.Testa(indice, 0, CatenaAuditService.HASH_GENESI);
+                    Long arrivo = fine != null && indice < fine.teste().size() ? fine.teste().get(indice).sequenza() : null;
+                    CatenaAuditService.Testa ultima = verificaCatena(connection, partenza, arrivo, minimo, massimo, verifica);
+                    if (fine != null && arrivo != null && !ultima.hash().equals(fine.teste().get(indice).hash())) {
+                        verifica.anomalia("Catena " + indice + ": la testa non coincide con il checkpoint " + fine.id());
+                    }
+                }
+                return new EsitoVerifica(verifica.anomalie.isEmpty(), verifica.eventiVerificati,
+                        inizio != null ? inizio.id() : null, fine != null ? fine.id() : null, verifica.anomalie);
+            }
+        });
+    }
+
+    /**
+     * Ripercorre una catena a partire da una testa nota fino alla sequenza indicata (inclusa).
+     *
+     * @param minimo  timestamp minimo degli eventi da leggere (null: nessun limite)
+     * @param massimo timestamp massimo degli eventi da leggere (null: nessun limite)
+     * @return l'ultima testa raggiunta
+     */
+    private CatenaAuditService.Testa verificaCatena(Connection connection, CatenaAuditService.Testa partenza,
+                                                    Long arrivo, LocalDateTime minimo, LocalDateTime massimo,
+                                                    Verifica verifica) throws SQLException {
+        String sql = "SELECT id, process_instance_id, event_type, user_id, timestamp, details, catena, sequenza, "
+                + "hash_precedente, hash FROM audit_log WHERE catena = ? AND sequenza > ?"
+                + (arrivo != null ? " AND sequenza <= ?" : "")
+                + (minimo != null ? " AND timestamp >= ?" : "")
+                + (massimo != null ? " AND timestamp <= ?" : "") + " ORDER BY sequenza";
+        long sequenza = partenza.sequenza();
+        String hash = partenza.hash();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setFetchSize(fetchSize);
+            statement.setInt(1, partenza.catena());
+            statement.setLong(2, partenza.sequenza());
+            int parametro = 3;
+            if (arrivo != null) {
+                statement.setLong(parametro++, arrivo);
+            }
+            if (minimo != null) {
+                statement.setTimestamp(parametro++, Timestamp.valueOf(minimo));
+            }
+            if (massimo != null) {
+                statement.setTimestamp(parametro, Timestamp.valueOf(massimo));
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    AuditEvent evento = evento(rs);
+                    verifica.eventiVerificati++;
+                    if (evento.sequenza != sequenza + 1) {
+                        verifica.anomalia("Catena " + evento.catena + ": eventi mancanti tra le sequenze "
+                                + sequenza + " e " + evento.sequenza);
+                    }
+                    if (!hash.equals(evento.hashPrecedente)) {
+                        verifica.anomalia("Evento " + evento.id + ": hash precedente non corrispondente");
+                    }
+                    if (!CatenaAuditService.calcolaHash(evento).equals(evento.hash)) {
+                        verifica.anomalia("Evento " + evento.id + ": contenuto alterato");
+                    }
+                    sequenza = evento.sequenza;
+                    hash = evento.hash;
+                }
+            }
+        }
+        if (arrivo != null && sequenza != arrivo) {
+            verifica.anomalia("Catena " + partenza.catena() + ": eventi mancanti fino alla sequenza " + arrivo);
+        }
+        return new CatenaAuditService.Testa(partenza.catena(), sequenza, hash);
+    }
+
+    /**
+     * Controlla la radice Merkle di un checkpoint e il suo collegamento al precedente.
+     */
+    private void controllaCheckpoint(Connection connection, Checkpoint checkpoint, Verifica verifica) throws SQLException {
+        if (!radiceMerkle(checkpoint.teste()).equals(checkpoint.radice())) {
+            verifica.anomalia("Checkpoint " + checkpoint.id() + ": radice Merkle non corrispondente");
+        }
+        if (!CatenaAuditService.sha256(checkpoint.hashPrecedente() + checkpoint.radice()).equals(checkpoint.hash())) {
+            verifica.anomalia("Checkpoint " + checkpoint.id() + ": hash non corrispondente");
+        }
+        Checkpoint precedente = leggiPrecedente(connection, checkpoint.id());
+        String atteso = precedente != null ? precedente.hash() : CatenaAuditService.HASH_GENESI;
+        if (!atteso.equals(checkpoint.hashPrecedente())) {
+            verifica.anomalia("Checkpoint " + checkpoint.id() + ": collegamento al precedente interrotto");
+        }
+    }
+
+    private Checkpoint leggiPrecedente(Connection connection, long id) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT * FROM audit_checkpoint WHERE id < ? ORDER BY id DESC LIMIT 1")) {
+            statement.setLong(1, id);
+            return checkpoint(statement);
+        }
+    }
+
+    private Checkpoint leggi(Connection connection, String sql, LocalDateTime istante) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (istante != null) {
+                statement.setTimestamp(1, Timestamp.valueOf(istante));
+            }
+            return checkpoint(statement);
+        }
+    }
+
+    private Checkpoint checkpoint(PreparedStatement statement) throws SQLException {
+        try (ResultSet rs = statement.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            List<CatenaAuditService.Testa> teste;
+            try {
+                teste = objectMapper.readValue(rs.getString("teste"), TIPO_TESTE);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Checkpoint " + rs.getLong("id") + " illeggibile", e);
+            }
+            return new Checkpoint(rs.getLong("id"), rs.getTimestamp("creato_il").toLocalDateTime(),
+                    rs.getString("radice"), rs.getString("hash_precedente"), rs.getString("hash"), teste);
+        }
+    }
+
+    private static AuditEvent evento(ResultSet rs) throws SQLException {
+        AuditEvent evento = new AuditEvent();
+        evento.id = rs.getLong("id");
+        evento.processInstanceId = rs.getString("process_instance_id");
+        evento.eventType = rs.getString("event_type");
+        evento.userId = rs.getString("user_id");
+        evento.timestamp = rs.getTimestamp("timestamp").toLocalDateTime();
+        evento.details = rs.getString("details");
+        evento.catena = rs.getInt("catena");
+        evento.sequenza = rs.getLong("sequenza");
+        evento.hashPrecedente = rs.getString("hash_precedente");
+        evento.hash = rs.getString("hash");
+        return evento;
+    }
+
+    /**
+     * Radice dell'albero di Merkle costruito sulle teste delle catene.
+     * Un livello con numero dispari di nodi promuove l'ultimo nodo così com'è.
+     */
+    static String radiceMerkle(List<CatenaAuditService.Testa> teste) {
+        List<String> livello = new ArrayList<>(teste.size());
+        for (CatenaAuditService.Testa testa : teste) {
+            livello.add(CatenaAuditService.sha256(testa.catena() + "|" + testa.sequenza() + "|" + testa.hash()));
+        }
+        if (livello.isEmpty()) {
+            return CatenaAuditService.HASH_GENESI;
+        }
+        while (livello.size() > 1) {
+            List<String> superiore = new ArrayList<>((livello.size() + 1) / 2);
+            for (int i = 0; i < livello.size(); i += 2) {
+                superiore.add(i + 1 < livello.size()
+                        ? CatenaAuditService.sha256(livello.get(i) + livello.get(i + 1))
+                        : livello.get(i));
+            }
+            livello = superiore;
+        }
+        return livello.get(0);
+    }
+
+    /** Stato della verifica in corso */
+    private final class Verifica {
+        long eventiVerificati;
+        final List<String> anomalie = new ArrayList<>();
+
+        void anomalia(String descrizione) {
+            if (anomalie.size() < maxAnomalie) {
+                anomalie.add(descrizione);
+            }
+        }
+    }
+
+    /**
+     * Checkpoint delle catene di hash.
+     *
+     * @param id              identificativo progressivo
+     * @param creatoIl        istante di creazione
+     * @param radice          radice Merkle delle teste
+     * @param hashPrecedente  hash del checkpoint precedente
+     * @param hash            hash del checkpoint, sha256(hashPrecedente + radice)
+     * @param teste           teste delle catene al momento del checkpoint
+     */
+    public record Checkpoint(long id, LocalDateTime creatoIl, String radice, String hashPrecedente, String hash,
+                             List<CatenaAuditService.Testa> teste) {
+    }
+
+    /**
+     * Esito di una verifica di integrità.
+     *
+     * @param valido            true se non sono state trovate anomalie
+     * @param eventiVerificati  numero di eventi ricalcolati
+     * @param checkpointInizio  checkpoint da cui è partita la verifica (null: origine del log)
+     * @param checkpointFine    checkpoint a cui si è fermata la verifica (null: testa corrente)
+     * @param anomalie          anomalie rilevate, al massimo {@code atti.audit.verifica.max-anomalie}
+     */
+    public record EsitoVerifica(boolean valido, long eventiVerificati, Long checkpointInizio, Long checkpointFine,
+                                List<String> anomalie) {
+    }
+}
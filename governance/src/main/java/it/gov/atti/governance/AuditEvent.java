@@ -1,5 +1,6 @@
 package it.gov.atti.governance;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
 import jakarta.persistence.*;
 import java.time.LocalDateTime;
@@ -7,11 +8,21 @@ import java.time.LocalDateTime;
 /**
  * Entità JPA che rappresenta un evento di audit per la tracciabilità
  * di tutte le operazioni effettuate sugli atti amministrativi.
+ * Ogni evento è concatenato al precedente della propria catena tramite hash,
+ * così che modifiche o cancellazioni siano rilevabili (vedi CatenaAuditService).
+ * La tabella 'audit_log' è partizionata per mese su timestamp (vedi AuditPartizioniJob):
+ * le query dovrebbero sempre limitare l'intervallo temporale per sfruttare il pruning.
  */
 @Entity
 @Table(name = "audit_log")
 public class AuditEvent extends PanacheEntityBase {
 
+    /** Lunghezza massima di event_type, VARCHAR(100) NOT NULL */
+    public static final int MAX_TIPO = 100;
+
+    /** Lunghezza massima di process_instance_id e user_id, VARCHAR(255) */
+    public static final int MAX_IDENTIFICATIVO = 255;
+
     /** Identificativo univoco dell'evento */
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -36,4 +47,45 @@ public class AuditEvent extends PanacheEntityBase {
     /** Dettagli aggiuntivi dell'evento in formato testuale o JSON */
     @Column(columnDefinition = "TEXT")
     public String details;
+
+    /** Indice della catena di hash a cui appartiene l'evento */
+    public Integer catena;
+
+    /** Posizione dell'evento nella propria catena, a partire da 1 */
+    public Long sequenza;
+
+    /** Hash SHA-256 dell'evento precedente nella catena */
+    public String hashPrecedente;
+
+    /** Hash SHA-256 dell'evento, calcolato da CatenaAuditService */
+    public String hash;
+
+    /**
+     * Istante di accodamento nella pipeline di ingestione (System.nanoTime), per la latenza di
+     * scrittura; non persistito né serializzato, vale 0 per gli eventi riletti dallo spill.
+     */
+    @JsonIgnore
+    public transient long accodatoIl;
+
+    /**
+     * Motivo per cui il database rifiuterebbe l'evento (tipo assente, valori oltre la lunghezza
+     * delle colonne), da controllare prima di accettarlo.
+     *
+     * @return descrizione dell'errore, o null se l'evento è valido
+     */
+    public String errore() {
+        if (eventType == null || eventType.isBlank()) {
+            return "eventType obbligatorio";
+        }
+        if (eventType.length() > MAX_TIPO) {
+            return "eventType oltre " + MAX_TIPO + " caratteri";
+        }
+        if (processInstanceId != null && processInstanceId.length() > MAX_IDENTIFICATIVO) {
+            return "processInstanceId oltre " + MAX_IDENTIFICATIVO + " caratteri";
+        }
+        if (userId != null && userId.length() > MAX_IDENTIFICATIVO) {
+            return "userId oltre " + MAX_IDENTIFICATIVO + " caratteri";
+        }
+        return null;
+    }
 }
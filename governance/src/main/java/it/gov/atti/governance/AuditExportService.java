@@ -0,0 +1,135 @@
+package it.gov.atti.governance;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.hibernate.jpa.HibernateHints;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * Esportazione in streaming del log di audit in formato NDJSON o CSV.
+ * Le righe sono lette con un cursore server-side (fetch size configurabile) e scritte
+ * direttamente sullo stream della risposta: la memoria occupata non dipende dal numero di eventi.
+ */
+@ApplicationScoped
+public class AuditExportService {
+
+    /** Formati di esportazione supportati */
+    public enum Formato {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv");
+
+        /** Media type della risposta */
+        public final String mediaType;
+
+        /** Estensione del file scaricato */
+        public final String estensione;
+
+        Formato(String mediaType, String estensione) {
+            this.mediaType = mediaType;
+            this.estensione = estensione;
+        }
+    }
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @ConfigProperty(name = "atti.audit.export.fetch-size", defaultValue = "1000")
+    int fetchSize;
+
+    @ConfigProperty(name = "atti.audit.export.timeout", defaultValue = "PT2H")
+    Duration timeout;
+
+    /**
+     * Scrive sullo stream tutti gli eventi che soddisfano il filtro, in ordine di timestamp.
+     * Apre una propria transazione in sola lettura, necessaria al driver PostgreSQL per usare
+     * il cursore; il contesto di persistenza viene svuotato a ogni blocco di {@code fetchSize} righe.
+     * La transazione dura quanto la lettura del client, quindi ha un proprio timeout
+     * ({@code atti.audit.export.timeout}) al posto dei 60 secondi di default: un'esportazione di
+     * più mesi verso un client lento non deve essere interrotta a metà del file.
+     *
+     * @param filtro  filtri da applicare
+     * @param formato formato di uscita
+     * @param output  stream della risposta HTTP
+     */
+    public void esporta(FiltroAudit filtro, Formato formato, OutputStream output) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        QuarkusTransaction.requiringNew().timeout((int) timeout.toSeconds()).run(() -> {
+            EntityManager em = AuditEvent.getEntityManager();
+            try (Stream<AuditEvent> eventi = AuditEvent.<AuditEvent>find(filtro.query(), filtro.parametri())
+                    .withHint(HibernateHints.HINT_FETCH_SIZE, fetchSize)
+                    .withHint(HibernateHints.HINT_READ_ONLY, true)
+                    .stream()) {
+                if (formato == Formato.CSV) {
+                    writer.write("id,processInstanceId,eventType,userId,timestamp,details,catena,sequenza,hashPrecedente,hash\n");
+                }
+                long scritti = 0;
+                for (Iterator<AuditEvent> it = eventi.iterator(); it.hasNext(); ) {
+                    AuditEvent evento = it.next();
+                    if (formato == Formato.CSV) {
+                        scriviCsv(writer, evento);
+                    } else {
+                        writer.write(objectMapper.writeValueAsString(evento));
+                        writer.write('\n');
+                    }
+                    if (++scritti % fetchSize == 0) {
+                        em.clear();
+                        writer.flush();
+                    }
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void scriviCsv(Writer writer, AuditEvent evento) throws IOException {
+        writer.write(String.valueOf(evento.id));
+        writer.write(',');
+        writer.write(csv(evento.processInstanceId));
+        writer.write(',');
+        writer.write(csv(evento.eventType));
+        writer.write(',');
+        writer.write(csv(evento.userId));
+        writer.write(',');
+        writer.write(evento.timestamp != null ? evento.timestamp.toString() : "");
+        writer.write(',');
+        writer.write(csv(evento.details));
+        writer.write(',');
+        writer.write(evento.catena != null ? evento.catena.toString() : "");
+        writer.write(',');
+        writer.write(evento.sequenza != null ? evento.sequenza.toString() : "");
+        writer.write(',');
+        writer.write(csv(evento.hashPrecedente));
+        writer.write(',');
+        writer.write(csv(evento.hash));
+        writer.write('\n');
+    }
+
+    /**
+     * Quota un valore secondo RFC 4180 se contiene separatori, virgolette o a capo.
+     */
+    static String csv(String valore) {
+        if (valore == null) {
+            return "";
+        }
+        if (valore.indexOf(',') < 0 && valore.indexOf('"') < 0 && valore.indexOf('\n') < 0 && valore.indexOf('\r') < 0) {
+            return valore;
+        }
+        return '"' + valore.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,457 @@
+package it.gov.atti.governance;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pipeline asincrona di ingestione degli eventi di audit.
+ * <p>
+ * Gli eventi entrano in una coda limitata e un thread dedicato li scrive a blocchi con
+ * {@link AuditBatchWriter}, quando il blocco raggiunge {@code atti.audit.ingestion.dimensione-batch}
+ * eventi o dopo {@code atti.audit.ingestion.intervallo-flush} dal primo evento accodato.
+ * <p>
+ * Se la coda resta piena oltre {@code atti.audit.ingestion.attesa-max} (backpressure) o se il
+ * database rifiuta un blocco, gli eventi sono accodati su un file di spill locale, sincronizzato
+ * su disco, e reinseriti appena il database torna disponibile.
+ * <p>
+ * Se il database rifiuta un blocco per un errore di dati o di vincolo (SQLState di classe 22 o 23),
+ * il blocco è riscritto un evento alla volta e gli eventi rifiutati finiscono nel file degli scartati
+ * ({@code atti.audit.ingestion.scartati-file}), da esaminare a mano: un evento non scrivibile non
+ * blocca così né il proprio blocco né il recupero dello spill. Fa eccezione la violazione del vincolo
+ * di partizione (23514), che indica una partizione mensile non ancora creata ed è trattata come
+ * errore transitorio.
+ * <p>
+ * Oltre alla durata di ogni scrittura ({@code audit.ingestion.flush}) è misurata la latenza di
+ * ogni evento dall'accodamento al commit del blocco ({@code audit.ingestion.latenza}), che
+ * comprende l'attesa in coda e nel blocco in formazione.
+ */
+@ApplicationScoped
+public class AuditIngestionService {
+
+    private static final Logger LOG = Logger.getLogger(AuditIngestionService.class);
+
+    @Inject
+    AuditBatchWriter writer;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.audit.ingestion.capacita-coda", defaultValue = "10000")
+    int capacitaCoda;
+
+    @ConfigProperty(name = "atti.audit.ingestion.dimensione-batch", defaultValue = "500")
+    int dimensioneBatch;
+
+    @ConfigProperty(name = "atti.audit.ingestion.intervallo-flush", defaultValue = "200")
+    long intervalloFlushMs;
+
+    @ConfigProperty(name = "atti.audit.ingestion.attesa-max", defaultValue = "50")
+    long attesaMaxMs;
+
+    @ConfigProperty(name = "atti.audit.ingestion.intervallo-recupero", defaultValue = "30000")
+    long intervalloRecuperoMs;
+
+    @ConfigProperty(name = "atti.audit.ingestion.spill-file", defaultValue = "data/audit-spill.ndjson")
+    String percorsoSpill;
+
+    @ConfigProperty(name = "atti.audit.ingestion.scartati-file", defaultValue = "data/audit-scartati.ndjson")
+    String percorsoScartati;
+
+    private Path spillFile;
+    private Path scartatiFile;
+    private BlockingQueue<AuditEvent> coda;
+    private final ReentrantLock lockSpill = new ReentrantLock();
+    private volatile boolean attivo;
+    private Thread thread;
+    private long ultimoRecupero;
+
+    private DistributionSummary dimensioneBlocchi;
+    private Timer latenzaFlush;
+    private Timer latenzaEventi;
+    private Counter eventiSpill;
+    private Counter eventiScartati;
+
+    void avvia(@Observes StartupEvent evento) {
+        spillFile = Path.of(percorsoSpill);
+        scartatiFile = Path.of(percorsoScartati);
+        coda = new ArrayBlockingQueue<>(capacitaCoda);
+        registry.gauge("audit.ingestion.coda", coda, BlockingQueue::size);
+        dimensioneBlocchi = DistributionSummary.builder("audit.ingestion.batch.dimensione")
+                .description("Eventi scritti per blocco")
+                .register(registry);
+        latenzaFlush = Timer.builder("audit.ingestion.flush")
+                .description("Durata della scrittura di un blocco di eventi")
+                .publishPercentileHistogram()
+                .register(registry);
+        latenzaEventi = Timer.builder("audit.ingestion.latenza")
+                .description("Latenza di un evento dall'accodamento alla scrittura sul database")
+                .publishPercentileHistogram()
+                .register(registry);
+        eventiSpill = Counter.builder("audit.ingestion.spill")
+                .description("Eventi deviati sul file di spill")
+                .register(registry);
+        eventiScartati = Counter.builder("audit.ingestion.scartati")
+                .description("Eventi rifiutati dal database e spostati nel file degli scartati")
+                .register(registry);
+
+        attivo = true;
+        thread = new Thread(this::ciclo, "audit-batch-writer");
+        thread.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    /**
+     * Accoda gli eventi per la scrittura asincrona. Attende al più {@code attesa-max} per evento
+     * se la coda è piena, poi devia l'evento sul file di spill: un evento accettato non va perso.
+     * Il timestamp dell'evento è mantenuto se presente: chi accoda input esterno deve assegnarlo
+     * prima, lato server, come fa {@code POST /audit/batch}.
+     *
+     * @param eventi eventi da registrare
+     * @throws UncheckedIOException se la coda è piena e il file di spill non è scrivibile
+     */
+    public void accoda(List<AuditEvent> eventi) {
+        LocalDateTime ora = LocalDateTime.now();
+        long accodatoIl = System.nanoTime();
+        for (AuditEvent evento : eventi) {
+            if (evento.timestamp == null) {
+                evento.timestamp = ora;
+            }
+            evento.accodatoIl = accodatoIl;
+        }
+        int accodati = 0;
+        try {
+            while (accodati < eventi.size() && coda.offer(eventi.get(accodati), attesaMaxMs, TimeUnit.MILLISECONDS)) {
+                accodati++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (accodati < eventi.size()) {
+            spill(eventi.subList(accodati, eventi.size()));
+        }
+    }
+
+    /** Numero di eventi in attesa di scrittura */
+    public int inCoda() {
+        return coda.size();
+    }
+
+    private void ciclo() {
+        List<AuditEvent> blocco = new ArrayList<>(dimensioneBatch);
+        long scadenza = 0;
+        while (attivo || !coda.isEmpty() || !blocco.isEmpty()) {
+            try {
+                long attesa = blocco.isEmpty()
+                        ? TimeUnit.MILLISECONDS.toNanos(intervalloFlushMs)
+                        : scadenza - System.nanoTime();
+                AuditEvent evento = attesa > 0 && attivo ? coda.poll(attesa, TimeUnit.NANOSECONDS) : coda.poll();
+                if (evento != null) {
+                    if (blocco.isEmpty()) {
+                        scadenza = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalloFlushMs);
+                    }
+                    blocco.add(evento);
+                    coda.drainTo(blocco, dimensioneBatch - blocco.size());
+                }
+                boolean pieno = blocco.size() >= dimensioneBatch;
+                boolean scaduto = !blocco.isEmpty() && System.nanoTime() >= scadenza;
+                if (pieno || scaduto || (!attivo && evento == null && !blocco.isEmpty())) {
+                    flush(blocco);
+                    blocco.clear();
+                } else if (blocco.isEmpty() && attivo) {
+                    recuperaSpill();
+                }
+            } catch (InterruptedException e) {
+                // arresto richiesto: il ciclo svuota coda e blocco corrente prima di terminare
+            } catch (RuntimeException e) {
+                LOG.error("Errore nel ciclo di scrittura audit", e);
+            }
+        }
+    }
+
+    private void flush(List<AuditEvent> blocco) {
+        long inizio = System.nanoTime();
+        try {
+            int elaborati = scriviOScarta(blocco);
+            dimensioneBlocchi.record(elaborati);
+            long scritto = System.nanoTime();
+            for (AuditEvent evento : blocco.subList(0, elaborati)) {
+                if (evento.accodatoIl != 0) {
+                    latenzaEventi.record(scritto - evento.accodatoIl, TimeUnit.NANOSECONDS);
+                }
+            }
+            if (elaborati < blocco.size()) {
+                LOG.warnf("%d eventi audit non scritti, deviati su %s", blocco.size() - elaborati, spillFile);
+                spill(blocco.subList(elaborati, blocco.size()));
+            }
+        } catch (RuntimeException e) {
+            LOG.warnf(e, "Scrittura di %d eventi audit fallita, deviati su %s", blocco.size(), spillFile);
+            spill(blocco);
+        } finally {
+            latenzaFlush.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Scrive il blocco. Se il database lo rifiuta per un errore di dati o di vincolo lo riscrive un
+     * evento alla volta e sposta gli eventi rifiutati nel file degli scartati; al primo errore
+     * transitorio (database non raggiungibile, partizione mancante) si ferma.
+     *
+     * @param blocco eventi da scrivere, nell'ordine di arrivo
+     * @return numero di eventi iniziali del blocco scritti o scartati: i successivi non sono stati scritti
+     * @throws UncheckedIOException se il file degli scartati non è scrivibile
+     */
+    private int scriviOScarta(List<AuditEvent> blocco) {
+        if (blocco.isEmpty()) {
+            return 0;
+        }
+        try {
+            writer.scrivi(blocco);
+            return blocco.size();
+        } catch (RuntimeException e) {
+            if (!rifiutato(e)) {
+                LOG.warnf(e, "Scrittura di %d eventi audit fallita", blocco.size());
+                return 0;
+            }
+            LOG.warnf(e, "Blocco di %d eventi audit rifiutato, nuovo tentativo evento per evento", blocco.size());
+        }
+        for (int i = 0; i < blocco.size(); i++) {
+            AuditEvent evento = blocco.get(i);
+            try {
+                writer.scrivi(List.of(evento));
+            } catch (RuntimeException e) {
+                if (!rifiutato(e)) {
+                    LOG.warnf(e, "Scrittura evento per evento interrotta dopo %d eventi", i);
+                    return i;
+                }
+                LOG.errorf(e, "Evento audit '%s' rifiutato dal database, spostato in %s", evento.eventType, scartatiFile);
+                try {
+                    scarta(List.of(objectMapper.writeValueAsString(evento)));
+                } catch (JsonProcessingException ex) {
+                    throw new IllegalStateException("Serializzazione evento audit fallita", ex);
+                }
+                // non scritto: escluso dalla latenza di scrittura
+                evento.accodatoIl = 0;
+            }
+        }
+        return blocco.size();
+    }
+
+    /**
+     * Indica se l'errore è un rifiuto definitivo dell'evento: errore di dati (classe 22) o violazione
+     * di vincolo (classe 23), esclusa la violazione del vincolo di partizione (23514) che si risolve
+     * creando la partizione.
+     */
+    static boolean rifiutato(Throwable errore) {
+        for (Throwable t = errore; t != null; t = t.getCause()) {
+            if (t instanceof SQLException sql) {
+                for (SQLException e = sql; e != null; e = e.getNextException()) {
+                    String stato = e.getSQLState();
+                    if (stato != null && (stato.startsWith("22") || (stato.startsWith("23") && !stato.equals("23514")))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appende gli eventi al file di spill in NDJSON e forza la scrittura su disco.
+     */
+    private void spill(List<AuditEvent> eventi) {
+        List<String> righe = new ArrayList<>(eventi.size());
+        try {
+            for (AuditEvent evento : eventi) {
+                righe.add(objectMapper.writeValueAsString(evento));
+            }
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Serializzazione evento audit fallita", e);
+        }
+        lockSpill.lock();
+        try {
+            appendi(spillFile, righe);
+            eventiSpill.increment(righe.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile scrivere il file di spill " + spillFile, e);
+        } finally {
+            lockSpill.unlock();
+        }
+    }
+
+    /**
+     * Appende le righe, eventi serializzati o righe di spill illeggibili, al file degli scartati.
+     */
+    private void scarta(List<String> righe) {
+        try {
+            appendi(scartatiFile, righe);
+            eventiScartati.increment(righe.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile scrivere il file degli scartati " + scartatiFile, e);
+        }
+    }
+
+    /**
+     * Appende le righe al file e forza la scrittura su disco.
+     */
+    private static void appendi(Path file, List<String> righe) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        StringBuilder testo = new StringBuilder();
+        for (String riga : righe) {
+            testo.append(riga).append('\n');
+        }
+        try (FileChannel canale = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(testo.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                canale.write(buffer);
+            }
+            canale.force(false);
+        }
+    }
+
+    /**
+     * Reinserisce gli eventi del file di spill, al più una volta ogni {@code intervallo-recupero}.
+     * Il file viene rinominato prima della lettura; gli eventi non scritti tornano nel file di spill.
+     * Gli eventi rifiutati dal database e le righe illeggibili vanno nel file degli scartati, così che
+     * il recupero non si fermi sempre sulla stessa riga.
+     * Un arresto a metà recupero può reinserire un blocco già scritto (consegna almeno una volta).
+     */
+    private void recuperaSpill() {
+        long ora = System.currentTimeMillis();
+        Path inRecupero = spillFile.resolveSibling(spillFile.getFileName() + ".recupero");
+        if (ora - ultimoRecupero < intervalloRecuperoMs || (!Files.exists(spillFile) && !Files.exists(inRecupero))) {
+            return;
+        }
+        ultimoRecupero = ora;
+        lockSpill.lock();
+        try {
+            if (!Files.exists(inRecupero)) {
+                Files.move(spillFile, inRecupero, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            LOG.warnf(e, "Impossibile preparare il recupero di %s", spillFile);
+            return;
+        } finally {
+            lockSpill.unlock();
+        }
+
+        List<AuditEvent> blocco = new ArrayList<>(dimensioneBatch);
+        long elaborati = 0;
+        boolean interrotto = false;
+        try (BufferedReader reader = Files.newBufferedReader(inRecupero, StandardCharsets.UTF_8)) {
+            String riga;
+            while (!interrotto && (riga = reader.readLine()) != null) {
+                if (riga.isBlank()) {
+                    continue;
+                }
+                AuditEvent evento = leggi(riga);
+                if (evento != null) {
+                    blocco.add(evento);
+                }
+                // una riga illeggibile chiude il blocco, perché il conteggio segua l'ordine del file
+                if (evento == null || blocco.size() == dimensioneBatch) {
+                    int scritti = scriviOScarta(blocco);
+                    elaborati += scritti;
+                    interrotto = scritti < blocco.size();
+                    blocco.clear();
+                    if (evento == null && !interrotto) {
+                        scarta(List.of(riga));
+                        elaborati++;
+                    }
+                }
+            }
+            if (!interrotto) {
+                int scritti = scriviOScarta(blocco);
+                elaborati += scritti;
+                interrotto = scritti < blocco.size();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warnf(e, "Recupero spill interrotto dopo %d eventi", elaborati);
+            interrotto = true;
+        }
+        if (interrotto) {
+            LOG.warnf("Recupero spill fermo dopo %d eventi, nuovo tentativo tra %d ms", elaborati, intervalloRecuperoMs);
+            riaccodaNonRecuperati(inRecupero, elaborati);
+            return;
+        }
+        try {
+            Files.delete(inRecupero);
+            LOG.infof("Recuperati %d eventi audit dal file di spill", elaborati);
+        } catch (IOException e) {
+            LOG.warnf(e, "Impossibile eliminare %s dopo il recupero", inRecupero);
+        }
+    }
+
+    private AuditEvent leggi(String riga) {
+        try {
+            return objectMapper.readValue(riga, AuditEvent.class);
+        } catch (JsonProcessingException e) {
+            LOG.errorf(e, "Riga di spill illeggibile, spostata in %s", scartatiFile);
+            return null;
+        }
+    }
+
+    /**
+     * Riporta nel file di spill, così come sono, le righe del file di recupero successive alle prime
+     * {@code elaborate}.
+     */
+    private void riaccodaNonRecuperati(Path inRecupero, long elaborate) {
+        lockSpill.lock();
+        try (BufferedReader reader = Files.newBufferedReader(inRecupero, StandardCharsets.UTF_8)) {
+            List<String> residui = new ArrayList<>();
+            String riga;
+            long letti = 0;
+            while ((riga = reader.readLine()) != null) {
+                if (!riga.isBlank() && letti++ >= elaborate) {
+                    residui.add(riga);
+                }
+            }
+            appendi(spillFile, residui);
+            Files.delete(inRecupero);
+        } catch (IOException | RuntimeException e) {
+            LOG.errorf(e, "Impossibile riaccodare gli eventi di %s: il file resta per il prossimo recupero", inRecupero);
+        } finally {
+            lockSpill.unlock();
+        }
+    }
+}
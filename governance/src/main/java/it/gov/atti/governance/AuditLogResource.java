@@ -1,34 +1,68 @@
 package it.gov.atti.governance;
 
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
-import jakarta.transaction.Transactional;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.jwt.JsonWebToken;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * REST resource per la gestione del log di audit.
  * Tutte le operazioni richiedono ruolo admin per la lettura.
+ * Gli endpoint sono eseguiti su thread virtuali, come quelli delle determinazioni.
  */
 @Path("/audit")
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
 @Tag(name = "Audit Log", description = "API per la gestione del log di audit")
+@RunOnVirtualThread
 public class AuditLogResource {
 
+    /** Header con l'inizio del periodo applicato da {@code GET /audit} senza filtro temporale */
+    static final String HEADER_DA = "X-Audit-Da";
+
     /** Token JWT dell'utente autenticato */
     @Inject
     JsonWebToken jwt;
 
+    @Inject
+    AuditExportService exportService;
+
+    @Inject
+    AuditIngestionService ingestionService;
+
+    @Inject
+    CatenaAuditService catena;
+
+    @Inject
+    AuditCheckpointService checkpointService;
+
+    @ConfigProperty(name = "atti.audit.ingestion.max-eventi-richiesta", defaultValue = "1000")
+    int maxEventiRichiesta;
+
+    @ConfigProperty(name = "atti.audit.lista.giorni-default", defaultValue = "30")
+    int giorniDefault;
+
     /**
-     * Recupera la lista degli eventi di audit con filtri opzionali.
+     * Recupera la lista degli eventi di audit con filtri opzionali e combinabili.
+     * Senza 'from' né 'to' restituisce solo gli ultimi {@code atti.audit.lista.giorni-default}
+     * giorni, così che la query tocchi solo le partizioni mensili recenti: l'inizio applicato è
+     * riportato nell'header {@value #HEADER_DA} della risposta. Per periodi più vecchi vanno
+     * indicati 'from' o 'to', o usato l'export.
      * Accessibile solo agli utenti con ruolo admin.
      *
      * @param processInstanceId filtro per ID istanza processo (opzionale)
@@ -39,20 +73,68 @@ public class AuditLogResource {
      */
     @GET
     @RolesAllowed("admin")
-    @Operation(summary = "Recupera la lista degli eventi di audit")
-    public List<AuditEvent> lista(
+    @Operation(summary = "Recupera la lista degli eventi di audit",
+            description = "Senza 'from' né 'to' sono restituiti solo gli eventi degli ultimi "
+                    + "atti.audit.lista.giorni-default giorni (30 di default); l'inizio applicato è "
+                    + "nell'header " + HEADER_DA + ".")
+    public Response lista(
             @QueryParam("processInstanceId") String processInstanceId,
             @QueryParam("userId") String userId,
             @QueryParam("from") String from,
             @QueryParam("to") String to) {
 
-        if (processInstanceId != null && !processInstanceId.isBlank()) {
-            return AuditEvent.list("processInstanceId", processInstanceId);
+        String daDefault = null;
+        if (isBlank(from) && isBlank(to)) {
+            daDefault = LocalDateTime.now().minusDays(giorniDefault).toString();
+            from = daDefault;
         }
-        if (userId != null && !userId.isBlank()) {
-            return AuditEvent.list("userId", userId);
+        FiltroAudit filtro = filtro(processInstanceId, userId, from, to);
+        List<AuditEvent> eventi = AuditEvent.list(filtro.query(), filtro.parametri());
+        Response.ResponseBuilder risposta = Response.ok(eventi);
+        if (daDefault != null) {
+            risposta.header(HEADER_DA, daDefault);
+        }
+        return risposta.build();
+    }
+
+    /**
+     * Esporta in streaming gli eventi di audit filtrati, in formato NDJSON (default) o CSV.
+     * La risposta è scritta man mano che le righe vengono lette dal database,
+     * quindi è adatta anche a esportazioni di più anni di log.
+     *
+     * @param processInstanceId filtro per ID istanza processo (opzionale)
+     * @param userId            filtro per ID utente (opzionale)
+     * @param from              filtro data inizio (opzionale, formato ISO)
+     * @param to                filtro data fine (opzionale, formato ISO)
+     * @param formato           ndjson oppure csv
+     * @return lo stream degli eventi come allegato
+     */
+    @GET
+    @Path("/export")
+    @Produces({"application/x-ndjson", "text/csv"})
+    @RolesAllowed("admin")
+    @Operation(summary = "Esporta in streaming gli eventi di audit in NDJSON o CSV")
+    public Response esporta(
+            @QueryParam("processInstanceId") String processInstanceId,
+            @QueryParam("userId") String userId,
+            @QueryParam("from") String from,
+            @QueryParam("to") String to,
+            @QueryParam("formato") @DefaultValue("ndjson") String formato) {
+
+        AuditExportService.Formato tipo;
+        try {
+            tipo = AuditExportService.Formato.valueOf(formato.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(Response.status(Response.Status.BAD_REQUEST)
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(Map.of("errore", "Formato non supportato: " + formato))
+                    .build());
         }
-        return AuditEvent.listAll();
+        FiltroAudit filtro = filtro(processInstanceId, userId, from, to);
+        StreamingOutput stream = output -> exportService.esporta(filtro, tipo, output);
+        return Response.ok(stream, tipo.mediaType)
+                .header("Content-Disposition", "attachment; filename=\"audit-log." + tipo.estensione + "\"")
+                .build();
     }
 
     /**
@@ -60,17 +142,126 @@ public class AuditLogResource {
      * Chiamato internamente dagli altri moduli della piattaforma.
      *
      * @param evento dati dell'evento da registrare
-     * @return l'evento registrato con ID assegnato
+     * @return l'evento registrato con ID assegnato, o 400 se l'evento non è valido
      */
     @POST
-    @Transactional
     @Operation(summary = "Registra un nuovo evento di audit")
     public Response registra(AuditEvent evento) {
+        evento.id = null;
         evento.timestamp = LocalDateTime.now();
         if (evento.userId == null || evento.userId.isBlank()) {
             evento.userId = jwt.getName();
         }
-        evento.persist();
+        String errore = evento.errore();
+        if (errore != null) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", errore))
+                    .build();
+        }
+        catena.scriviSigillati(List.of(evento),
+                sigillati -> QuarkusTransaction.requiringNew().run(evento::persist));
         return Response.status(Response.Status.CREATED).entity(evento).build();
     }
+
+    /**
+     * Registra in modo asincrono un blocco di eventi di audit.
+     * Gli eventi sono accodati alla pipeline di ingestione e scritti a blocchi:
+     * la risposta 202 conferma la presa in carico, non la scrittura su database.
+     * Come per {@link #registra} il timestamp è assegnato dal server: quello del chiamante è ignorato.
+     * Gli eventi sono validati prima di essere accodati: se uno non è valido la richiesta è
+     * rifiutata con 400 per intero, così che un evento non scrivibile non entri nella pipeline.
+     *
+     * @param eventi eventi da registrare
+     * @return numero di eventi accettati, o 400 con l'elenco degli eventi non validi
+     */
+    @POST
+    @Path("/batch")
+    @Operation(summary = "Registra in modo asincrono un blocco di eventi di audit")
+    public Response registraBlocco(List<AuditEvent> eventi) {
+        if (eventi == null || eventi.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Nessun evento da registrare"))
+                    .build();
+        }
+        if (eventi.size() > maxEventiRichiesta) {
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                    .entity(Map.of("errore", "Massimo " + maxEventiRichiesta + " eventi per richiesta"))
+                    .build();
+        }
+        String utente = jwt.getName();
+        LocalDateTime ora = LocalDateTime.now();
+        List<String> errori = new ArrayList<>();
+        for (int i = 0; i < eventi.size(); i++) {
+            AuditEvent evento = eventi.get(i);
+            if (evento == null) {
+                errori.add("Evento " + i + ": assente");
+                continue;
+            }
+            evento.id = null;
+            evento.timestamp = ora;
+            if (evento.userId == null || evento.userId.isBlank()) {
+                evento.userId = utente;
+            }
+            String errore = evento.errore();
+            if (errore != null) {
+                errori.add("Evento " + i + ": " + errore);
+            }
+        }
+        if (!errori.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Eventi non validi, nessuno registrato", "dettagli", errori))
+                    .build();
+        }
+        try {
+            ingestionService.accoda(eventi);
+        } catch (UncheckedIOException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(Map.of("errore", "Pipeline di audit satura, riprovare più tardi"))
+                    .build();
+        }
+        return Response.accepted(Map.of("accettati", eventi.size())).build();
+    }
+
+    /**
+     * Verifica l'integrità delle catene di hash per gli eventi di un intervallo temporale.
+     * La verifica parte dall'ultimo checkpoint precedente a 'from' e si ferma al primo
+     * checkpoint successivo a 'to', senza ricalcolare l'intero log.
+     *
+     * @param from inizio dell'intervallo (opzionale, formato ISO)
+     * @param to   fine dell'intervallo (opzionale, formato ISO)
+     * @return esito della verifica con le eventuali anomalie
+     */
+    @GET
+    @Path("/verifica")
+    @RolesAllowed("admin")
+    @Operation(summary = "Verifica l'integrità del log di audit in un intervallo temporale")
+    public AuditCheckpointService.EsitoVerifica verifica(
+            @QueryParam("from") String from,
+            @QueryParam("to") String to) {
+        try {
+            return checkpointService.verifica(
+                    isBlank(from) ? null : FiltroAudit.inizio(from),
+                    isBlank(to) ? null : FiltroAudit.fine(to));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(Response.status(Response.Status.BAD_REQUEST)
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build());
+        }
+    }
+
+    private static FiltroAudit filtro(String processInstanceId, String userId, String from, String to) {
+        try {
+            return FiltroAudit.di(processInstanceId, userId, from, to);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(Response.status(Response.Status.BAD_REQUEST)
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build());
+        }
+    }
+
+    private static boolean isBlank(String valore) {
+        return valore == null || valore.isBlank();
+    }
 }
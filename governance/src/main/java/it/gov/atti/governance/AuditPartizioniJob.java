@@ -0,0 +1,169 @@
+package it.gov.atti.governance;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Manutenzione delle partizioni mensili di 'audit_log' (PARTITION BY RANGE su timestamp).
+ * <p>
+ * All'avvio e poi secondo {@code atti.audit.partizioni.cron}:
+ * <ul>
+ *   <li>crea in anticipo le partizioni del mese corrente e dei {@code mesi-anticipo} successivi,
+ *       così che gli inserimenti trovino sempre una partizione;</li>
+ *   <li>stacca le partizioni interamente più vecchie di {@code mesi-conservazione} e le sposta nello
+ *       schema {@code audit_archivio}, da cui possono essere esportate o eliminate senza DELETE
+ *       massivi. Vale anche per {@code audit_log_storico}, la partizione creata dalla migrazione 001
+ *       con lo storico precedente: si riconoscono dal limite superiore, non dal nome.</li>
+ * </ul>
+ * Le due fasi falliscono in modo indipendente. Lo stacco usa {@code DETACH PARTITION ... CONCURRENTLY}
+ * fuori da ogni transazione, che non blocca le scritture su 'audit_log' ma non è ammesso se la
+ * tabella ha una partizione di default (né init.sql né la migrazione 001 la creano); uno stacco interrotto resta in sospeso
+ * ed è completato con {@code FINALIZE} all'esecuzione successiva.
+ */
+@ApplicationScoped
+public class AuditPartizioniJob {
+
+    private static final Logger LOG = Logger.getLogger(AuditPartizioniJob.class);
+
+    private static final DateTimeFormatter SUFFISSO = DateTimeFormatter.ofPattern("yyyy_MM");
+
+    /** Limite superiore nella definizione della partizione, es. {@code FOR VALUES FROM (MINVALUE) TO ('2026-10-01 00:00:00')} */
+    private static final Pattern LIMITE_SUPERIORE = Pattern.compile("TO \\('([^']+)'\\)");
+
+    /** Partizione collegata ad 'audit_log' */
+    record Partizione(String nome, LocalDateTime fine, boolean staccoInSospeso) {
+    }
+
+    @Inject
+    DataSource dataSource;
+
+    @ConfigProperty(name = "atti.audit.partizioni.mesi-anticipo", defaultValue = "3")
+    int mesiAnticipo;
+
+    @ConfigProperty(name = "atti.audit.partizioni.mesi-conservazione", defaultValue = "120")
+    int mesiConservazione;
+
+    @ConfigProperty(name = "atti.audit.partizioni.schema-archivio", defaultValue = "audit_archivio")
+    String schemaArchivio;
+
+    void avvio(@Observes StartupEvent evento) {
+        manutenzione();
+    }
+
+    /**
+     * Crea le partizioni future e archivia quelle scadute.
+     */
+    @Scheduled(cron = "{atti.audit.partizioni.cron}", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    void manutenzione() {
+        YearMonth corrente = YearMonth.now();
+        try {
+            for (int i = 0; i <= mesiAnticipo; i++) {
+                creaPartizione(corrente.plusMonths(i));
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Creazione delle partizioni audit_log fallita", e);
+        }
+        LocalDateTime limite = corrente.minusMonths(mesiConservazione).atDay(1).atStartOfDay();
+        List<Partizione> partizioni;
+        try {
+            partizioni = partizioniEsistenti();
+        } catch (RuntimeException e) {
+            LOG.error("Lettura delle partizioni audit_log fallita", e);
+            return;
+        }
+        for (Partizione partizione : partizioni) {
+            if (partizione.fine() != null && !partizione.fine().isAfter(limite)) {
+                try {
+                    archiviaPartizione(partizione);
+                } catch (RuntimeException e) {
+                    LOG.errorf(e, "Archiviazione della partizione %s fallita", partizione.nome());
+                }
+            }
+        }
+    }
+
+    private void creaPartizione(YearMonth mese) {
+        QuarkusTransaction.requiringNew().run(() -> esegui("CREATE TABLE IF NOT EXISTS " + nome(mese)
+                + " PARTITION OF audit_log FOR VALUES FROM ('" + mese.atDay(1) + "') TO ('"
+                + mese.plusMonths(1).atDay(1) + "')"));
+    }
+
+    /**
+     * Stacca la partizione e la sposta nello schema di archivio. Gira in autocommit, senza
+     * transazione JTA: {@code DETACH ... CONCURRENTLY} non può essere eseguito in un blocco di
+     * transazione.
+     */
+    private void archiviaPartizione(Partizione partizione) {
+        String nome = partizione.nome();
+        esegui("CREATE SCHEMA IF NOT EXISTS " + schemaArchivio,
+                "ALTER TABLE audit_log DETACH PARTITION " + nome
+                        + (partizione.staccoInSospeso() ? " FINALIZE" : " CONCURRENTLY"),
+                "ALTER TABLE " + nome + " SET SCHEMA " + schemaArchivio);
+        LOG.infof("Partizione %s staccata e archiviata in %s", nome, schemaArchivio);
+    }
+
+    /**
+     * Partizioni attualmente collegate ad 'audit_log', con il limite superiore dell'intervallo.
+     */
+    private List<Partizione> partizioniEsistenti() {
+        return QuarkusTransaction.requiringNew().call(() -> {
+            List<Partizione> partizioni = new ArrayList<>();
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(
+                         "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid), i.inhdetachpending "
+                                 + "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+                                 + "WHERE i.inhparent = 'audit_log'::regclass")) {
+                while (rs.next()) {
+                    partizioni.add(new Partizione(rs.getString(1), fine(rs.getString(2)), rs.getBoolean(3)));
+                }
+            }
+            return partizioni;
+        });
+    }
+
+    /** Limite superiore (escluso) dalla definizione della partizione, null per DEFAULT o MAXVALUE */
+    static LocalDateTime fine(String definizione) {
+        Matcher matcher = LIMITE_SUPERIORE.matcher(definizione == null ? "" : definizione);
+        return matcher.find() ? Timestamp.valueOf(matcher.group(1)).toLocalDateTime() : null;
+    }
+
+    /**
+     * Esegue i comandi in ordine su una connessione: nella transazione corrente se c'è,
+     * altrimenti in autocommit.
+     */
+    private void esegui(String... ddl) {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            for (String sql : ddl) {
+                statement.execute(sql);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("DDL partizioni fallito: " + String.join("; ", ddl), e);
+        }
+    }
+
+    static String nome(YearMonth mese) {
+        return "audit_log_" + mese.format(SUFFISSO);
+    }
+}
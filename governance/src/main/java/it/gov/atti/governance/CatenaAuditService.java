@@ -0,0 +1,244 @@
+package it.gov.atti.governance;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Catene di hash del log di audit.
+ * <p>
+ * Gli eventi sono distribuiti su {@code atti.audit.catene} catene indipendenti in base al
+ * processo (o all'utente): ogni evento riceve un numero di sequenza nella propria catena e
+ * l'hash SHA-256 del proprio contenuto concatenato all'hash dell'evento precedente.
+ * Scrittori su catene diverse non si contendono alcun lock; le teste delle catene sono
+ * riunite periodicamente in un checkpoint Merkle da {@link AuditCheckpointService}.
+ * <p>
+ * Il numero di catene non deve cambiare dopo la prima scrittura e lo stato delle catene
+ * è mantenuto in memoria: il modulo governance deve avere un solo scrittore attivo.
+ */
+@ApplicationScoped
+public class CatenaAuditService {
+
+    /** Hash di partenza di ogni catena */
+    public static final String HASH_GENESI = "0".repeat(64);
+
+    private static final char SEPARATORE = '\u001f';
+
+    @Inject
+    DataSource dataSource;
+
+    @ConfigProperty(name = "atti.audit.catene", defaultValue = "16")
+    int numeroCatene;
+
+    private Catena[] catene;
+
+    @PostConstruct
+    void inizializza() {
+        catene = new Catena[numeroCatene];
+        for (int i = 0; i < numeroCatene; i++) {
+            catene[i] = new Catena(i);
+        }
+    }
+
+    /** Numero di catene configurate */
+    public int numeroCatene() {
+        return numeroCatene;
+    }
+
+    /**
+     * Sigilla gli eventi e li scrive con {@code scrittura}, tenendo bloccate solo le catene coinvolte.
+     * Se la scrittura fallisce lo stato delle catene torna quello precedente e i sigilli sono rimossi,
+     * così che nessun numero di sequenza resti assegnato a un evento non scritto.
+     *
+     * @param eventi    eventi da sigillare
+     * @param scrittura scrittura transazionale degli eventi sigillati
+     */
+    public void scriviSigillati(List<AuditEvent> eventi, Consumer<List<AuditEvent>> scrittura) {
+        TreeMap<Integer, Catena> coinvolte = new TreeMap<>();
+        for (AuditEvent evento : eventi) {
+            int indice = indiceCatena(evento);
+            coinvolte.put(indice, catene[indice]);
+        }
+        List<Catena> bloccate = new ArrayList<>(coinvolte.size());
+        try {
+            // ordine crescente degli indici: nessun deadlock tra scrittori concorrenti
+            for (Catena catena : coinvolte.values()) {
+                catena.lock.lock();
+                bloccate.add(catena);
+                catena.carica();
+                catena.salva();
+            }
+            for (AuditEvent evento : eventi) {
+                sigilla(evento, catene[indiceCatena(evento)]);
+            }
+            try {
+                scrittura.accept(eventi);
+            } catch (RuntimeException e) {
+                bloccate.forEach(Catena::ripristina);
+                eventi.forEach(CatenaAuditService::rimuoviSigillo);
+                throw e;
+            }
+        } finally {
+            bloccate.forEach(catena -> catena.lock.unlock());
+        }
+    }
+
+    /**
+     * Fotografa la testa di tutte le catene, bloccandole in ordine per un istante:
+     * il risultato riflette solo eventi già scritti.
+     *
+     * @return per ogni catena, in ordine di indice, la coppia (sequenza, hash) dell'ultimo evento
+     */
+    public List<Testa> teste() {
+        List<Testa> teste = new ArrayList<>(numeroCatene);
+        for (Catena catena : catene) {
+            catena.lock.lock();
+        }
+        try {
+            for (Catena catena : catene) {
+                catena.carica();
+                teste.add(new Testa(catena.indice, catena.sequenza, catena.hash));
+            }
+        } finally {
+            for (Catena catena : catene) {
+                catena.lock.unlock();
+            }
+        }
+        return teste;
+    }
+
+    /**
+     * Calcola l'hash di un evento dato l'hash del precedente nella stessa catena.
+     */
+    public static String calcolaHash(AuditEvent evento) {
+        StringBuilder contenuto = new StringBuilder(256)
+                .append(evento.catena).append(SEPARATORE)
+                .append(evento.sequenza).append(SEPARATORE)
+                .append(nullSafe(evento.processInstanceId)).append(SEPARATORE)
+                .append(nullSafe(evento.eventType)).append(SEPARATORE)
+                .append(nullSafe(evento.userId)).append(SEPARATORE)
+                .append(evento.timestamp).append(SEPARATORE)
+                .append(nullSafe(evento.details)).append(SEPARATORE)
+                .append(evento.hashPrecedente);
+        return sha256(contenuto.toString());
+    }
+
+    /**
+     * SHA-256 esadecimale di una stringa UTF-8.
+     */
+    public static String sha256(String valore) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(valore.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int indiceCatena(AuditEvent evento) {
+        String chiave = evento.processInstanceId != null ? evento.processInstanceId : nullSafe(evento.userId);
+        return Math.floorMod(chiave.hashCode(), numeroCatene);
+    }
+
+    private static void sigilla(AuditEvent evento, Catena catena) {
+        // precisione di PostgreSQL TIMESTAMP: l'hash deve coincidere con il valore riletto
+        LocalDateTime timestamp = evento.timestamp != null ? evento.timestamp : LocalDateTime.now();
+        evento.timestamp = timestamp.truncatedTo(ChronoUnit.MICROS);
+        evento.catena = catena.indice;
+        evento.sequenza = ++catena.sequenza;
+        evento.hashPrecedente = catena.hash;
+        evento.hash = calcolaHash(evento);
+        catena.hash = evento.hash;
+    }
+
+    private static void rimuoviSigillo(AuditEvent evento) {
+        evento.catena = null;
+        evento.sequenza = null;
+        evento.hashPrecedente = null;
+        evento.hash = null;
+    }
+
+    private static String nullSafe(String valore) {
+        return valore != null ? valore : "";
+    }
+
+    /**
+     * Testa di una catena in un dato istante.
+     *
+     * @param catena   indice della catena
+     * @param sequenza sequenza dell'ultimo evento (0 se la catena è vuota)
+     * @param hash     hash dell'ultimo evento ({@link #HASH_GENESI} se la catena è vuota)
+     */
+    public record Testa(int catena, long sequenza, String hash) {
+    }
+
+    /** Stato in memoria di una catena, protetto dal proprio lock */
+    private final class Catena {
+        final int indice;
+        final ReentrantLock lock = new ReentrantLock();
+        boolean caricata;
+        long sequenza;
+        String hash;
+        long sequenzaSalvata;
+        String hashSalvato;
+
+        Catena(int indice) {
+            this.indice = indice;
+        }
+
+        /** Legge dal database l'ultimo evento della catena, al primo utilizzo */
+        void carica() {
+            if (caricata) {
+                return;
+            }
+            QuarkusTransaction.requiringNew().run(() -> {
+                try (Connection connection = dataSource.getConnection();
+                     PreparedStatement statement = connection.prepareStatement(
+                             "SELECT sequenza, hash FROM audit_log WHERE catena = ? ORDER BY sequenza DESC LIMIT 1")) {
+                    statement.setInt(1, indice);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        if (rs.next()) {
+                            sequenza = rs.getLong(1);
+                            hash = rs.getString(2);
+                        } else {
+                            sequenza = 0;
+                            hash = HASH_GENESI;
+                        }
+                    }
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Lettura testa catena " + indice + " fallita", e);
+                }
+            });
+            caricata = true;
+        }
+
+        void salva() {
+            sequenzaSalvata = sequenza;
+            hashSalvato = hash;
+        }
+
+        void ripristina() {
+            sequenza = sequenzaSalvata;
+            hash = hashSalvato;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package it.gov.atti.governance;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registra nell'audit log gli eventi delle determinazioni pubblicati dal process-engine
+ * sul topic {@code atti.audit.eventi.topic} (outbox delle determinazioni).
+ * <p>
+ * Ogni blocco letto è passato ad {@link AuditIngestionService#accoda} e solo dopo è confermato
+ * l'offset: un evento accettato dall'ingestione non va perso (al più finisce nel file di spill),
+ * quindi un arresto tra lettura e conferma produce al più una rilettura. La consegna dal relay è
+ * almeno una volta: i duplicati recenti sono riconosciuti dall'header {@code id-evento} e scartati.
+ * <p>
+ * Se l'ingestione rifiuta il blocco (coda piena e file di spill non scrivibile) gli id non sono
+ * ricordati, il consumer torna al primo offset del blocco e riprova con attesa crescente fino a
+ * {@link #ATTESA_MAX}: la lettura non si ferma finché l'applicazione è attiva.
+ */
+@ApplicationScoped
+public class EventiDeterminazioneConsumer {
+
+    private static final Logger LOG = Logger.getLogger(EventiDeterminazioneConsumer.class);
+
+    private static final String HEADER_ID_EVENTO = "id-evento";
+
+    /** Id evento ricordati per riconoscere i duplicati */
+    private static final int MEMORIA_DUPLICATI = 10_000;
+
+    private static final Duration ATTESA_MIN = Duration.ofSeconds(1);
+    private static final Duration ATTESA_MAX = Duration.ofMinutes(1);
+
+    @Inject
+    AuditIngestionService ingestione;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.audit.eventi.abilitato", defaultValue = "true")
+    boolean abilitato;
+
+    @ConfigProperty(name = "atti.audit.eventi.topic", defaultValue = "determinazioni-eventi")
+    String topic;
+
+    @ConfigProperty(name = "kafka.bootstrap.servers", defaultValue = "localhost:9092")
+    String bootstrapServers;
+
+    /** Consumer Kafka; sostituibile con un MockConsumer nei test */
+    Consumer<String, String> consumer;
+
+    private final Map<String, Boolean> recenti = new LinkedHashMap<>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> piuVecchio) {
+            return size() > MEMORIA_DUPLICATI;
+        }
+    };
+    private final Map<String, Counter> ricevuti = new ConcurrentHashMap<>();
+    private Counter duplicati;
+    private volatile boolean attivo;
+    private Thread thread;
+
+    void avvia(@Observes StartupEvent evento) {
+        duplicati = Counter.builder("audit.eventi.duplicati")
+                .description("Eventi delle determinazioni ricevuti più volte e scartati")
+                .register(registry);
+        if (!abilitato) {
+            return;
+        }
+        if (consumer == null) {
+            consumer = new KafkaConsumer<>(configurazioneConsumer());
+        }
+        attivo = true;
+        thread = new Thread(this::ascolta, "audit-eventi-determinazioni");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (thread != null) {
+            consumer.wakeup();
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    private void ascolta() {
+        Duration attesa = ATTESA_MIN;
+        try {
+            consumer.subscribe(List.of(topic));
+            while (attivo) {
+                try {
+                    elabora(consumer.poll(Duration.ofSeconds(1)));
+                    attesa = ATTESA_MIN;
+                } catch (WakeupException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    LOG.errorf(e, "Registrazione degli eventi delle determinazioni fallita, nuovo tentativo tra %s", attesa);
+                    Thread.sleep(attesa.toMillis());
+                    attesa = attesa.multipliedBy(2).compareTo(ATTESA_MAX) > 0 ? ATTESA_MAX : attesa.multipliedBy(2);
+                }
+            }
+        } catch (WakeupException e) {
+            // arresto dell'applicazione
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Accoda all'audit log gli eventi di un blocco e conferma gli offset. Gli id sono ricordati
+     * solo dopo l'accodamento: se fallisce, il consumer è riportato al primo offset del blocco
+     * per ogni partizione e l'eccezione è propagata, così il blocco è riletto al tentativo
+     * successivo senza essere scambiato per un duplicato.
+     *
+     * @return eventi accodati, esclusi i duplicati
+     */
+    int elabora(ConsumerRecords<String, String> messaggi) {
+        if (messaggi.isEmpty()) {
+            return 0;
+        }
+        List<AuditEvent> eventi = new ArrayList<>(messaggi.count());
+        Set<String> ids = new HashSet<>();
+        for (ConsumerRecord<String, String> messaggio : messaggi) {
+            Header intestazione = messaggio.headers().lastHeader(HEADER_ID_EVENTO);
+            if (intestazione != null) {
+                String id = new String(intestazione.value(), StandardCharsets.UTF_8);
+                if (recenti.containsKey(id) || !ids.add(id)) {
+                    duplicati.increment();
+                    continue;
+                }
+            }
+            eventi.add(evento(messaggio.value()));
+        }
+        try {
+            ingestione.accoda(eventi);
+        } catch (RuntimeException e) {
+            for (TopicPartition partizione : messaggi.partitions()) {
+                consumer.seek(partizione, messaggi.records(partizione).get(0).offset());
+            }
+            throw e;
+        }
+        ids.forEach(id -> recenti.put(id, Boolean.TRUE));
+        eventi.forEach(evento -> contatore(evento.eventType).increment());
+        consumer.commitSync();
+        return eventi.size();
+    }
+
+    /**
+     * Evento di audit corrispondente al messaggio; il payload originale è conservato nei dettagli.
+     * Un payload non interpretabile è registrato comunque, con tipo EVENTO_NON_VALIDO.
+     */
+    AuditEvent evento(String payload) {
+        AuditEvent evento = new AuditEvent();
+        evento.details = payload;
+        try {
+            JsonNode json = objectMapper.readTree(payload);
+            evento.eventType = json.path("tipo").asText("EVENTO_NON_VALIDO");
+            evento.userId = json.path("utente").asText(null);
+            evento.processInstanceId = json.path("processInstanceId").asText(null);
+            String timestamp = json.path("timestamp").asText(null);
+            evento.timestamp = timestamp == null ? null : LocalDateTime.parse(timestamp);
+        } catch (IOException | DateTimeParseException e) {
+            LOG.warnf("Evento di determinazione non interpretabile: %s", e.getMessage());
+            evento.eventType = "EVENTO_NON_VALIDO";
+        }
+        return evento;
+    }
+
+    private Counter contatore(String tipo) {
+        return ricevuti.computeIfAbsent(tipo, t -> Counter.builder("audit.eventi.ricevuti")
+                .description("Eventi delle determinazioni registrati nell'audit log")
+                .tag("tipo", t)
+                .register(registry));
+    }
+
+    private Properties configurazioneConsumer() {
+        Properties proprieta = new Properties();
+        proprieta.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        proprieta.put(ConsumerConfig.GROUP_ID_CONFIG, "governance-audit");
+        proprieta.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        proprieta.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        proprieta.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, "500");
+        proprieta.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        proprieta.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        return proprieta;
+    }
+}
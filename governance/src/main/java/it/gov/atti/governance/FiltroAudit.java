@@ -0,0 +1,84 @@
+package it.gov.atti.governance;
+
+import io.quarkus.panache.common.Parameters;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filtri combinabili sul log di audit, tradotti in una query Panache.
+ * L'intervallo temporale è espresso come range semiaperto [from, to) su 'timestamp',
+ * così da usare l'indice idx_audit_timestamp anche per l'ordinamento.
+ */
+public final class FiltroAudit {
+
+    private final List<String> condizioni = new ArrayList<>();
+    private final Parameters parametri = new Parameters();
+
+    private FiltroAudit() {
+    }
+
+    /**
+     * Costruisce il filtro dai parametri della richiesta. I parametri null o vuoti sono ignorati.
+     *
+     * @param processInstanceId ID istanza processo
+     * @param userId            ID utente
+     * @param from              inizio intervallo, data o data-ora ISO (incluso)
+     * @param to                fine intervallo, data o data-ora ISO (una data include l'intero giorno)
+     * @return il filtro
+     * @throws IllegalArgumentException se una data non è in formato ISO
+     */
+    public static FiltroAudit di(String processInstanceId, String userId, String from, String to) {
+        FiltroAudit filtro = new FiltroAudit();
+        if (processInstanceId != null && !processInstanceId.isBlank()) {
+            filtro.aggiungi("processInstanceId = :processInstanceId", "processInstanceId", processInstanceId);
+        }
+        if (userId != null && !userId.isBlank()) {
+            filtro.aggiungi("userId = :userId", "userId", userId);
+        }
+        if (from != null && !from.isBlank()) {
+            filtro.aggiungi("timestamp >= :from", "from", inizio(from));
+        }
+        if (to != null && !to.isBlank()) {
+            filtro.aggiungi("timestamp < :to", "to", fine(to));
+        }
+        return filtro;
+    }
+
+    /**
+     * Query Panache con i soli filtri valorizzati, ordinata per timestamp crescente.
+     */
+    public String query() {
+        String where = condizioni.isEmpty() ? "" : String.join(" and ", condizioni) + " ";
+        return where + "order by timestamp, id";
+    }
+
+    /** Parametri nominali della query */
+    public Parameters parametri() {
+        return parametri;
+    }
+
+    private void aggiungi(String condizione, String nome, Object valore) {
+        condizioni.add(condizione);
+        parametri.and(nome, valore);
+    }
+
+    static LocalDateTime inizio(String valore) {
+        try {
+            return valore.length() == 10 ? LocalDate.parse(valore).atStartOfDay() : LocalDateTime.parse(valore);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Data non valida: " + valore, e);
+        }
+    }
+
+    static LocalDateTime fine(String valore) {
+        try {
+            return valore.length() == 10 ? LocalDate.parse(valore).plusDays(1).atStartOfDay() : LocalDateTime.parse(valore);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Data non valida: " + valore, e);
+        }
+    }
+}
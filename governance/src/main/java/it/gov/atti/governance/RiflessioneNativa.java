@@ -0,0 +1,21 @@
+package it.gov.atti.governance;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Tipi da registrare per la riflessione nell'eseguibile nativo.
+ * <p>
+ * Quarkus registra da solo entità e tipi che compaiono nelle firme degli endpoint; restano
+ * esclusi quelli serializzati da Jackson fuori dalle firme: l'evento restituito da POST /audit
+ * con {@code Response}, le righe dell'esportazione e dello spool di ingestione e le teste delle
+ * catene salvate nei checkpoint.
+ */
+@RegisterForReflection(targets = {
+        AuditEvent.class,
+        CatenaAuditService.Testa.class
+})
+final class RiflessioneNativa {
+
+    private RiflessioneNativa() {
+    }
+}
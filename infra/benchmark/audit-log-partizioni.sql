@@ -0,0 +1,106 @@
+-- Benchmark: audit_log heap (layout precedente) vs partizionato per mese, a 50M di righe.
+--
+-- Uso, su un database di prova (NON in produzione):
+--   psql -U kogito -d atti_bench -v righe=50000000 -f audit-log-partizioni.sql
+--
+-- Misura con \timing:
+--   1. caricamento bulk delle righe distribuite su 5 anni;
+--   2. INSERT di 100.000 righe nel mese corrente (carico tipico dell'ingestione);
+--   3. query per intervallo di una settimana e di un mese (EXPLAIN ANALYZE mostra il pruning);
+--   4. eliminazione di un mese di dati: DELETE sul layout heap, DETACH + DROP su quello partizionato.
+
+\set ON_ERROR_STOP on
+\if :{?righe}
+\else
+\set righe 50000000
+\endif
+\timing on
+
+DROP SCHEMA IF EXISTS bench_heap CASCADE;
+DROP SCHEMA IF EXISTS bench_part CASCADE;
+CREATE SCHEMA bench_heap;
+CREATE SCHEMA bench_part;
+
+-- Layout precedente: tabella heap con tre indici B-tree
+CREATE TABLE bench_heap.audit_log (
+    id BIGSERIAL PRIMARY KEY,
+    process_instance_id VARCHAR(255),
+    event_type VARCHAR(100) NOT NULL,
+    user_id VARCHAR(255),
+    timestamp TIMESTAMP DEFAULT NOW(),
+    details TEXT
+);
+CREATE INDEX ON bench_heap.audit_log(process_instance_id);
+CREATE INDEX ON bench_heap.audit_log(user_id);
+CREATE INDEX ON bench_heap.audit_log(timestamp);
+
+-- Layout partizionato, come in init.sql
+CREATE TABLE bench_part.audit_log (
+    id BIGSERIAL,
+    process_instance_id VARCHAR(255),
+    event_type VARCHAR(100) NOT NULL,
+    user_id VARCHAR(255),
+    timestamp TIMESTAMP NOT NULL DEFAULT NOW(),
+    details TEXT,
+    PRIMARY KEY (id, timestamp)
+) PARTITION BY RANGE (timestamp);
+DO $$
+DECLARE
+    mese DATE := date_trunc('month', now())::date - INTERVAL '60 months';
+BEGIN
+    FOR i IN 0..61 LOOP
+        EXECUTE format('CREATE TABLE bench_part.%I PARTITION OF bench_part.audit_log FOR VALUES FROM (%L) TO (%L)',
+                       'audit_log_' || to_char(mese + make_interval(months => i), 'YYYY_MM'),
+                       mese + make_interval(months => i), mese + make_interval(months => i + 1));
+    END LOOP;
+END $$;
+CREATE INDEX ON bench_part.audit_log(process_instance_id);
+CREATE INDEX ON bench_part.audit_log(user_id);
+CREATE INDEX ON bench_part.audit_log(timestamp);
+
+-- 1. Caricamento bulk
+\echo '== caricamento heap'
+INSERT INTO bench_heap.audit_log (process_instance_id, event_type, user_id, timestamp, details)
+SELECT 'proc-' || (g % 200000), 'STATO_AGGIORNATO', 'utente-' || (g % 500),
+       now() - (random() * INTERVAL '1825 days'), '{"stato":"FIRMATA"}'
+FROM generate_series(1, :righe) g;
+\echo '== caricamento partizionato'
+INSERT INTO bench_part.audit_log (process_instance_id, event_type, user_id, timestamp, details)
+SELECT process_instance_id, event_type, user_id, timestamp, details FROM bench_heap.audit_log;
+ANALYZE bench_heap.audit_log;
+ANALYZE bench_part.audit_log;
+
+-- 2. Inserimenti nel mese corrente
+\echo '== insert 100k heap'
+INSERT INTO bench_heap.audit_log (process_instance_id, event_type, user_id, details)
+SELECT 'proc-' || g, 'TASK_COMPLETATO', 'utente-1', NULL FROM generate_series(1, 100000) g;
+\echo '== insert 100k partizionato'
+INSERT INTO bench_part.audit_log (process_instance_id, event_type, user_id, details)
+SELECT 'proc-' || g, 'TASK_COMPLETATO', 'utente-1', NULL FROM generate_series(1, 100000) g;
+
+-- 3. Query per intervallo
+\echo '== settimana, heap'
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM bench_heap.audit_log
+WHERE timestamp >= now() - INTERVAL '400 days' AND timestamp < now() - INTERVAL '393 days' ORDER BY timestamp;
+\echo '== settimana, partizionato'
+EXPLAIN (ANALYZE, BUFFERS) SELECT * FROM bench_part.audit_log
+WHERE timestamp >= now() - INTERVAL '400 days' AND timestamp < now() - INTERVAL '393 days' ORDER BY timestamp;
+\echo '== mese per utente, heap'
+EXPLAIN (ANALYZE, BUFFERS) SELECT count(*) FROM bench_heap.audit_log
+WHERE user_id = 'utente-42' AND timestamp >= now() - INTERVAL '90 days' AND timestamp < now() - INTERVAL '60 days';
+\echo '== mese per utente, partizionato'
+EXPLAIN (ANALYZE, BUFFERS) SELECT count(*) FROM bench_part.audit_log
+WHERE user_id = 'utente-42' AND timestamp >= now() - INTERVAL '90 days' AND timestamp < now() - INTERVAL '60 days';
+
+-- 4. Conservazione: rimozione del mese più vecchio
+\echo '== retention heap (DELETE)'
+DELETE FROM bench_heap.audit_log
+WHERE timestamp < date_trunc('month', now()) - INTERVAL '59 months';
+\echo '== retention partizionato (DETACH + DROP)'
+DO $$
+DECLARE
+    nome TEXT := 'audit_log_' || to_char(date_trunc('month', now()) - INTERVAL '60 months', 'YYYY_MM');
+BEGIN
+    EXECUTE format('ALTER TABLE bench_part.audit_log DETACH PARTITION bench_part.%I', nome);
+    EXECUTE format('DROP TABLE bench_part.%I', nome);
+END $$;
@@ -0,0 +1,102 @@
+#!/usr/bin/env bash
+# Benchmark: tempo di avvio e memoria residente (RSS) di process-engine o governance, JVM vs nativo.
+#
+# Uso (Linux), dalla root del progetto con PostgreSQL e Kafka avviati:
+#   mvn -pl process-engine -am package -DskipTests             # quarkus-app/quarkus-run.jar
+#   mvn -pl process-engine -am package -DskipTests -Dnative    # *-runner (con GraalVM/Mandrel, oppure
+#                                                              # -Dquarkus.native.container-build=true)
+#   infra/benchmark/avvio-jvm-nativo.sh process-engine 5 1000
+#
+# Per ogni modalità di cui esiste l'artefatto il servizio è avviato N volte con il profilo 'carico'
+# (token verificati con la chiave di carico-chiavi/, senza Keycloak) e si misura:
+#   1. tempo dall'avvio del processo alla prima risposta HTTP, e il "started in" dichiarato da Quarkus;
+#   2. RSS appena il servizio risponde;
+#   3. RSS dopo il riscaldamento: richieste autenticate all'elenco determinazioni o all'audit log.
+# Viene stampata la mediana delle ripetizioni per modalità.
+#
+# Parametri: modulo (process-engine | governance), ripetizioni (default 5), richieste di
+# riscaldamento (default 1000). JAVA_OPTS è passato alla JVM.
+
+set -euo pipefail
+
+modulo=${1:?"Uso: $0 process-engine|governance [ripetizioni] [richieste]"}
+ripetizioni=${2:-5}
+richieste=${3:-1000}
+chiavi=carico-chiavi
+
+case $modulo in
+    process-engine) porta=8080; percorso="/determinazioni?limite=20" ;;
+    governance)     porta=8082; percorso="/audit?processInstanceId=avvio" ;;
+    *) echo "Modulo non supportato: $modulo" >&2; exit 2 ;;
+esac
+
+if [[ ! -f $chiavi/privata.pem ]]; then
+    mkdir -p "$chiavi"
+    openssl genpkey -algorithm RSA -pkeyopt rsa_keygen_bits:2048 -out "$chiavi/privata.pem" 2>/dev/null
+    openssl pkey -in "$chiavi/privata.pem" -pubout -out "$chiavi/pubblica.pem"
+fi
+export QUARKUS_PROFILE=carico
+OIDC_CHIAVE_PUBBLICA=$(grep -v -- ----- "$chiavi/pubblica.pem" | tr -d '\n')
+export OIDC_CHIAVE_PUBBLICA
+
+base64url() { openssl base64 -A | tr '+/' '-_' | tr -d '='; }
+ora=$(date +%s)
+intestazione=$(printf '{"alg":"RS256","typ":"JWT"}' | base64url)
+claim=$(printf '{"iss":"atti-carico","sub":"avvio","upn":"avvio","preferred_username":"avvio","groups":["admin","istruttore","dirigente"],"realm_access":{"roles":["admin","istruttore","dirigente"]},"iat":%d,"exp":%d}' \
+    "$ora" $((ora + 3600)) | base64url)
+firma=$(printf '%s.%s' "$intestazione" "$claim" | openssl dgst -sha256 -sign "$chiavi/privata.pem" -binary | base64url)
+token="$intestazione.$claim.$firma"
+
+rss() { awk '/^VmRSS/ { printf "%d", $2 / 1024 }' "/proc/$1/status"; }
+
+mediana() { sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'; }
+
+# Una ripetizione: stampa "ms-prima-risposta started-in-s rss-pronto-mb rss-riscaldato-mb"
+misura() {
+    local log inizio pid pronto rss_pronto rss_riscaldato dichiarato
+    log=$(mktemp)
+    inizio=$(date +%s%N)
+    "$@" >"$log" 2>&1 &
+    pid=$!
+    until [[ $(curl -s -o /dev/null -w '%{http_code}' "http://localhost:$porta/q/metrics") != 000 ]]; do
+        if ! kill -0 "$pid" 2>/dev/null; then
+            echo "Il servizio è terminato durante l'avvio:" >&2
+            tail -20 "$log" >&2
+            exit 1
+        fi
+        sleep 0.005
+    done
+    pronto=$(( ($(date +%s%N) - inizio) / 1000000 ))
+    rss_pronto=$(rss "$pid")
+    curl -s -H "Authorization: Bearer $token" "http://localhost:$porta$percorso&riscaldamento=[1-$richieste]" >/dev/null
+    rss_riscaldato=$(rss "$pid")
+    dichiarato=$(grep -o 'started in [0-9.]*s' "$log" | grep -o '[0-9.]*' | head -1 || true)
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+    rm -f "$log"
+    echo "$pronto ${dichiarato:-0} $rss_pronto $rss_riscaldato"
+}
+
+jar=$modulo/target/quarkus-app/quarkus-run.jar
+nativo=$(ls "$modulo"/target/*-runner 2>/dev/null | head -1 || true)
+
+printf '\n%-8s %18s %14s %14s %24s\n' "modalità" "prima risposta ms" "started in s" "RSS pronto MB" "RSS dopo $richieste rich. MB"
+for modalita in jvm nativo; do
+    if [[ $modalita == jvm ]]; then
+        [[ -f $jar ]] || { echo "$jar assente, JVM saltata" >&2; continue; }
+        comando=(java ${JAVA_OPTS:-} -jar "$jar")
+    else
+        [[ -n $nativo ]] || { echo "Eseguibile nativo assente in $modulo/target, nativo saltato" >&2; continue; }
+        comando=("$nativo")
+    fi
+    risultati=$(mktemp)
+    for ((i = 0; i < ripetizioni; i++)); do
+        misura "${comando[@]}" >>"$risultati"
+    done
+    printf '%-8s %18s %14s %14s %24s\n' "$modalita" \
+        "$(awk '{ print $1 }' <"$risultati" | mediana)" \
+        "$(awk '{ print $2 }' <"$risultati" | mediana)" \
+        "$(awk '{ print $3 }' <"$risultati" | mediana)" \
+        "$(awk '{ print $4 }' <"$risultati" | mediana)"
+    rm -f "$risultati"
+done
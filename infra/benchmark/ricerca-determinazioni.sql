@@ -0,0 +1,112 @@
+-- Benchmark: ricerca testuale sulle determinazioni (RicercaDeterminazioni) a 1M di righe.
+--
+-- Uso, su un database di prova (NON in produzione):
+--   psql -U kogito -d atti_bench -v righe=1000000 -f ricerca-determinazioni.sql
+--
+-- Carica le righe con oggetti composti da un vocabolario amministrativo, crea colonna e indice
+-- come in 004-ricerca-determinazioni.sql ed esegue con EXPLAIN ANALYZE la query del servizio per:
+--   1. un termine raro (poche decine di corrispondenze);
+--   2. un termine frequente, oltre il limite di 10.000 corrispondenze (risultato approssimato);
+--   3. una frase con faccette selezionate (stato e anno).
+-- Per la distribuzione delle latenze (p95) ripetere la query 3 con pgbench, ad esempio:
+--   pgbench -n -c 8 -T 60 -P 10 -f <file con la sola query> atti_bench
+
+\set ON_ERROR_STOP on
+\if :{?righe}
+\else
+\set righe 1000000
+\endif
+\timing on
+
+DROP SCHEMA IF EXISTS bench_ricerca CASCADE;
+CREATE SCHEMA bench_ricerca;
+SET search_path = bench_ricerca;
+
+CREATE TABLE determinazioni (
+    id BIGSERIAL PRIMARY KEY,
+    numero VARCHAR(255) UNIQUE,
+    oggetto VARCHAR(255),
+    importo DOUBLE PRECISION,
+    centro_spesa VARCHAR(255),
+    dirigente VARCHAR(255),
+    livello_dirigente VARCHAR(255),
+    stato VARCHAR(255),
+    data_creazione TIMESTAMP
+);
+
+INSERT INTO determinazioni (numero, oggetto, importo, centro_spesa, dirigente, livello_dirigente, stato, data_creazione)
+SELECT 'DET-' || (2021 + i % 5) || '-' || lpad(i::text, 7, '0'),
+       (ARRAY['Affidamento', 'Impegno di spesa per', 'Liquidazione', 'Approvazione', 'Proroga'])[1 + i % 5]
+           || ' ' || (ARRAY['servizio di manutenzione', 'fornitura di materiale', 'lavori di riqualificazione',
+                            'incarico professionale', 'contributo straordinario', 'noleggio attrezzature'])[1 + (i / 5) % 6]
+           || ' ' || (ARRAY['del verde pubblico', 'degli edifici scolastici', 'della rete stradale',
+                            'degli impianti sportivi', 'della biblioteca comunale', 'del cimitero',
+                            'della polizia locale', 'dei servizi sociali'])[1 + (i / 30) % 8]
+           || CASE WHEN i % 50000 = 0 THEN ' con sistema di videosorveglianza' ELSE '' END,
+       round((random() * 100000)::numeric, 2),
+       'CDC-' || lpad((i % 40)::text, 2, '0'),
+       'dirigente' || (i % 25),
+       'D' || (1 + i % 3),
+       (ARRAY['BOZZA', 'ISTRUTTORIA', 'VISTO_CONTABILE', 'FIRMATA', 'PUBBLICATA', 'RIFIUTATA'])[1 + i % 6],
+       make_timestamp(2021 + i % 5, 1 + i % 12, 1 + i % 28, 9, 0, 0)
+FROM generate_series(1, :righe) AS i;
+
+ALTER TABLE determinazioni ADD COLUMN ricerca tsvector GENERATED ALWAYS AS (
+    setweight(to_tsvector('italian', coalesce(oggetto, '')), 'A')
+    || setweight(to_tsvector('simple', coalesce(numero, '') || ' ' || coalesce(centro_spesa, '')), 'B')
+) STORED;
+CREATE INDEX idx_determinazioni_ricerca ON determinazioni USING gin (ricerca);
+VACUUM ANALYZE determinazioni;
+
+-- 1. termine raro
+EXPLAIN (ANALYZE, BUFFERS)
+WITH q AS (SELECT websearch_to_tsquery('italian', 'videosorveglianza') AS query),
+trovate AS MATERIALIZED (
+    SELECT d.id, d.oggetto, d.stato, d.centro_spesa, d.livello_dirigente, d.data_creazione,
+           ts_rank_cd(d.ricerca, q.query) AS punteggio
+    FROM determinazioni d, q WHERE d.ricerca @@ q.query LIMIT 10000),
+migliori AS (SELECT * FROM trovate ORDER BY punteggio DESC, id DESC LIMIT 20)
+SELECT 0, m.id, ts_headline('italian', m.oggetto, q.query), NULL, NULL, NULL FROM migliori m, q
+UNION ALL
+SELECT 1, NULL, NULL, GROUPING(stato, centro_spesa, livello_dirigente, anno),
+       COALESCE(stato, centro_spesa, livello_dirigente, CAST(anno AS varchar)), count(*)
+FROM (SELECT stato, centro_spesa, livello_dirigente, CAST(EXTRACT(YEAR FROM data_creazione) AS integer) AS anno
+      FROM trovate) t
+GROUP BY GROUPING SETS ((stato), (centro_spesa), (livello_dirigente), (anno), ());
+
+-- 2. termine frequente: le corrispondenze sono limitate a 10.000
+EXPLAIN (ANALYZE, BUFFERS)
+WITH q AS (SELECT websearch_to_tsquery('italian', 'manutenzione') AS query),
+trovate AS MATERIALIZED (
+    SELECT d.id, d.oggetto, d.stato, d.centro_spesa, d.livello_dirigente, d.data_creazione,
+           ts_rank_cd(d.ricerca, q.query) AS punteggio
+    FROM determinazioni d, q WHERE d.ricerca @@ q.query LIMIT 10000),
+migliori AS (SELECT * FROM trovate ORDER BY punteggio DESC, id DESC LIMIT 20)
+SELECT 0, m.id, ts_headline('italian', m.oggetto, q.query), NULL, NULL, NULL FROM migliori m, q
+UNION ALL
+SELECT 1, NULL, NULL, GROUPING(stato, centro_spesa, livello_dirigente, anno),
+       COALESCE(stato, centro_spesa, livello_dirigente, CAST(anno AS varchar)), count(*)
+FROM (SELECT stato, centro_spesa, livello_dirigente, CAST(EXTRACT(YEAR FROM data_creazione) AS integer) AS anno
+      FROM trovate) t
+GROUP BY GROUPING SETS ((stato), (centro_spesa), (livello_dirigente), (anno), ());
+
+-- 3. frase con faccette selezionate
+EXPLAIN (ANALYZE, BUFFERS)
+WITH q AS (SELECT websearch_to_tsquery('italian', '"edifici scolastici" manutenzione') AS query),
+trovate AS MATERIALIZED (
+    SELECT d.id, d.oggetto, d.stato, d.centro_spesa, d.livello_dirigente, d.data_creazione,
+           ts_rank_cd(d.ricerca, q.query) AS punteggio
+    FROM determinazioni d, q
+    WHERE d.ricerca @@ q.query AND d.stato = 'PUBBLICATA'
+      AND d.data_creazione >= '2024-01-01' AND d.data_creazione < '2025-01-01'
+    LIMIT 10000),
+migliori AS (SELECT * FROM trovate ORDER BY punteggio DESC, id DESC LIMIT 20)
+SELECT 0, m.id, ts_headline('italian', m.oggetto, q.query), NULL, NULL, NULL FROM migliori m, q
+UNION ALL
+SELECT 1, NULL, NULL, GROUPING(stato, centro_spesa, livello_dirigente, anno),
+       COALESCE(stato, centro_spesa, livello_dirigente, CAST(anno AS varchar)), count(*)
+FROM (SELECT stato, centro_spesa, livello_dirigente, CAST(EXTRACT(YEAR FROM data_creazione) AS integer) AS anno
+      FROM trovate) t
+GROUP BY GROUPING SETS ((stato), (centro_spesa), (livello_dirigente), (anno), ());
+
+RESET search_path;
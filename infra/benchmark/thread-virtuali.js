@@ -0,0 +1,89 @@
+// Carico di lettura e scrittura su process-engine e governance, per confrontare l'esecuzione
+// delle risorse REST su thread virtuali con il worker pool.
+//
+// Quarkus fissa in build l'esecuzione di @RunOnVirtualThread: le due modalità sono due pacchetti,
+// costruiti dalla root del progetto con
+//   mvn -pl process-engine,governance -am package -DskipTests              # target/quarkus-app
+//   mvn -pl process-engine,governance -am package -DskipTests -DworkerPool  # target/quarkus-app-worker-pool
+//
+// Uso (k6 >= 0.45), con un token di un utente admin e dirigente ottenuto da Keycloak:
+//   1. avviare i servizi da target/quarkus-app-worker-pool/quarkus-run.jar, poi
+//      k6 run -e TOKEN=$TOKEN --summary-export worker-pool.json thread-virtuali.js
+//   2. riavviarli da target/quarkus-app/quarkus-run.jar (thread virtuali), poi
+//      k6 run -e TOKEN=$TOKEN --summary-export thread-virtuali.json thread-virtuali.js
+//   3. confrontare http_reqs (throughput) e http_req_duration p(99) per operazione nei due file.
+//
+// Parametri: UTENTI (default 2000 utenti concorrenti), DURATA (default 3m a regime),
+// PROCESS_ENGINE (default http://localhost:8080), GOVERNANCE (default http://localhost:8082).
+
+import http from 'k6/http';
+import { check } from 'k6';
+
+const PROCESS_ENGINE = __ENV.PROCESS_ENGINE || 'http://localhost:8080';
+const GOVERNANCE = __ENV.GOVERNANCE || 'http://localhost:8082';
+const UTENTI = parseInt(__ENV.UTENTI || '2000');
+const DURATA = __ENV.DURATA || '3m';
+
+const intestazioni = {
+    headers: {
+        Authorization: `Bearer ${__ENV.TOKEN}`,
+        'Content-Type': 'application/json',
+    },
+};
+
+export const options = {
+    scenarios: {
+        carico: {
+            executor: 'ramping-vus',
+            startVUs: 0,
+            stages: [
+                { duration: '1m', target: UTENTI },
+                { duration: DURATA, target: UTENTI },
+                { duration: '30s', target: 0 },
+            ],
+            gracefulRampDown: '10s',
+        },
+    },
+    summaryTrendStats: ['avg', 'p(50)', 'p(95)', 'p(99)', 'max'],
+    // Soglie sempre soddisfatte: servono solo a riportare le latenze per operazione nel riepilogo
+    thresholds: {
+        'http_req_duration{operazione:elenco}': ['p(99)>=0'],
+        'http_req_duration{operazione:dettaglio}': ['p(99)>=0'],
+        'http_req_duration{operazione:audit-lista}': ['p(99)>=0'],
+        'http_req_duration{operazione:audit-registra}': ['p(99)>=0'],
+    },
+};
+
+export function setup() {
+    const risposta = http.get(`${PROCESS_ENGINE}/determinazioni?limite=200`, intestazioni);
+    const ids = risposta.status === 200 ? risposta.json().map((d) => d.id) : [];
+    if (ids.length === 0) {
+        throw new Error(`Nessuna determinazione leggibile (HTTP ${risposta.status}): verificare TOKEN e dati`);
+    }
+    return { ids };
+}
+
+export default function (dati) {
+    const scelta = Math.random();
+    let risposta;
+    if (scelta < 0.5) {
+        risposta = http.get(`${PROCESS_ENGINE}/determinazioni?limite=50`,
+            Object.assign({ tags: { operazione: 'elenco' } }, intestazioni));
+    } else if (scelta < 0.8) {
+        const id = dati.ids[Math.floor(Math.random() * dati.ids.length)];
+        risposta = http.get(`${PROCESS_ENGINE}/determinazioni/${id}`,
+            Object.assign({ tags: { operazione: 'dettaglio' } }, intestazioni));
+    } else if (scelta < 0.9) {
+        risposta = http.get(`${GOVERNANCE}/audit?processInstanceId=carico-${__VU}`,
+            Object.assign({ tags: { operazione: 'audit-lista' } }, intestazioni));
+    } else {
+        const evento = JSON.stringify({
+            processInstanceId: `carico-${__VU}`,
+            eventType: 'CARICO_TEST',
+            details: `{"iterazione":${__ITER}}`,
+        });
+        risposta = http.post(`${GOVERNANCE}/audit`, evento,
+            Object.assign({ tags: { operazione: 'audit-registra' } }, intestazioni));
+    }
+    check(risposta, { 'risposta 2xx': (r) => r.status >= 200 && r.status < 300 });
+}
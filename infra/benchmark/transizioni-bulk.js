@@ -0,0 +1,87 @@
+// Confronto tra 1.000 transizioni di stato eseguite una per volta (PUT /determinazioni/{id}/stato)
+// e le stesse in una sola chiamata (PUT /determinazioni/batch/stato).
+//
+// Uso (k6 >= 0.45), con un token di un utente istruttore e dirigente ottenuto da Keycloak:
+//   k6 run -e TOKEN=$TOKEN --summary-export transizioni-bulk.json transizioni-bulk.js
+// e confrontare durata_singole e durata_bulk (tempo totale per le N transizioni) nel riepilogo.
+//
+// Il setup crea 2 x N determinazioni in BOZZA con POST /determinazioni/batch; ogni modalità le
+// porta in ISTRUTTORIA. Parametri: TRANSIZIONI (default 1000, non oltre
+// atti.determinazioni.max-elementi-batch), PROCESS_ENGINE (default http://localhost:8080).
+
+import http from 'k6/http';
+import { check } from 'k6';
+import { Trend } from 'k6/metrics';
+
+const PROCESS_ENGINE = __ENV.PROCESS_ENGINE || 'http://localhost:8080';
+const TRANSIZIONI = parseInt(__ENV.TRANSIZIONI || '1000');
+
+const intestazioni = {
+    headers: {
+        Authorization: `Bearer ${__ENV.TOKEN}`,
+        'Content-Type': 'application/json',
+    },
+};
+
+const durataSingole = new Trend('durata_singole', true);
+const durataBulk = new Trend('durata_bulk', true);
+
+export const options = {
+    scenarios: {
+        confronto: { executor: 'shared-iterations', vus: 1, iterations: 1, maxDuration: '30m' },
+    },
+    summaryTrendStats: ['avg', 'min', 'max'],
+    thresholds: {
+        durata_singole: ['max>=0'],
+        durata_bulk: ['max>=0'],
+    },
+};
+
+function crea(quante, etichetta) {
+    const determinazioni = [];
+    for (let i = 0; i < quante; i++) {
+        determinazioni.push({
+            oggetto: `Benchmark transizioni ${etichetta} ${i}`,
+            importo: 1000 + i,
+            centroSpesa: 'CDC-BENCHMARK',
+            livelloDirigente: 'D2',
+        });
+    }
+    const risposta = http.post(`${PROCESS_ENGINE}/determinazioni/batch`, JSON.stringify(determinazioni), intestazioni);
+    if (risposta.status !== 200) {
+        throw new Error(`Creazione fallita (HTTP ${risposta.status}): verificare TOKEN e ruoli`);
+    }
+    return risposta.json().filter((e) => e.esito === 'ESEGUITA').map((e) => e.id);
+}
+
+export function setup() {
+    return { singole: crea(TRANSIZIONI, 'singole'), bulk: crea(TRANSIZIONI, 'bulk') };
+}
+
+export default function (dati) {
+    let inizio = Date.now();
+    let riuscite = 0;
+    for (const id of dati.singole) {
+        const risposta = http.put(`${PROCESS_ENGINE}/determinazioni/${id}/stato`,
+            JSON.stringify({ stato: 'ISTRUTTORIA' }),
+            Object.assign({ tags: { operazione: 'singola' } }, intestazioni));
+        if (risposta.status === 200) {
+            riuscite++;
+        }
+    }
+    durataSingole.add(Date.now() - inizio);
+    check(riuscite, { 'transizioni singole riuscite': (n) => n === dati.singole.length });
+
+    inizio = Date.now();
+    const richiesta = {
+        stato: 'ISTRUTTORIA',
+        determinazioni: dati.bulk.map((id) => ({ id })),
+    };
+    const risposta = http.put(`${PROCESS_ENGINE}/determinazioni/batch/stato`, JSON.stringify(richiesta),
+        Object.assign({ tags: { operazione: 'bulk' } }, intestazioni));
+    durataBulk.add(Date.now() - inizio);
+    check(risposta, {
+        'transizioni bulk riuscite': (r) => r.status === 200
+            && r.json().every((e) => e.esito === 'ESEGUITA'),
+    });
+}
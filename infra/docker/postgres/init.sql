@@ -1,21 +1,76 @@
 -- Inizializzazione database atti_amministrativi
 -- Script eseguito automaticamente al primo avvio del container PostgreSQL
 
--- Tabella per il log di audit di tutte le operazioni sugli atti
+-- Tabella per il log di audit di tutte le operazioni sugli atti.
+-- Partizionata per mese su timestamp: le partizioni future sono create dal job
+-- AuditPartizioniJob del modulo governance, che archivia anche quelle scadute.
+-- La chiave primaria include la chiave di partizionamento, come richiesto da PostgreSQL.
 CREATE TABLE IF NOT EXISTS audit_log (
-    id BIGSERIAL PRIMARY KEY,
+    id BIGSERIAL,
     process_instance_id VARCHAR(255),
     event_type VARCHAR(100) NOT NULL,
     user_id VARCHAR(255),
-    timestamp TIMESTAMP DEFAULT NOW(),
-    details TEXT
-);
+    timestamp TIMESTAMP NOT NULL DEFAULT NOW(),
+    details TEXT,
+    catena INTEGER,
+    sequenza BIGINT,
+    hash_precedente CHAR(64),
+    hash CHAR(64),
+    PRIMARY KEY (id, timestamp)
+) PARTITION BY RANGE (timestamp);
+
+-- Nessuna partizione di default: impedirebbe lo stacco con DETACH PARTITION ... CONCURRENTLY.
+-- Un evento fuori dalle partizioni esistenti è rifiutato dal database e resta nel file di spill
+-- di governance finché il job non crea la partizione.
 
--- Indici per ottimizzare le query di ricerca più frequenti
+-- Partizioni del mese corrente e dei tre successivi, disponibili prima dell'avvio di governance
+DO $$
+DECLARE
+    mese DATE := date_trunc('month', now())::date;
+BEGIN
+    FOR i IN 0..3 LOOP
+        EXECUTE format(
+            'CREATE TABLE IF NOT EXISTS %I PARTITION OF audit_log FOR VALUES FROM (%L) TO (%L)',
+            'audit_log_' || to_char(mese + make_interval(months => i), 'YYYY_MM'),
+            mese + make_interval(months => i),
+            mese + make_interval(months => i + 1));
+    END LOOP;
+END $$;
+
+-- Indici per ottimizzare le query di ricerca più frequenti (propagati a ogni partizione)
 CREATE INDEX IF NOT EXISTS idx_audit_process ON audit_log(process_instance_id);
 CREATE INDEX IF NOT EXISTS idx_audit_user ON audit_log(user_id);
 CREATE INDEX IF NOT EXISTS idx_audit_timestamp ON audit_log(timestamp);
+CREATE INDEX IF NOT EXISTS idx_audit_catena ON audit_log(catena, sequenza);
+
+-- Checkpoint delle catene di hash di audit_log (AuditCheckpointService): teste delle catene,
+-- radice Merkle e hash concatenato al checkpoint precedente
+CREATE TABLE IF NOT EXISTS audit_checkpoint (
+    id BIGSERIAL PRIMARY KEY,
+    creato_il TIMESTAMP NOT NULL,
+    radice CHAR(64) NOT NULL,
+    hash_precedente CHAR(64) NOT NULL,
+    hash CHAR(64) NOT NULL,
+    teste TEXT NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_audit_checkpoint_creato ON audit_checkpoint(creato_il);
+
+-- Classificazione delle determinazioni (agentic-ai, ClassificazioneBacklog): una riga per atto
+-- classificato, usata anche come checkpoint per riprendere una classificazione interrotta
+CREATE TABLE IF NOT EXISTS classificazioni_atto (
+    determinazione_id BIGINT PRIMARY KEY,
+    tipo VARCHAR(255),
+    materia VARCHAR(255),
+    urgenza VARCHAR(20),
+    risposta TEXT,
+    classificato_il TIMESTAMP NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_classificazioni_materia ON classificazioni_atto(materia, urgenza);
+
+-- Schema di destinazione delle partizioni archiviate
+CREATE SCHEMA IF NOT EXISTS audit_archivio;
 
 -- Commento sulla tabella per documentazione
 COMMENT ON TABLE audit_log IS 'Log di audit per tracciare tutte le operazioni sugli atti amministrativi';
 COMMENT ON COLUMN audit_log.event_type IS 'Tipo di evento: PROCESSO_AVVIATO, TASK_COMPLETATO, ATTO_PUBBLICATO, etc.';
+COMMENT ON COLUMN audit_log.hash IS 'SHA-256 del contenuto dell''evento e di hash_precedente nella stessa catena';
@@ -0,0 +1,78 @@
+-- Migrazione di un'installazione esistente al layout partizionato di audit_log.
+-- Da eseguire una sola volta, a governance fermo:
+--   psql -U kogito -d atti_amministrativi -f 001-audit-log-partizionato.sql
+--
+-- La tabella esistente non viene riscritta: diventa la partizione che copre tutto lo storico
+-- fino all'inizio del mese corrente. Le righe dal mese corrente in poi sono spostate nelle partizioni
+-- mensili, create come in init.sql più quelle dei mesi successivi che contengono righe.
+-- Non è creata una partizione di default: impedirebbe lo stacco con DETACH PARTITION ... CONCURRENTLY
+-- usato da AuditPartizioniJob per archiviare le partizioni scadute.
+
+BEGIN;
+
+ALTER TABLE audit_log RENAME TO audit_log_storico;
+ALTER SEQUENCE audit_log_id_seq RENAME TO audit_log_storico_id_seq;
+ALTER TABLE audit_log_storico DROP CONSTRAINT audit_log_pkey;
+UPDATE audit_log_storico SET timestamp = '1970-01-01' WHERE timestamp IS NULL;
+ALTER TABLE audit_log_storico ALTER COLUMN timestamp SET NOT NULL;
+ALTER TABLE audit_log_storico ADD PRIMARY KEY (id, timestamp);
+ALTER INDEX idx_audit_process RENAME TO idx_audit_storico_process;
+ALTER INDEX idx_audit_user RENAME TO idx_audit_storico_user;
+ALTER INDEX idx_audit_timestamp RENAME TO idx_audit_storico_timestamp;
+
+CREATE TABLE audit_log (
+    id BIGSERIAL,
+    process_instance_id VARCHAR(255),
+    event_type VARCHAR(100) NOT NULL,
+    user_id VARCHAR(255),
+    timestamp TIMESTAMP NOT NULL DEFAULT NOW(),
+    details TEXT,
+    PRIMARY KEY (id, timestamp)
+) PARTITION BY RANGE (timestamp);
+
+-- Gli ID proseguono dalla sequenza storica
+SELECT setval('audit_log_id_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM audit_log_storico), false);
+
+-- Partizioni mensili: il mese corrente, i tre successivi e ogni mese successivo con righe nello storico
+DO $$
+DECLARE
+    inizio DATE := date_trunc('month', now())::date;
+    mese DATE;
+BEGIN
+    FOR mese IN
+        SELECT (inizio + make_interval(months => i))::date FROM generate_series(0, 3) AS i
+        UNION
+        SELECT DISTINCT date_trunc('month', timestamp)::date FROM audit_log_storico WHERE timestamp >= inizio
+    LOOP
+        EXECUTE format(
+            'CREATE TABLE IF NOT EXISTS %I PARTITION OF audit_log FOR VALUES FROM (%L) TO (%L)',
+            'audit_log_' || to_char(mese, 'YYYY_MM'),
+            mese,
+            mese + make_interval(months => 1));
+    END LOOP;
+END $$;
+
+-- Le righe dal mese corrente in poi, normali su un sistema in esercizio, passano alle partizioni
+-- mensili: lo storico può così essere limitato all'inizio del mese corrente
+INSERT INTO audit_log (id, process_instance_id, event_type, user_id, timestamp, details)
+SELECT id, process_instance_id, event_type, user_id, timestamp, details
+FROM audit_log_storico WHERE timestamp >= date_trunc('month', now())::timestamp;
+DELETE FROM audit_log_storico WHERE timestamp >= date_trunc('month', now())::timestamp;
+
+-- Vincolo di controllo preventivo: evita la scansione completa durante ATTACH PARTITION
+ALTER TABLE audit_log_storico ADD CONSTRAINT audit_log_storico_range
+    CHECK (timestamp < date_trunc('month', now())::timestamp);
+DO $$
+BEGIN
+    EXECUTE format('ALTER TABLE audit_log ATTACH PARTITION audit_log_storico FOR VALUES FROM (MINVALUE) TO (%L)',
+                   date_trunc('month', now())::timestamp);
+END $$;
+ALTER TABLE audit_log_storico DROP CONSTRAINT audit_log_storico_range;
+
+CREATE INDEX idx_audit_process ON audit_log(process_instance_id);
+CREATE INDEX idx_audit_user ON audit_log(user_id);
+CREATE INDEX idx_audit_timestamp ON audit_log(timestamp);
+
+CREATE SCHEMA IF NOT EXISTS audit_archivio;
+
+COMMIT;
@@ -0,0 +1,26 @@
+-- Aggiunge le catene di hash ad audit_log e la tabella dei checkpoint.
+-- Da eseguire una sola volta, dopo 001-audit-log-partizionato.sql e a governance fermo:
+--   psql -U kogito -d atti_amministrativi -f 002-audit-log-catena.sql
+--
+-- Gli eventi già presenti restano senza sigillo (catena NULL) e sono esclusi dalla verifica:
+-- le catene partono dal primo evento scritto dopo la migrazione.
+
+BEGIN;
+
+ALTER TABLE audit_log ADD COLUMN IF NOT EXISTS catena INTEGER;
+ALTER TABLE audit_log ADD COLUMN IF NOT EXISTS sequenza BIGINT;
+ALTER TABLE audit_log ADD COLUMN IF NOT EXISTS hash_precedente CHAR(64);
+ALTER TABLE audit_log ADD COLUMN IF NOT EXISTS hash CHAR(64);
+CREATE INDEX IF NOT EXISTS idx_audit_catena ON audit_log(catena, sequenza);
+
+CREATE TABLE IF NOT EXISTS audit_checkpoint (
+    id BIGSERIAL PRIMARY KEY,
+    creato_il TIMESTAMP NOT NULL,
+    radice CHAR(64) NOT NULL,
+    hash_precedente CHAR(64) NOT NULL,
+    hash CHAR(64) NOT NULL,
+    teste TEXT NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_audit_checkpoint_creato ON audit_checkpoint(creato_il);
+
+COMMIT;
@@ -0,0 +1,13 @@
+-- Crea la tabella dei risultati della classificazione del backlog (agentic-ai).
+-- Da eseguire una sola volta su un'installazione esistente:
+--   psql -U kogito -d atti_amministrativi -f 003-classificazioni-atto.sql
+
+CREATE TABLE IF NOT EXISTS classificazioni_atto (
+    determinazione_id BIGINT PRIMARY KEY,
+    tipo VARCHAR(255),
+    materia VARCHAR(255),
+    urgenza VARCHAR(20),
+    risposta TEXT,
+    classificato_il TIMESTAMP NOT NULL
+);
+CREATE INDEX IF NOT EXISTS idx_classificazioni_materia ON classificazioni_atto(materia, urgenza);
@@ -0,0 +1,16 @@
+-- Aggiunge a 'determinazioni' la colonna tsvector della ricerca testuale e il suo indice GIN.
+-- Il process-engine esegue le stesse istruzioni all'avvio se mancano; su tabelle grandi conviene
+-- eseguirle prima, in una finestra di manutenzione, perché l'aggiunta della colonna generata
+-- riscrive la tabella bloccando le scritture fino al termine:
+--   psql -U kogito -d atti_amministrativi -f 004-ricerca-determinazioni.sql
+--
+-- L'indice è creato CONCURRENTLY, quindi lo script non va eseguito dentro una transazione.
+
+ALTER TABLE determinazioni ADD COLUMN IF NOT EXISTS ricerca tsvector GENERATED ALWAYS AS (
+    setweight(to_tsvector('italian', coalesce(oggetto, '')), 'A')
+    || setweight(to_tsvector('simple', coalesce(numero, '') || ' ' || coalesce(centro_spesa, '')), 'B')
+) STORED;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_determinazioni_ricerca ON determinazioni USING gin (ricerca);
+
+ANALYZE determinazioni;
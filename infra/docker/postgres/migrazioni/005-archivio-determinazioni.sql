@@ -0,0 +1,55 @@
+-- Crea lo schema 'archivio' per le determinazioni chiuse (PUBBLICATA, RIFIUTATA).
+-- Il process-engine esegue le stesse istruzioni all'avvio se mancano e crea le partizioni annuali
+-- al primo spostamento di un atto dell'anno; lo script serve a preparare l'archivio in anticipo:
+--   psql -U kogito -d atti_amministrativi -f 005-archivio-determinazioni.sql
+--
+-- archivio.riepilogo contiene numero e importi degli atti archiviati per gli aggregati delle
+-- dashboard (GET /metriche) ed è aggiornato nella stessa transazione di ogni spostamento.
+-- archivio.partizioni registra per anno l'ultimo spostamento e l'ultimo VACUUM FREEZE della partizione.
+
+BEGIN;
+
+CREATE SCHEMA IF NOT EXISTS archivio;
+
+CREATE TABLE IF NOT EXISTS archivio.determinazioni (
+    id bigint NOT NULL,
+    numero varchar(255),
+    oggetto text,
+    importo float8,
+    centro_spesa varchar(255),
+    dirigente varchar(255),
+    livello_dirigente varchar(255),
+    stato varchar(255) NOT NULL,
+    data_creazione timestamp(6) NOT NULL,
+    data_pubblicazione timestamp(6),
+    stato_dal timestamp(6),
+    process_instance_id varchar(255),
+    versione bigint,
+    archiviata_il timestamp(6) NOT NULL,
+    PRIMARY KEY (id, data_creazione)
+) PARTITION BY RANGE (data_creazione);
+
+CREATE INDEX IF NOT EXISTS idx_archivio_determinazioni_numero ON archivio.determinazioni (numero);
+
+CREATE TABLE IF NOT EXISTS archivio.riepilogo (
+    stato varchar(255) NOT NULL,
+    centro_spesa varchar(255) NOT NULL,
+    livello_dirigente varchar(255) NOT NULL,
+    anno integer NOT NULL,
+    mese integer NOT NULL,
+    numero bigint NOT NULL,
+    importo float8 NOT NULL,
+    PRIMARY KEY (stato, centro_spesa, livello_dirigente, anno, mese)
+);
+
+CREATE TABLE IF NOT EXISTS archivio.partizioni (
+    anno integer PRIMARY KEY,
+    scritta_il timestamp(6) NOT NULL,
+    congelata_il timestamp(6)
+);
+
+INSERT INTO archivio.partizioni (anno, scritta_il)
+SELECT DISTINCT anno, now() FROM archivio.riepilogo
+ON CONFLICT (anno) DO NOTHING;
+
+COMMIT;
@@ -0,0 +1,19 @@
+-- Crea la tabella delle escalation SLA delle determinazioni (SLA_A_RISCHIO, SLA_SCADUTO).
+-- Il process-engine la crea all'avvio se manca; lo script serve a prepararla in anticipo:
+--   psql -U kogito -d atti_amministrativi -f 006-sla-escalation.sql
+--
+-- Una riga per determinazione, stato e livello: la chiave fa sì che ogni escalation sia registrata
+-- e notificata una sola volta anche se più repliche, o un riavvio, la fanno scattare di nuovo.
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS sla_escalation (
+    determinazione_id bigint NOT NULL,
+    stato varchar(255) NOT NULL,
+    livello varchar(32) NOT NULL,
+    stato_dal timestamp(6) NOT NULL,
+    registrata_il timestamp(6) NOT NULL,
+    PRIMARY KEY (determinazione_id, stato, livello)
+);
+
+COMMIT;
@@ -0,0 +1,15 @@
+-- Valorizza stato_dal per le determinazioni create prima dell'introduzione della colonna, che
+-- Hibernate ha aggiunto vuota: senza, tempi di permanenza e scadenze SLA non le vedrebbero.
+--   psql -U kogito -d atti_amministrativi -f 007-stato-dal.sql
+--
+-- L'ingresso nello stato corrente di quelle righe non è noto: vale la data di creazione, quindi le
+-- scadenze SLA di un atto già avanzato di fase possono scattare in anticipo, non in ritardo.
+-- Il process-engine usa lo stesso ripiego finché la migrazione non è applicata.
+
+BEGIN;
+
+UPDATE determinazioni
+SET stato_dal = data_creazione
+WHERE stato_dal IS NULL AND data_creazione IS NOT NULL;
+
+COMMIT;
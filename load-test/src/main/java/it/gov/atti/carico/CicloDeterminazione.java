@@ -0,0 +1,185 @@
+package it.gov.atti.carico;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Un ciclo di vita completo di una determinazione, eseguito come farebbero gli utenti:
+ * <ol>
+ *     <li>{@code crea}: POST /determinazioni</li>
+ *     <li>{@code istruttoria}: passaggio a ISTRUTTORIA</li>
+ *     <li>{@code competenza}: POST /decisions/verifica-competenza con livello e importo</li>
+ *     <li>se competente {@code visto}, {@code firma} e {@code pubblicazione}, altrimenti {@code rifiuto}</li>
+ *     <li>{@code audit-registra}: POST /audit dell'esito su governance</li>
+ *     <li>{@code audit-visibile}: attesa finché l'evento non compare in GET /audit</li>
+ * </ol>
+ * Ogni transizione porta la versione letta dalla risposta precedente, come il frontend. Al
+ * primo errore il ciclo si interrompe e l'errore è contato sul passo; {@code ciclo} misura
+ * l'intero percorso dei cicli completati.
+ */
+final class CicloDeterminazione {
+
+    static final String[] PASSI = {"crea", "istruttoria", "competenza", "visto", "firma", "pubblicazione",
+            "rifiuto", "audit-registra", "audit-visibile", "ciclo"};
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final long PAUSA_AUDIT_MS = 200;
+
+    /** Risposta a un passo fallito, con la causa usata come chiave degli errori */
+    private static final class PassoFallito extends Exception {
+        final String causa;
+
+        PassoFallito(String causa) {
+            super(causa, null, false, false);
+            this.causa = causa;
+        }
+    }
+
+    private final HttpClient client;
+    private final ObjectMapper mapper;
+    private final Configurazione configurazione;
+    private final String tokenAdmin;
+
+    CicloDeterminazione(HttpClient client, ObjectMapper mapper, Configurazione configurazione, String tokenAdmin) {
+        this.client = client;
+        this.mapper = mapper;
+        this.configurazione = configurazione;
+        this.tokenAdmin = tokenAdmin;
+    }
+
+    /**
+     * Esegue il ciclo di una determinazione.
+     *
+     * @param token  token del dirigente che redige e firma l'atto
+     * @param misure dove registrare latenze ed errori, null durante il riscaldamento
+     * @return true se il ciclo è arrivato fino alla lettura dell'audit
+     */
+    boolean esegui(GeneratoreDeterminazioni.NuovaDeterminazione atto, String token, Misure misure) {
+        long inizioCiclo = System.nanoTime();
+        String passo = "crea";
+        try {
+            long inizio = System.nanoTime();
+            JsonNode determinazione = invia(HttpRequest.newBuilder(uri(configurazione.processEngine(), "/determinazioni"))
+                    .POST(corpo(atto)), token, 201);
+            registra(misure, passo, inizio);
+            long id = determinazione.path("id").asLong();
+
+            passo = "istruttoria";
+            determinazione = transizione(id, "ISTRUTTORIA", determinazione, token, misure, passo);
+
+            passo = "competenza";
+            inizio = System.nanoTime();
+            JsonNode esito = invia(HttpRequest.newBuilder(uri(configurazione.processEngine(), "/decisions/verifica-competenza"))
+                    .POST(corpo(Map.of("livelloDirigente", atto.livelloDirigente(), "importo", atto.importo()))), token, 200);
+            registra(misure, passo, inizio);
+
+            String evento;
+            if (esito.path("competente").asBoolean()) {
+                passo = "visto";
+                determinazione = transizione(id, "VISTO_CONTABILE", determinazione, token, misure, passo);
+                passo = "firma";
+                determinazione = transizione(id, "FIRMATA", determinazione, token, misure, passo);
+                passo = "pubblicazione";
+                transizione(id, "PUBBLICATA", determinazione, token, misure, passo);
+                evento = "ATTO_PUBBLICATO";
+            } else {
+                passo = "rifiuto";
+                transizione(id, "RIFIUTATA", determinazione, token, misure, passo);
+                evento = "ATTO_RIFIUTATO";
+            }
+
+            passo = "audit-registra";
+            String processo = "carico-" + id;
+            inizio = System.nanoTime();
+            invia(HttpRequest.newBuilder(uri(configurazione.governance(), "/audit"))
+                    .POST(corpo(Map.of("processInstanceId", processo, "eventType", evento,
+                            "details", "Test di carico " + configurazione.etichetta() + ", " + atto.centroSpesa()))),
+                    token, 201);
+            registra(misure, passo, inizio);
+
+            passo = "audit-visibile";
+            inizio = System.nanoTime();
+            attendiAudit(processo);
+            registra(misure, passo, inizio);
+
+            registra(misure, "ciclo", inizioCiclo);
+            return true;
+        } catch (PassoFallito e) {
+            errore(misure, passo, e.causa);
+        } catch (IOException e) {
+            errore(misure, passo, e.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private JsonNode transizione(long id, String stato, JsonNode corrente, String token, Misure misure, String passo)
+            throws PassoFallito, IOException, InterruptedException {
+        long inizio = System.nanoTime();
+        JsonNode aggiornata = invia(HttpRequest.newBuilder(uri(configurazione.processEngine(), "/determinazioni/" + id + "/stato"))
+                .PUT(corpo(Map.of("stato", stato, "versione", corrente.path("versione").asText()))), token, 200);
+        registra(misure, passo, inizio);
+        return aggiornata;
+    }
+
+    private void attendiAudit(String processo) throws PassoFallito, IOException, InterruptedException {
+        long limite = System.nanoTime() + configurazione.attesaAudit().toNanos();
+        URI query = uri(configurazione.governance(),
+                "/audit?processInstanceId=" + URLEncoder.encode(processo, StandardCharsets.UTF_8));
+        while (true) {
+            JsonNode eventi = invia(HttpRequest.newBuilder(query).GET(), tokenAdmin, 200);
+            if (!eventi.isEmpty()) {
+                return;
+            }
+            if (System.nanoTime() > limite) {
+                throw new PassoFallito("timeout");
+            }
+            Thread.sleep(PAUSA_AUDIT_MS);
+        }
+    }
+
+    private JsonNode invia(HttpRequest.Builder richiesta, String token, int statoAtteso)
+            throws PassoFallito, IOException, InterruptedException {
+        HttpResponse<byte[]> risposta = client.send(richiesta
+                .timeout(TIMEOUT)
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (risposta.statusCode() != statoAtteso) {
+            throw new PassoFallito(String.valueOf(risposta.statusCode()));
+        }
+        return mapper.readTree(risposta.body());
+    }
+
+    private HttpRequest.BodyPublisher corpo(Object valore) throws IOException {
+        return HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(valore));
+    }
+
+    private static URI uri(String base, String percorso) {
+        return URI.create(base + percorso);
+    }
+
+    private static void registra(Misure misure, String passo, long inizio) {
+        if (misure != null) {
+            misure.registra(passo, inizio);
+        }
+    }
+
+    private static void errore(Misure misure, String passo, String causa) {
+        if (misure != null) {
+            misure.errore(passo, causa);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package it.gov.atti.carico;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parametri di un'esecuzione, dalla riga di comando nella forma {@code --nome=valore}.
+ *
+ * @param processEngine     URL base del process-engine
+ * @param governance        URL base di governance
+ * @param arriviAlSecondo   nuove determinazioni al secondo (modello aperto, arrivi di Poisson)
+ * @param durata            durata della misura, dopo il riscaldamento
+ * @param riscaldamento     durata iniziale esclusa dalle misure
+ * @param maxInCorso        cicli contemporanei oltre i quali gli arrivi sono scartati e contati
+ * @param seme              seme dei generatori casuali, per ripetere lo stesso carico
+ * @param centriSpesa       numero di centri di spesa sintetici
+ * @param dirigenti         numero di dirigenti sintetici, ognuno con il proprio token
+ * @param attesaAudit       attesa massima perché un evento registrato sia leggibile dall'audit log
+ * @param chiavi            cartella della coppia di chiavi RSA che firma i token
+ * @param jdbc              URL JDBC del database per l'impronta delle tabelle, null per non misurarla
+ * @param utenteDb          utente del database
+ * @param passwordDb        password del database
+ * @param portaModello      porta del modello LLM finto, 0 per non avviarlo
+ * @param latenzaModello    latenza media delle risposte del modello finto
+ * @param etichetta         etichetta dell'esecuzione nel rapporto, es. la versione rilasciata
+ * @param rapporto          file JSON del rapporto
+ * @param confronta         rapporto di un'esecuzione precedente da confrontare, null se assente
+ */
+record Configurazione(
+        String processEngine,
+        String governance,
+        double arriviAlSecondo,
+        Duration durata,
+        Duration riscaldamento,
+        int maxInCorso,
+        long seme,
+        int centriSpesa,
+        int dirigenti,
+        Duration attesaAudit,
+        Path chiavi,
+        String jdbc,
+        String utenteDb,
+        String passwordDb,
+        int portaModello,
+        Duration latenzaModello,
+        String etichetta,
+        Path rapporto,
+        Path confronta) {
+
+    private static final DateTimeFormatter FORMATO_DATA = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final Set<String> NOMI = Set.of("process-engine", "governance", "arrivi-al-secondo", "durata",
+            "riscaldamento", "max-in-corso", "seme", "centri-spesa", "dirigenti", "attesa-audit", "chiavi", "jdbc",
+            "utente-db", "password-db", "porta-modello", "latenza-modello", "etichetta", "rapporto", "confronta");
+
+    /**
+     * @throws IllegalArgumentException per opzioni sconosciute o valori non validi
+     */
+    static Configurazione da(String[] args) {
+        Map<String, String> valori = new HashMap<>();
+        for (String arg : args) {
+            int uguale = arg.indexOf('=');
+            if (!arg.startsWith("--") || uguale < 0) {
+                throw new IllegalArgumentException("Opzione non valida: " + arg + " (atteso --nome=valore)");
+            }
+            String nome = arg.substring(2, uguale);
+            if (!NOMI.contains(nome)) {
+                throw new IllegalArgumentException("Opzione sconosciuta: --" + nome);
+            }
+            valori.put(nome, arg.substring(uguale + 1));
+        }
+        String etichetta = valori.getOrDefault("etichetta", "locale");
+        Configurazione configurazione = new Configurazione(
+                valori.getOrDefault("process-engine", "http://localhost:8080"),
+                valori.getOrDefault("governance", "http://localhost:8082"),
+                Double.parseDouble(valori.getOrDefault("arrivi-al-secondo", "5")),
+                Duration.parse(valori.getOrDefault("durata", "PT5M")),
+                Duration.parse(valori.getOrDefault("riscaldamento", "PT30S")),
+                Integer.parseInt(valori.getOrDefault("max-in-corso", "5000")),
+                Long.parseLong(valori.getOrDefault("seme", "42")),
+                Integer.parseInt(valori.getOrDefault("centri-spesa", "20")),
+                Integer.parseInt(valori.getOrDefault("dirigenti", "30")),
+                Duration.parse(valori.getOrDefault("attesa-audit", "PT30S")),
+                Path.of(valori.getOrDefault("chiavi", "carico-chiavi")),
+                valori.get("jdbc"),
+                valori.getOrDefault("utente-db", "kogito"),
+                valori.getOrDefault("password-db", "kogito"),
+                Integer.parseInt(valori.getOrDefault("porta-modello", "0")),
+                Duration.parse(valori.getOrDefault("latenza-modello", "PT0.8S")),
+                etichetta,
+                valori.containsKey("rapporto") ? Path.of(valori.get("rapporto"))
+                        : Path.of("carico-risultati", "carico-" + etichetta + "-" + LocalDateTime.now().format(FORMATO_DATA) + ".json"),
+                valori.containsKey("confronta") ? Path.of(valori.get("confronta")) : null);
+        if (configurazione.arriviAlSecondo <= 0 || configurazione.maxInCorso < 1 || configurazione.centriSpesa < 1
+                || configurazione.dirigenti < 1) {
+            throw new IllegalArgumentException("arrivi-al-secondo, max-in-corso, centri-spesa e dirigenti devono essere positivi");
+        }
+        return configurazione;
+    }
+}
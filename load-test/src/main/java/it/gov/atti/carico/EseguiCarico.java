@@ -0,0 +1,178 @@
+package it.gov.atti.carico;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Punto di ingresso del test di carico end-to-end.
+ * <p>
+ * Il carico è a modello aperto: le determinazioni arrivano con un processo di Poisson alla
+ * frequenza richiesta, indipendentemente da quanto rispondono i servizi, e ogni arrivo esegue
+ * il proprio {@link CicloDeterminazione} su un virtual thread. Così un rallentamento dei
+ * servizi si vede nelle latenze invece di ridurre silenziosamente il carico; oltre
+ * {@code max-in-corso} cicli contemporanei gli arrivi sono scartati e contati nel rapporto.
+ * <p>
+ * Le opzioni sono descritte in {@link Configurazione} e in docs/guida-avvio.md.
+ */
+public final class EseguiCarico {
+
+    private static final Duration CAMPIONAMENTO_JVM = Duration.ofSeconds(5);
+    private static final long RITARDO_TOLLERATO_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private EseguiCarico() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configurazione configurazione;
+        try {
+            configurazione = Configurazione.da(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+        Duration validita = configurazione.riscaldamento().plus(configurazione.durata()).plusHours(1);
+        TokenLocali tokenLocali = TokenLocali.carica(configurazione.chiavi(), mapper);
+        String tokenAdmin = tokenLocali.firma("carico-admin", List.of("admin"), validita);
+        String[] tokenDirigenti = new String[configurazione.dirigenti()];
+        for (int i = 0; i < tokenDirigenti.length; i++) {
+            tokenDirigenti[i] = tokenLocali.firma(String.format("carico-dirigente-%02d", i + 1),
+                    List.of("istruttore", "dirigente"), validita);
+        }
+        System.out.println("Avviare process-engine e governance con il profilo 'carico' e");
+        System.out.println("OIDC_CHIAVE_PUBBLICA=" + tokenLocali.chiavePubblica());
+
+        ModelloFinto modello = configurazione.portaModello() > 0
+                ? new ModelloFinto(configurazione.portaModello(), configurazione.latenzaModello(), mapper)
+                : null;
+
+        ExecutorService cicli = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        CicloDeterminazione ciclo = new CicloDeterminazione(client, mapper, configurazione, tokenAdmin);
+        Impronta impronta = new Impronta(configurazione, client, tokenAdmin);
+        Misure misure = new Misure(CicloDeterminazione.PASSI);
+        GeneratoreDeterminazioni generatore = new GeneratoreDeterminazioni(configurazione.seme(),
+                configurazione.centriSpesa());
+
+        Map<String, Object> databasePrima = impronta.database();
+        ScheduledExecutorService campionatore = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+        campionatore.scheduleAtFixedRate(impronta::campiona, 0, CAMPIONAMENTO_JVM.toMillis(), TimeUnit.MILLISECONDS);
+
+        Semaphore inCorso = new Semaphore(configurazione.maxInCorso());
+        AtomicLong completati = new AtomicLong();
+        long arrivi = 0;
+        long scartati = 0;
+        long ritardi = 0;
+        long inizio = System.nanoTime();
+        long inizioMisura = inizio + configurazione.riscaldamento().toNanos();
+        long fine = inizioMisura + configurazione.durata().toNanos();
+        long prossimo = inizio;
+        System.out.printf("Carico di %.2f determinazioni al secondo per %s, riscaldamento %s%n",
+                configurazione.arriviAlSecondo(), configurazione.durata(), configurazione.riscaldamento());
+
+        while (true) {
+            prossimo += generatore.intervalloArrivi(configurazione.arriviAlSecondo());
+            if (prossimo >= fine) {
+                break;
+            }
+            long attesa = prossimo - System.nanoTime();
+            if (attesa > 0) {
+                LockSupport.parkNanos(attesa);
+            } else if (-attesa > RITARDO_TOLLERATO_NS) {
+                ritardi++;
+            }
+            GeneratoreDeterminazioni.NuovaDeterminazione atto = generatore.prossima();
+            String token = tokenDirigenti[generatore.dirigente(tokenDirigenti.length)];
+            boolean misurato = prossimo >= inizioMisura;
+            if (misurato) {
+                arrivi++;
+            }
+            if (!inCorso.tryAcquire()) {
+                if (misurato) {
+                    scartati++;
+                }
+                continue;
+            }
+            cicli.execute(() -> {
+                try {
+                    if (ciclo.esegui(atto, token, misurato ? misure : null) && misurato) {
+                        completati.incrementAndGet();
+                    }
+                } finally {
+                    inCorso.release();
+                }
+            });
+        }
+
+        System.out.println("Arrivi terminati, attesa dei cicli in corso...");
+        cicli.shutdown();
+        if (!cicli.awaitTermination(configurazione.attesaAudit().toSeconds() + 120, TimeUnit.SECONDS)) {
+            System.err.println("Cicli ancora in corso dopo l'attesa: " + (configurazione.maxInCorso() - inCorso.availablePermits()));
+            cicli.shutdownNow();
+        }
+        campionatore.shutdown();
+        impronta.campiona();
+        if (modello != null) {
+            modello.close();
+        }
+
+        double secondi = configurazione.durata().toMillis() / 1000.0;
+        Map<String, Object> rapporto = new LinkedHashMap<>();
+        rapporto.put("etichetta", configurazione.etichetta());
+        rapporto.put("eseguito", LocalDateTime.now().toString());
+        rapporto.put("configurazione", descrivi(configurazione));
+        rapporto.put("cicliAlSecondo", Math.round(completati.get() / secondi * 100) / 100.0);
+        rapporto.put("generatore", Map.of("arrivi", arrivi, "scartati", scartati, "ritardi", ritardi));
+        rapporto.put("passi", misure.riepilogo(secondi));
+        Map<String, Object> risorse = new LinkedHashMap<>();
+        risorse.put("databasePrima", databasePrima);
+        risorse.put("databaseDopo", impronta.database());
+        risorse.put("jvmMassimi", impronta.jvm());
+        rapporto.put("impronta", risorse);
+        if (modello != null) {
+            rapporto.put("chiamateModello", modello.chiamate());
+        }
+
+        Rapporto.scrivi(mapper, configurazione.rapporto(), rapporto);
+        Rapporto.stampa(System.out, rapporto, mapper);
+        if (configurazione.confronta() != null) {
+            Rapporto.confronta(System.out, rapporto, configurazione.confronta(), mapper);
+        }
+        System.out.println("\nRapporto salvato in " + configurazione.rapporto());
+    }
+
+    private static Map<String, Object> descrivi(Configurazione configurazione) {
+        Map<String, Object> descrizione = new LinkedHashMap<>();
+        descrizione.put("processEngine", configurazione.processEngine());
+        descrizione.put("governance", configurazione.governance());
+        descrizione.put("arriviAlSecondo", configurazione.arriviAlSecondo());
+        descrizione.put("durata", configurazione.durata().toString());
+        descrizione.put("riscaldamento", configurazione.riscaldamento().toString());
+        descrizione.put("maxInCorso", configurazione.maxInCorso());
+        descrizione.put("seme", configurazione.seme());
+        descrizione.put("centriSpesa", configurazione.centriSpesa());
+        descrizione.put("dirigenti", configurazione.dirigenti());
+        descrizione.put("modelloFinto", configurazione.portaModello() > 0);
+        return descrizione;
+    }
+}
@@ -0,0 +1,94 @@
+package it.gov.atti.carico;
+
+import java.util.Random;
+
+/**
+ * Determinazioni sintetiche con una distribuzione vicina a quella reale.
+ * <p>
+ * Il livello del dirigente è D1 per metà degli atti, D2 per il 35% e D3 per il resto. L'importo
+ * segue una log-normale con mediana crescente con il livello: circa un atto D1 su dieci e uno
+ * D2 su dodici supera il limite di competenza di {@code verifica-competenza.dmn} e viene
+ * rifiutato. I centri di spesa seguono una distribuzione di Zipf: pochi centri producono la
+ * maggior parte degli atti. Con lo stesso seme la sequenza generata è la stessa.
+ */
+final class GeneratoreDeterminazioni {
+
+    /** Dati di una nuova determinazione, serializzati come corpo di POST /determinazioni */
+    record NuovaDeterminazione(String oggetto, double importo, String centroSpesa, String livelloDirigente) {
+    }
+
+    private static final String[] LIVELLI = {"D1", "D2", "D3"};
+    private static final double[] QUOTE_LIVELLI = {0.50, 0.85, 1.0};
+    private static final double[] MEDIANE = {1_800, 14_000, 120_000};
+    private static final double[] DISPERSIONI = {0.8, 0.9, 1.0};
+
+    private static final String[] AZIONI = {
+            "Affidamento del servizio di %s",
+            "Impegno di spesa per %s",
+            "Liquidazione della fattura per %s",
+            "Proroga del contratto di %s",
+            "Acquisto tramite MePA di %s"
+    };
+
+    private static final String[] OGGETTI = {
+            "manutenzione del verde pubblico",
+            "pulizia degli uffici comunali",
+            "fornitura di cancelleria",
+            "mensa scolastica",
+            "manutenzione ordinaria delle strade",
+            "noleggio di fotocopiatrici",
+            "trasporto scolastico",
+            "licenze software per gli uffici",
+            "assistenza legale",
+            "illuminazione pubblica",
+            "manutenzione degli impianti termici",
+            "servizi cimiteriali"
+    };
+
+    private final Random casuale;
+    private final String[] centri;
+    private final double[] cumulataCentri;
+
+    GeneratoreDeterminazioni(long seme, int numeroCentri) {
+        this.casuale = new Random(seme);
+        this.centri = new String[numeroCentri];
+        this.cumulataCentri = new double[numeroCentri];
+        double totale = 0;
+        for (int i = 0; i < numeroCentri; i++) {
+            centri[i] = String.format("CDC-%02d", i + 1);
+            totale += 1 / Math.pow(i + 1, 1.1);
+            cumulataCentri[i] = totale;
+        }
+        for (int i = 0; i < numeroCentri; i++) {
+            cumulataCentri[i] /= totale;
+        }
+    }
+
+    NuovaDeterminazione prossima() {
+        int livello = indice(QUOTE_LIVELLI, casuale.nextDouble());
+        double importo = MEDIANE[livello] * Math.exp(DISPERSIONI[livello] * casuale.nextGaussian());
+        String oggetto = String.format(AZIONI[casuale.nextInt(AZIONI.length)], OGGETTI[casuale.nextInt(OGGETTI.length)])
+                + " - CIG " + String.format("%010X", casuale.nextLong() & 0xFF_FFFF_FFFFL);
+        return new NuovaDeterminazione(oggetto, Math.round(importo * 100) / 100.0,
+                centri[indice(cumulataCentri, casuale.nextDouble())], LIVELLI[livello]);
+    }
+
+    /** Intervallo esponenziale tra due arrivi di Poisson con la frequenza indicata, in nanosecondi */
+    long intervalloArrivi(double arriviAlSecondo) {
+        return (long) (-Math.log(1 - casuale.nextDouble()) / arriviAlSecondo * 1_000_000_000L);
+    }
+
+    /** Dirigente sintetico che redige l'atto, tra i primi {@code numero} */
+    int dirigente(int numero) {
+        return casuale.nextInt(numero);
+    }
+
+    private static int indice(double[] cumulata, double valore) {
+        for (int i = 0; i < cumulata.length; i++) {
+            if (valore < cumulata[i]) {
+                return i;
+            }
+        }
+        return cumulata.length - 1;
+    }
+}
@@ -0,0 +1,145 @@
+package it.gov.atti.carico;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Impronta di risorse dei servizi durante il carico.
+ * <p>
+ * Sul database: dimensione totale e di ogni tabella della piattaforma, partizioni e indici
+ * compresi, prima e dopo l'esecuzione. Sui servizi: heap JVM usato e committed e thread vivi,
+ * letti da {@code /q/metrics} a intervalli regolari; nel rapporto c'è il massimo osservato.
+ */
+final class Impronta {
+
+    private static final List<String> TABELLE = List.of("determinazioni", "outbox_determinazioni",
+            "audit_log", "sla_escalation", "archivio.determinazioni");
+
+    private static final String DIMENSIONE_TABELLA = """
+            SELECT coalesce(sum(pg_total_relation_size(relid)), 0)
+            FROM pg_partition_tree(to_regclass(?))
+            """;
+
+    private static final Map<String, String> METRICHE_JVM = Map.of(
+            "heapUsatoMb", "jvm_memory_used_bytes",
+            "heapCommittedMb", "jvm_memory_committed_bytes");
+
+    private final Configurazione configurazione;
+    private final HttpClient client;
+    private final String tokenAdmin;
+    private final Map<String, Map<String, Double>> massimiJvm = new ConcurrentHashMap<>();
+
+    Impronta(Configurazione configurazione, HttpClient client, String tokenAdmin) {
+        this.configurazione = configurazione;
+        this.client = client;
+        this.tokenAdmin = tokenAdmin;
+    }
+
+    /**
+     * Dimensioni in MB del database e delle tabelle, vuoto se il JDBC non è configurato o il
+     * database non è raggiungibile.
+     */
+    Map<String, Object> database() {
+        Map<String, Object> dimensioni = new LinkedHashMap<>();
+        if (configurazione.jdbc() == null) {
+            return dimensioni;
+        }
+        try (Connection connessione = DriverManager.getConnection(configurazione.jdbc(),
+                configurazione.utenteDb(), configurazione.passwordDb())) {
+            try (ResultSet totale = connessione.createStatement()
+                    .executeQuery("SELECT pg_database_size(current_database())")) {
+                totale.next();
+                dimensioni.put("totaleMb", mb(totale.getLong(1)));
+            }
+            try (PreparedStatement tabella = connessione.prepareStatement(DIMENSIONE_TABELLA)) {
+                for (String nome : TABELLE) {
+                    tabella.setString(1, nome);
+                    try (ResultSet rs = tabella.executeQuery()) {
+                        rs.next();
+                        dimensioni.put(nome, mb(rs.getLong(1)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Impronta del database non disponibile: " + e.getMessage());
+        }
+        return dimensioni;
+    }
+
+    /**
+     * Legge le metriche JVM dei servizi e aggiorna i massimi. Un servizio non raggiungibile
+     * viene saltato: il campionamento non deve fermare il carico.
+     */
+    void campiona() {
+        campiona("process-engine", configurazione.processEngine());
+        campiona("governance", configurazione.governance());
+    }
+
+    /** Massimi osservati per servizio */
+    Map<String, Object> jvm() {
+        return new LinkedHashMap<>(new TreeMap<>(massimiJvm));
+    }
+
+    private void campiona(String servizio, String base) {
+        String testo;
+        try {
+            HttpResponse<String> risposta = client.send(HttpRequest.newBuilder(URI.create(base + "/q/metrics"))
+                    .timeout(Duration.ofSeconds(5))
+                    .header("Authorization", "Bearer " + tokenAdmin)
+                    .header("Accept", "text/plain")
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (risposta.statusCode() != 200) {
+                return;
+            }
+            testo = risposta.body();
+        } catch (IOException e) {
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Map<String, Double> valori = new LinkedHashMap<>();
+        METRICHE_JVM.forEach((chiave, metrica) -> valori.put(chiave, mb(somma(testo, metrica, "area=\"heap\""))));
+        valori.put("threadVivi", somma(testo, "jvm_threads_live_threads", ""));
+        massimiJvm.merge(servizio, valori, (prima, dopo) -> {
+            Map<String, Double> massimi = new LinkedHashMap<>(prima);
+            dopo.forEach((chiave, valore) -> massimi.merge(chiave, valore, Math::max));
+            return massimi;
+        });
+    }
+
+    /**
+     * Somma dei campioni di una metrica nel formato di esposizione Prometheus, limitata alle
+     * righe che contengono l'etichetta indicata (es. tutte le aree dell'heap).
+     */
+    private static double somma(String testo, String metrica, String etichetta) {
+        double totale = 0;
+        for (String riga : testo.split("\n")) {
+            if (riga.startsWith(metrica) && (riga.length() == metrica.length()
+                    || riga.charAt(metrica.length()) == '{' || riga.charAt(metrica.length()) == ' ')
+                    && riga.contains(etichetta)) {
+                String[] parti = riga.trim().split(" ");
+                totale += Double.parseDouble(parti[parti.length - 1]);
+            }
+        }
+        return totale;
+    }
+
+    private static double mb(double dimensione) {
+        return Math.round(dimensione / (1024 * 1024) * 10) / 10.0;
+    }
+}
@@ -0,0 +1,104 @@
+package it.gov.atti.carico;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latenze per passo del ciclo, in microsecondi, con gli errori contati per stato HTTP.
+ * <p>
+ * Ogni campione è conservato, così i percentili sono esatti e non stimati da un istogramma;
+ * a qualche decina di arrivi al secondo per pochi minuti sono poche centinaia di migliaia di
+ * valori. Solo i cicli arrivati dopo il riscaldamento vengono registrati.
+ */
+final class Misure {
+
+    private static final class Passo {
+        private long[] campioni = new long[1024];
+        private int numero;
+        private final Map<String, Long> errori = new TreeMap<>();
+
+        synchronized void aggiungi(long micros) {
+            if (numero == campioni.length) {
+                campioni = Arrays.copyOf(campioni, numero * 2);
+            }
+            campioni[numero++] = micros;
+        }
+
+        synchronized void errore(String causa) {
+            errori.merge(causa, 1L, Long::sum);
+        }
+
+        synchronized Map<String, Object> riepilogo(double secondi) {
+            long[] ordinati = Arrays.copyOf(campioni, numero);
+            Arrays.sort(ordinati);
+            long totaleErrori = errori.values().stream().mapToLong(Long::longValue).sum();
+            Map<String, Object> riepilogo = new LinkedHashMap<>();
+            riepilogo.put("campioni", numero);
+            riepilogo.put("alSecondo", Math.round(numero / secondi * 100) / 100.0);
+            riepilogo.put("erroriPercentuale", numero + totaleErrori == 0 ? 0.0
+                    : Math.round(totaleErrori * 10_000.0 / (numero + totaleErrori)) / 100.0);
+            riepilogo.put("p50Ms", percentile(ordinati, 0.50));
+            riepilogo.put("p90Ms", percentile(ordinati, 0.90));
+            riepilogo.put("p99Ms", percentile(ordinati, 0.99));
+            riepilogo.put("p999Ms", percentile(ordinati, 0.999));
+            riepilogo.put("maxMs", numero == 0 ? 0.0 : ordinati[numero - 1] / 1000.0);
+            riepilogo.put("mediaMs", numero == 0 ? 0.0
+                    : Math.round(Arrays.stream(ordinati).average().orElse(0)) / 1000.0);
+            riepilogo.put("errori", new TreeMap<>(errori));
+            return riepilogo;
+        }
+
+        private static double percentile(long[] ordinati, double quantile) {
+            if (ordinati.length == 0) {
+                return 0.0;
+            }
+            int posizione = (int) Math.ceil(quantile * ordinati.length) - 1;
+            return ordinati[Math.max(0, posizione)] / 1000.0;
+        }
+    }
+
+    private final Map<String, Passo> passi = new ConcurrentHashMap<>();
+    private final Map<String, Passo> ordine = new LinkedHashMap<>();
+
+    /**
+     * @param passi nomi dei passi nell'ordine del rapporto
+     */
+    Misure(String... passi) {
+        for (String nome : passi) {
+            Passo passo = new Passo();
+            this.passi.put(nome, passo);
+            ordine.put(nome, passo);
+        }
+    }
+
+    void registra(String passo, long inizioNs) {
+        passo(passo).aggiungi((System.nanoTime() - inizioNs) / 1000);
+    }
+
+    /**
+     * @param causa stato HTTP o tipo di eccezione
+     */
+    void errore(String passo, String causa) {
+        passo(passo).errore(causa);
+    }
+
+    /**
+     * @param secondi durata della misura, per il throughput di ogni passo
+     */
+    Map<String, Object> riepilogo(double secondi) {
+        Map<String, Object> riepilogo = new LinkedHashMap<>();
+        ordine.forEach((nome, passo) -> riepilogo.put(nome, passo.riepilogo(secondi)));
+        return riepilogo;
+    }
+
+    private Passo passo(String nome) {
+        Passo passo = passi.get(nome);
+        if (passo == null) {
+            throw new IllegalArgumentException("Passo sconosciuto: " + nome);
+        }
+        return passo;
+    }
+}
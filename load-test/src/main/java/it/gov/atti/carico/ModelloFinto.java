@@ -0,0 +1,93 @@
+package it.gov.atti.carico;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modello LLM finto con l'API chat completions di OpenAI, per eseguire agentic-ai sotto carico
+ * senza costi né limiti del fornitore: agentic-ai va avviato con
+ * {@code QUARKUS_LANGCHAIN4J_OPENAI_BASE_URL=http://<host>:<porta>/v1}.
+ * <p>
+ * Ogni risposta attende una latenza esponenziale con la media indicata, come un modello reale
+ * sotto carico, e restituisce un testo fisso; le chiamate ricevute sono riportate nel rapporto.
+ */
+final class ModelloFinto implements AutoCloseable {
+
+    private static final String RISPOSTA = "Determinazione coerente con la normativa richiamata: "
+            + "nessuna osservazione. Classificazione: SERVIZI, rischio BASSO.";
+
+    private final HttpServer server;
+    private final ObjectMapper mapper;
+    private final Duration latenzaMedia;
+    private final Random casuale = new Random();
+    private final AtomicLong chiamate = new AtomicLong();
+
+    ModelloFinto(int porta, Duration latenzaMedia, ObjectMapper mapper) throws IOException {
+        this.mapper = mapper;
+        this.latenzaMedia = latenzaMedia;
+        this.server = HttpServer.create(new InetSocketAddress(porta), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/v1/chat/completions", this::completa);
+        server.createContext("/v1/models", scambio -> rispondi(scambio, 200,
+                Map.of("object", "list", "data", List.of(Map.of("id", "modello-finto", "object", "model")))));
+        server.start();
+    }
+
+    long chiamate() {
+        return chiamate.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void completa(HttpExchange scambio) throws IOException {
+        JsonNode richiesta = mapper.readTree(scambio.getRequestBody());
+        chiamate.incrementAndGet();
+        long attesa;
+        synchronized (casuale) {
+            attesa = (long) (-Math.log(1 - casuale.nextDouble()) * latenzaMedia.toMillis());
+        }
+        try {
+            Thread.sleep(attesa);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int tokenRichiesta = richiesta.path("messages").toString().length() / 4;
+        int tokenRisposta = RISPOSTA.length() / 4;
+        rispondi(scambio, 200, Map.of(
+                "id", "chatcmpl-finto-" + chiamate.get(),
+                "object", "chat.completion",
+                "created", Instant.now().getEpochSecond(),
+                "model", richiesta.path("model").asText("modello-finto"),
+                "choices", List.of(Map.of(
+                        "index", 0,
+                        "message", Map.of("role", "assistant", "content", RISPOSTA),
+                        "finish_reason", "stop")),
+                "usage", Map.of("prompt_tokens", tokenRichiesta, "completion_tokens", tokenRisposta,
+                        "total_tokens", tokenRichiesta + tokenRisposta)));
+    }
+
+    private void rispondi(HttpExchange scambio, int stato, Object corpo) throws IOException {
+        byte[] json = mapper.writeValueAsBytes(corpo);
+        scambio.getResponseHeaders().add("Content-Type", "application/json");
+        scambio.sendResponseHeaders(stato, json.length);
+        try (OutputStream uscita = scambio.getResponseBody()) {
+            uscita.write(json);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package it.gov.atti.carico;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rapporto JSON di un'esecuzione e confronto con un rapporto precedente.
+ * <p>
+ * Il confronto stampa, per ogni passo presente in entrambi, la variazione percentuale di
+ * throughput, percentili ed errori; il segno è quello grezzo, quindi per le latenze un valore
+ * positivo è un peggioramento e per il throughput un miglioramento.
+ */
+final class Rapporto {
+
+    private static final List<String> INDICATORI = List.of("alSecondo", "p50Ms", "p90Ms", "p99Ms", "p999Ms",
+            "erroriPercentuale");
+
+    private Rapporto() {
+    }
+
+    static void scrivi(ObjectMapper mapper, Path file, Map<String, Object> rapporto) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        mapper.writerWithDefaultPrettyPrinter().writeValue(file.toFile(), rapporto);
+    }
+
+    static void stampa(PrintStream uscita, Map<String, Object> rapporto, ObjectMapper mapper) {
+        JsonNode radice = mapper.valueToTree(rapporto);
+        uscita.printf("%nEsecuzione '%s': %s cicli completati al secondo%n", radice.path("etichetta").asText(),
+                radice.path("cicliAlSecondo").asText());
+        uscita.printf("%-16s %10s %10s %10s %10s %10s %10s %8s%n",
+                "passo", "campioni", "al sec.", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "errori%");
+        Iterator<Map.Entry<String, JsonNode>> passi = radice.path("passi").fields();
+        while (passi.hasNext()) {
+            Map.Entry<String, JsonNode> passo = passi.next();
+            JsonNode valori = passo.getValue();
+            uscita.printf("%-16s %10d %10.2f %10.1f %10.1f %10.1f %10.1f %8.2f%n", passo.getKey(),
+                    valori.path("campioni").asLong(), valori.path("alSecondo").asDouble(),
+                    valori.path("p50Ms").asDouble(), valori.path("p90Ms").asDouble(), valori.path("p99Ms").asDouble(),
+                    valori.path("p999Ms").asDouble(), valori.path("erroriPercentuale").asDouble());
+        }
+    }
+
+    /**
+     * Stampa le variazioni rispetto a un rapporto precedente.
+     */
+    static void confronta(PrintStream uscita, Map<String, Object> rapporto, Path precedente, ObjectMapper mapper)
+            throws IOException {
+        JsonNode attuale = mapper.valueToTree(rapporto);
+        JsonNode base = mapper.readTree(precedente.toFile());
+        uscita.printf("%nVariazioni rispetto a '%s' (%s)%n", base.path("etichetta").asText(), precedente);
+        uscita.printf("%-16s", "passo");
+        INDICATORI.forEach(indicatore -> uscita.printf(" %12s", indicatore));
+        uscita.println();
+        Iterator<Map.Entry<String, JsonNode>> passi = attuale.path("passi").fields();
+        while (passi.hasNext()) {
+            Map.Entry<String, JsonNode> passo = passi.next();
+            JsonNode prima = base.path("passi").path(passo.getKey());
+            if (prima.isMissingNode()) {
+                continue;
+            }
+            uscita.printf("%-16s", passo.getKey());
+            for (String indicatore : INDICATORI) {
+                uscita.printf(" %12s", variazione(prima.path(indicatore).asDouble(),
+                        passo.getValue().path(indicatore).asDouble()));
+            }
+            uscita.println();
+        }
+        Iterator<Map.Entry<String, JsonNode>> tabelle = attuale.path("impronta").path("databaseDopo").fields();
+        while (tabelle.hasNext()) {
+            Map.Entry<String, JsonNode> tabella = tabelle.next();
+            JsonNode prima = base.path("impronta").path("databaseDopo").path(tabella.getKey());
+            if (!prima.isMissingNode()) {
+                uscita.printf("database %-24s %10.1f MB -> %10.1f MB  %s%n", tabella.getKey(), prima.asDouble(),
+                        tabella.getValue().asDouble(), variazione(prima.asDouble(), tabella.getValue().asDouble()));
+            }
+        }
+    }
+
+    private static String variazione(double prima, double dopo) {
+        if (prima == 0) {
+            return dopo == 0 ? "=" : "n/d";
+        }
+        return String.format("%+.1f%%", (dopo - prima) * 100 / prima);
+    }
+}
@@ -0,0 +1,121 @@
+package it.gov.atti.carico;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Token di accesso firmati localmente al posto di quelli di Keycloak.
+ * <p>
+ * La coppia di chiavi RSA è creata alla prima esecuzione nella cartella indicata e riusata
+ * dopo: i servizi avviati con il profilo {@code carico} verificano i token con la chiave
+ * pubblica ({@code OIDC_CHIAVE_PUBBLICA}) senza contattare Keycloak. I claim imitano quelli
+ * di Keycloak: {@code preferred_username} per il nome e i ruoli sia in {@code groups} sia in
+ * {@code realm_access.roles}.
+ */
+final class TokenLocali {
+
+    static final String EMITTENTE = "atti-carico";
+
+    private static final String PRIVATA = "privata.pem";
+    private static final String PUBBLICA = "pubblica.pem";
+
+    private final PrivateKey privata;
+    private final PublicKey pubblica;
+    private final ObjectMapper mapper;
+
+    private TokenLocali(PrivateKey privata, PublicKey pubblica, ObjectMapper mapper) {
+        this.privata = privata;
+        this.pubblica = pubblica;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Legge la coppia di chiavi dalla cartella, creandola se manca.
+     */
+    static TokenLocali carica(Path cartella, ObjectMapper mapper) throws IOException, GeneralSecurityException {
+        Path filePrivata = cartella.resolve(PRIVATA);
+        Path filePubblica = cartella.resolve(PUBBLICA);
+        KeyFactory rsa = KeyFactory.getInstance("RSA");
+        if (Files.exists(filePrivata) && Files.exists(filePubblica)) {
+            return new TokenLocali(rsa.generatePrivate(new PKCS8EncodedKeySpec(leggiPem(filePrivata))),
+                    rsa.generatePublic(new X509EncodedKeySpec(leggiPem(filePubblica))), mapper);
+        }
+        KeyPairGenerator generatore = KeyPairGenerator.getInstance("RSA");
+        generatore.initialize(2048);
+        KeyPair coppia = generatore.generateKeyPair();
+        Files.createDirectories(cartella);
+        scriviPem(filePrivata, "PRIVATE KEY", coppia.getPrivate().getEncoded());
+        scriviPem(filePubblica, "PUBLIC KEY", coppia.getPublic().getEncoded());
+        return new TokenLocali(coppia.getPrivate(), coppia.getPublic(), mapper);
+    }
+
+    /** Chiave pubblica in Base64 su una riga, il formato di {@code quarkus.oidc.public-key} */
+    String chiavePubblica() {
+        return Base64.getEncoder().encodeToString(pubblica.getEncoded());
+    }
+
+    /**
+     * Firma un token RS256 per un utente.
+     *
+     * @param validita durata del token dall'emissione
+     */
+    String firma(String utente, List<String> ruoli, Duration validita) {
+        Instant ora = Instant.now();
+        Map<String, Object> claim = new LinkedHashMap<>();
+        claim.put("iss", EMITTENTE);
+        claim.put("sub", UUID.nameUUIDFromBytes(utente.getBytes(StandardCharsets.UTF_8)).toString());
+        claim.put("preferred_username", utente);
+        claim.put("upn", utente);
+        claim.put("groups", ruoli);
+        claim.put("realm_access", Map.of("roles", ruoli));
+        claim.put("iat", ora.getEpochSecond());
+        claim.put("exp", ora.plus(validita).getEpochSecond());
+        claim.put("jti", UUID.randomUUID().toString());
+        try {
+            String contenuto = base64Url(mapper.writeValueAsBytes(Map.of("alg", "RS256", "typ", "JWT")))
+                    + "." + base64Url(mapper.writeValueAsBytes(claim));
+            Signature firma = Signature.getInstance("SHA256withRSA");
+            firma.initSign(privata);
+            firma.update(contenuto.getBytes(StandardCharsets.US_ASCII));
+            return contenuto + "." + base64Url(firma.sign());
+        } catch (JsonProcessingException | GeneralSecurityException e) {
+            throw new IllegalStateException("Firma del token per " + utente + " fallita", e);
+        }
+    }
+
+    private static String base64Url(byte[] dati) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(dati);
+    }
+
+    private static byte[] leggiPem(Path file) throws IOException {
+        String testo = Files.readString(file).replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+        return Base64.getDecoder().decode(testo);
+    }
+
+    private static void scriviPem(Path file, String tipo, byte[] chiave) throws IOException {
+        Files.writeString(file, "-----BEGIN " + tipo + "-----\n"
+                + Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(chiave)
+                + "\n-----END " + tipo + "-----\n");
+    }
+}
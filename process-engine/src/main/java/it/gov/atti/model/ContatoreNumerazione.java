@@ -0,0 +1,23 @@
+package it.gov.atti.model;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * Contatore annuale del registro delle determinazioni.
+ * Una riga per anno: l'ultimo numero assegnato viene incrementato con un singolo
+ * UPDATE atomico, senza conteggi sulla tabella 'determinazioni'.
+ */
+@Entity
+@Table(name = "contatori_numerazione")
+public class ContatoreNumerazione extends PanacheEntityBase {
+
+    /** Anno di riferimento del registro */
+    @Id
+    public Integer anno;
+
+    /** Ultimo numero progressivo assegnato (o riservato) nell'anno */
+    public Long ultimoNumero;
+}
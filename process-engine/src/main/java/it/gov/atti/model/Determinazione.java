@@ -3,17 +3,28 @@ package it.gov.atti.model;
 import io.quarkus.hibernate.orm.panache.PanacheEntity;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
 import jakarta.persistence.UniqueConstraint;
+import jakarta.persistence.Version;
 import java.time.LocalDateTime;
 
 /**
  * Entità JPA che rappresenta una determinazione dirigenziale.
  * Mappata sulla tabella 'determinazioni' nel database PostgreSQL.
+ * Gli indici composti terminano con (dataCreazione, id) per servire la paginazione keyset
+ * dell'elenco, da soli o preceduti dal campo di filtro.
  */
 @Entity
 @Table(name = "determinazioni", uniqueConstraints = {
         @UniqueConstraint(name = "uk_determinazioni_numero", columnNames = "numero")
+}, indexes = {
+        @Index(name = "idx_determinazioni_data", columnList = "dataCreazione, id"),
+        @Index(name = "idx_determinazioni_stato_data", columnList = "stato, dataCreazione, id"),
+        @Index(name = "idx_determinazioni_centro_data", columnList = "centroSpesa, dataCreazione, id"),
+        @Index(name = "idx_determinazioni_dirigente_data", columnList = "dirigente, dataCreazione, id")
 })
 public class Determinazione extends PanacheEntity {
 
@@ -33,10 +44,10 @@ public class Determinazione extends PanacheEntity {
     public String livelloDirigente;
 
     /**
-     * Stato corrente della determinazione.
-     * Valori possibili: BOZZA, ISTRUTTORIA, VISTO_CONTABILE, FIRMATA, PUBBLICATA, RIFIUTATA
+     * Stato corrente della determinazione; le transizioni ammesse sono in {@link StatoDeterminazione}.
      */
-    public String stato;
+    @Enumerated(EnumType.STRING)
+    public StatoDeterminazione stato;
 
     /** Data e ora di creazione della determinazione */
     public LocalDateTime dataCreazione;
@@ -44,10 +55,21 @@ public class Determinazione extends PanacheEntity {
     /** Data e ora di pubblicazione all'albo pretorio */
     public LocalDateTime dataPubblicazione;
 
+    /** Data e ora di ingresso nello stato corrente, per i tempi di permanenza e gli SLA */
+    public LocalDateTime statoDal;
+
     /** ID dell'istanza del processo Kogito associato */
     public String processInstanceId;
 
     /** Numero identificativo della determinazione, es. DET-2026-001 */
     @Column(unique = true)
     public String numero;
+
+    /**
+     * Versione per il controllo ottimistico della concorrenza, incrementata a ogni modifica.
+     * Il default sul database copre le righe create prima dell'introduzione della colonna.
+     */
+    @Version
+    @Column(columnDefinition = "bigint not null default 0")
+    public Long versione;
 }
@@ -0,0 +1,29 @@
+package it.gov.atti.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Proiezione leggera di una determinazione per le viste elenco.
+ * Caricata con una SELECT sui soli campi necessari, senza idratare l'entità completa.
+ *
+ * @param id               identificativo della determinazione
+ * @param numero           numero di registro, es. DET-2026-001
+ * @param oggetto          oggetto della determinazione
+ * @param importo          importo finanziario
+ * @param centroSpesa      centro di spesa di riferimento
+ * @param dirigente        dirigente responsabile
+ * @param livelloDirigente livello del dirigente: D1, D2, D3
+ * @param stato            stato corrente
+ * @param dataCreazione    data e ora di creazione
+ */
+public record DeterminazioneSintesi(
+        Long id,
+        String numero,
+        String oggetto,
+        Double importo,
+        String centroSpesa,
+        String dirigente,
+        String livelloDirigente,
+        StatoDeterminazione stato,
+        LocalDateTime dataCreazione) {
+}
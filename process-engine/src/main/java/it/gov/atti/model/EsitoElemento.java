@@ -0,0 +1,42 @@
+package it.gov.atti.model;
+
+/**
+ * Esito di un elemento di un'operazione multipla: gli elementi sono elaborati indipendentemente
+ * e un errore su uno non annulla gli altri.
+ *
+ * @param indice   posizione dell'elemento nella richiesta
+ * @param id       identificativo della determinazione, se nota
+ * @param numero   numero di registro, se assegnato
+ * @param versione versione dopo l'operazione, solo se riuscita
+ * @param esito    esito dell'elemento
+ * @param errore   motivo del fallimento, null se riuscito
+ */
+public record EsitoElemento(int indice, Long id, String numero, Long versione, Esito esito, String errore) {
+
+    /** Esito di un elemento */
+    public enum Esito {
+        /** Operazione eseguita */
+        ESEGUITA,
+        /** Dati dell'elemento non validi */
+        NON_VALIDA,
+        /** Determinazione inesistente */
+        NON_TROVATA,
+        /** Transizione non ammessa dallo stato corrente */
+        NON_AMMESSA,
+        /** Determinazione modificata da un'altra richiesta o non alla versione indicata */
+        CONFLITTO
+    }
+
+    public static EsitoElemento eseguita(int indice, Long id, String numero, Long versione) {
+        return new EsitoElemento(indice, id, numero, versione, Esito.ESEGUITA, null);
+    }
+
+    public static EsitoElemento fallita(int indice, Long id, Esito esito, String errore) {
+        return new EsitoElemento(indice, id, null, null, esito, errore);
+    }
+
+    /** true se l'operazione sull'elemento è riuscita */
+    public boolean riuscita() {
+        return esito == Esito.ESEGUITA;
+    }
+}
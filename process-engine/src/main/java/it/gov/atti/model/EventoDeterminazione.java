@@ -0,0 +1,40 @@
+package it.gov.atti.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * Evento di cambio di stato di una determinazione, pubblicato sul topic {@code atti.outbox.topic}.
+ *
+ * @param tipo              DETERMINAZIONE_CREATA, STATO_AGGIORNATO, o SLA_A_RISCHIO e SLA_SCADUTO per le
+ *                          escalation della fase in corso
+ * @param determinazioneId  identificativo della determinazione
+ * @param numero            numero di registro
+ * @param processInstanceId istanza del processo Kogito, se avviato
+ * @param centroSpesa       centro di spesa
+ * @param livelloDirigente  livello del dirigente: D1, D2, D3
+ * @param importo           importo finanziario
+ * @param dataCreazione     data e ora di creazione della determinazione
+ * @param statoPrecedente   stato prima della modifica, null alla creazione e nelle escalation
+ * @param stato             stato dopo la modifica, o stato in corso nelle escalation
+ * @param utente            utente che ha eseguito la modifica, null nelle escalation
+ * @param timestamp         data e ora della modifica
+ */
+public record EventoDeterminazione(
+        String tipo,
+        Long determinazioneId,
+        String numero,
+        String processInstanceId,
+        String centroSpesa,
+        String livelloDirigente,
+        Double importo,
+        LocalDateTime dataCreazione,
+        String statoPrecedente,
+        String stato,
+        String utente,
+        LocalDateTime timestamp) {
+
+    public static final String CREATA = "DETERMINAZIONE_CREATA";
+    public static final String STATO_AGGIORNATO = "STATO_AGGIORNATO";
+    public static final String SLA_A_RISCHIO = "SLA_A_RISCHIO";
+    public static final String SLA_SCADUTO = "SLA_SCADUTO";
+}
@@ -0,0 +1,45 @@
+package it.gov.atti.model;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntityBase;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+
+/**
+ * Evento di dominio in attesa di pubblicazione su Kafka (transactional outbox).
+ * Scritto nella stessa transazione della modifica della determinazione e inoltrato da OutboxRelay.
+ * L'id è assegnato dal database all'inserimento, dopo l'UPDATE condizionale della determinazione
+ * (vedi DeterminazioneService): due modifiche della stessa determinazione si serializzano sulla sua
+ * riga, quindi i loro eventi hanno id crescenti nell'ordine dei commit.
+ */
+@Entity
+@Table(name = "outbox_determinazioni", indexes = {
+        @Index(name = "idx_outbox_da_inviare", columnList = "inviatoIl, id")
+})
+public class EventoOutbox extends PanacheEntityBase {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    public Long id;
+
+    /** Determinazione a cui si riferisce l'evento, chiave del messaggio Kafka */
+    public Long determinazioneId;
+
+    /** Tipo di evento, es. DETERMINAZIONE_CREATA, STATO_AGGIORNATO */
+    public String tipo;
+
+    /** Evento serializzato in JSON ({@link EventoDeterminazione}) */
+    @Column(columnDefinition = "TEXT")
+    public String payload;
+
+    /** Data e ora di scrittura dell'evento */
+    public LocalDateTime creatoIl;
+
+    /** Data e ora di pubblicazione su Kafka, null finché l'evento è in attesa */
+    public LocalDateTime inviatoIl;
+}
@@ -0,0 +1,20 @@
+package it.gov.atti.model;
+
+import java.time.LocalDate;
+
+/**
+ * Criteri di filtro per l'elenco delle determinazioni. I campi null non filtrano.
+ *
+ * @param stato       stato della determinazione
+ * @param centroSpesa centro di spesa
+ * @param dirigente   dirigente responsabile
+ * @param da          data di creazione minima (inclusa)
+ * @param a           data di creazione massima (inclusa)
+ */
+public record FiltroDeterminazioni(
+        String stato,
+        String centroSpesa,
+        String dirigente,
+        LocalDate da,
+        LocalDate a) {
+}
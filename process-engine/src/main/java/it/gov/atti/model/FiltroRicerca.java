@@ -0,0 +1,20 @@
+package it.gov.atti.model;
+
+/**
+ * Criteri della ricerca testuale sulle determinazioni. Il testo è obbligatorio, gli altri
+ * campi corrispondono alle faccette e se null non filtrano.
+ *
+ * @param testo            testo da cercare, con la sintassi di websearch_to_tsquery
+ *                         (parole, "frase esatta", -esclusa, OR)
+ * @param stato            stato della determinazione
+ * @param centroSpesa      centro di spesa
+ * @param livelloDirigente livello del dirigente
+ * @param anno             anno di creazione
+ */
+public record FiltroRicerca(
+        String testo,
+        String stato,
+        String centroSpesa,
+        String livelloDirigente,
+        Integer anno) {
+}
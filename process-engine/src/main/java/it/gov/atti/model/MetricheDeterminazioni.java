@@ -0,0 +1,32 @@
+package it.gov.atti.model;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * Aggregati delle determinazioni per le dashboard, serviti dalla memoria.
+ *
+ * @param totale                determinazioni registrate
+ * @param perStato              numero di determinazioni per stato
+ * @param perCentroSpesa        numero e importo totale per centro di spesa
+ * @param perLivelloDirigente   numero di determinazioni per livello del dirigente
+ * @param perMese               numero e importo totale per mese di creazione (YYYY-MM)
+ * @param ultimaRiconciliazione ultimo ricalcolo completo dalla tabella, null se non ancora eseguito
+ */
+public record MetricheDeterminazioni(
+        long totale,
+        Map<StatoDeterminazione, Long> perStato,
+        Map<String, Totali> perCentroSpesa,
+        Map<String, Long> perLivelloDirigente,
+        Map<String, Totali> perMese,
+        LocalDateTime ultimaRiconciliazione) {
+
+    /**
+     * Numero di determinazioni e somma degli importi di un gruppo.
+     *
+     * @param numero  determinazioni del gruppo
+     * @param importo somma degli importi
+     */
+    public record Totali(long numero, double importo) {
+    }
+}
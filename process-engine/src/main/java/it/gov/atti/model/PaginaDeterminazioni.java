@@ -0,0 +1,49 @@
+package it.gov.atti.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Pagina di determinazioni ottenuta con paginazione keyset su (dataCreazione, id).
+ *
+ * @param elementi           determinazioni della pagina, dalla più recente
+ * @param cursoreSuccessivo  cursore opaco per la pagina successiva, null se è l'ultima
+ */
+public record PaginaDeterminazioni(List<DeterminazioneSintesi> elementi, String cursoreSuccessivo) {
+
+    /**
+     * Posizione nell'elenco: ultima coppia (dataCreazione, id) restituita.
+     *
+     * @param dataCreazione data di creazione dell'ultimo elemento
+     * @param id            id dell'ultimo elemento
+     */
+    public record Cursore(LocalDateTime dataCreazione, Long id) {
+
+        /**
+         * Codifica il cursore in una stringa opaca utilizzabile come query parameter.
+         */
+        public String codifica() {
+            String valore = dataCreazione + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(valore.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Decodifica un cursore prodotto da {@link #codifica()}.
+         *
+         * @throws IllegalArgumentException se il cursore non è valido
+         */
+        public static Cursore decodifica(String cursore) {
+            try {
+                String valore = new String(Base64.getUrlDecoder().decode(cursore), StandardCharsets.UTF_8);
+                int separatore = valore.indexOf('|');
+                return new Cursore(
+                        LocalDateTime.parse(valore.substring(0, separatore)),
+                        Long.valueOf(valore.substring(separatore + 1)));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Cursore non valido: " + cursore, e);
+            }
+        }
+    }
+}
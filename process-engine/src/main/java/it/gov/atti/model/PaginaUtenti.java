@@ -0,0 +1,12 @@
+package it.gov.atti.model;
+
+import java.util.List;
+
+/**
+ * Pagina di utenti della directory, in ordine di username.
+ *
+ * @param elementi          utenti della pagina
+ * @param cursoreSuccessivo cursore opaco per la pagina successiva, null se è l'ultima
+ */
+public record PaginaUtenti(List<UtenteDirectory> elementi, String cursoreSuccessivo) {
+}
@@ -0,0 +1,22 @@
+package it.gov.atti.model;
+
+import java.util.List;
+
+/**
+ * Richiesta di transizione di più determinazioni allo stesso stato, ad esempio la firma
+ * di un elenco di atti.
+ *
+ * @param stato          nuovo stato
+ * @param determinazioni determinazioni da aggiornare
+ */
+public record RichiestaTransizioni(String stato, List<Riferimento> determinazioni) {
+
+    /**
+     * Determinazione da aggiornare.
+     *
+     * @param id       identificativo della determinazione
+     * @param versione versione letta dal client, null per aggiornare la corrente
+     */
+    public record Riferimento(Long id, Long versione) {
+    }
+}
@@ -0,0 +1,36 @@
+package it.gov.atti.model;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import it.gov.atti.decisioni.EsitoCompetenza;
+
+/**
+ * Tipi da registrare per la riflessione nell'eseguibile nativo.
+ * <p>
+ * Quarkus registra da solo i tipi che vede durante la build: entità JPA, parametri e valori di
+ * ritorno tipizzati degli endpoint. Restano esclusi quelli serializzati da Jackson senza che il
+ * tipo compaia nella firma: le risposte costruite con {@code Response.ok(...)}, gli eventi
+ * scritti nell'outbox e letti da Kafka con l'{@code ObjectMapper}. Senza registrazione, in nativo
+ * vengono serializzati come oggetti vuoti.
+ * <p>
+ * Le implementazioni generate di Caffeine usate da {@code CacheDeterminazioni} sono registrate
+ * dall'estensione quarkus-caffeine.
+ */
+@RegisterForReflection(targets = {
+        Determinazione.class,
+        DeterminazioneSintesi.class,
+        StatoDeterminazione.class,
+        EsitoElemento.class,
+        EsitoElemento.Esito.class,
+        RisultatoRicerca.class,
+        RisultatoRicerca.Corrispondenza.class,
+        StatisticheArchivio.class,
+        MetricheDeterminazioni.Totali.class,
+        UtenteDirectory.class,
+        EventoDeterminazione.class,
+        EsitoCompetenza.class
+})
+final class RiflessioneNativa {
+
+    private RiflessioneNativa() {
+    }
+}
@@ -0,0 +1,34 @@
+package it.gov.atti.model;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Risultato di una ricerca testuale sulle determinazioni.
+ *
+ * @param totale      determinazioni trovate, al più {@code atti.ricerca.max-corrispondenze}
+ * @param approssimato true se le corrispondenze superano il limite: totale, ordinamento e
+ *                     faccette sono calcolati sulle più recenti e conviene restringere la ricerca
+ * @param elementi    corrispondenze in ordine di rilevanza
+ * @param faccette    conteggi per stato, centroSpesa, livelloDirigente e anno sull'intero risultato
+ */
+public record RisultatoRicerca(
+        long totale,
+        boolean approssimato,
+        List<Corrispondenza> elementi,
+        Map<String, Map<String, Long>> faccette) {
+
+    /**
+     * Determinazione trovata.
+     *
+     * @param determinazione sintesi della determinazione
+     * @param punteggio      rilevanza (ts_rank_cd), maggiore per le corrispondenze migliori
+     * @param evidenziato    frammenti dell'oggetto con i termini trovati tra {@code <mark>} e
+     *                       {@code </mark>}; il resto del testo è già in escape HTML
+     */
+    public record Corrispondenza(
+            DeterminazioneSintesi determinazione,
+            double punteggio,
+            String evidenziato) {
+    }
+}
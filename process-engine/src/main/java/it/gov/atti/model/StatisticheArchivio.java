@@ -0,0 +1,24 @@
+package it.gov.atti.model;
+
+import java.util.Map;
+
+/**
+ * Statistiche sulle determinazioni archiviate create in un anno, calcolate dall'archivio.
+ *
+ * @param anno                anno di creazione
+ * @param totale              determinazioni archiviate
+ * @param importo             somma degli importi
+ * @param perStato            numero per stato finale
+ * @param perCentroSpesa      numero e importo totale per centro di spesa
+ * @param perLivelloDirigente numero per livello del dirigente
+ * @param perMese             numero e importo totale per mese di creazione (YYYY-MM)
+ */
+public record StatisticheArchivio(
+        int anno,
+        long totale,
+        double importo,
+        Map<StatoDeterminazione, Long> perStato,
+        Map<String, MetricheDeterminazioni.Totali> perCentroSpesa,
+        Map<String, Long> perLivelloDirigente,
+        Map<String, MetricheDeterminazioni.Totali> perMese) {
+}
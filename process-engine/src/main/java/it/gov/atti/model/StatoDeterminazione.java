@@ -0,0 +1,67 @@
+package it.gov.atti.model;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Stati di una determinazione e transizioni ammesse, ricalcate sul processo
+ * {@code determinazione-dirigenziale.bpmn} (vedi docs/workflow-determinazione.md):
+ * <pre>
+ * BOZZA → ISTRUTTORIA → VISTO_CONTABILE → FIRMATA → PUBBLICATA
+ *              │
+ *              └──→ RIFIUTATA
+ * </pre>
+ * Il rifiuto è l'esito negativo della verifica di competenza, che nel processo segue l'istruttoria:
+ * una bozza non può essere rifiutata direttamente.
+ * Le tabelle delle transizioni sono calcolate una volta al caricamento della classe:
+ * la verifica di una transizione è un accesso a un EnumSet.
+ */
+public enum StatoDeterminazione {
+
+    BOZZA,
+    ISTRUTTORIA,
+    VISTO_CONTABILE,
+    FIRMATA,
+    PUBBLICATA,
+    RIFIUTATA;
+
+    private Set<StatoDeterminazione> successivi;
+
+    static {
+        BOZZA.successivi = EnumSet.of(ISTRUTTORIA);
+        ISTRUTTORIA.successivi = EnumSet.of(VISTO_CONTABILE, RIFIUTATA);
+        VISTO_CONTABILE.successivi = EnumSet.of(FIRMATA);
+        FIRMATA.successivi = EnumSet.of(PUBBLICATA);
+        PUBBLICATA.successivi = EnumSet.noneOf(StatoDeterminazione.class);
+        RIFIUTATA.successivi = EnumSet.noneOf(StatoDeterminazione.class);
+    }
+
+    /** true se da questo stato si può passare a {@code nuovo} */
+    public boolean ammette(StatoDeterminazione nuovo) {
+        return successivi.contains(nuovo);
+    }
+
+    /** Stati raggiungibili da questo con una transizione */
+    public Set<StatoDeterminazione> successivi() {
+        return EnumSet.copyOf(successivi);
+    }
+
+    /** true se lo stato non ammette ulteriori transizioni */
+    public boolean finale() {
+        return successivi.isEmpty();
+    }
+
+    /**
+     * Stato corrispondente al nome, senza distinzione tra maiuscole e minuscole.
+     *
+     * @throws IllegalArgumentException se il nome non corrisponde a nessuno stato
+     */
+    public static StatoDeterminazione da(String nome) {
+        for (StatoDeterminazione stato : values()) {
+            if (stato.name().equalsIgnoreCase(nome.strip())) {
+                return stato;
+            }
+        }
+        throw new IllegalArgumentException("Stato non valido: " + nome);
+    }
+}
@@ -0,0 +1,19 @@
+package it.gov.atti.model;
+
+import java.util.Set;
+
+/**
+ * Utente del realm Keycloak come conservato nella directory locale.
+ *
+ * @param id        identificativo Keycloak
+ * @param username  username, chiave dell'ordinamento delle pagine
+ * @param nome      nome
+ * @param cognome   cognome
+ * @param email     indirizzo email
+ * @param abilitato false se l'utente è disabilitato in Keycloak
+ * @param ruoli     ruoli applicativi effettivi: assegnati direttamente, tramite i gruppi o tramite ruoli composti
+ * @param gruppi    nomi dei gruppi di cui l'utente è membro diretto
+ */
+public record UtenteDirectory(String id, String username, String nome, String cognome, String email,
+                              boolean abilitato, Set<String> ruoli, Set<String> gruppi) {
+}
@@ -1,20 +1,28 @@
 package it.gov.atti.resources;
 
+import it.gov.atti.model.PaginaUtenti;
+import it.gov.atti.services.DirectoryUtenti;
+import it.gov.atti.services.ErroreKeycloak;
+import it.gov.atti.services.RicercaDeterminazioni;
 import jakarta.annotation.security.RolesAllowed;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
-import java.util.List;
+import java.time.Duration;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * REST resource per le funzionalità di amministrazione.
  * Tutti gli endpoint richiedono il ruolo 'admin' tramite autenticazione OIDC Keycloak.
- * Espone operazioni di gestione utenti (proxy verso Keycloak Admin API)
- * e lista delle decision table DMN disponibili nel motore Kogito.
+ * Espone operazioni di gestione utenti e lista delle decision table DMN disponibili nel motore Kogito.
+ * Gli utenti sono letti dalla directory locale ({@link DirectoryUtenti}), le modifiche sono
+ * inoltrate alla Keycloak Admin API.
+ * Espone inoltre la manutenzione dell'indice di ricerca delle determinazioni.
  */
 @Path("/admin")
 @Produces(MediaType.APPLICATION_JSON)
@@ -23,19 +31,45 @@ import java.util.Map;
 @Tag(name = "Admin", description = "API di amministrazione — riservate al ruolo admin")
 public class AdminResource {
 
+    /** Numero massimo di utenti per pagina */
+    static final int LIMITE_UTENTI = 500;
+
+    @Inject
+    DirectoryUtenti directory;
+
+    @Inject
+    RicercaDeterminazioni ricerca;
+
     /**
-     * Recupera la lista di tutti gli utenti dal realm Keycloak.
-     * Proxy verso la Keycloak Admin API.
+     * Restituisce una pagina degli utenti del realm Keycloak in ordine di username, dalla
+     * directory locale. Il cursore della pagina successiva è nell'header
+     * {@value DeterminazioneResource#HEADER_CURSORE}, assente sull'ultima pagina.
      *
-     * @return lista di utenti con ruoli e stato
+     * @param ruolo   solo gli utenti con questo ruolo applicativo, diretto o ereditato (opzionale)
+     * @param cursore cursore della pagina precedente (opzionale)
+     * @param limite  dimensione della pagina, massimo {@value #LIMITE_UTENTI}
+     * @return utenti con ruoli, gruppi e stato
      */
     @GET
     @Path("/utenti")
-    @Operation(summary = "Recupera la lista di tutti gli utenti Keycloak")
-    public Response listaUtenti() {
-        // In produzione: chiamata HTTP verso http://keycloak:8180/admin/realms/atti-amministrativi/users
-        // usando un service account con permessi admin
-        return Response.ok(List.of()).build();
+    @Operation(summary = "Recupera una pagina degli utenti Keycloak")
+    public Response listaUtenti(
+            @QueryParam("ruolo") String ruolo,
+            @QueryParam("cursore") String cursore,
+            @QueryParam("limite") @DefaultValue("50") int limite) {
+        if (limite < 1 || limite > LIMITE_UTENTI) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Il parametro 'limite' deve essere compreso tra 1 e " + LIMITE_UTENTI))
+                    .build();
+        }
+        return esegui(() -> {
+            PaginaUtenti pagina = directory.pagina(ruolo, cursore, limite);
+            Response.ResponseBuilder risposta = Response.ok(pagina.elementi());
+            if (pagina.cursoreSuccessivo() != null) {
+                risposta.header(DeterminazioneResource.HEADER_CURSORE, pagina.cursoreSuccessivo());
+            }
+            return risposta.build();
+        });
     }
 
     /**
@@ -53,10 +87,9 @@ public class AdminResource {
                     .entity(Map.of("errore", "Campo 'username' obbligatorio"))
                     .build();
         }
-        // In produzione: POST verso Keycloak Admin API per creare l'utente
-        return Response.status(Response.Status.CREATED)
-                .entity(Map.of("id", "nuovo-id-generato", "username", payload.get("username")))
-                .build();
+        return esegui(() -> Response.status(Response.Status.CREATED)
+                .entity(Map.of("id", directory.creaUtente(payload), "username", payload.get("username")))
+                .build());
     }
 
     /**
@@ -75,12 +108,14 @@ public class AdminResource {
                     .entity(Map.of("errore", "Nessun campo da aggiornare"))
                     .build();
         }
-        // In produzione: PUT verso Keycloak Admin API per aggiornare l'utente
-        return Response.noContent().build();
+        return esegui(() -> {
+            directory.aggiornaUtente(id, payload);
+            return Response.noContent().build();
+        });
     }
 
     /**
-     * Aggiorna i ruoli di un utente nel realm Keycloak.
+     * Sostituisce i ruoli applicativi assegnati direttamente a un utente nel realm Keycloak.
      *
      * @param id      identificativo Keycloak dell'utente
      * @param payload mappa con chiave "ruoli" contenente la lista dei ruoli da assegnare
@@ -96,8 +131,10 @@ public class AdminResource {
                     .entity(Map.of("errore", "Campo 'ruoli' obbligatorio"))
                     .build();
         }
-        // In produzione: operazioni su Keycloak Admin API per gestire i role mappings
-        return Response.noContent().build();
+        return esegui(() -> {
+            directory.aggiornaRuoli(id, ruoli);
+            return Response.noContent().build();
+        });
     }
 
     /**
@@ -110,7 +147,52 @@ public class AdminResource {
     @Path("/utenti/{id}/reset-password")
     @Operation(summary = "Invia email di reset password tramite Keycloak")
     public Response resetPassword(@PathParam("id") String id) {
-        // In produzione: PUT verso Keycloak Admin API con action "UPDATE_PASSWORD"
-        return Response.noContent().build();
+        return esegui(() -> {
+            directory.inviaResetPassword(id);
+            return Response.noContent().build();
+        });
+    }
+
+    /**
+     * Ricostruisce l'indice di ricerca testuale delle determinazioni senza bloccare le scritture,
+     * creando colonna e indice se mancano. La chiamata attende il termine della ricostruzione.
+     *
+     * @return nome dell'indice e durata della ricostruzione
+     */
+    @POST
+    @Path("/ricerca/ricostruisci")
+    @Operation(summary = "Ricostruisce l'indice di ricerca delle determinazioni")
+    public Response ricostruisciIndiceRicerca() {
+        try {
+            Duration durata = ricerca.ricostruisci();
+            return Response.ok(Map.of("indice", RicercaDeterminazioni.INDICE, "durataMs", durata.toMillis())).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+    }
+
+    /**
+     * Esegue un'operazione sulla directory utenti traducendo gli errori: richiesta non valida 400,
+     * directory non disponibile 503, errori di Keycloak con lo stesso stato se 404 o 409, altrimenti 502.
+     */
+    private static Response esegui(Supplier<Response> operazione) {
+        try {
+            return operazione.get();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        } catch (ErroreKeycloak e) {
+            int stato = e.stato() == 404 || e.stato() == 409 ? e.stato() : Response.Status.BAD_GATEWAY.getStatusCode();
+            return Response.status(stato)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
     }
 }
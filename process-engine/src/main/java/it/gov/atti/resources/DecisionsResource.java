@@ -1,52 +1,168 @@
 package it.gov.atti.resources;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.gov.atti.decisioni.CompetenzaService;
+import it.gov.atti.decisioni.EsitoCompetenza;
+import it.gov.atti.decisioni.ModelloCompetenza;
+import it.gov.atti.decisioni.RichiestaCompetenza;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.security.RolesAllowed;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
- * REST resource per la visualizzazione delle decision table DMN disponibili nel motore Kogito.
- * Restituisce la lista delle regole DMN caricate, inclusa la tabella di verifica-competenza.
+ * REST resource per le decision table DMN e la verifica di competenza dirigenziale.
+ * L'elenco delle regole è generato dal modello verifica-competenza.dmn effettivamente caricato
+ * dal decision-engine, che è anche l'unico punto di valutazione della competenza.
+ * <p>
+ * Le valutazioni sono misurate in {@code atti.competenza.valutazione{modalita}} (singola o blocco)
+ * e contate per esito in {@code atti.competenza.esiti{competente}}.
  */
 @Path("/decisions")
 @Produces(MediaType.APPLICATION_JSON)
-@Tag(name = "Decisions", description = "API per la visualizzazione delle regole DMN")
+@Consumes(MediaType.APPLICATION_JSON)
+@Tag(name = "Decisions", description = "API per la visualizzazione e la valutazione delle regole DMN")
 public class DecisionsResource {
 
+    @Inject
+    CompetenzaService competenza;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.decisioni.max-richieste-batch", defaultValue = "10000")
+    int maxRichiesteBatch;
+
+    private Timer valutazioneSingola;
+    private Timer valutazioneBlocco;
+    private Counter competenti;
+    private Counter nonCompetenti;
+
+    @PostConstruct
+    void registraMetriche() {
+        valutazioneSingola = valutazione("singola");
+        valutazioneBlocco = valutazione("blocco");
+        competenti = esiti(true);
+        nonCompetenti = esiti(false);
+    }
+
     /**
-     * Restituisce la lista delle decision table DMN disponibili nel motore Kogito.
-     * Include nome, versione, numero di regole e data di ultima modifica.
+     * Restituisce la lista delle decision table DMN caricate.
+     * Include nome, versione (impronta del file), numero di regole e data di ultimo caricamento.
      *
      * @return lista delle decision table DMN disponibili
      */
     @GET
-    @Operation(summary = "Recupera la lista delle regole DMN disponibili nel motore Kogito")
+    @Operation(summary = "Recupera la lista delle regole DMN caricate")
     public Response listaDMN() {
-        // Elenco delle regole DMN caricate nel motore Kogito
-        List<Map<String, Object>> decisioni = List.of(
-            Map.of(
-                "id", "verifica-competenza",
-                "nome", "verifica-competenza.dmn",
-                "versione", "1.0",
-                "numeroRegole", 3,
-                "ultimaModifica", "2026-01-01T00:00:00",
-                "descrizione", "Verifica la competenza del dirigente in base al livello e all'importo",
-                "inputs", List.of("Livello Dirigente", "Importo"),
-                "outputs", List.of("Competente", "Motivazione"),
-                "regole", List.of(
-                    Map.of("Livello Dirigente", "D1", "Importo", "<= 5000", "Competente", "true", "Motivazione", "D1 competente fino a \u20ac5.000"),
-                    Map.of("Livello Dirigente", "D2", "Importo", "<= 25000", "Competente", "true", "Motivazione", "D2 competente fino a \u20ac25.000"),
-                    Map.of("Livello Dirigente", "D3", "Importo", "<= 100000", "Competente", "true", "Motivazione", "D3 competente fino a \u20ac100.000")
-                )
-            )
-        );
-        return Response.ok(decisioni).build();
+        ModelloCompetenza modello = competenza.modello();
+        Map<String, Object> decisione = new LinkedHashMap<>();
+        decisione.put("id", modello.id());
+        decisione.put("nome", modello.origine());
+        decisione.put("versione", modello.impronta());
+        decisione.put("numeroRegole", modello.regole().size());
+        decisione.put("ultimaModifica", modello.caricatoIl().toString());
+        decisione.put("descrizione", modello.nome());
+        decisione.put("inputs", modello.inputs());
+        decisione.put("outputs", modello.outputs());
+        decisione.put("regole", modello.regole());
+        return Response.ok(List.of(decisione)).build();
+    }
+
+    /**
+     * Verifica la competenza del dirigente per una determinazione.
+     *
+     * @param richiesta livello del dirigente e importo
+     * @return esito con motivazione e regola applicata
+     */
+    @POST
+    @Path("/verifica-competenza")
+    @Operation(summary = "Verifica la competenza del dirigente per livello e importo")
+    public EsitoCompetenza verificaCompetenza(RichiestaCompetenza richiesta) {
+        long inizio = System.nanoTime();
+        EsitoCompetenza esito = competenza.valuta(richiesta.livelloDirigente(), richiesta.importo());
+        valutazioneSingola.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        (esito.competente() ? competenti : nonCompetenti).increment();
+        return esito;
+    }
+
+    /**
+     * Verifica la competenza per un blocco di determinazioni in un'unica chiamata.
+     *
+     * @param richieste determinazioni da valutare
+     * @return esiti nello stesso ordine delle richieste
+     */
+    @POST
+    @Path("/verifica-competenza/batch")
+    @Operation(summary = "Verifica la competenza per un blocco di determinazioni")
+    public Response verificaCompetenzaBatch(List<RichiestaCompetenza> richieste) {
+        if (richieste == null || richieste.size() > maxRichiesteBatch) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Fornire da 0 a " + maxRichiesteBatch + " richieste"))
+                    .build();
+        }
+        long inizio = System.nanoTime();
+        List<EsitoCompetenza> esiti = competenza.valuta(richieste);
+        valutazioneBlocco.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        long numeroCompetenti = 0;
+        for (EsitoCompetenza esito : esiti) {
+            if (esito.competente()) {
+                numeroCompetenti++;
+            }
+        }
+        competenti.increment(numeroCompetenti);
+        nonCompetenti.increment(esiti.size() - numeroCompetenti);
+        return Response.ok(esiti).build();
+    }
+
+    /**
+     * Ricompila il modello DMN dalla sua sorgente, ad esempio dopo una modifica nel KIE Sandbox.
+     *
+     * @return la voce aggiornata dell'elenco decisioni
+     */
+    @POST
+    @Path("/ricarica")
+    @RolesAllowed("admin")
+    @Operation(summary = "Ricarica il modello DMN di verifica competenza")
+    public Response ricarica() {
+        try {
+            competenza.ricarica();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+        return listaDMN();
+    }
+
+    private Timer valutazione(String modalita) {
+        return Timer.builder("atti.competenza.valutazione")
+                .description("Durata della valutazione DMN di competenza, singola o per blocco")
+                .tag("modalita", modalita)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Counter esiti(boolean competente) {
+        return Counter.builder("atti.competenza.esiti")
+                .description("Determinazioni valutate per esito della verifica di competenza")
+                .tag("competente", String.valueOf(competente))
+                .register(registry);
     }
 }
@@ -1,58 +1,191 @@
 package it.gov.atti.resources;
 
 import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.FiltroDeterminazioni;
+import it.gov.atti.model.FiltroRicerca;
+import it.gov.atti.model.PaginaDeterminazioni;
+import it.gov.atti.model.RichiestaTransizioni;
+import it.gov.atti.model.StatoDeterminazione;
 import it.gov.atti.services.DeterminazioneService;
+import it.gov.atti.services.RicercaDeterminazioni;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.inject.Inject;
+import jakarta.persistence.OptimisticLockException;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.jwt.JsonWebToken;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.tags.Tag;
 
+import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
 
 /**
  * REST resource per la gestione delle determinazioni dirigenziali.
  * Tutte le operazioni richiedono autenticazione OIDC tramite Keycloak.
+ * Le chiamate Panache sono bloccanti e girano su thread virtuali: l'attesa del database non occupa
+ * un thread del worker pool. La scelta è fissata in build: il pacchetto costruito con
+ * {@code mvn package -DworkerPool} le esegue sul worker pool.
  */
 @Path("/determinazioni")
 @Produces(MediaType.APPLICATION_JSON)
 @Consumes(MediaType.APPLICATION_JSON)
 @Tag(name = "Determinazioni", description = "API per la gestione delle determinazioni dirigenziali")
+@RunOnVirtualThread
 public class DeterminazioneResource {
 
+    /** Header con il cursore della pagina successiva dell'elenco */
+    static final String HEADER_CURSORE = "X-Cursore-Successivo";
+
+    /** Dimensione massima di una pagina dell'elenco */
+    static final int LIMITE_MASSIMO = 200;
+
+    /** Corrispondenze massime restituite da una ricerca */
+    static final int LIMITE_RICERCA = 100;
+
     @Inject
     DeterminazioneService service;
 
+    @Inject
+    RicercaDeterminazioni ricerca;
+
+    @ConfigProperty(name = "atti.determinazioni.max-elementi-batch", defaultValue = "1000")
+    int maxElementiBatch;
+
     /** Token JWT dell'utente autenticato */
     @Inject
     JsonWebToken jwt;
 
     /**
      * Crea una nuova determinazione e avvia il processo Kogito.
-     * Richiede ruolo istruttore o dirigente.
+     * Richiede ruolo istruttore o dirigente. Dati non validi (oggetto mancante, importo mancante o
+     * negativo) danno 400.
      */
     @POST
     @RolesAllowed({"istruttore", "dirigente"})
     @Operation(summary = "Crea una nuova determinazione dirigenziale")
     public Response crea(Determinazione determinazione) {
-        String utente = jwt.getName();
-        determinazione.dirigente = utente;
-        Determinazione creata = service.crea(determinazione);
-        return Response.status(Response.Status.CREATED).entity(creata).build();
+        if (determinazione == null) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Determinazione mancante"))
+                    .build();
+        }
+        determinazione.dirigente = jwt.getName();
+        try {
+            Determinazione creata = service.crea(determinazione);
+            return Response.status(Response.Status.CREATED).entity(creata).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+    }
+
+    /**
+     * Crea più determinazioni in una sola transazione, ad esempio per il caricamento di un elenco.
+     * Richiede ruolo istruttore o dirigente. Gli elementi non validi sono riportati nell'esito
+     * senza bloccare gli altri.
+     *
+     * @param determinazioni dati delle nuove determinazioni
+     * @return esito per ogni elemento, nell'ordine della richiesta
+     */
+    @POST
+    @Path("/batch")
+    @RolesAllowed({"istruttore", "dirigente"})
+    @Operation(summary = "Crea più determinazioni dirigenziali")
+    public Response creaTutte(List<Determinazione> determinazioni) {
+        if (determinazioni == null || determinazioni.size() > maxElementiBatch) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Fornire da 0 a " + maxElementiBatch + " determinazioni"))
+                    .build();
+        }
+        return Response.ok(service.creaTutte(determinazioni, jwt.getName())).build();
+    }
+
+    /**
+     * Restituisce una pagina dell'elenco delle determinazioni in sintesi, dalla più recente.
+     * Il cursore della pagina successiva è restituito nell'header {@value #HEADER_CURSORE},
+     * assente sull'ultima pagina. Richiede autenticazione.
+     *
+     * @param stato       filtro per stato (opzionale)
+     * @param centroSpesa filtro per centro di spesa (opzionale)
+     * @param dirigente   filtro per dirigente (opzionale)
+     * @param da          data di creazione minima, formato ISO (opzionale)
+     * @param a           data di creazione massima, formato ISO (opzionale)
+     * @param cursore     cursore della pagina precedente (opzionale)
+     * @param limite      dimensione della pagina, massimo {@value #LIMITE_MASSIMO}
+     */
+    @GET
+    @Operation(summary = "Recupera una pagina dell'elenco delle determinazioni")
+    public Response lista(
+            @QueryParam("stato") String stato,
+            @QueryParam("centroSpesa") String centroSpesa,
+            @QueryParam("dirigente") String dirigente,
+            @QueryParam("da") LocalDate da,
+            @QueryParam("a") LocalDate a,
+            @QueryParam("cursore") String cursore,
+            @QueryParam("limite") @DefaultValue("50") int limite) {
+        if (limite < 1 || limite > LIMITE_MASSIMO) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Il parametro 'limite' deve essere compreso tra 1 e " + LIMITE_MASSIMO))
+                    .build();
+        }
+        PaginaDeterminazioni pagina;
+        try {
+            pagina = service.trovaPagina(
+                    new FiltroDeterminazioni(stato, centroSpesa, dirigente, da, a), cursore, limite);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+        Response.ResponseBuilder risposta = Response.ok(pagina.elementi());
+        if (pagina.cursoreSuccessivo() != null) {
+            risposta.header(HEADER_CURSORE, pagina.cursoreSuccessivo());
+        }
+        return risposta.build();
     }
 
     /**
-     * Restituisce la lista di tutte le determinazioni.
+     * Ricerca testuale sulle determinazioni per oggetto, numero e centro di spesa, con le più
+     * rilevanti per prime. Il risultato contiene le faccette (stato, centroSpesa, livelloDirigente,
+     * anno) calcolate su tutte le corrispondenze e l'oggetto con i termini trovati evidenziati.
      * Richiede autenticazione.
+     *
+     * @param q                testo da cercare: parole, "frase esatta", -parola esclusa, OR
+     * @param stato            faccetta stato (opzionale)
+     * @param centroSpesa      faccetta centro di spesa (opzionale)
+     * @param livelloDirigente faccetta livello del dirigente (opzionale)
+     * @param anno             faccetta anno di creazione (opzionale)
+     * @param limite           corrispondenze da restituire, massimo {@value #LIMITE_RICERCA}
      */
     @GET
-    @Operation(summary = "Recupera la lista di tutte le determinazioni")
-    public List<Determinazione> lista() {
-        return service.trovaTutte();
+    @Path("/ricerca")
+    @Operation(summary = "Ricerca testuale con faccette sulle determinazioni")
+    public Response cerca(
+            @QueryParam("q") String q,
+            @QueryParam("stato") String stato,
+            @QueryParam("centroSpesa") String centroSpesa,
+            @QueryParam("livelloDirigente") String livelloDirigente,
+            @QueryParam("anno") Integer anno,
+            @QueryParam("limite") @DefaultValue("20") int limite) {
+        if (limite < 1 || limite > LIMITE_RICERCA) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Il parametro 'limite' deve essere compreso tra 1 e " + LIMITE_RICERCA))
+                    .build();
+        }
+        try {
+            return Response.ok(ricerca.cerca(
+                    new FiltroRicerca(q, stato, centroSpesa, livelloDirigente, anno), limite)).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
     }
 
     /**
@@ -72,12 +205,31 @@ public class DeterminazioneResource {
         return Response.ok(det).build();
     }
 
+    /**
+     * Restituisce il dettaglio di una determinazione per numero di registro.
+     * Richiede autenticazione.
+     *
+     * @param numero numero di registro, es. DET-2026-001
+     */
+    @GET
+    @Path("/numero/{numero}")
+    @Operation(summary = "Recupera una determinazione per numero di registro")
+    public Response perNumero(@PathParam("numero") String numero) {
+        Determinazione det = service.trovaPerNumero(numero);
+        if (det == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(det).build();
+    }
+
     /**
      * Aggiorna lo stato di una determinazione.
-     * Richiede ruolo dirigente.
+     * Richiede ruolo dirigente. La transizione deve essere ammessa dallo stato corrente
+     * (vedi {@link StatoDeterminazione}); se la determinazione è stata modificata nel frattempo,
+     * o non è alla versione indicata, la risposta è 409 e il client deve rileggere e ritentare.
      *
      * @param id      identificativo della determinazione
-     * @param payload mappa contenente il campo "stato"
+     * @param payload mappa contenente il campo "stato" e, opzionale, la "versione" letta dal client
      */
     @PUT
     @Path("/{id}/stato")
@@ -90,7 +242,57 @@ public class DeterminazioneResource {
                     .entity(Map.of("errore", "Campo 'stato' obbligatorio"))
                     .build();
         }
-        Determinazione aggiornata = service.aggiornaStato(id, nuovoStato);
-        return Response.ok(aggiornata).build();
+        StatoDeterminazione stato;
+        Long versione;
+        try {
+            stato = StatoDeterminazione.da(nuovoStato);
+            versione = payload.get("versione") == null ? null : Long.valueOf(payload.get("versione"));
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+        try {
+            Determinazione aggiornata = service.aggiornaStato(id, stato, versione, jwt.getName());
+            return Response.ok(aggiornata).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.NOT_FOUND)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        } catch (IllegalStateException | OptimisticLockException e) {
+            return Response.status(Response.Status.CONFLICT)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+    }
+
+    /**
+     * Porta più determinazioni allo stesso stato in una sola transazione, ad esempio la firma
+     * di un elenco di atti. Richiede ruolo dirigente. Ogni elemento ha il proprio esito: le
+     * transizioni non ammesse o in conflitto non bloccano le altre.
+     *
+     * @param richiesta nuovo stato e determinazioni da aggiornare
+     * @return esito per ogni elemento, nell'ordine della richiesta
+     */
+    @PUT
+    @Path("/batch/stato")
+    @RolesAllowed("dirigente")
+    @Operation(summary = "Aggiorna lo stato di più determinazioni")
+    public Response aggiornaStati(RichiestaTransizioni richiesta) {
+        if (richiesta == null || richiesta.stato() == null || richiesta.determinazioni() == null
+                || richiesta.determinazioni().size() > maxElementiBatch) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", "Fornire 'stato' e da 0 a " + maxElementiBatch + " determinazioni"))
+                    .build();
+        }
+        StatoDeterminazione stato;
+        try {
+            stato = StatoDeterminazione.da(richiesta.stato());
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+        return Response.ok(service.aggiornaStati(stato, richiesta.determinazioni(), jwt.getName())).build();
     }
 }
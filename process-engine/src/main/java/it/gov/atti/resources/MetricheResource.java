@@ -0,0 +1,63 @@
+package it.gov.atti.resources;
+
+import it.gov.atti.model.MetricheDeterminazioni;
+import it.gov.atti.services.AggregatiDeterminazioni;
+import it.gov.atti.services.ArchivioDeterminazioni;
+import io.smallrye.common.annotation.NonBlocking;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.tags.Tag;
+
+import java.util.Map;
+
+/**
+ * REST resource con gli aggregati delle determinazioni per Dashboard e MetricheAdmin.
+ * I valori sono letti dalla memoria, senza query: la risposta è servita direttamente
+ * sull'event loop. Le statistiche storiche per anno sono invece calcolate dall'archivio.
+ */
+@Path("/metriche")
+@Produces(MediaType.APPLICATION_JSON)
+@Tag(name = "Metriche", description = "Aggregati delle determinazioni per le dashboard")
+public class MetricheResource {
+
+    @Inject
+    AggregatiDeterminazioni aggregati;
+
+    @Inject
+    ArchivioDeterminazioni archivio;
+
+    /**
+     * Numero di determinazioni per stato, centro di spesa e livello del dirigente, e importi
+     * per mese di creazione. Richiede autenticazione.
+     */
+    @GET
+    @NonBlocking
+    @Operation(summary = "Aggregati delle determinazioni")
+    public MetricheDeterminazioni metriche() {
+        return aggregati.metriche();
+    }
+
+    /**
+     * Statistiche sulle determinazioni archiviate create nell'anno indicato, per stato, centro di
+     * spesa, livello del dirigente e mese. Legge solo la partizione dell'anno nell'archivio.
+     * Richiede autenticazione.
+     */
+    @GET
+    @Path("/archivio/{anno}")
+    @Operation(summary = "Statistiche annuali delle determinazioni archiviate")
+    public Response statisticheArchivio(@PathParam("anno") int anno) {
+        try {
+            return Response.ok(archivio.statistiche(anno)).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity(Map.of("errore", e.getMessage()))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package it.gov.atti.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.MetricheDeterminazioni;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregati delle determinazioni per le dashboard (per stato, centro di spesa, livello del
+ * dirigente e mese di creazione), mantenuti in memoria e serviti da {@code GET /metriche}.
+ * <p>
+ * Gli aggregati sono aggiornati dagli eventi dell'outbox letti dal topic {@code atti.outbox.topic}:
+ * ogni replica si assegna tutte le partizioni del topic partendo dalla fine, senza gruppo di
+ * consumer, quindi vede anche le modifiche fatte dalle altre. Un thread dedicato ricalcola
+ * periodicamente gli aggregati dalla tabella con una sola GROUP BY, sommando il riepilogo delle
+ * determinazioni archiviate ({@code atti.metriche.intervallo-riconciliazione}), e sostituisce
+ * quelli in memoria: corregge eventi persi o duplicati oltre la memoria dei recenti. Lo
+ * scostamento trovato è esposto nella metrica {@code atti.metriche.riconciliazione.scostamento}.
+ * <p>
+ * Insieme alla GROUP BY, nello stesso snapshot REPEATABLE READ, è letta la filigrana dell'outbox:
+ * l'id massimo visibile e gli id inferiori non ancora visibili (transazioni in corso). Gli eventi
+ * letti durante il ricalcolo sono applicati agli aggregati in uso e anche conservati: alla
+ * sostituzione sono riapplicati agli aggregati ricalcolati solo quelli non compresi nella
+ * filigrana. Dopo la sostituzione gli eventi compresi nella filigrana, committati prima dello
+ * snapshot ma letti dal topic in ritardo, sono ignorati: sono già nel ricalcolo.
+ * <p>
+ * I conteggi per stato sono esposti anche come gauge {@code atti.determinazioni.stato}: ogni
+ * replica riporta il totale di tutte, quindi nelle query vanno aggregati con max e non sommati.
+ */
+@ApplicationScoped
+public class AggregatiDeterminazioni {
+
+    private static final Logger LOG = Logger.getLogger(AggregatiDeterminazioni.class);
+
+    /** Chiave dei gruppi con valore assente (centro di spesa o livello non indicati) */
+    static final String NON_INDICATO = "-";
+
+    private static final String HEADER_ID_EVENTO = "id-evento";
+
+    private static final String RICONCILIAZIONE = """
+            SELECT stato, centro_spesa, livello_dirigente, CAST(EXTRACT(YEAR FROM data_creazione) AS integer),
+                   CAST(EXTRACT(MONTH FROM data_creazione) AS integer), count(*), sum(importo)
+            FROM determinazioni GROUP BY 1, 2, 3, 4, 5""";
+
+    /** Gruppi delle determinazioni archiviate; centro di spesa e livello assenti sono stringhe vuote */
+    private static final String RIEPILOGO_ARCHIVIO = """
+
+            UNION ALL
+            SELECT stato, NULLIF(centro_spesa, ''), NULLIF(livello_dirigente, ''), anno, mese, numero, importo
+            FROM archivio.riepilogo""";
+
+    private static final String OUTBOX_MASSIMO = "SELECT coalesce(max(id), 0) FROM outbox_determinazioni";
+
+    /** Id non visibili nello snapshot nelle ultime {@link #FINESTRA_BUCHI} posizioni sotto il massimo */
+    private static final String OUTBOX_BUCHI = """
+            SELECT g FROM generate_series(greatest(:massimo - :finestra + 1, 1), :massimo) g
+            WHERE NOT EXISTS (SELECT 1 FROM outbox_determinazioni o WHERE o.id = g)""";
+
+    /** Id evento ricordati per riconoscere i duplicati */
+    private static final int MEMORIA_DUPLICATI = 10_000;
+
+    /**
+     * Id sotto il massimo dell'outbox in cui cercare le transazioni ancora in corso allo snapshot.
+     * L'id è assegnato all'INSERT, in fondo alla transazione, quindi quelle in corso hanno id vicini
+     * al massimo; un buco più in basso è considerato compreso e la riconciliazione successiva
+     * corregge l'eventuale evento perso.
+     */
+    private static final int FINESTRA_BUCHI = 10_000;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    ArchivioDeterminazioni archivio;
+
+    @ConfigProperty(name = "atti.metriche.eventi-kafka", defaultValue = "true")
+    boolean eventiKafka;
+
+    @ConfigProperty(name = "atti.metriche.intervallo-riconciliazione", defaultValue = "PT10M")
+    Duration intervalloRiconciliazione;
+
+    @ConfigProperty(name = "atti.outbox.topic", defaultValue = "determinazioni-eventi")
+    String topic;
+
+    @ConfigProperty(name = "kafka.bootstrap.servers", defaultValue = "localhost:9092")
+    String bootstrapServers;
+
+    /** Consumer Kafka; sostituibile con un MockConsumer nei test */
+    Consumer<String, String> consumer;
+
+    private volatile Aggregati aggregati = new Aggregati(false);
+    private volatile LocalDateTime ultimaRiconciliazione;
+    private final AtomicLong scostamento = new AtomicLong();
+    private final Map<String, Boolean> recenti = new LinkedHashMap<>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> piuVecchio) {
+            return size() > MEMORIA_DUPLICATI;
+        }
+    };
+    /** Eventi letti durante il ricalcolo in corso, null fuori dal ricalcolo; protetto da {@code this} */
+    private List<Letto> duranteRicalcolo;
+    /** Eventi dell'outbox compresi negli aggregati in uso; protetto da {@code this} */
+    private Filigrana filigrana = Filigrana.NESSUNA;
+    private Timer durataRiconciliazione;
+    private volatile boolean attivo;
+    private Thread ascolto;
+    private Thread riconciliazione;
+
+    void avvia(@Observes StartupEvent evento) {
+        registry.gauge("atti.metriche.riconciliazione.scostamento", scostamento, AtomicLong::get);
+        for (StatoDeterminazione stato : StatoDeterminazione.values()) {
+            Gauge.builder("atti.determinazioni.stato", this, a -> a.aggregati.perStato.get(stato).sum())
+                    .description("Determinazioni per stato, su tutte le repliche")
+                    .tag("stato", stato.name().toLowerCase(Locale.ROOT))
+                    .register(registry);
+        }
+        durataRiconciliazione = Timer.builder("atti.metriche.riconciliazione")
+                .description("Durata del ricalcolo degli aggregati dalla tabella determinazioni")
+                .register(registry);
+        attivo = true;
+        if (eventiKafka) {
+            if (consumer == null) {
+                consumer = new KafkaConsumer<>(configurazioneConsumer());
+            }
+            ascolto = new Thread(this::ascolta, "metriche-eventi");
+            ascolto.setDaemon(true);
+            ascolto.start();
+        }
+        riconciliazione = new Thread(this::cicloRiconciliazione, "metriche-riconciliazione");
+        riconciliazione.setDaemon(true);
+        riconciliazione.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (ascolto != null) {
+            consumer.wakeup();
+            ascolto.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (riconciliazione != null) {
+            riconciliazione.interrupt();
+        }
+    }
+
+    /** Fotografia corrente degli aggregati, con i gruppi in ordine di chiave */
+    public MetricheDeterminazioni metriche() {
+        Aggregati correnti = aggregati;
+        Map<StatoDeterminazione, Long> perStato = new EnumMap<>(StatoDeterminazione.class);
+        long totale = 0;
+        for (StatoDeterminazione stato : StatoDeterminazione.values()) {
+            long numero = correnti.perStato.get(stato).sum();
+            perStato.put(stato, numero);
+            totale += numero;
+        }
+        Map<String, Long> perLivello = new TreeMap<>();
+        correnti.perLivello.forEach((livello, numero) -> perLivello.put(livello, numero.sum()));
+        Map<String, MetricheDeterminazioni.Totali> perMese = new TreeMap<>();
+        correnti.perMese.forEach((mese, totali) -> perMese.put(mese.toString(), totali.fotografia()));
+        return new MetricheDeterminazioni(totale, perStato, totali(correnti.perCentroSpesa), perLivello, perMese,
+                ultimaRiconciliazione);
+    }
+
+    /**
+     * Applica agli aggregati un evento dell'outbox.
+     *
+     * @param evento evento di creazione o di cambio di stato
+     */
+    void applica(EventoDeterminazione evento) {
+        applica(null, evento);
+    }
+
+    /**
+     * Applica l'evento agli aggregati in uso, se non è già compreso nel loro ricalcolo, e se è in
+     * corso un ricalcolo lo conserva per riapplicarlo agli aggregati ricalcolati.
+     *
+     * @param idOutbox id della riga di outbox dell'evento, null se non noto
+     */
+    synchronized void applica(Long idOutbox, EventoDeterminazione evento) {
+        if (!filigrana.comprende(idOutbox)) {
+            aggiorna(aggregati, evento);
+        }
+        if (duranteRicalcolo != null) {
+            duranteRicalcolo.add(new Letto(idOutbox, evento));
+        }
+    }
+
+    private static void aggiorna(Aggregati correnti, EventoDeterminazione evento) {
+        StatoDeterminazione stato = StatoDeterminazione.da(evento.stato());
+        if (EventoDeterminazione.CREATA.equals(evento.tipo())) {
+            double importo = evento.importo() == null ? 0 : evento.importo();
+            correnti.perStato.get(stato).increment();
+            correnti.perCentroSpesa.computeIfAbsent(chiave(evento.centroSpesa()), c -> new Contatori()).aggiungi(1, importo);
+            correnti.perLivello.computeIfAbsent(chiave(evento.livelloDirigente()), l -> new LongAdder()).increment();
+            LocalDateTime creazione = evento.dataCreazione() != null ? evento.dataCreazione() : evento.timestamp();
+            correnti.perMese.computeIfAbsent(YearMonth.from(creazione), m -> new Contatori()).aggiungi(1, importo);
+        } else if (EventoDeterminazione.STATO_AGGIORNATO.equals(evento.tipo()) && evento.statoPrecedente() != null) {
+            correnti.perStato.get(StatoDeterminazione.da(evento.statoPrecedente())).decrement();
+            correnti.perStato.get(stato).increment();
+        }
+    }
+
+    /**
+     * Ricalcola gli aggregati dalla tabella con una sola scansione, più il riepilogo delle
+     * determinazioni archiviate, vi riapplica gli eventi letti nel frattempo e non compresi nello
+     * snapshot, e li sostituisce a quelli in memoria.
+     */
+    void riconcilia() {
+        long inizio = System.nanoTime();
+        riconcilia(() -> QuarkusTransaction.requiringNew().run(this::ricalcola));
+        durataRiconciliazione.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Esegue il ricalcolo conservando gli eventi letti nel frattempo.
+     *
+     * @param ricalcolo lettura dello snapshot, che termina con {@link #sostituisci}
+     */
+    void riconcilia(Runnable ricalcolo) {
+        synchronized (this) {
+            duranteRicalcolo = new ArrayList<>();
+        }
+        try {
+            ricalcolo.run();
+        } finally {
+            synchronized (this) {
+                duranteRicalcolo = null;
+            }
+        }
+    }
+
+    /** Lettura dello snapshot, in una transazione REPEATABLE READ */
+    private void ricalcola() {
+        EntityManager em = Determinazione.getEntityManager();
+        em.createNativeQuery("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ").executeUpdate();
+        // tabella, riepilogo dell'archivio e filigrana dell'outbox sono letti dallo stesso snapshot
+        String sql = archivio.disponibile() ? RICONCILIAZIONE + RIEPILOGO_ARCHIVIO : RICONCILIAZIONE;
+        List<?> gruppi = em.createNativeQuery(sql).getResultList();
+        long massimo = ((Number) em.createNativeQuery(OUTBOX_MASSIMO).getSingleResult()).longValue();
+        Set<Long> buchi = new HashSet<>();
+        for (Object id : em.createNativeQuery(OUTBOX_BUCHI)
+                .setParameter("massimo", massimo)
+                .setParameter("finestra", FINESTRA_BUCHI)
+                .getResultList()) {
+            buchi.add(((Number) id).longValue());
+        }
+        sostituisci(gruppi, new Filigrana(massimo, buchi));
+    }
+
+    /**
+     * Costruisce gli aggregati dai gruppi della GROUP BY, vi riapplica gli eventi letti durante il
+     * ricalcolo e non compresi nella filigrana, e li sostituisce a quelli in uso.
+     *
+     * @param gruppi righe (stato, centro di spesa, livello, anno, mese, numero, importo)
+     * @param compresi eventi dell'outbox visibili nello snapshot dei gruppi
+     */
+    void sostituisci(List<?> gruppi, Filigrana compresi) {
+        Aggregati ricalcolati = new Aggregati(true);
+        for (Object riga : gruppi) {
+            Object[] gruppo = (Object[]) riga;
+            long numero = ((Number) gruppo[5]).longValue();
+            double importo = gruppo[6] == null ? 0 : ((Number) gruppo[6]).doubleValue();
+            if (gruppo[0] != null) {
+                ricalcolati.perStato.get(StatoDeterminazione.valueOf((String) gruppo[0])).add(numero);
+            }
+            ricalcolati.perCentroSpesa.computeIfAbsent(chiave((String) gruppo[1]), c -> new Contatori()).aggiungi(numero, importo);
+            ricalcolati.perLivello.computeIfAbsent(chiave((String) gruppo[2]), l -> new LongAdder()).add(numero);
+            if (gruppo[3] != null) {
+                YearMonth mese = YearMonth.of(((Number) gruppo[3]).intValue(), ((Number) gruppo[4]).intValue());
+                ricalcolati.perMese.computeIfAbsent(mese, m -> new Contatori()).aggiungi(numero, importo);
+            }
+        }
+        Aggregati precedenti;
+        // sotto lock nessun evento può arrivare tra la riapplicazione e la sostituzione
+        synchronized (this) {
+            if (duranteRicalcolo != null) {
+                for (Letto letto : duranteRicalcolo) {
+                    if (!compresi.comprende(letto.idOutbox())) {
+                        aggiorna(ricalcolati, letto.evento());
+                    }
+                }
+            }
+            precedenti = aggregati;
+            aggregati = ricalcolati;
+            filigrana = compresi;
+        }
+        ultimaRiconciliazione = LocalDateTime.now();
+        long differenza = 0;
+        for (StatoDeterminazione stato : StatoDeterminazione.values()) {
+            differenza += Math.abs(ricalcolati.perStato.get(stato).sum() - precedenti.perStato.get(stato).sum());
+        }
+        scostamento.set(differenza);
+        if (differenza > 0 && precedenti.inizializzati) {
+            LOG.infof("Riconciliazione degli aggregati: scostamento di %d determinazioni per stato", differenza);
+        }
+    }
+
+    private void cicloRiconciliazione() {
+        while (attivo) {
+            try {
+                riconcilia();
+                Thread.sleep(intervalloRiconciliazione.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOG.warnf(e, "Riconciliazione degli aggregati fallita, nuovo tentativo tra 30 secondi");
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException interrotto) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void ascolta() {
+        try {
+            if (!assegnaPartizioni()) {
+                return;
+            }
+            while (attivo) {
+                for (ConsumerRecord<String, String> messaggio : consumer.poll(Duration.ofSeconds(1))) {
+                    Header intestazione = messaggio.headers().lastHeader(HEADER_ID_EVENTO);
+                    String id = intestazione == null ? null : new String(intestazione.value(), StandardCharsets.UTF_8);
+                    if (id != null && recenti.put(id, Boolean.TRUE) != null) {
+                        continue;
+                    }
+                    try {
+                        applica(id == null ? null : Long.valueOf(id),
+                                objectMapper.readValue(messaggio.value(), EventoDeterminazione.class));
+                    } catch (JsonProcessingException | IllegalArgumentException e) {
+                        LOG.warnf("Evento di determinazione non applicabile agli aggregati: %s", e.getMessage());
+                    }
+                }
+            }
+        } catch (WakeupException e) {
+            // arresto dell'applicazione
+        } catch (RuntimeException e) {
+            LOG.error("Lettura degli eventi per gli aggregati interrotta: aggiornati solo dalla riconciliazione", e);
+        } finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Assegna al consumer tutte le partizioni del topic, posizionato alla fine: gli eventi
+     * precedenti sono già nella prima riconciliazione. Attende che il topic esista.
+     *
+     * @return false se l'applicazione si arresta prima
+     */
+    private boolean assegnaPartizioni() {
+        while (attivo) {
+            List<TopicPartition> partizioni = consumer.partitionsFor(topic).stream()
+                    .map(partizione -> new TopicPartition(topic, partizione.partition()))
+                    .toList();
+            if (!partizioni.isEmpty()) {
+                consumer.assign(partizioni);
+                consumer.seekToEnd(partizioni);
+                return true;
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String chiave(String valore) {
+        return valore == null || valore.isBlank() ? NON_INDICATO : valore;
+    }
+
+    private static Map<String, MetricheDeterminazioni.Totali> totali(Map<String, Contatori> gruppi) {
+        Map<String, MetricheDeterminazioni.Totali> fotografia = new TreeMap<>();
+        gruppi.forEach((chiave, contatori) -> fotografia.put(chiave, contatori.fotografia()));
+        return fotografia;
+    }
+
+    private Properties configurazioneConsumer() {
+        Properties proprieta = new Properties();
+        proprieta.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        // partizioni assegnate senza gruppo: nessun offset confermato, nessun gruppo lasciato sul broker
+        proprieta.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        proprieta.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        proprieta.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        return proprieta;
+    }
+
+    /** Evento letto durante un ricalcolo, con l'id della sua riga di outbox */
+    private record Letto(Long idOutbox, EventoDeterminazione evento) {
+    }
+
+    /**
+     * Eventi dell'outbox visibili in uno snapshot: gli id fino a {@code massimo}, esclusi i
+     * {@code buchi} (transazioni non ancora committate o annullate). Gli eventi senza id non sono
+     * mai compresi.
+     */
+    record Filigrana(long massimo, Set<Long> buchi) {
+
+        static final Filigrana NESSUNA = new Filigrana(0, Set.of());
+
+        boolean comprende(Long idOutbox) {
+            return idOutbox != null && idOutbox <= massimo && !buchi.contains(idOutbox);
+        }
+    }
+
+    /** Aggregati sostituiti in blocco a ogni riconciliazione */
+    private static final class Aggregati {
+        final Map<StatoDeterminazione, LongAdder> perStato = new EnumMap<>(StatoDeterminazione.class);
+        final ConcurrentMap<String, Contatori> perCentroSpesa = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, LongAdder> perLivello = new ConcurrentHashMap<>();
+        final ConcurrentMap<YearMonth, Contatori> perMese = new ConcurrentHashMap<>();
+        /** false solo per gli aggregati vuoti prima della prima riconciliazione */
+        final boolean inizializzati;
+
+        Aggregati(boolean inizializzati) {
+            this.inizializzati = inizializzati;
+            for (StatoDeterminazione stato : StatoDeterminazione.values()) {
+                perStato.put(stato, new LongAdder());
+            }
+        }
+    }
+
+    /** Numero e importo totale di un gruppo, aggiornabili senza lock */
+    private static final class Contatori {
+        final LongAdder numero = new LongAdder();
+        final DoubleAdder importo = new DoubleAdder();
+
+        void aggiungi(long quanti, double totale) {
+            numero.add(quanti);
+            importo.add(totale);
+        }
+
+        MetricheDeterminazioni.Totali fotografia() {
+            return new MetricheDeterminazioni.Totali(numero.sum(), importo.sum());
+        }
+    }
+}
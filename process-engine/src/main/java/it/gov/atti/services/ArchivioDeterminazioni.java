@@ -0,0 +1,497 @@
+package it.gov.atti.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.MetricheDeterminazioni;
+import it.gov.atti.model.StatisticheArchivio;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.PersistenceException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Archivio delle determinazioni chiuse (stati finali di {@link StatoDeterminazione}).
+ * <p>
+ * Una determinazione pubblicata o rifiutata non cambia più: dopo {@code atti.archivio.eta-minima}
+ * dall'ultimo cambio di stato un thread dedicato la sposta dalla tabella 'determinazioni' alla
+ * tabella {@code archivio.determinazioni}, partizionata per anno di creazione. Lo spostamento è
+ * una sola istruzione (DELETE ... RETURNING seguito da INSERT) per blocchi di
+ * {@code atti.archivio.dimensione-batch} righe, che aggiorna nella stessa transazione il riepilogo
+ * {@code archivio.riepilogo} usato dagli aggregati delle dashboard. Con più repliche un solo
+ * blocco alla volta è spostato, tramite un advisory lock di transazione.
+ * <p>
+ * La partizione di un anno riceve il grosso delle righe finché gli atti creati nell'anno e chiusi
+ * entro l'anno diventano archiviabili, cioè fino a {@code eta-minima} dopo la fine dell'anno; da
+ * allora è considerata chiusa e congelata una sola volta con VACUUM FREEZE, così che i vacuum
+ * successivi ne saltino le pagine. Nulla impedisce però altre scritture: un atto dell'anno rimasto
+ * aperto a lungo vi arriva più tardi. {@code archivio.partizioni} registra per anno l'ultimo
+ * spostamento e l'ultimo congelamento, e una partizione chiusa è congelata di nuovo solo se ha
+ * ricevuto righe dopo il congelamento. La tabella calda conserva così solo gli atti in lavorazione
+ * o chiusi di recente, con indici e scansioni proporzionati.
+ * <p>
+ * Le letture per id e per numero di registro ricadono sull'archivio quando la tabella calda non
+ * trova la determinazione; le statistiche storiche per anno leggono solo la partizione dell'anno.
+ */
+@ApplicationScoped
+public class ArchivioDeterminazioni {
+
+    private static final Logger LOG = Logger.getLogger(ArchivioDeterminazioni.class);
+
+    /** Schema dell'archivio */
+    public static final String SCHEMA = "archivio";
+
+    /** Chiave dell'advisory lock che serializza lo spostamento tra le repliche */
+    private static final long CHIAVE_LOCK = 0x61726368697669L;
+
+    private static final String COLONNE = "id, numero, oggetto, importo, centro_spesa, dirigente, livello_dirigente, "
+            + "stato, data_creazione, data_pubblicazione, stato_dal, process_instance_id, versione";
+
+    /** Stati dopo i quali una determinazione non è più modificata */
+    private static final String STATI_FINALI = Arrays.stream(StatoDeterminazione.values())
+            .filter(StatoDeterminazione::finale)
+            .map(stato -> "'" + stato.name() + "'")
+            .collect(Collectors.joining(", "));
+
+    private static final String[] SCHEMA_ARCHIVIO = {
+            "CREATE SCHEMA IF NOT EXISTS " + SCHEMA,
+            """
+            CREATE TABLE IF NOT EXISTS archivio.determinazioni (
+                id bigint NOT NULL,
+                numero varchar(255),
+                oggetto text,
+                importo float8,
+                centro_spesa varchar(255),
+                dirigente varchar(255),
+                livello_dirigente varchar(255),
+                stato varchar(255) NOT NULL,
+                data_creazione timestamp(6) NOT NULL,
+                data_pubblicazione timestamp(6),
+                stato_dal timestamp(6),
+                process_instance_id varchar(255),
+                versione bigint,
+                archiviata_il timestamp(6) NOT NULL,
+                PRIMARY KEY (id, data_creazione)
+            ) PARTITION BY RANGE (data_creazione)""",
+            "CREATE INDEX IF NOT EXISTS idx_archivio_determinazioni_numero ON archivio.determinazioni (numero)",
+            """
+            CREATE TABLE IF NOT EXISTS archivio.riepilogo (
+                stato varchar(255) NOT NULL,
+                centro_spesa varchar(255) NOT NULL,
+                livello_dirigente varchar(255) NOT NULL,
+                anno integer NOT NULL,
+                mese integer NOT NULL,
+                numero bigint NOT NULL,
+                importo float8 NOT NULL,
+                PRIMARY KEY (stato, centro_spesa, livello_dirigente, anno, mese)
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS archivio.partizioni (
+                anno integer PRIMARY KEY,
+                scritta_il timestamp(6) NOT NULL,
+                congelata_il timestamp(6)
+            )""",
+            // partizioni create prima del registro: congelate al primo ciclo se chiuse
+            "INSERT INTO archivio.partizioni (anno, scritta_il) SELECT DISTINCT anno, now() FROM archivio.riepilogo "
+                    + "ON CONFLICT (anno) DO NOTHING"
+    };
+
+    private static final String CANDIDATE = "SELECT id, CAST(EXTRACT(YEAR FROM data_creazione) AS integer) "
+            + "FROM determinazioni WHERE stato IN (" + STATI_FINALI + ") AND data_creazione IS NOT NULL "
+            + "AND COALESCE(stato_dal, data_pubblicazione, data_creazione) < ? "
+            + "LIMIT ? FOR UPDATE SKIP LOCKED";
+
+    /**
+     * Sposta le righe indicate e ne somma numero e importi nel riepilogo; centro di spesa e livello
+     * assenti sono registrati come stringa vuota, perché fanno parte della chiave.
+     */
+    private static final String SPOSTA = """
+            WITH spostate AS (
+                DELETE FROM determinazioni WHERE id = ANY(?) RETURNING %1$s
+            ), archiviate AS (
+                INSERT INTO archivio.determinazioni (%1$s, archiviata_il) SELECT %1$s, now() FROM spostate
+            )
+            INSERT INTO archivio.riepilogo AS r (stato, centro_spesa, livello_dirigente, anno, mese, numero, importo)
+            SELECT stato, COALESCE(centro_spesa, ''), COALESCE(livello_dirigente, ''),
+                   EXTRACT(YEAR FROM data_creazione), EXTRACT(MONTH FROM data_creazione),
+                   count(*), COALESCE(sum(importo), 0)
+            FROM spostate GROUP BY 1, 2, 3, 4, 5
+            ON CONFLICT (stato, centro_spesa, livello_dirigente, anno, mese)
+            DO UPDATE SET numero = r.numero + EXCLUDED.numero, importo = r.importo + EXCLUDED.importo""".formatted(COLONNE);
+
+    /** Registra lo spostamento di righe nelle partizioni degli anni indicati */
+    private static final String SCRITTE = "INSERT INTO archivio.partizioni (anno, scritta_il) SELECT unnest(?), now() "
+            + "ON CONFLICT (anno) DO UPDATE SET scritta_il = EXCLUDED.scritta_il";
+
+    /** Partizioni chiuse mai congelate o che hanno ricevuto righe dopo l'ultimo congelamento */
+    private static final String DA_CONGELARE = "SELECT anno FROM archivio.partizioni WHERE anno <= ? "
+            + "AND (congelata_il IS NULL OR congelata_il < scritta_il) ORDER BY anno";
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.archivio.abilitato", defaultValue = "true")
+    boolean abilitato;
+
+    @ConfigProperty(name = "atti.archivio.eta-minima", defaultValue = "P365D")
+    Duration etaMinima;
+
+    @ConfigProperty(name = "atti.archivio.intervallo", defaultValue = "PT1H")
+    Duration intervallo;
+
+    @ConfigProperty(name = "atti.archivio.dimensione-batch", defaultValue = "1000")
+    int dimensioneBatch;
+
+    /** Anni con la partizione già creata */
+    private final Set<Integer> partizioni = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean disponibile;
+    private volatile boolean attivo;
+    private Thread thread;
+    private Counter archiviate;
+
+    void avvia(@Observes StartupEvent evento) {
+        if (!abilitato) {
+            return;
+        }
+        archiviate = Counter.builder("atti.archivio.archiviate")
+                .description("Determinazioni chiuse spostate nell'archivio")
+                .register(registry);
+        attivo = true;
+        thread = new Thread(this::ciclo, "archivio-determinazioni");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    private void ciclo() {
+        while (attivo) {
+            try {
+                if (!disponibile) {
+                    preparaSchema();
+                }
+                archivia();
+            } catch (RuntimeException e) {
+                LOG.warnf(e, "Archiviazione delle determinazioni fallita, nuovo tentativo tra %s", intervallo);
+            }
+            try {
+                Thread.sleep(intervallo.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * true se lo schema dell'archivio è pronto: fino ad allora le letture non lo interrogano.
+     */
+    public boolean disponibile() {
+        return disponibile;
+    }
+
+    /**
+     * Sposta nell'archivio tutte le determinazioni chiuse da più di {@code eta-minima}, a blocchi.
+     *
+     * @return determinazioni archiviate
+     */
+    long archivia() {
+        long inizio = System.nanoTime();
+        LocalDateTime limite = LocalDateTime.now().minus(etaMinima);
+        Set<Integer> anni = new TreeSet<>();
+        long totale = 0;
+        while (attivo) {
+            List<Integer> blocco = QuarkusTransaction.requiringNew().call(() -> spostaBlocco(limite));
+            totale += blocco.size();
+            anni.addAll(blocco);
+            if (blocco.size() < dimensioneBatch) {
+                break;
+            }
+        }
+        congela(ultimoAnnoChiuso(LocalDateTime.now()));
+        if (totale == 0) {
+            return 0;
+        }
+        archiviate.increment(totale);
+        LOG.infof("Archiviate %d determinazioni chiuse prima di %s in %d ms (anni %s)", totale, limite,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio), anni);
+        return totale;
+    }
+
+    /**
+     * Ultimo anno la cui partizione è chiusa: gli atti creati nell'anno e chiusi entro l'anno sono
+     * archiviabili da {@code eta-minima} dopo la sua fine.
+     */
+    int ultimoAnnoChiuso(LocalDateTime ora) {
+        return ora.minus(etaMinima).getYear() - 1;
+    }
+
+    /**
+     * Congela con VACUUM FREEZE le partizioni chiuse fino a {@code ultimoChiuso} non ancora congelate
+     * o scritte dopo l'ultimo congelamento, e ne registra l'istante. L'istante è letto prima del
+     * VACUUM, così le righe spostate nel frattempo fanno congelare di nuovo la partizione.
+     */
+    private void congela(int ultimoChiuso) {
+        List<Integer> anni = new ArrayList<>();
+        try (Connection connessione = dataSource.getConnection();
+             PreparedStatement daCongelare = connessione.prepareStatement(DA_CONGELARE)) {
+            connessione.setAutoCommit(true);
+            daCongelare.setInt(1, ultimoChiuso);
+            try (ResultSet rs = daCongelare.executeQuery()) {
+                while (rs.next()) {
+                    anni.add(rs.getInt(1));
+                }
+            }
+            for (int anno : anni) {
+                Timestamp inizio;
+                try (Statement statement = connessione.createStatement();
+                     ResultSet rs = statement.executeQuery("SELECT clock_timestamp()::timestamp")) {
+                    rs.next();
+                    inizio = rs.getTimestamp(1);
+                }
+                try (Statement statement = connessione.createStatement()) {
+                    statement.execute("VACUUM (FREEZE, ANALYZE) " + partizione(anno));
+                }
+                try (PreparedStatement congelata = connessione.prepareStatement(
+                        "UPDATE archivio.partizioni SET congelata_il = ? WHERE anno = ?")) {
+                    congelata.setTimestamp(1, inizio);
+                    congelata.setInt(2, anno);
+                    congelata.executeUpdate();
+                }
+                LOG.infof("Partizione %s congelata", partizione(anno));
+            }
+        } catch (SQLException e) {
+            LOG.warnf("Congelamento delle partizioni dell'archivio fallito: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Sposta un blocco di determinazioni nella transazione corrente.
+     *
+     * @return anno di creazione di ogni determinazione spostata; vuoto se non ce ne sono
+     *         o se un'altra replica sta archiviando
+     */
+    private List<Integer> spostaBlocco(LocalDateTime limite) throws SQLException {
+        try (Connection connessione = dataSource.getConnection()) {
+            try (Statement statement = connessione.createStatement();
+                 ResultSet lock = statement.executeQuery("SELECT pg_try_advisory_xact_lock(" + CHIAVE_LOCK + ")")) {
+                lock.next();
+                if (!lock.getBoolean(1)) {
+                    return List.of();
+                }
+            }
+            List<Long> ids = new ArrayList<>(dimensioneBatch);
+            List<Integer> anni = new ArrayList<>(dimensioneBatch);
+            try (PreparedStatement candidate = connessione.prepareStatement(CANDIDATE)) {
+                candidate.setTimestamp(1, Timestamp.valueOf(limite));
+                candidate.setInt(2, dimensioneBatch);
+                try (ResultSet rs = candidate.executeQuery()) {
+                    while (rs.next()) {
+                        ids.add(rs.getLong(1));
+                        anni.add(rs.getInt(2));
+                    }
+                }
+            }
+            if (ids.isEmpty()) {
+                return anni;
+            }
+            try (Statement statement = connessione.createStatement()) {
+                for (int anno : new TreeSet<>(anni)) {
+                    if (!partizioni.contains(anno)) {
+                        statement.execute("CREATE TABLE IF NOT EXISTS " + partizione(anno)
+                                + " PARTITION OF archivio.determinazioni FOR VALUES FROM ('" + LocalDate.of(anno, 1, 1)
+                                + "') TO ('" + LocalDate.of(anno + 1, 1, 1) + "') WITH (fillfactor = 100)");
+                        partizioni.add(anno);
+                    }
+                }
+            }
+            try (PreparedStatement sposta = connessione.prepareStatement(SPOSTA)) {
+                Array array = connessione.createArrayOf("bigint", ids.toArray());
+                sposta.setArray(1, array);
+                sposta.executeUpdate();
+            }
+            try (PreparedStatement scritte = connessione.prepareStatement(SCRITTE)) {
+                scritte.setArray(1, connessione.createArrayOf("integer", new TreeSet<>(anni).toArray()));
+                scritte.executeUpdate();
+            }
+            return anni;
+        } catch (SQLException e) {
+            // la partizione creata in questa transazione è annullata con essa
+            partizioni.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Determinazione archiviata per id.
+     *
+     * @return copia non gestita dall'EntityManager, o null se non è nell'archivio
+     */
+    public Determinazione perId(Long id) {
+        if (!disponibile) {
+            return null;
+        }
+        List<?> righe = Determinazione.getEntityManager()
+                .createNativeQuery("SELECT " + COLONNE + " FROM archivio.determinazioni WHERE id = :id")
+                .setParameter("id", id)
+                .getResultList();
+        return righe.isEmpty() ? null : determinazione((Object[]) righe.get(0));
+    }
+
+    /**
+     * Id di una determinazione archiviata per numero di registro, o null.
+     */
+    public Long idPerNumero(String numero) {
+        if (!disponibile) {
+            return null;
+        }
+        List<?> righe = Determinazione.getEntityManager()
+                .createNativeQuery("SELECT id FROM archivio.determinazioni WHERE numero = :numero")
+                .setParameter("numero", numero)
+                .getResultList();
+        return righe.isEmpty() ? null : ((Number) righe.get(0)).longValue();
+    }
+
+    /**
+     * Statistiche sulle determinazioni archiviate create in un anno: legge solo la partizione
+     * dell'anno, senza toccare la tabella calda.
+     *
+     * @throws IllegalStateException se l'archivio non è disponibile
+     */
+    public StatisticheArchivio statistiche(int anno) {
+        if (!disponibile) {
+            throw new IllegalStateException("Archivio delle determinazioni non disponibile");
+        }
+        List<?> righe = Determinazione.getEntityManager()
+                .createNativeQuery("SELECT stato, centro_spesa, livello_dirigente, "
+                        + "CAST(EXTRACT(MONTH FROM data_creazione) AS integer), count(*), sum(importo) "
+                        + "FROM archivio.determinazioni WHERE data_creazione >= :da AND data_creazione < :a "
+                        + "GROUP BY 1, 2, 3, 4")
+                .setParameter("da", LocalDate.of(anno, 1, 1).atStartOfDay())
+                .setParameter("a", LocalDate.of(anno + 1, 1, 1).atStartOfDay())
+                .getResultList();
+        Map<StatoDeterminazione, Long> perStato = new EnumMap<>(StatoDeterminazione.class);
+        Map<String, double[]> perCentroSpesa = new TreeMap<>();
+        Map<String, Long> perLivello = new TreeMap<>();
+        Map<String, double[]> perMese = new TreeMap<>();
+        long totale = 0;
+        double importoTotale = 0;
+        for (Object riga : righe) {
+            Object[] colonne = (Object[]) riga;
+            long numero = ((Number) colonne[4]).longValue();
+            double importo = colonne[5] == null ? 0 : ((Number) colonne[5]).doubleValue();
+            totale += numero;
+            importoTotale += importo;
+            perStato.merge(StatoDeterminazione.valueOf((String) colonne[0]), numero, Long::sum);
+            somma(perCentroSpesa, chiave((String) colonne[1]), numero, importo);
+            perLivello.merge(chiave((String) colonne[2]), numero, Long::sum);
+            somma(perMese, YearMonth.of(anno, ((Number) colonne[3]).intValue()).toString(), numero, importo);
+        }
+        return new StatisticheArchivio(anno, totale, importoTotale, perStato, totali(perCentroSpesa), perLivello,
+                totali(perMese));
+    }
+
+    /**
+     * Crea schema, tabella partizionata e riepilogo se mancano. Eseguito dal thread
+     * dell'archivio; le letture interrogano l'archivio solo dopo.
+     */
+    void preparaSchema() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            try (Connection connessione = dataSource.getConnection();
+                 Statement statement = connessione.createStatement()) {
+                statement.execute("SELECT pg_advisory_xact_lock(" + CHIAVE_LOCK + ")");
+                for (String ddl : SCHEMA_ARCHIVIO) {
+                    statement.execute(ddl);
+                }
+            } catch (SQLException e) {
+                throw new PersistenceException("DDL dell'archivio delle determinazioni fallito: " + e.getMessage(), e);
+            }
+        });
+        disponibile = true;
+    }
+
+    static String partizione(int anno) {
+        return "archivio.determinazioni_" + anno;
+    }
+
+    private static Determinazione determinazione(Object[] colonne) {
+        Determinazione det = new Determinazione();
+        det.id = ((Number) colonne[0]).longValue();
+        det.numero = (String) colonne[1];
+        det.oggetto = (String) colonne[2];
+        det.importo = colonne[3] == null ? null : ((Number) colonne[3]).doubleValue();
+        det.centroSpesa = (String) colonne[4];
+        det.dirigente = (String) colonne[5];
+        det.livelloDirigente = (String) colonne[6];
+        det.stato = StatoDeterminazione.valueOf((String) colonne[7]);
+        det.dataCreazione = dataOra(colonne[8]);
+        det.dataPubblicazione = dataOra(colonne[9]);
+        det.statoDal = dataOra(colonne[10]);
+        det.processInstanceId = (String) colonne[11];
+        det.versione = colonne[12] == null ? null : ((Number) colonne[12]).longValue();
+        return det;
+    }
+
+    private static LocalDateTime dataOra(Object valore) {
+        if (valore instanceof Timestamp timestamp) {
+            return timestamp.toLocalDateTime();
+        }
+        return (LocalDateTime) valore;
+    }
+
+    private static String chiave(String valore) {
+        return valore == null || valore.isBlank() ? AggregatiDeterminazioni.NON_INDICATO : valore;
+    }
+
+    private static void somma(Map<String, double[]> gruppi, String chiave, long numero, double importo) {
+        double[] totali = gruppi.computeIfAbsent(chiave, k -> new double[2]);
+        totali[0] += numero;
+        totali[1] += importo;
+    }
+
+    private static Map<String, MetricheDeterminazioni.Totali> totali(Map<String, double[]> gruppi) {
+        Map<String, MetricheDeterminazioni.Totali> fotografia = new TreeMap<>();
+        gruppi.forEach((chiave, totali) -> fotografia.put(chiave,
+                new MetricheDeterminazioni.Totali((long) totali[0], totali[1])));
+        return fotografia;
+    }
+}
@@ -0,0 +1,236 @@
+package it.gov.atti.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.Determinazione;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Cache in memoria delle determinazioni per id e per numero di registro.
+ * <p>
+ * Le letture passano da {@link Cache#get}: richieste concorrenti per lo stesso id caricano la
+ * determinazione una sola volta, e un'invalidazione arrivata durante il caricamento attende che
+ * termini prima di rimuovere la voce, così un valore letto prima del commit non sopravvive
+ * all'invalidazione. Il numero di registro non cambia dopo la creazione, quindi la cache per numero
+ * conserva solo l'id e rimanda alla cache per id; scade comunque dopo la stessa durata.
+ * <p>
+ * Le istanze in cache sono condivise tra le richieste: il caricamento deve restituire una copia
+ * non gestita da Hibernate e i chiamanti non devono modificarle.
+ * <p>
+ * Tra le repliche l'invalidazione viaggia sul topic Kafka {@code atti.determinazioni.cache.topic}:
+ * ogni replica si assegna tutte le partizioni del topic partendo dalla fine, senza gruppo di consumer,
+ * e ignora i propri messaggi.
+ * Se un messaggio va perso la voce resta al più {@code atti.determinazioni.cache.durata}.
+ */
+@ApplicationScoped
+public class CacheDeterminazioni {
+
+    private static final Logger LOG = Logger.getLogger(CacheDeterminazioni.class);
+
+    private static final String HEADER_ORIGINE = "origine";
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.determinazioni.cache.dimensione-max", defaultValue = "10000")
+    long dimensioneMax;
+
+    @ConfigProperty(name = "atti.determinazioni.cache.durata", defaultValue = "PT5M")
+    Duration durata;
+
+    @ConfigProperty(name = "atti.determinazioni.cache.invalidazione-kafka", defaultValue = "true")
+    boolean invalidazioneKafka;
+
+    @ConfigProperty(name = "atti.determinazioni.cache.topic", defaultValue = "determinazioni-invalidazioni")
+    String topic;
+
+    @ConfigProperty(name = "kafka.bootstrap.servers", defaultValue = "localhost:9092")
+    String bootstrapServers;
+
+    /** Identifica la replica nei messaggi di invalidazione */
+    private final String origine = UUID.randomUUID().toString();
+
+    private Cache<Long, Determinazione> perId;
+    private Cache<String, Long> perNumero;
+    private KafkaProducer<String, String> producer;
+    private KafkaConsumer<String, String> consumer;
+    private Thread thread;
+    private volatile boolean attivo;
+
+    void avvia(@Observes StartupEvent evento) {
+        perId = Caffeine.newBuilder()
+                .maximumSize(dimensioneMax)
+                .expireAfterWrite(durata)
+                .recordStats()
+                .build();
+        perNumero = Caffeine.newBuilder()
+                .maximumSize(dimensioneMax)
+                .expireAfterWrite(durata)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, perId, "determinazioni-id");
+        CaffeineCacheMetrics.monitor(registry, perNumero, "determinazioni-numero");
+
+        if (invalidazioneKafka) {
+            producer = new KafkaProducer<>(configurazioneProducer());
+            consumer = new KafkaConsumer<>(configurazioneConsumer());
+            attivo = true;
+            thread = new Thread(this::ascolta, "determinazioni-cache-invalidazione");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (consumer != null) {
+            consumer.wakeup();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (producer != null) {
+            producer.close(Duration.ofSeconds(5));
+        }
+    }
+
+    /**
+     * Determinazione per id, caricata con {@code caricamento} se non in cache.
+     *
+     * @return la determinazione, o null se il caricamento non la trova (il null non è memorizzato)
+     */
+    public Determinazione perId(Long id, Function<Long, Determinazione> caricamento) {
+        return perId.get(id, caricamento);
+    }
+
+    /**
+     * Determinazione per numero di registro. L'id corrispondente è risolto con {@code idPerNumero}
+     * e memorizzato; la determinazione passa poi dalla cache per id.
+     *
+     * @return la determinazione, o null se il numero non esiste
+     */
+    public Determinazione perNumero(String numero, Function<String, Long> idPerNumero,
+                                    Function<Long, Determinazione> caricamento) {
+        Long id = perNumero.get(numero, idPerNumero);
+        return id == null ? null : perId(id, caricamento);
+    }
+
+    /**
+     * Rimuove la determinazione da questa replica e notifica le altre.
+     * Da chiamare dopo il commit della modifica.
+     */
+    public void invalida(Long id) {
+        perId.invalidate(id);
+        if (producer == null) {
+            return;
+        }
+        ProducerRecord<String, String> messaggio = new ProducerRecord<>(topic, id.toString(), id.toString());
+        messaggio.headers().add(HEADER_ORIGINE, origine.getBytes(StandardCharsets.UTF_8));
+        producer.send(messaggio, (metadati, errore) -> {
+            if (errore != null) {
+                LOG.warnf("Invalidazione della determinazione %d non inviata alle altre repliche: %s",
+                        id, errore.getMessage());
+            }
+        });
+    }
+
+    private void ascolta() {
+        try {
+            if (!assegnaPartizioni()) {
+                return;
+            }
+            while (attivo) {
+                for (ConsumerRecord<String, String> messaggio : consumer.poll(Duration.ofSeconds(1))) {
+                    Header mittente = messaggio.headers().lastHeader(HEADER_ORIGINE);
+                    if (mittente != null && origine.equals(new String(mittente.value(), StandardCharsets.UTF_8))) {
+                        continue;
+                    }
+                    try {
+                        perId.invalidate(Long.valueOf(messaggio.value()));
+                    } catch (NumberFormatException e) {
+                        LOG.warnf("Messaggio di invalidazione non valido: %s", messaggio.value());
+                    }
+                }
+            }
+        } catch (WakeupException e) {
+            // arresto dell'applicazione
+        } catch (RuntimeException e) {
+            LOG.error("Ascolto delle invalidazioni della cache interrotto: le voci scadranno dopo " + durata, e);
+        } finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Assegna al consumer tutte le partizioni del topic, posizionato alla fine: le invalidazioni
+     * precedenti all'avvio riguardano voci che questa replica non ha. Attende che il topic esista.
+     *
+     * @return false se l'applicazione si arresta prima
+     */
+    private boolean assegnaPartizioni() {
+        while (attivo) {
+            List<TopicPartition> partizioni = consumer.partitionsFor(topic).stream()
+                    .map(partizione -> new TopicPartition(topic, partizione.partition()))
+                    .toList();
+            if (!partizioni.isEmpty()) {
+                consumer.assign(partizioni);
+                consumer.seekToEnd(partizioni);
+                return true;
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Properties configurazioneProducer() {
+        Properties proprieta = new Properties();
+        proprieta.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        proprieta.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        proprieta.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        proprieta.put(ProducerConfig.ACKS_CONFIG, "1");
+        proprieta.put(ProducerConfig.LINGER_MS_CONFIG, "5");
+        // Senza broker l'invio non deve bloccare a lungo la richiesta che ha modificato l'atto
+        proprieta.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, "500");
+        return proprieta;
+    }
+
+    private Properties configurazioneConsumer() {
+        Properties proprieta = new Properties();
+        proprieta.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        // partizioni assegnate senza gruppo: nessun offset confermato, nessun gruppo lasciato sul broker
+        proprieta.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        proprieta.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        proprieta.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        return proprieta;
+    }
+}
@@ -1,85 +1,552 @@
 package it.gov.atti.services;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.annotation.Timed;
 import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.EsitoElemento;
+import it.gov.atti.model.EventoOutbox;
+import it.gov.atti.model.DeterminazioneSintesi;
+import it.gov.atti.model.FiltroDeterminazioni;
+import it.gov.atti.model.PaginaDeterminazioni;
+import it.gov.atti.model.RichiestaTransizioni;
+import it.gov.atti.model.StatoDeterminazione;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.TypedQuery;
+import jakarta.transaction.Status;
+import jakarta.transaction.Synchronization;
 import jakarta.transaction.Transactional;
+import jakarta.transaction.TransactionSynchronizationRegistry;
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
-import java.time.Year;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Servizio applicativo per la gestione delle determinazioni dirigenziali.
  * Contiene la logica di business per creazione, aggiornamento e ricerca.
+ * <p>
+ * La durata dei metodi pubblici è esposta in {@value #METRICA} con i tag {@code method} ed
+ * {@code exception}: per i metodi transazionali include il commit, per le letture gli accessi
+ * alla cache.
  */
 @ApplicationScoped
 public class DeterminazioneService {
 
+    static final String METRICA = "atti.determinazioni.servizio";
+
+    @Inject
+    NumerazioneService numerazione;
+
+    @Inject
+    CacheDeterminazioni cache;
+
+    @Inject
+    TransactionSynchronizationRegistry transazioni;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MetricheProcesso metriche;
+
+    @Inject
+    ArchivioDeterminazioni archivio;
+
     /**
-     * Crea una nuova determinazione con stato iniziale BOZZA.
+     * Crea una nuova determinazione con stato iniziale BOZZA e ne registra l'evento nell'outbox.
      *
      * @param determinazione dati della nuova determinazione
      * @return la determinazione salvata con ID assegnato
+     * @throws IllegalArgumentException se i dati non sono validi, con le stesse regole di {@link #creaTutte}
      */
+    @Timed(value = METRICA, histogram = true)
     @Transactional
     public Determinazione crea(Determinazione determinazione) {
-        determinazione.stato = "BOZZA";
+        String errore = verifica(determinazione);
+        if (errore != null) {
+            throw new IllegalArgumentException(errore);
+        }
+        determinazione.stato = StatoDeterminazione.BOZZA;
+        determinazione.versione = null;
         determinazione.dataCreazione = LocalDateTime.now();
-        determinazione.numero = generaNumerazione();
+        determinazione.statoDal = determinazione.dataCreazione;
+        determinazione.numero = numerazione.prossimoNumero(determinazione.dataCreazione.getYear());
         determinazione.persist();
+        registraEvento(EventoDeterminazione.CREATA, determinazione, null, determinazione.dirigente);
         return determinazione;
     }
 
     /**
-     * Recupera tutte le determinazioni ordinate per data di creazione decrescente.
+     * Recupera una pagina di determinazioni in sintesi, ordinate per data di creazione decrescente.
+     * La paginazione è keyset: la pagina successiva riparte dalla coppia (dataCreazione, id)
+     * dell'ultimo elemento, quindi il costo non cresce con la profondità della pagina.
      *
-     * @return lista di tutte le determinazioni
+     * @param filtro   criteri di filtro
+     * @param cursore  cursore restituito dalla pagina precedente, null per la prima pagina
+     * @param limite   numero massimo di elementi
+     * @return la pagina richiesta con il cursore per la successiva
      */
-    public List<Determinazione> trovaTutte() {
-        return Determinazione.listAll();
+    @Timed(value = METRICA, histogram = true)
+    public PaginaDeterminazioni trovaPagina(FiltroDeterminazioni filtro, String cursore, int limite) {
+        List<String> condizioni = new ArrayList<>();
+        Map<String, Object> parametri = new HashMap<>();
+        if (filtro.stato() != null) {
+            condizioni.add("d.stato = :stato");
+            parametri.put("stato", StatoDeterminazione.da(filtro.stato()));
+        }
+        if (filtro.centroSpesa() != null) {
+            condizioni.add("d.centroSpesa = :centroSpesa");
+            parametri.put("centroSpesa", filtro.centroSpesa());
+        }
+        if (filtro.dirigente() != null) {
+            condizioni.add("d.dirigente = :dirigente");
+            parametri.put("dirigente", filtro.dirigente());
+        }
+        if (filtro.da() != null) {
+            condizioni.add("d.dataCreazione >= :da");
+            parametri.put("da", filtro.da().atStartOfDay());
+        }
+        if (filtro.a() != null) {
+            condizioni.add("d.dataCreazione < :a");
+            parametri.put("a", filtro.a().plusDays(1).atStartOfDay());
+        }
+        if (cursore != null) {
+            PaginaDeterminazioni.Cursore posizione = PaginaDeterminazioni.Cursore.decodifica(cursore);
+            condizioni.add("(d.dataCreazione, d.id) < (:cursoreData, :cursoreId)");
+            parametri.put("cursoreData", posizione.dataCreazione());
+            parametri.put("cursoreId", posizione.id());
+        }
+
+        String jpql = "SELECT new it.gov.atti.model.DeterminazioneSintesi("
+                + "d.id, d.numero, d.oggetto, d.importo, d.centroSpesa, d.dirigente, "
+                + "d.livelloDirigente, d.stato, d.dataCreazione) FROM Determinazione d"
+                + (condizioni.isEmpty() ? "" : " WHERE " + String.join(" AND ", condizioni))
+                + " ORDER BY d.dataCreazione DESC, d.id DESC";
+        TypedQuery<DeterminazioneSintesi> query = Determinazione.getEntityManager()
+                .createQuery(jpql, DeterminazioneSintesi.class)
+                .setMaxResults(limite + 1);
+        parametri.forEach(query::setParameter);
+
+        List<DeterminazioneSintesi> elementi = query.getResultList();
+        if (elementi.size() <= limite) {
+            return new PaginaDeterminazioni(elementi, null);
+        }
+        elementi = elementi.subList(0, limite);
+        DeterminazioneSintesi ultimo = elementi.get(limite - 1);
+        String successivo = new PaginaDeterminazioni.Cursore(ultimo.dataCreazione(), ultimo.id()).codifica();
+        return new PaginaDeterminazioni(elementi, successivo);
     }
 
     /**
-     * Recupera una determinazione per ID.
+     * Recupera una determinazione per ID, dalla cache se presente, altrimenti dalla tabella
+     * o dall'archivio.
      *
      * @param id identificativo della determinazione
      * @return la determinazione trovata oppure null
      */
+    @Timed(value = METRICA, histogram = true)
     public Determinazione trovaPerId(Long id) {
-        return Determinazione.findById(id);
+        return copiaOppureNull(cache.perId(id, this::carica));
     }
 
     /**
-     * Aggiorna lo stato di una determinazione.
+     * Recupera una determinazione per numero di registro, dalla cache se presente, altrimenti
+     * dalla tabella o dall'archivio.
      *
-     * @param id    identificativo della determinazione
-     * @param stato nuovo stato da impostare
+     * @param numero numero di registro, es. DET-2026-001
+     * @return la determinazione trovata oppure null
+     */
+    @Timed(value = METRICA, histogram = true)
+    public Determinazione trovaPerNumero(String numero) {
+        return copiaOppureNull(cache.perNumero(numero, n -> Determinazione.getEntityManager()
+                .createQuery("SELECT d.id FROM Determinazione d WHERE d.numero = :numero", Long.class)
+                .setParameter("numero", n)
+                .getResultStream()
+                .findFirst()
+                .orElseGet(() -> archivio.idPerNumero(n)), this::carica));
+    }
+
+    /**
+     * Determinazione dalla tabella o, se non c'è, dall'archivio delle determinazioni chiuse.
+     * In cache va una copia non gestita: l'entità resta nel contesto di persistenza della sola
+     * richiesta che l'ha caricata.
+     */
+    private Determinazione carica(Long id) {
+        Determinazione determinazione = Determinazione.findById(id);
+        return determinazione != null ? copia(determinazione) : archivio.perId(id);
+    }
+
+    /** Copia privata per il chiamante, che può modificarla senza toccare l'istanza in cache */
+    private static Determinazione copiaOppureNull(Determinazione inCache) {
+        return inCache == null ? null : copia(inCache);
+    }
+
+    /**
+     * Esegue una transizione di stato e ne registra l'evento nell'outbox.
+     * <p>
+     * Lo stato corrente è letto dalla cache e la transizione è verificata in memoria; la scrittura
+     * è un UPDATE condizionato su stato e versione letti, senza lock sulla riga prima della modifica.
+     * Se nel frattempo un'altra richiesta ha modificato la determinazione l'UPDATE non trova la riga
+     * e la transizione fallisce con {@link OptimisticLockException}: il chiamante può rileggere e
+     * ritentare.
+     *
+     * @param id              identificativo della determinazione
+     * @param stato           nuovo stato
+     * @param versioneAttesa  versione su cui il chiamante ha deciso la transizione, null per la corrente
+     * @param utente          utente che esegue la modifica
      * @return la determinazione aggiornata
+     * @throws IllegalArgumentException se la determinazione non esiste
+     * @throws IllegalStateException    se la transizione non è ammessa dallo stato corrente
+     * @throws OptimisticLockException  se la determinazione è stata modificata da un'altra richiesta
      */
+    @Timed(value = METRICA, histogram = true)
     @Transactional
-    public Determinazione aggiornaStato(Long id, String stato) {
-        Determinazione det = Determinazione.findById(id);
-        if (det == null) {
+    public Determinazione aggiornaStato(Long id, StatoDeterminazione stato, Long versioneAttesa, String utente) {
+        Determinazione attuale = trovaPerId(id);
+        if (attuale == null) {
             throw new IllegalArgumentException("Determinazione non trovata: " + id);
         }
-        det.stato = stato;
-        if ("PUBBLICATA".equals(stato)) {
-            det.dataPubblicazione = LocalDateTime.now();
+        if (versioneAttesa != null && !versioneAttesa.equals(attuale.versione)) {
+            throw new OptimisticLockException("Determinazione " + id + " modificata: versione attuale "
+                    + attuale.versione + ", attesa " + versioneAttesa);
         }
-        return det;
+        if (!attuale.stato.ammette(stato)) {
+            throw new IllegalStateException("Transizione non ammessa da " + attuale.stato + " a " + stato
+                    + " (ammesse: " + attuale.stato.successivi() + ")");
+        }
+
+        LocalDateTime ora = LocalDateTime.now();
+        LocalDateTime dataPubblicazione = stato == StatoDeterminazione.PUBBLICATA ? ora : attuale.dataPubblicazione;
+        int aggiornate = Determinazione.getEntityManager()
+                .createQuery("UPDATE Determinazione d SET d.stato = :stato, d.versione = d.versione + 1, "
+                        + "d.dataPubblicazione = :dataPubblicazione, d.statoDal = :ora "
+                        + "WHERE d.id = :id AND d.stato = :statoAttuale AND d.versione = :versione")
+                .setParameter("stato", stato)
+                .setParameter("dataPubblicazione", dataPubblicazione)
+                .setParameter("ora", ora)
+                .setParameter("id", id)
+                .setParameter("statoAttuale", attuale.stato)
+                .setParameter("versione", attuale.versione)
+                .executeUpdate();
+        if (aggiornate == 0) {
+            // la copia in cache può essere più vecchia del database: la prossima lettura la ricarica
+            cache.invalida(id);
+            throw new OptimisticLockException("Determinazione " + id + " modificata da un'altra richiesta");
+        }
+
+        Determinazione aggiornata = copia(attuale);
+        aggiornata.stato = stato;
+        aggiornata.versione = attuale.versione + 1;
+        aggiornata.dataPubblicazione = dataPubblicazione;
+        aggiornata.statoDal = ora;
+        registraEvento(EventoDeterminazione.STATO_AGGIORNATO, aggiornata, attuale.stato, utente);
+        alTermine(List.of(id), List.of(attuale), ora);
+        return aggiornata;
     }
 
     /**
-     * Genera il numero progressivo della determinazione nel formato DET-YYYY-NNN.
-     * Utilizza una query con LOCK per garantire l'unicità in ambiente concorrente.
+     * Crea più determinazioni in una transazione. Gli elementi non validi sono scartati e riportati
+     * nell'esito senza annullare gli altri. I numeri di registro sono riservati con un solo
+     * aggiornamento del contatore, gli inserimenti e gli eventi dell'outbox vanno in batch JDBC.
      *
-     * @return numero generato
+     * @param determinazioni dati delle nuove determinazioni
+     * @param utente         dirigente responsabile e autore delle creazioni
+     * @return esito per ogni elemento, nell'ordine della richiesta
      */
-    private String generaNumerazione() {
-        int anno = Year.now().getValue();
-        // La query viene eseguita all'interno di una transazione già attiva (@Transactional)
-        // Il conteggio riflette le sole determinazioni con anno corrente già persistite
-        long contatore = Determinazione
-                .count("FUNCTION('YEAR', dataCreazione) = ?1 OR dataCreazione IS NULL", anno) + 1;
-        return String.format("DET-%d-%03d", anno, contatore);
+    @Timed(value = METRICA, histogram = true)
+    @Transactional
+    public List<EsitoElemento> creaTutte(List<Determinazione> determinazioni, String utente) {
+        EsitoElemento[] esiti = new EsitoElemento[determinazioni.size()];
+        List<Integer> valide = new ArrayList<>(determinazioni.size());
+        for (int i = 0; i < determinazioni.size(); i++) {
+            String errore = verifica(determinazioni.get(i));
+            if (errore != null) {
+                esiti[i] = EsitoElemento.fallita(i, null, EsitoElemento.Esito.NON_VALIDA, errore);
+            } else {
+                valide.add(i);
+            }
+        }
+
+        LocalDateTime ora = LocalDateTime.now();
+        List<String> numeri = numerazione.prossimiNumeri(ora.getYear(), valide.size());
+        List<EventoOutbox> eventi = new ArrayList<>(valide.size());
+        for (int j = 0; j < valide.size(); j++) {
+            int i = valide.get(j);
+            Determinazione det = determinazioni.get(i);
+            det.id = null;
+            det.versione = null;
+            det.dirigente = utente;
+            det.stato = StatoDeterminazione.BOZZA;
+            det.dataCreazione = ora;
+            det.statoDal = ora;
+            det.dataPubblicazione = null;
+            det.numero = numeri.get(j);
+            det.persist();
+            eventi.add(evento(EventoDeterminazione.CREATA, det, null, det.stato, utente));
+            esiti[i] = EsitoElemento.eseguita(i, det.id, det.numero, det.versione);
+        }
+        registraEventi(eventi);
+        return List.of(esiti);
+    }
+
+    /**
+     * Porta più determinazioni allo stesso stato in una transazione.
+     * <p>
+     * Gli stati correnti sono letti con una sola query e le transizioni verificate in memoria; le
+     * ammesse sono scritte con un solo UPDATE condizionato su stato e versione di ciascuna riga.
+     * Le determinazioni modificate nel frattempo da altre richieste risultano in CONFLITTO, le
+     * altre sono aggiornate comunque. Gli eventi dell'outbox sono scritti in un solo batch JDBC.
+     *
+     * @param stato          nuovo stato
+     * @param riferimenti    determinazioni da aggiornare, con la versione attesa opzionale
+     * @param utente         utente che esegue le modifiche
+     * @return esito per ogni elemento, nell'ordine della richiesta
+     */
+    @Timed(value = METRICA, histogram = true)
+    @Transactional
+    public List<EsitoElemento> aggiornaStati(StatoDeterminazione stato, List<RichiestaTransizioni.Riferimento> riferimenti,
+                                             String utente) {
+        Set<Long> ids = new HashSet<>();
+        for (RichiestaTransizioni.Riferimento riferimento : riferimenti) {
+            if (riferimento != null && riferimento.id() != null) {
+                ids.add(riferimento.id());
+            }
+        }
+        Map<Long, Determinazione> correnti = new HashMap<>();
+        if (!ids.isEmpty()) {
+            // proiezione in istanze non gestite: la riga è aggiornata con SQL e l'entità resterebbe vecchia
+            Determinazione.getEntityManager()
+                    .createQuery("SELECT d.id, d.numero, d.processInstanceId, d.centroSpesa, d.livelloDirigente, "
+                            + "d.importo, d.dataCreazione, d.stato, d.versione, d.statoDal "
+                            + "FROM Determinazione d WHERE d.id IN :ids", Object[].class)
+                    .setParameter("ids", ids)
+                    .getResultStream()
+                    .forEach(riga -> {
+                        Determinazione det = new Determinazione();
+                        det.id = (Long) riga[0];
+                        det.numero = (String) riga[1];
+                        det.processInstanceId = (String) riga[2];
+                        det.centroSpesa = (String) riga[3];
+                        det.livelloDirigente = (String) riga[4];
+                        det.importo = (Double) riga[5];
+                        det.dataCreazione = (LocalDateTime) riga[6];
+                        det.stato = (StatoDeterminazione) riga[7];
+                        det.versione = (Long) riga[8];
+                        det.statoDal = (LocalDateTime) riga[9];
+                        correnti.put(det.id, det);
+                    });
+        }
+
+        EsitoElemento[] esiti = new EsitoElemento[riferimenti.size()];
+        Map<Long, Integer> candidati = new LinkedHashMap<>();
+        for (int i = 0; i < riferimenti.size(); i++) {
+            RichiestaTransizioni.Riferimento riferimento = riferimenti.get(i);
+            Long id = riferimento == null ? null : riferimento.id();
+            Determinazione corrente = correnti.get(id);
+            if (id == null || candidati.containsKey(id)) {
+                esiti[i] = EsitoElemento.fallita(i, id, EsitoElemento.Esito.NON_VALIDA,
+                        id == null ? "Campo 'id' obbligatorio" : "Determinazione ripetuta nella richiesta");
+            } else if (corrente == null) {
+                esiti[i] = EsitoElemento.fallita(i, id, EsitoElemento.Esito.NON_TROVATA, "Determinazione non trovata: " + id);
+            } else if (riferimento.versione() != null && !riferimento.versione().equals(corrente.versione)) {
+                esiti[i] = EsitoElemento.fallita(i, id, EsitoElemento.Esito.CONFLITTO,
+                        "Versione attuale " + corrente.versione + ", attesa " + riferimento.versione());
+            } else if (!corrente.stato.ammette(stato)) {
+                esiti[i] = EsitoElemento.fallita(i, id, EsitoElemento.Esito.NON_AMMESSA,
+                        "Transizione non ammessa da " + corrente.stato + " a " + stato);
+            } else {
+                candidati.put(id, i);
+            }
+        }
+
+        LocalDateTime ora = LocalDateTime.now();
+        Set<Long> aggiornate = aggiornaCondizionato(stato, candidati.keySet(), correnti, ora);
+        List<EventoOutbox> eventi = new ArrayList<>(aggiornate.size());
+        List<Determinazione> precedenti = new ArrayList<>(aggiornate.size());
+        for (Map.Entry<Long, Integer> candidato : candidati.entrySet()) {
+            Determinazione corrente = correnti.get(candidato.getKey());
+            int i = candidato.getValue();
+            if (aggiornate.contains(corrente.id)) {
+                esiti[i] = EsitoElemento.eseguita(i, corrente.id, corrente.numero, corrente.versione + 1);
+                eventi.add(evento(EventoDeterminazione.STATO_AGGIORNATO, corrente, corrente.stato, stato, utente));
+                precedenti.add(corrente);
+            } else {
+                esiti[i] = EsitoElemento.fallita(i, corrente.id, EsitoElemento.Esito.CONFLITTO,
+                        "Determinazione " + corrente.id + " modificata da un'altra richiesta");
+            }
+        }
+        registraEventi(eventi);
+        alTermine(aggiornate, precedenti, ora);
+        return List.of(esiti);
+    }
+
+    /**
+     * UPDATE condizionato di più righe in un solo round-trip: le coppie (stato, versione) attese
+     * sono passate come array e abbinate alle righe con unnest.
+     *
+     * @return id delle righe effettivamente aggiornate
+     */
+    private Set<Long> aggiornaCondizionato(StatoDeterminazione stato, Collection<Long> ids,
+                                           Map<Long, Determinazione> correnti, LocalDateTime ora) {
+        if (ids.isEmpty()) {
+            return Set.of();
+        }
+        Long[] idAttesi = new Long[ids.size()];
+        String[] statiAttesi = new String[ids.size()];
+        Long[] versioniAttese = new Long[ids.size()];
+        int k = 0;
+        for (Long id : ids) {
+            Determinazione corrente = correnti.get(id);
+            idAttesi[k] = id;
+            statiAttesi[k] = corrente.stato.name();
+            versioniAttese[k++] = corrente.versione;
+        }
+        Timestamp statoDal = Timestamp.valueOf(ora);
+        Timestamp dataPubblicazione = stato == StatoDeterminazione.PUBBLICATA ? statoDal : null;
+        Set<Long> aggiornate = new HashSet<>();
+        Determinazione.getEntityManager().unwrap(Session.class).doWork(connessione -> {
+            try (PreparedStatement aggiorna = connessione.prepareStatement(
+                    "UPDATE determinazioni d SET stato = ?, versione = d.versione + 1, stato_dal = ?, "
+                            + "data_pubblicazione = COALESCE(CAST(? AS timestamp), d.data_pubblicazione) "
+                            + "FROM unnest(?, ?, ?) AS attesa(id, stato, versione) "
+                            + "WHERE d.id = attesa.id AND d.stato = attesa.stato AND d.versione = attesa.versione "
+                            + "RETURNING d.id")) {
+                aggiorna.setString(1, stato.name());
+                aggiorna.setTimestamp(2, statoDal);
+                aggiorna.setTimestamp(3, dataPubblicazione);
+                aggiorna.setArray(4, connessione.createArrayOf("bigint", idAttesi));
+                aggiorna.setArray(5, connessione.createArrayOf("varchar", statiAttesi));
+                aggiorna.setArray(6, connessione.createArrayOf("bigint", versioniAttese));
+                try (ResultSet righe = aggiorna.executeQuery()) {
+                    while (righe.next()) {
+                        aggiornate.add(righe.getLong(1));
+                    }
+                }
+            }
+        });
+        return aggiornate;
+    }
+
+    /** Errore di validazione di una nuova determinazione, null se valida */
+    private static String verifica(Determinazione det) {
+        if (det == null) {
+            return "Determinazione mancante";
+        }
+        if (det.oggetto == null || det.oggetto.isBlank()) {
+            return "Campo 'oggetto' obbligatorio";
+        }
+        if (det.importo == null || det.importo < 0) {
+            return "Campo 'importo' obbligatorio e non negativo";
+        }
+        return null;
+    }
+
+    /** Copia non gestita: l'istanza in cache è condivisa tra le richieste e non va modificata */
+    private static Determinazione copia(Determinazione originale) {
+        Determinazione copia = new Determinazione();
+        copia.id = originale.id;
+        copia.numero = originale.numero;
+        copia.oggetto = originale.oggetto;
+        copia.importo = originale.importo;
+        copia.centroSpesa = originale.centroSpesa;
+        copia.dirigente = originale.dirigente;
+        copia.livelloDirigente = originale.livelloDirigente;
+        copia.stato = originale.stato;
+        copia.dataCreazione = originale.dataCreazione;
+        copia.dataPubblicazione = originale.dataPubblicazione;
+        copia.statoDal = originale.statoDal;
+        copia.processInstanceId = originale.processInstanceId;
+        copia.versione = originale.versione;
+        return copia;
+    }
+
+    /**
+     * Scrive l'evento nell'outbox nella transazione corrente: è pubblicato da OutboxRelay solo se
+     * la modifica va a buon fine, e la richiesta non attende Kafka né i servizi a valle.
+     */
+    private void registraEvento(String tipo, Determinazione det, StatoDeterminazione statoPrecedente, String utente) {
+        evento(tipo, det, statoPrecedente, det.stato, utente).persist();
+    }
+
+    /**
+     * Scrive gli eventi nell'outbox con un solo batch JDBC. L'id IDENTITY impedirebbe a Hibernate
+     * di raggruppare gli inserimenti, quindi la scrittura passa dalla connessione della transazione.
+     */
+    private void registraEventi(List<EventoOutbox> eventi) {
+        if (eventi.isEmpty()) {
+            return;
+        }
+        Determinazione.getEntityManager().unwrap(Session.class).doWork(connessione -> {
+            try (PreparedStatement inserisci = connessione.prepareStatement(
+                    "INSERT INTO outbox_determinazioni (determinazione_id, tipo, payload, creato_il) VALUES (?, ?, ?, ?)")) {
+                for (EventoOutbox evento : eventi) {
+                    inserisci.setLong(1, evento.determinazioneId);
+                    inserisci.setString(2, evento.tipo);
+                    inserisci.setString(3, evento.payload);
+                    inserisci.setTimestamp(4, Timestamp.valueOf(evento.creatoIl));
+                    inserisci.addBatch();
+                }
+                inserisci.executeBatch();
+            }
+        });
+    }
+
+    private EventoOutbox evento(String tipo, Determinazione det, StatoDeterminazione statoPrecedente,
+                                StatoDeterminazione stato, String utente) {
+        EventoDeterminazione evento = new EventoDeterminazione(tipo, det.id, det.numero, det.processInstanceId,
+                det.centroSpesa, det.livelloDirigente, det.importo, det.dataCreazione,
+                statoPrecedente == null ? null : statoPrecedente.name(), stato.name(), utente, LocalDateTime.now());
+        EventoOutbox outbox = new EventoOutbox();
+        outbox.determinazioneId = det.id;
+        outbox.tipo = tipo;
+        outbox.creatoIl = evento.timestamp();
+        try {
+            outbox.payload = objectMapper.writeValueAsString(evento);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Serializzazione dell'evento " + tipo + " fallita", e);
+        }
+        return outbox;
+    }
+
+    /**
+     * Invalida la cache al termine della transazione: prima del commit un'altra richiesta
+     * potrebbe ricaricare lo stato precedente. Solo dopo il commit registra i tempi di permanenza
+     * negli stati lasciati, così che una transizione annullata non conti per gli SLA.
+     *
+     * @param precedenti le determinazioni aggiornate, con lo stato e l'ingresso precedenti
+     */
+    private void alTermine(Collection<Long> ids, List<Determinazione> precedenti, LocalDateTime ora) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        transazioni.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int esito) {
+                ids.forEach(cache::invalida);
+                if (esito == Status.STATUS_COMMITTED) {
+                    for (Determinazione det : precedenti) {
+                        metriche.registraUscita(det.stato, det.statoDal, ora);
+                    }
+                }
+            }
+        });
     }
 }
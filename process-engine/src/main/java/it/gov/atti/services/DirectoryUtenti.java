@@ -0,0 +1,687 @@
+package it.gov.atti.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.PaginaUtenti;
+import it.gov.atti.model.UtenteDirectory;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copia locale di utenti, gruppi e ruoli del realm Keycloak, per le pagine di amministrazione
+ * e per le verifiche utente → ruolo dell'assegnazione dei task (gruppi {@code potentialOwner}
+ * istruttore, ragioniere, dirigente) senza chiamare Keycloak a ogni richiesta.
+ * <p>
+ * All'avvio un thread dedicato carica il realm con le chiamate paginate della Admin API: ruoli
+ * (con i composti), utenti dei ruoli applicativi, gruppi con i loro membri. L'indice costruito
+ * sostituisce il precedente in un colpo solo. Poi il thread legge ogni
+ * {@code atti.directory.intervallo-eventi} gli admin event del realm e ricarica i soli utenti
+ * modificati. Le modifiche a gruppi o ruoli, che toccano molti utenti, richiedono un nuovo
+ * caricamento completo, ripetuto comunque ogni {@code atti.directory.ricarica-completa}.
+ * <p>
+ * Sono indicizzati solo i ruoli applicativi ({@code atti.directory.ruoli-gestiti}), non quelli
+ * tecnici di Keycloak. Le scritture di {@link it.gov.atti.resources.AdminResource} passano da qui:
+ * dopo la chiamata a Keycloak l'utente modificato è ricaricato subito; se la ricarica fallisce è
+ * tolto dalla directory fino al prossimo evento o caricamento completo.
+ * <p>
+ * Le letture non prendono lock; un aggiornamento inserisce la nuova versione dell'utente prima di
+ * togliere la vecchia, quindi chi legge non vede mai l'utente mancare dall'indice di un ruolo
+ * che ha conservato.
+ */
+@ApplicationScoped
+public class DirectoryUtenti {
+
+    private static final Logger LOG = Logger.getLogger(DirectoryUtenti.class);
+
+    /** Anticipo sul caricamento completo da cui rileggere gli admin event, per la deriva degli orologi */
+    private static final Duration MARGINE_EVENTI = Duration.ofMinutes(1);
+
+    /** Campi modificabili dell'utente e corrispondenti attributi della rappresentazione Keycloak */
+    private static final Map<String, String> CAMPI = Map.of(
+            "nome", "firstName",
+            "cognome", "lastName",
+            "email", "email",
+            "abilitato", "enabled");
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.directory.abilitata", defaultValue = "true")
+    boolean abilitata;
+
+    @ConfigProperty(name = "atti.directory.url", defaultValue = "http://keycloak:8180")
+    String url;
+
+    @ConfigProperty(name = "atti.directory.realm", defaultValue = "atti-amministrativi")
+    String realm;
+
+    @ConfigProperty(name = "atti.directory.client-id", defaultValue = "process-engine-admin")
+    String clientId;
+
+    @ConfigProperty(name = "atti.directory.client-secret", defaultValue = "secret")
+    String segreto;
+
+    @ConfigProperty(name = "atti.directory.dimensione-pagina", defaultValue = "100")
+    int dimensionePagina;
+
+    @ConfigProperty(name = "atti.directory.intervallo-eventi", defaultValue = "PT15S")
+    Duration intervalloEventi;
+
+    @ConfigProperty(name = "atti.directory.ricarica-completa", defaultValue = "PT6H")
+    Duration ricaricaCompleta;
+
+    @ConfigProperty(name = "atti.directory.ruoli-gestiti", defaultValue = "istruttore,ragioniere,dirigente,admin")
+    List<String> ruoliGestiti;
+
+    /** Client della Admin API; puntato a un server HTTP locale nei test */
+    KeycloakAdmin keycloak;
+
+    /** Indice corrente; null fino al primo caricamento completo */
+    private volatile Indice indice;
+
+    /** Serializza le modifiche all'indice corrente */
+    private final Object scrittura = new Object();
+
+    /** Utenti modificati durante un caricamento completo, da ricaricare sull'indice nuovo */
+    private Set<String> modificatiDurante;
+
+    /** Istante dell'ultimo admin event applicato e firme degli eventi con lo stesso istante */
+    private long ultimoEvento;
+    private final Set<String> eventiAlLimite = new HashSet<>();
+
+    private volatile boolean ricaricaRichiesta;
+    private volatile boolean attivo;
+    private Thread thread;
+    private Timer durataCaricamento;
+
+    @PostConstruct
+    void registraMetriche() {
+        Gauge.builder("atti.directory.utenti", this, d -> d.indice == null ? 0 : d.indice.perId.size())
+                .description("Utenti nella directory locale del realm Keycloak")
+                .register(registry);
+        durataCaricamento = Timer.builder("atti.directory.caricamento")
+                .description("Durata del caricamento completo della directory utenti da Keycloak")
+                .register(registry);
+    }
+
+    void avvia(@Observes StartupEvent evento) {
+        if (!abilitata) {
+            return;
+        }
+        if (keycloak == null) {
+            keycloak = new KeycloakAdmin(url, realm, clientId, segreto, dimensionePagina, objectMapper);
+        }
+        attivo = true;
+        thread = new Thread(this::ciclo, "directory-keycloak");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    private void ciclo() {
+        long prossimoCompleto = 0;
+        while (attivo) {
+            try {
+                if (indice == null || ricaricaRichiesta || System.currentTimeMillis() >= prossimoCompleto) {
+                    caricaTutto();
+                    prossimoCompleto = System.currentTimeMillis() + ricaricaCompleta.toMillis();
+                } else {
+                    applicaEventi();
+                }
+            } catch (RuntimeException e) {
+                LOG.warnf(e, "Aggiornamento della directory utenti fallito, nuovo tentativo tra %s", intervalloEventi);
+            }
+            try {
+                Thread.sleep(intervalloEventi.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cerca un utente per username.
+     *
+     * @throws IllegalStateException se la directory non è ancora caricata
+     */
+    public Optional<UtenteDirectory> utente(String username) {
+        return Optional.ofNullable(indice().perUsername.get(username));
+    }
+
+    /**
+     * Ruoli applicativi effettivi di un utente; vuoto se l'utente non esiste.
+     *
+     * @throws IllegalStateException se la directory non è ancora caricata
+     */
+    public Set<String> ruoli(String username) {
+        UtenteDirectory utente = indice().perUsername.get(username);
+        return utente != null ? utente.ruoli() : Set.of();
+    }
+
+    /**
+     * Verifica se un utente abilitato ha un ruolo applicativo.
+     *
+     * @throws IllegalStateException se la directory non è ancora caricata
+     */
+    public boolean haRuolo(String username, String ruolo) {
+        UtenteDirectory utente = indice().perUsername.get(username);
+        return utente != null && utente.abilitato() && utente.ruoli().contains(ruolo);
+    }
+
+    /**
+     * Restituisce una pagina di utenti in ordine di username, tutti o con un ruolo.
+     *
+     * @param ruolo   ruolo applicativo (opzionale)
+     * @param cursore cursore della pagina precedente (opzionale)
+     * @param limite  dimensione della pagina
+     * @throws IllegalArgumentException se il ruolo non è gestito o il cursore non è valido
+     * @throws IllegalStateException    se la directory non è ancora caricata
+     */
+    public PaginaUtenti pagina(String ruolo, String cursore, int limite) {
+        Indice corrente = indice();
+        NavigableMap<String, UtenteDirectory> elenco;
+        if (ruolo == null) {
+            elenco = corrente.perUsername;
+        } else if (ruoliGestiti.contains(ruolo)) {
+            NavigableMap<String, UtenteDirectory> conRuolo = corrente.perRuolo.get(ruolo);
+            elenco = conRuolo != null ? conRuolo : Collections.emptyNavigableMap();
+        } else {
+            throw new IllegalArgumentException("Ruolo non gestito: " + ruolo);
+        }
+        if (cursore != null) {
+            elenco = elenco.tailMap(decodificaCursore(cursore), false);
+        }
+        List<UtenteDirectory> elementi = new ArrayList<>(Math.min(limite, 64));
+        for (UtenteDirectory utente : elenco.values()) {
+            if (elementi.size() == limite) {
+                return new PaginaUtenti(elementi, codificaCursore(elementi.get(limite - 1).username()));
+            }
+            elementi.add(utente);
+        }
+        return new PaginaUtenti(elementi, null);
+    }
+
+    /**
+     * Crea un utente in Keycloak, gli assegna i ruoli indicati e lo aggiunge alla directory.
+     *
+     * @param dati username, nome, cognome, email, abilitato e ruoli
+     * @return id assegnato da Keycloak
+     * @throws IllegalArgumentException se un ruolo non è gestito
+     */
+    public String creaUtente(Map<String, Object> dati) {
+        KeycloakAdmin admin = keycloak();
+        List<String> ruoli = ruoliRichiesti(dati.getOrDefault("ruoli", List.of()));
+        Map<String, Object> rappresentazione = rappresentazione(dati);
+        rappresentazione.put("username", String.valueOf(dati.get("username")));
+        rappresentazione.putIfAbsent("enabled", true);
+        String id = admin.crea("users", rappresentazione);
+        try {
+            if (!ruoli.isEmpty()) {
+                admin.scrivi("POST", "users/" + id + "/role-mappings/realm", mappature(ruoli));
+            }
+        } finally {
+            invalida(id);
+        }
+        return id;
+    }
+
+    /**
+     * Aggiorna i dati anagrafici o l'abilitazione di un utente.
+     *
+     * @param dati nome, cognome, email e abilitato; gli altri campi sono ignorati
+     * @throws IllegalArgumentException se non c'è nessun campo modificabile
+     */
+    public void aggiornaUtente(String id, Map<String, Object> dati) {
+        KeycloakAdmin admin = keycloak();
+        Map<String, Object> rappresentazione = rappresentazione(dati);
+        if (rappresentazione.isEmpty()) {
+            throw new IllegalArgumentException("Nessun campo da aggiornare tra " + CAMPI.keySet());
+        }
+        admin.scrivi("PUT", "users/" + KeycloakAdmin.segmento(id), rappresentazione);
+        invalida(id);
+    }
+
+    /**
+     * Sostituisce i ruoli applicativi assegnati direttamente a un utente; i ruoli tecnici
+     * di Keycloak e quelli ereditati dai gruppi non sono toccati.
+     *
+     * @param ruoli lista dei ruoli applicativi da assegnare
+     * @throws IllegalArgumentException se un ruolo non è gestito
+     */
+    public void aggiornaRuoli(String id, Object ruoli) {
+        KeycloakAdmin admin = keycloak();
+        List<String> richiesti = ruoliRichiesti(ruoli);
+        String percorso = "users/" + KeycloakAdmin.segmento(id) + "/role-mappings/realm";
+        Set<String> assegnati = nomi(admin.leggi(percorso));
+        assegnati.retainAll(ruoliGestiti);
+        List<String> daAggiungere = richiesti.stream().filter(r -> !assegnati.contains(r)).toList();
+        List<String> daTogliere = assegnati.stream().filter(r -> !richiesti.contains(r)).toList();
+        try {
+            if (!daAggiungere.isEmpty()) {
+                admin.scrivi("POST", percorso, mappature(daAggiungere));
+            }
+            if (!daTogliere.isEmpty()) {
+                admin.scrivi("DELETE", percorso, mappature(daTogliere));
+            }
+        } finally {
+            invalida(id);
+        }
+    }
+
+    /**
+     * Chiede a Keycloak di inviare all'utente l'email per impostare una nuova password.
+     */
+    public void inviaResetPassword(String id) {
+        keycloak().scrivi("PUT", "users/" + KeycloakAdmin.segmento(id) + "/execute-actions-email",
+                List.of("UPDATE_PASSWORD"));
+    }
+
+    /**
+     * Ricarica da Keycloak un utente appena modificato. Se la ricarica fallisce l'utente è tolto
+     * dalla directory, che non deve restituire una versione superata.
+     */
+    void invalida(String id) {
+        synchronized (scrittura) {
+            if (modificatiDurante != null) {
+                modificatiDurante.add(id);
+            }
+        }
+        try {
+            ricaricaUtente(id);
+        } catch (RuntimeException e) {
+            LOG.warnf(e, "Ricarica dell'utente %s fallita, tolto dalla directory", id);
+            Indice corrente = indice;
+            if (corrente != null) {
+                synchronized (scrittura) {
+                    corrente.togli(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Carica l'intero realm in un nuovo indice e lo sostituisce al corrente. Gli utenti scritti
+     * durante il caricamento sono ricaricati sull'indice nuovo; gli admin event sono riletti da
+     * poco prima dell'inizio.
+     */
+    void caricaTutto() {
+        long inizio = System.nanoTime();
+        long eventiDal = System.currentTimeMillis() - MARGINE_EVENTI.toMillis();
+        ricaricaRichiesta = false;
+        synchronized (scrittura) {
+            modificatiDurante = ConcurrentHashMap.newKeySet();
+        }
+        Indice nuovo = null;
+        Set<String> modificati;
+        try {
+            nuovo = leggiRealm();
+        } finally {
+            synchronized (scrittura) {
+                if (nuovo != null) {
+                    indice = nuovo;
+                }
+                modificati = modificatiDurante;
+                modificatiDurante = null;
+            }
+        }
+        ultimoEvento = eventiDal;
+        eventiAlLimite.clear();
+        for (String id : modificati) {
+            invalida(id);
+        }
+        long durata = System.nanoTime() - inizio;
+        durataCaricamento.record(durata, TimeUnit.NANOSECONDS);
+        LOG.infof("Directory utenti caricata: %d utenti in %d ms", nuovo.perId.size(), TimeUnit.NANOSECONDS.toMillis(durata));
+    }
+
+    /**
+     * Applica gli admin event successivi all'ultimo applicato: ricarica gli utenti modificati,
+     * o richiede un caricamento completo se sono cambiati gruppi o ruoli.
+     */
+    void applicaEventi() {
+        int dimensione = keycloak.dimensionePagina;
+        String dal = LocalDate.ofInstant(Instant.ofEpochMilli(ultimoEvento), ZoneOffset.UTC).minusDays(1).toString();
+        // Keycloak restituisce gli eventi dal più recente: si legge fino a quelli già applicati
+        List<JsonNode> nuovi = new ArrayList<>();
+        boolean raggiunti = false;
+        for (int primo = 0; !raggiunti; primo += dimensione) {
+            JsonNode pagina = keycloak.leggi("admin-events?dateFrom=" + dal + "&first=" + primo + "&max=" + dimensione);
+            for (JsonNode evento : pagina) {
+                if (evento.path("time").asLong() < ultimoEvento) {
+                    raggiunti = true;
+                    break;
+                }
+                nuovi.add(evento);
+            }
+            raggiunti |= pagina.size() < dimensione;
+        }
+        Collections.reverse(nuovi);
+        Set<String> utenti = new LinkedHashSet<>();
+        for (JsonNode evento : nuovi) {
+            long istante = evento.path("time").asLong();
+            String percorso = evento.path("resourcePath").asText();
+            if (istante > ultimoEvento) {
+                ultimoEvento = istante;
+                eventiAlLimite.clear();
+            }
+            if (!eventiAlLimite.add(evento.path("operationType").asText() + " " + percorso)) {
+                continue;
+            }
+            switch (evento.path("resourceType").asText()) {
+                case "USER", "REALM_ROLE_MAPPING", "GROUP_MEMBERSHIP" -> {
+                    if (percorso.startsWith("users/")) {
+                        utenti.add(percorso.split("/")[1]);
+                    } else {
+                        ricaricaRichiesta = true;
+                    }
+                }
+                case "GROUP", "REALM_ROLE" -> ricaricaRichiesta = true;
+                default -> {
+                }
+            }
+        }
+        if (ricaricaRichiesta) {
+            return;
+        }
+        for (String id : utenti) {
+            ricaricaUtente(id);
+        }
+    }
+
+    /**
+     * Rilegge un utente con i suoi ruoli effettivi e gruppi; lo toglie se non esiste più.
+     */
+    void ricaricaUtente(String id) {
+        Indice corrente = indice;
+        if (corrente == null) {
+            return;
+        }
+        String percorso = "users/" + KeycloakAdmin.segmento(id);
+        JsonNode rappresentazione;
+        try {
+            rappresentazione = keycloak.leggi(percorso);
+        } catch (ErroreKeycloak e) {
+            if (e.stato() != 404) {
+                throw e;
+            }
+            synchronized (scrittura) {
+                corrente.togli(id);
+            }
+            return;
+        }
+        Set<String> ruoli = nomi(keycloak.leggi(percorso + "/role-mappings/realm/composite"));
+        ruoli.retainAll(ruoliGestiti);
+        Set<String> gruppi = new TreeSet<>();
+        for (JsonNode gruppo : keycloak.leggiTutti(percorso + "/groups?briefRepresentation=true")) {
+            gruppi.add(gruppo.path("name").asText());
+        }
+        UtenteDirectory utente = utente(rappresentazione, ruoli, gruppi);
+        synchronized (scrittura) {
+            corrente.metti(utente);
+        }
+    }
+
+    /**
+     * Legge ruoli, utenti e gruppi del realm e costruisce un indice nuovo.
+     */
+    Indice leggiRealm() {
+        Map<String, String> idRuoli = new HashMap<>();
+        Map<String, Set<String>> composti = new HashMap<>();
+        for (JsonNode ruolo : keycloak.leggiTutti("roles")) {
+            String nome = ruolo.path("name").asText();
+            idRuoli.put(nome, ruolo.path("id").asText());
+            if (ruolo.path("composite").asBoolean()) {
+                composti.put(nome, nomi(keycloak.leggi("roles/" + KeycloakAdmin.segmento(nome) + "/composites/realm")));
+            }
+        }
+        Map<String, Set<String>> effettivi = new HashMap<>();
+        for (String nome : idRuoli.keySet()) {
+            effettivi.put(nome, gestitiRaggiungibili(nome, composti, new HashSet<>()));
+        }
+
+        Map<String, JsonNode> utenti = new LinkedHashMap<>();
+        for (JsonNode utente : keycloak.leggiTutti("users?briefRepresentation=true")) {
+            utenti.put(utente.path("id").asText(), utente);
+        }
+        Map<String, Set<String>> ruoliPerUtente = new HashMap<>();
+        Map<String, Set<String>> gruppiPerUtente = new HashMap<>();
+        // Solo i ruoli che portano a un ruolo applicativo: quello di default li ha tutti gli utenti
+        for (Map.Entry<String, Set<String>> ruolo : effettivi.entrySet()) {
+            if (ruolo.getValue().isEmpty()) {
+                continue;
+            }
+            for (JsonNode utente : keycloak.leggiTutti("roles/" + KeycloakAdmin.segmento(ruolo.getKey())
+                    + "/users?briefRepresentation=true")) {
+                ruoliPerUtente.computeIfAbsent(utente.path("id").asText(), k -> new TreeSet<>()).addAll(ruolo.getValue());
+            }
+        }
+        visitaGruppi(keycloak.leggiTutti("groups?briefRepresentation=false"), Set.of(), effettivi,
+                ruoliPerUtente, gruppiPerUtente);
+
+        Indice nuovo = new Indice(idRuoli);
+        for (JsonNode utente : utenti.values()) {
+            String id = utente.path("id").asText();
+            nuovo.metti(utente(utente,
+                    ruoliPerUtente.getOrDefault(id, Set.of()),
+                    gruppiPerUtente.getOrDefault(id, Set.of())));
+        }
+        return nuovo;
+    }
+
+    /**
+     * Percorre l'albero dei gruppi: i membri di un gruppo hanno i suoi ruoli e quelli dei gruppi
+     * che lo contengono.
+     */
+    private void visitaGruppi(List<JsonNode> gruppi, Set<String> ruoliEreditati, Map<String, Set<String>> effettivi,
+                              Map<String, Set<String>> ruoliPerUtente, Map<String, Set<String>> gruppiPerUtente) {
+        for (JsonNode gruppo : gruppi) {
+            String id = gruppo.path("id").asText();
+            String nome = gruppo.path("name").asText();
+            Set<String> ruoli = new HashSet<>(ruoliEreditati);
+            for (JsonNode ruolo : gruppo.path("realmRoles")) {
+                ruoli.addAll(effettivi.getOrDefault(ruolo.asText(), Set.of()));
+            }
+            for (JsonNode membro : keycloak.leggiTutti("groups/" + id + "/members?briefRepresentation=true")) {
+                String utente = membro.path("id").asText();
+                ruoliPerUtente.computeIfAbsent(utente, k -> new TreeSet<>()).addAll(ruoli);
+                gruppiPerUtente.computeIfAbsent(utente, k -> new TreeSet<>()).add(nome);
+            }
+            List<JsonNode> figli = new ArrayList<>();
+            gruppo.path("subGroups").forEach(figli::add);
+            if (figli.isEmpty() && gruppo.path("subGroupCount").asLong() > 0) {
+                figli = keycloak.leggiTutti("groups/" + id + "/children?briefRepresentation=false");
+            }
+            visitaGruppi(figli, ruoli, effettivi, ruoliPerUtente, gruppiPerUtente);
+        }
+    }
+
+    /** Ruoli applicativi raggiungibili da un ruolo attraverso i composti, il ruolo compreso */
+    private Set<String> gestitiRaggiungibili(String ruolo, Map<String, Set<String>> composti, Set<String> visitati) {
+        Set<String> gestiti = new TreeSet<>();
+        if (!visitati.add(ruolo)) {
+            return gestiti;
+        }
+        if (ruoliGestiti.contains(ruolo)) {
+            gestiti.add(ruolo);
+        }
+        for (String figlio : composti.getOrDefault(ruolo, Set.of())) {
+            gestiti.addAll(gestitiRaggiungibili(figlio, composti, visitati));
+        }
+        return gestiti;
+    }
+
+    private Indice indice() {
+        Indice corrente = indice;
+        if (corrente == null) {
+            throw new IllegalStateException("Directory utenti non ancora caricata");
+        }
+        return corrente;
+    }
+
+    private KeycloakAdmin keycloak() {
+        if (keycloak == null) {
+            throw new IllegalStateException("Directory Keycloak disabilitata (atti.directory.abilitata)");
+        }
+        return keycloak;
+    }
+
+    private List<String> ruoliRichiesti(Object valore) {
+        if (!(valore instanceof Collection<?> ruoli)) {
+            throw new IllegalArgumentException("Il campo 'ruoli' deve essere una lista");
+        }
+        List<String> richiesti = new ArrayList<>(ruoli.size());
+        for (Object ruolo : ruoli) {
+            String nome = String.valueOf(ruolo);
+            if (!ruoliGestiti.contains(nome)) {
+                throw new IllegalArgumentException("Ruolo non gestito: " + nome);
+            }
+            if (!richiesti.contains(nome)) {
+                richiesti.add(nome);
+            }
+        }
+        return richiesti;
+    }
+
+    /** Rappresentazioni dei ruoli richieste dalle role mapping di Keycloak */
+    private List<Map<String, String>> mappature(List<String> ruoli) {
+        Map<String, String> idRuoli = indice().idRuoli;
+        List<Map<String, String>> mappature = new ArrayList<>(ruoli.size());
+        for (String ruolo : ruoli) {
+            String id = idRuoli.get(ruolo);
+            if (id == null) {
+                throw new IllegalArgumentException("Ruolo non presente nel realm " + realm + ": " + ruolo);
+            }
+            mappature.add(Map.of("id", id, "name", ruolo));
+        }
+        return mappature;
+    }
+
+    private static Map<String, Object> rappresentazione(Map<String, Object> dati) {
+        Map<String, Object> rappresentazione = new HashMap<>();
+        CAMPI.forEach((campo, attributo) -> {
+            if (dati.containsKey(campo)) {
+                rappresentazione.put(attributo, dati.get(campo));
+            }
+        });
+        return rappresentazione;
+    }
+
+    private static Set<String> nomi(JsonNode ruoli) {
+        Set<String> nomi = new TreeSet<>();
+        ruoli.forEach(ruolo -> nomi.add(ruolo.path("name").asText()));
+        return nomi;
+    }
+
+    private static UtenteDirectory utente(JsonNode utente, Set<String> ruoli, Set<String> gruppi) {
+        return new UtenteDirectory(
+                utente.path("id").asText(),
+                utente.path("username").asText(),
+                utente.path("firstName").asText(null),
+                utente.path("lastName").asText(null),
+                utente.path("email").asText(null),
+                utente.path("enabled").asBoolean(true),
+                Collections.unmodifiableSet(new TreeSet<>(ruoli)),
+                Collections.unmodifiableSet(new TreeSet<>(gruppi)));
+    }
+
+    static String codificaCursore(String username) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodificaCursore(String cursore) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursore), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Cursore non valido: " + cursore, e);
+        }
+    }
+
+    /**
+     * Utenti per id, per username e per ruolo. Le mappe ordinate per username servono le pagine.
+     */
+    static final class Indice {
+        final ConcurrentMap<String, UtenteDirectory> perId = new ConcurrentHashMap<>();
+        final ConcurrentNavigableMap<String, UtenteDirectory> perUsername = new ConcurrentSkipListMap<>();
+        final ConcurrentMap<String, ConcurrentNavigableMap<String, UtenteDirectory>> perRuolo = new ConcurrentHashMap<>();
+        final Map<String, String> idRuoli;
+
+        Indice(Map<String, String> idRuoli) {
+            this.idRuoli = Map.copyOf(idRuoli);
+        }
+
+        void metti(UtenteDirectory utente) {
+            UtenteDirectory precedente = perId.put(utente.id(), utente);
+            perUsername.put(utente.username(), utente);
+            for (String ruolo : utente.ruoli()) {
+                perRuolo.computeIfAbsent(ruolo, r -> new ConcurrentSkipListMap<>()).put(utente.username(), utente);
+            }
+            if (precedente == null) {
+                return;
+            }
+            boolean rinominato = !precedente.username().equals(utente.username());
+            if (rinominato) {
+                perUsername.remove(precedente.username(), precedente);
+            }
+            for (String ruolo : precedente.ruoli()) {
+                if (rinominato || !utente.ruoli().contains(ruolo)) {
+                    perRuolo.get(ruolo).remove(precedente.username(), precedente);
+                }
+            }
+        }
+
+        void togli(String id) {
+            UtenteDirectory precedente = perId.remove(id);
+            if (precedente == null) {
+                return;
+            }
+            perUsername.remove(precedente.username(), precedente);
+            for (String ruolo : precedente.ruoli()) {
+                perRuolo.get(ruolo).remove(precedente.username(), precedente);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package it.gov.atti.services;
+
+/**
+ * Risposta di errore della Keycloak Admin API, o Keycloak non raggiungibile.
+ * Lo stato HTTP permette di distinguere utente inesistente (404) e username duplicato (409)
+ * dagli errori del servizio.
+ */
+public class ErroreKeycloak extends RuntimeException {
+
+    /** Stato usato quando Keycloak non risponde */
+    public static final int NON_RAGGIUNGIBILE = 503;
+
+    private final int stato;
+
+    public ErroreKeycloak(int stato, String messaggio) {
+        super(messaggio);
+        this.stato = stato;
+    }
+
+    public ErroreKeycloak(int stato, String messaggio, Throwable causa) {
+        super(messaggio, causa);
+        this.stato = stato;
+    }
+
+    /**
+     * @return stato HTTP della risposta di Keycloak
+     */
+    public int stato() {
+        return stato;
+    }
+}
@@ -0,0 +1,174 @@
+package it.gov.atti.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client essenziale della Keycloak Admin API di un realm, autenticato con il service account
+ * di un client confidenziale (grant {@code client_credentials}).
+ * <p>
+ * Il token è riusato fino a 30 secondi dalla scadenza e rinnovato una volta se Keycloak
+ * risponde 401. Le risposte diverse da 2xx sono riportate come {@link ErroreKeycloak}.
+ * I percorsi sono relativi a {@code /admin/realms/{realm}/}.
+ */
+class KeycloakAdmin {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    /** Anticipo del rinnovo del token rispetto alla scadenza */
+    private static final long ANTICIPO_RINNOVO_MS = 30_000;
+
+    final int dimensionePagina;
+
+    private final HttpClient http;
+    private final ObjectMapper mapper;
+    private final String urlToken;
+    private final String urlAdmin;
+    private final String clientId;
+    private final String segreto;
+
+    private String token;
+    private long scadenzaToken;
+
+    KeycloakAdmin(String url, String realm, String clientId, String segreto, int dimensionePagina, ObjectMapper mapper) {
+        String base = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.urlToken = base + "/realms/" + realm + "/protocol/openid-connect/token";
+        this.urlAdmin = base + "/admin/realms/" + realm + "/";
+        this.clientId = clientId;
+        this.segreto = segreto;
+        this.dimensionePagina = dimensionePagina;
+        this.mapper = mapper;
+        this.http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    }
+
+    /**
+     * Legge una risorsa.
+     */
+    JsonNode leggi(String percorso) {
+        return json(invia("GET", percorso, null).body());
+    }
+
+    /**
+     * Legge tutte le pagine di un elenco con i parametri {@code first} e {@code max}.
+     */
+    List<JsonNode> leggiTutti(String percorso) {
+        String separatore = percorso.indexOf('?') >= 0 ? "&" : "?";
+        List<JsonNode> elementi = new ArrayList<>();
+        for (int primo = 0; ; primo += dimensionePagina) {
+            JsonNode pagina = leggi(percorso + separatore + "first=" + primo + "&max=" + dimensionePagina);
+            pagina.forEach(elementi::add);
+            if (pagina.size() < dimensionePagina) {
+                return elementi;
+            }
+        }
+    }
+
+    /**
+     * Crea una risorsa con POST.
+     *
+     * @return id della risorsa creata, dall'header Location
+     */
+    String crea(String percorso, Object corpo) {
+        HttpResponse<String> risposta = invia("POST", percorso, corpo);
+        String location = risposta.headers().firstValue("Location")
+                .orElseThrow(() -> new ErroreKeycloak(risposta.statusCode(), "Risposta senza Location a POST " + percorso));
+        return location.substring(location.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Invia una modifica (PUT, POST o DELETE) senza leggere la risposta.
+     */
+    void scrivi(String metodo, String percorso, Object corpo) {
+        invia(metodo, percorso, corpo);
+    }
+
+    /**
+     * Codifica un valore da usare come segmento di un percorso.
+     */
+    static String segmento(String valore) {
+        return URLEncoder.encode(valore, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private HttpResponse<String> invia(String metodo, String percorso, Object corpo) {
+        HttpResponse<String> risposta = esegui(metodo, percorso, corpo, token(false));
+        if (risposta.statusCode() == 401) {
+            risposta = esegui(metodo, percorso, corpo, token(true));
+        }
+        if (risposta.statusCode() / 100 != 2) {
+            throw new ErroreKeycloak(risposta.statusCode(),
+                    metodo + " " + percorso + " rifiutata da Keycloak (" + risposta.statusCode() + "): " + risposta.body());
+        }
+        return risposta;
+    }
+
+    private HttpResponse<String> esegui(String metodo, String percorso, Object corpo, String bearer) {
+        HttpRequest.BodyPublisher contenuto;
+        try {
+            contenuto = corpo == null
+                    ? HttpRequest.BodyPublishers.noBody()
+                    : HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(corpo));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Corpo della richiesta non serializzabile", e);
+        }
+        return spedisci(HttpRequest.newBuilder(URI.create(urlAdmin + percorso))
+                .timeout(TIMEOUT)
+                .header("Authorization", "Bearer " + bearer)
+                .header("Content-Type", "application/json")
+                .method(metodo, contenuto)
+                .build());
+    }
+
+    private synchronized String token(boolean rinnova) {
+        if (!rinnova && token != null && System.currentTimeMillis() < scadenzaToken) {
+            return token;
+        }
+        String modulo = "grant_type=client_credentials"
+                + "&client_id=" + URLEncoder.encode(clientId, StandardCharsets.UTF_8)
+                + "&client_secret=" + URLEncoder.encode(segreto, StandardCharsets.UTF_8);
+        HttpResponse<String> risposta = spedisci(HttpRequest.newBuilder(URI.create(urlToken))
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(modulo))
+                .build());
+        if (risposta.statusCode() != 200) {
+            throw new ErroreKeycloak(risposta.statusCode(),
+                    "Token del service account " + clientId + " non ottenuto: " + risposta.body());
+        }
+        JsonNode rilasciato = json(risposta.body());
+        token = rilasciato.path("access_token").asText();
+        long validitaMs = rilasciato.path("expires_in").asLong(60) * 1000;
+        scadenzaToken = System.currentTimeMillis() + Math.max(validitaMs - ANTICIPO_RINNOVO_MS, 0);
+        return token;
+    }
+
+    private HttpResponse<String> spedisci(HttpRequest richiesta) {
+        try {
+            return http.send(richiesta, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            throw new ErroreKeycloak(ErroreKeycloak.NON_RAGGIUNGIBILE, "Keycloak non raggiungibile: " + richiesta.uri(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ErroreKeycloak(ErroreKeycloak.NON_RAGGIUNGIBILE, "Richiesta a Keycloak interrotta", e);
+        }
+    }
+
+    private JsonNode json(String testo) {
+        try {
+            return testo.isEmpty() ? mapper.createObjectNode() : mapper.readTree(testo);
+        } catch (JsonProcessingException e) {
+            throw new ErroreKeycloak(502, "Risposta di Keycloak non valida", e);
+        }
+    }
+}
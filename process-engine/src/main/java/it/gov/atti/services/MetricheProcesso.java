@@ -0,0 +1,120 @@
+package it.gov.atti.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tempi di permanenza delle determinazioni negli stati del processo e rispetto degli SLA.
+ * <p>
+ * Ogni stato non finale corrisponde a una fase del processo {@code determinazione-dirigenziale.bpmn}
+ * (BOZZA prima dell'avvio, ISTRUTTORIA e VISTO_CONTABILE per i task utente, FIRMATA in attesa
+ * di pubblicazione). All'uscita da uno stato sono registrati:
+ * <ul>
+ *   <li>{@code atti.determinazioni.permanenza{stato}}: tempo trascorso nello stato;</li>
+ *   <li>{@code atti.determinazioni.sla{stato, esito}}: transizioni entro o oltre lo SLA della fase,
+ *       configurato con {@code atti.sla.<stato>}.</li>
+ * </ul>
+ * I tag assumono solo i valori di {@link StatoDeterminazione}, quindi i meter sono creati tutti
+ * all'avvio e la cardinalità non dipende dai dati.
+ */
+@ApplicationScoped
+public class MetricheProcesso {
+
+    static final String ENTRO = "entro";
+    static final String OLTRE = "oltre";
+
+    @Inject
+    MeterRegistry registry;
+
+    @ConfigProperty(name = "atti.sla.bozza", defaultValue = "P5D")
+    Duration slaBozza;
+
+    @ConfigProperty(name = "atti.sla.istruttoria", defaultValue = "P10D")
+    Duration slaIstruttoria;
+
+    @ConfigProperty(name = "atti.sla.visto-contabile", defaultValue = "P5D")
+    Duration slaVistoContabile;
+
+    @ConfigProperty(name = "atti.sla.firmata", defaultValue = "P2D")
+    Duration slaFirmata;
+
+    private final Map<StatoDeterminazione, Fase> fasi = new EnumMap<>(StatoDeterminazione.class);
+
+    @PostConstruct
+    void registraMetriche() {
+        fasi.put(StatoDeterminazione.BOZZA, new Fase(StatoDeterminazione.BOZZA, slaBozza));
+        fasi.put(StatoDeterminazione.ISTRUTTORIA, new Fase(StatoDeterminazione.ISTRUTTORIA, slaIstruttoria));
+        fasi.put(StatoDeterminazione.VISTO_CONTABILE, new Fase(StatoDeterminazione.VISTO_CONTABILE, slaVistoContabile));
+        fasi.put(StatoDeterminazione.FIRMATA, new Fase(StatoDeterminazione.FIRMATA, slaFirmata));
+    }
+
+    /**
+     * Registra l'uscita di una determinazione da uno stato.
+     *
+     * @param stato  stato lasciato
+     * @param dal    ingresso nello stato; null per le righe precedenti alla sua registrazione
+     * @param uscita momento della transizione
+     */
+    public void registraUscita(StatoDeterminazione stato, LocalDateTime dal, LocalDateTime uscita) {
+        Fase fase = fasi.get(stato);
+        if (fase == null || dal == null) {
+            return;
+        }
+        Duration permanenza = Duration.between(dal, uscita);
+        fase.permanenza.record(permanenza);
+        (permanenza.compareTo(fase.sla) <= 0 ? fase.entro : fase.oltre).increment();
+    }
+
+    /**
+     * SLA della fase corrispondente a uno stato.
+     *
+     * @return durata ammessa nello stato, null per gli stati senza SLA (finali)
+     */
+    public Duration sla(StatoDeterminazione stato) {
+        Fase fase = fasi.get(stato);
+        return fase == null ? null : fase.sla;
+    }
+
+    /** Meter di una fase; l'istogramma ha un bucket esatto sullo SLA */
+    private final class Fase {
+        final Duration sla;
+        final Timer permanenza;
+        final Counter entro;
+        final Counter oltre;
+
+        Fase(StatoDeterminazione stato, Duration sla) {
+            String tag = stato.name().toLowerCase(Locale.ROOT);
+            this.sla = sla;
+            permanenza = Timer.builder("atti.determinazioni.permanenza")
+                    .description("Tempo di permanenza delle determinazioni in uno stato del processo")
+                    .tag("stato", tag)
+                    .publishPercentileHistogram()
+                    .serviceLevelObjectives(sla)
+                    .minimumExpectedValue(Duration.ofMinutes(1))
+                    .maximumExpectedValue(Duration.ofDays(90))
+                    .register(registry);
+            entro = sla(tag, ENTRO);
+            oltre = sla(tag, OLTRE);
+        }
+
+        private Counter sla(String tag, String esito) {
+            return Counter.builder("atti.determinazioni.sla")
+                    .description("Transizioni di stato entro o oltre lo SLA della fase")
+                    .tag("stato", tag)
+                    .tag("esito", esito)
+                    .register(registry);
+        }
+    }
+}
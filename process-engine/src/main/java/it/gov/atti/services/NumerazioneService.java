@@ -0,0 +1,224 @@
+package it.gov.atti.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import it.gov.atti.model.ContatoreNumerazione;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.persistence.EntityManager;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Servizio di numerazione del registro delle determinazioni, con un contatore per anno.
+ * <p>
+ * Due modalità, selezionabili con {@code atti.numerazione.modalita}:
+ * <ul>
+ *   <li>{@code continua}: il contatore è incrementato nella stessa transazione della creazione,
+ *       quindi un rollback non lascia salti. È la modalità del registro ufficiale; le creazioni
+ *       concorrenti nello stesso anno si accodano sul lock di riga del contatore.</li>
+ *   <li>{@code blocchi}: ogni nodo riserva in una transazione separata un blocco di
+ *       {@code atti.numerazione.dimensione-blocco} numeri e li assegna in memoria senza contesa.
+ *       I numeri non usati di un blocco vanno persi al riavvio del nodo.</li>
+ * </ul>
+ * La durata dell'assegnazione è misurata in {@code atti.numerazione.assegnazione}, quella
+ * dell'aggiornamento del contatore sul database, attesa del lock compresa, in
+ * {@code atti.numerazione.riserva}; entrambe con il tag {@code modalita}.
+ */
+@ApplicationScoped
+public class NumerazioneService {
+
+    /** Modalità di assegnazione dei numeri di registro */
+    public enum Modalita {
+        CONTINUA,
+        BLOCCHI
+    }
+
+    @ConfigProperty(name = "atti.numerazione.modalita", defaultValue = "continua")
+    Modalita modalita;
+
+    @ConfigProperty(name = "atti.numerazione.dimensione-blocco", defaultValue = "50")
+    int dimensioneBlocco;
+
+    @Inject
+    MeterRegistry registry;
+
+    /** Blocco corrente per anno (solo modalità blocchi) */
+    private final ConcurrentMap<Integer, Blocco> blocchi = new ConcurrentHashMap<>();
+
+    /** Serializza il solo rinnovo dei blocchi; l'assegnazione dal blocco è lock-free */
+    private final ReentrantLock rinnovo = new ReentrantLock();
+
+    private Timer assegnazione;
+    private Timer riserva;
+
+    @PostConstruct
+    void registraMetriche() {
+        String tag = modalita.name().toLowerCase(Locale.ROOT);
+        assegnazione = Timer.builder("atti.numerazione.assegnazione")
+                .description("Durata dell'assegnazione di uno o più numeri di registro")
+                .tag("modalita", tag)
+                .publishPercentileHistogram()
+                .register(registry);
+        riserva = Timer.builder("atti.numerazione.riserva")
+                .description("Durata dell'aggiornamento del contatore di numerazione sul database")
+                .tag("modalita", tag)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * Assegna il prossimo numero di registro per l'anno indicato.
+     *
+     * @param anno anno di creazione della determinazione
+     * @return numero nel formato DET-YYYY-NNN
+     */
+    public String prossimoNumero(int anno) {
+        long inizio = System.nanoTime();
+        try {
+            return formatta(anno, prossimoProgressivo(anno));
+        } finally {
+            assegnazione.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Assegna {@code quantita} numeri consecutivi per l'anno indicato con un solo aggiornamento
+     * del contatore. In modalità continua l'intervallo è riservato nella transazione corrente,
+     * in modalità blocchi in una transazione separata e senza consumare il blocco del nodo.
+     *
+     * @param anno     anno di creazione delle determinazioni
+     * @param quantita numeri da assegnare
+     * @return numeri nel formato DET-YYYY-NNN, in ordine crescente
+     */
+    public List<String> prossimiNumeri(int anno, int quantita) {
+        if (quantita == 0) {
+            return List.of();
+        }
+        long inizio = System.nanoTime();
+        long ultimo = riserva(anno, quantita);
+        List<String> numeri = new ArrayList<>(quantita);
+        for (long progressivo = ultimo - quantita + 1; progressivo <= ultimo; progressivo++) {
+            numeri.add(formatta(anno, progressivo));
+        }
+        assegnazione.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        return numeri;
+    }
+
+    /**
+     * Formatta un progressivo annuale nel formato DET-YYYY-NNN.
+     */
+    static String formatta(int anno, long progressivo) {
+        return String.format("DET-%d-%03d", anno, progressivo);
+    }
+
+    long prossimoProgressivo(int anno) {
+        if (modalita == Modalita.CONTINUA) {
+            return riserva(anno, 1);
+        }
+        while (true) {
+            Blocco blocco = blocchi.get(anno);
+            if (blocco != null) {
+                long numero = blocco.prossimo.getAndIncrement();
+                if (numero <= blocco.ultimo) {
+                    return numero;
+                }
+            }
+            rinnovaBlocco(anno, blocco);
+        }
+    }
+
+    /**
+     * Sostituisce il blocco esaurito con uno nuovo, a meno che un altro thread non l'abbia già fatto.
+     */
+    private void rinnovaBlocco(int anno, Blocco esaurito) {
+        rinnovo.lock();
+        try {
+            if (blocchi.get(anno) != esaurito) {
+                return;
+            }
+            long ultimo = riserva(anno, dimensioneBlocco);
+            blocchi.put(anno, new Blocco(ultimo - dimensioneBlocco + 1, ultimo));
+        } finally {
+            rinnovo.unlock();
+        }
+    }
+
+    /**
+     * Riserva {@code quantita} numeri nella transazione corrente (continua) o in una
+     * indipendente (blocchi) e ne misura la durata.
+     *
+     * @return ultimo numero dell'intervallo riservato
+     */
+    private long riserva(int anno, int quantita) {
+        long inizio = System.nanoTime();
+        try {
+            return modalita == Modalita.CONTINUA ? riservaIntervallo(anno, quantita) : riservaBlocco(anno, quantita);
+        } finally {
+            riserva.record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Riserva un blocco di numeri in una transazione indipendente, così che il lock sulla riga
+     * del contatore venga rilasciato subito e non per tutta la durata della creazione.
+     *
+     * @return ultimo numero del blocco riservato
+     */
+    long riservaBlocco(int anno, int quantita) {
+        return QuarkusTransaction.requiringNew().call(() -> riservaIntervallo(anno, quantita));
+    }
+
+    /**
+     * Incrementa il contatore dell'anno di {@code quantita} nella transazione corrente.
+     * Alla prima richiesta dell'anno il contatore parte dal massimo numero già presente
+     * in 'determinazioni', così da proseguire il registro esistente.
+     *
+     * @return ultimo numero dell'intervallo riservato
+     */
+    long riservaIntervallo(int anno, int quantita) {
+        EntityManager em = ContatoreNumerazione.getEntityManager();
+        List<?> aggiornato = em.createNativeQuery(
+                        "UPDATE contatori_numerazione SET ultimo_numero = ultimo_numero + :quantita "
+                                + "WHERE anno = :anno RETURNING ultimo_numero")
+                .setParameter("quantita", quantita)
+                .setParameter("anno", anno)
+                .getResultList();
+        if (!aggiornato.isEmpty()) {
+            return ((Number) aggiornato.get(0)).longValue();
+        }
+        Object ultimo = em.createNativeQuery(
+                        "INSERT INTO contatori_numerazione (anno, ultimo_numero) "
+                                + "SELECT :anno, COALESCE(MAX(CAST(SPLIT_PART(numero, '-', 3) AS BIGINT)), 0) + :quantita "
+                                + "FROM determinazioni WHERE numero LIKE :prefisso "
+                                + "ON CONFLICT (anno) DO UPDATE "
+                                + "SET ultimo_numero = contatori_numerazione.ultimo_numero + :quantita "
+                                + "RETURNING ultimo_numero")
+                .setParameter("anno", anno)
+                .setParameter("quantita", quantita)
+                .setParameter("prefisso", "DET-" + anno + "-%")
+                .getSingleResult();
+        return ((Number) ultimo).longValue();
+    }
+
+    /** Intervallo [primo, ultimo] di numeri riservati a questo nodo */
+    private static final class Blocco {
+        final AtomicLong prossimo;
+        final long ultimo;
+
+        Blocco(long primo, long ultimo) {
+            this.prossimo = new AtomicLong(primo);
+            this.ultimo = ultimo;
+        }
+    }
+}
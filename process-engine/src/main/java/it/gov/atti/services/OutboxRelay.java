@@ -0,0 +1,207 @@
+package it.gov.atti.services;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.EventoOutbox;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Inoltra su Kafka gli eventi dell'outbox delle determinazioni.
+ * <p>
+ * Un thread dedicato legge a blocchi gli eventi non ancora inviati, in ordine di id, li pubblica
+ * sul topic {@code atti.outbox.topic} con chiave l'id della determinazione (stessa partizione,
+ * quindi ordine garantito per determinazione) e li marca come inviati nella stessa transazione.
+ * Se la pubblicazione fallisce la transazione è annullata e il blocco viene ritentato: la
+ * consegna è almeno una volta, e i consumatori riconoscono i duplicati dall'header
+ * {@value #HEADER_ID_EVENTO}.
+ * <p>
+ * Con più repliche un solo relay alla volta elabora l'outbox, tramite un advisory lock di
+ * transazione: due relay in parallelo potrebbero pubblicare fuori ordine eventi della stessa
+ * determinazione. Gli eventi inviati sono eliminati dopo {@code atti.outbox.conservazione}.
+ */
+@ApplicationScoped
+public class OutboxRelay {
+
+    private static final Logger LOG = Logger.getLogger(OutboxRelay.class);
+
+    /** Header con l'id dell'evento nell'outbox */
+    public static final String HEADER_ID_EVENTO = "id-evento";
+
+    /** Header con il tipo di evento */
+    public static final String HEADER_TIPO = "tipo";
+
+    /** Chiave dell'advisory lock che elegge il relay attivo */
+    private static final long CHIAVE_LOCK = 0x6f7574626f78L;
+
+    @ConfigProperty(name = "atti.outbox.relay.abilitato", defaultValue = "true")
+    boolean abilitato;
+
+    @ConfigProperty(name = "atti.outbox.topic", defaultValue = "determinazioni-eventi")
+    String topic;
+
+    @ConfigProperty(name = "atti.outbox.dimensione-batch", defaultValue = "500")
+    int dimensioneBatch;
+
+    @ConfigProperty(name = "atti.outbox.intervallo", defaultValue = "200")
+    long intervalloMs;
+
+    @ConfigProperty(name = "atti.outbox.conservazione", defaultValue = "P7D")
+    Duration conservazione;
+
+    @ConfigProperty(name = "kafka.bootstrap.servers", defaultValue = "localhost:9092")
+    String bootstrapServers;
+
+    /** Producer Kafka; sostituibile con un MockProducer nei test */
+    Producer<String, String> producer;
+
+    private volatile boolean attivo;
+    private Thread thread;
+    private long ultimaPulizia;
+
+    void avvia(@Observes StartupEvent evento) {
+        if (!abilitato) {
+            return;
+        }
+        producer = new KafkaProducer<>(configurazioneProducer());
+        attivo = true;
+        thread = new Thread(this::ciclo, "outbox-relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (producer != null) {
+            producer.close(Duration.ofSeconds(5));
+        }
+    }
+
+    private void ciclo() {
+        while (attivo) {
+            try {
+                int inoltrati = inoltra();
+                if (inoltrati < dimensioneBatch) {
+                    pulisci();
+                    Thread.sleep(intervalloMs);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOG.warnf(e, "Inoltro dell'outbox fallito, nuovo tentativo tra 5 secondi");
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+                } catch (InterruptedException interrotto) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pubblica un blocco di eventi in attesa e li marca come inviati.
+     *
+     * @return eventi inoltrati; 0 se non ce ne sono o se un'altra replica sta inoltrando
+     */
+    int inoltra() {
+        return QuarkusTransaction.requiringNew().call(() -> {
+            Boolean eletto = (Boolean) EventoOutbox.getEntityManager()
+                    .createNativeQuery("SELECT pg_try_advisory_xact_lock(:chiave)")
+                    .setParameter("chiave", CHIAVE_LOCK)
+                    .getSingleResult();
+            if (!Boolean.TRUE.equals(eletto)) {
+                return 0;
+            }
+            List<EventoOutbox> eventi = EventoOutbox.<EventoOutbox>find("inviatoIl is null order by id")
+                    .page(0, dimensioneBatch)
+                    .list();
+            if (eventi.isEmpty()) {
+                return 0;
+            }
+            pubblica(eventi);
+            LocalDateTime ora = LocalDateTime.now();
+            for (EventoOutbox evento : eventi) {
+                evento.inviatoIl = ora;
+            }
+            return eventi.size();
+        });
+    }
+
+    /**
+     * Invia gli eventi nell'ordine dato e attende la conferma di tutti.
+     *
+     * @throws IllegalStateException se almeno un invio fallisce
+     */
+    void pubblica(List<EventoOutbox> eventi) {
+        List<Future<RecordMetadata>> invii = new ArrayList<>(eventi.size());
+        for (EventoOutbox evento : eventi) {
+            ProducerRecord<String, String> messaggio = new ProducerRecord<>(topic,
+                    String.valueOf(evento.determinazioneId), evento.payload);
+            messaggio.headers()
+                    .add(HEADER_ID_EVENTO, String.valueOf(evento.id).getBytes(StandardCharsets.UTF_8))
+                    .add(HEADER_TIPO, evento.tipo.getBytes(StandardCharsets.UTF_8));
+            invii.add(producer.send(messaggio));
+        }
+        producer.flush();
+        try {
+            for (Future<RecordMetadata> invio : invii) {
+                invio.get(30, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Inoltro dell'outbox interrotto", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("Pubblicazione di " + eventi.size() + " eventi su " + topic + " fallita", e);
+        }
+    }
+
+    /** Elimina gli eventi inviati da più di {@code conservazione}, al più una volta l'ora */
+    private void pulisci() {
+        long ora = System.currentTimeMillis();
+        if (ora - ultimaPulizia < TimeUnit.HOURS.toMillis(1)) {
+            return;
+        }
+        ultimaPulizia = ora;
+        long eliminati = QuarkusTransaction.requiringNew().call(() ->
+                EventoOutbox.delete("inviatoIl < ?1", LocalDateTime.now().minus(conservazione)));
+        if (eliminati > 0) {
+            LOG.infof("Eliminati %d eventi inviati dall'outbox", eliminati);
+        }
+    }
+
+    private Properties configurazioneProducer() {
+        Properties proprieta = new Properties();
+        proprieta.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        proprieta.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        proprieta.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        // Idempotenza: i tentativi interni del producer non duplicano né riordinano i messaggi
+        proprieta.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+        proprieta.put(ProducerConfig.ACKS_CONFIG, "all");
+        proprieta.put(ProducerConfig.LINGER_MS_CONFIG, "10");
+        return proprieta;
+    }
+}
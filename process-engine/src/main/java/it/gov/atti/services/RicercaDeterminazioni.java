@@ -0,0 +1,304 @@
+package it.gov.atti.services;
+
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.DeterminazioneSintesi;
+import it.gov.atti.model.FiltroRicerca;
+import it.gov.atti.model.RisultatoRicerca;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.Query;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ricerca testuale con ranking, faccette ed evidenziazione sulle determinazioni.
+ * <p>
+ * L'indice è la colonna {@code ricerca} di 'determinazioni', un tsvector generato da PostgreSQL
+ * con il dizionario italiano sull'oggetto (peso A) e senza stemming su numero e centro di spesa
+ * (peso B), con un indice GIN. Essendo una colonna generata è aggiornata dal database nella stessa
+ * transazione di ogni INSERT o UPDATE, compresi crea(), creaTutte() e gli aggiornamenti di stato:
+ * non c'è un indice separato da tenere allineato.
+ * <p>
+ * Una ricerca è una sola query: le corrispondenze sono lette dall'indice una volta, fino a
+ * {@code atti.ricerca.max-corrispondenze}, e da queste sono calcolati ordinamento per rilevanza,
+ * faccette (GROUPING SETS) ed evidenziazione, quest'ultima solo per la pagina restituita.
+ * Il limite tiene la latenza costante anche per termini molto frequenti; oltre il limite il
+ * risultato è segnalato come approssimato: le corrispondenze considerate sono le più recenti
+ * (id decrescente, un ordinamento top-N che non calcola il punteggio), quindi la pagina
+ * restituita è la più rilevante tra queste e non tra tutte, e le faccette contano solo queste.
+ */
+@ApplicationScoped
+public class RicercaDeterminazioni {
+
+    private static final Logger LOG = Logger.getLogger(RicercaDeterminazioni.class);
+
+    /** Indice GIN sulla colonna ricerca */
+    public static final String INDICE = "idx_determinazioni_ricerca";
+
+    /** Chiave dei valori assenti nelle faccette, come negli aggregati */
+    static final String NON_INDICATO = AggregatiDeterminazioni.NON_INDICATO;
+
+    /** Valori restituiti al più per ogni faccetta, i più frequenti */
+    static final int MAX_VALORI_FACCETTA = 50;
+
+    /** Lock consultivo che serializza le modifiche allo schema tra le repliche */
+    private static final long CHIAVE_LOCK = 0x72696365726361L;
+
+    /** Delimitatori dei termini trovati prodotti da ts_headline, sostituiti dopo l'escape HTML */
+    private static final char INIZIO = '\u0002';
+    private static final char FINE = '\u0003';
+
+    private static final String COLONNA = """
+            ALTER TABLE determinazioni ADD COLUMN IF NOT EXISTS ricerca tsvector GENERATED ALWAYS AS (
+                setweight(to_tsvector('italian', coalesce(oggetto, '')), 'A')
+                || setweight(to_tsvector('simple', coalesce(numero, '') || ' ' || coalesce(centro_spesa, '')), 'B')
+            ) STORED""";
+
+    private static final String CREA_INDICE =
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + INDICE + " ON determinazioni USING gin (ricerca)";
+
+    /**
+     * Corrispondenze (tipo 0) e faccette (tipo 1) nello stesso risultato. La CTE 'trovate' è
+     * materializzata: l'indice è letto una volta sola per entrambe. Oltre il limite tiene le
+     * corrispondenze più recenti, in modo deterministico, e non le prime lette dall'indice.
+     * GROUPING(stato, centro_spesa, livello_dirigente, anno) vale 7, 11, 13, 14 per le singole
+     * faccette e 15 per il totale.
+     */
+    private static final String RICERCA = """
+            WITH q AS (SELECT websearch_to_tsquery('italian', :testo) AS query),
+            trovate AS MATERIALIZED (
+                SELECT d.id, d.numero, d.oggetto, d.importo, d.centro_spesa, d.dirigente, d.livello_dirigente,
+                       d.stato, d.data_creazione, ts_rank_cd(d.ricerca, q.query) AS punteggio
+                FROM determinazioni d, q
+                WHERE d.ricerca @@ q.query%s
+                ORDER BY d.id DESC
+                LIMIT :massimo),
+            migliori AS (
+                SELECT * FROM trovate ORDER BY punteggio DESC, id DESC LIMIT :limite)
+            SELECT 0 AS tipo, m.id, m.numero, m.oggetto, m.importo, m.centro_spesa, m.dirigente, m.livello_dirigente,
+                   m.stato, m.data_creazione, m.punteggio,
+                   ts_headline('italian', m.oggetto, q.query, :opzioni) AS evidenziato,
+                   NULL AS faccetta, NULL AS valore, NULL AS conteggio
+            FROM migliori m, q
+            UNION ALL
+            SELECT 1, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL, NULL,
+                   GROUPING(stato, centro_spesa, livello_dirigente, anno),
+                   COALESCE(stato, centro_spesa, livello_dirigente, CAST(anno AS varchar)),
+                   count(*)
+            FROM (SELECT stato, centro_spesa, livello_dirigente,
+                         CAST(EXTRACT(YEAR FROM data_creazione) AS integer) AS anno FROM trovate) t
+            GROUP BY GROUPING SETS ((stato), (centro_spesa), (livello_dirigente), (anno), ())""";
+
+    private static final Map<Integer, String> FACCETTE = Map.of(
+            7, "stato",
+            11, "centroSpesa",
+            13, "livelloDirigente",
+            14, "anno");
+
+    @Inject
+    DataSource dataSource;
+
+    @ConfigProperty(name = "atti.ricerca.max-corrispondenze", defaultValue = "10000")
+    int maxCorrispondenze;
+
+    @ConfigProperty(name = "atti.ricerca.prepara-schema", defaultValue = "true")
+    boolean preparaSchema;
+
+    void avvia(@Observes StartupEvent evento) {
+        if (!preparaSchema) {
+            return;
+        }
+        try {
+            modificaSchema(true, COLONNA, CREA_INDICE);
+        } catch (RuntimeException e) {
+            LOG.warn("Preparazione dell'indice di ricerca fallita: ricerca non disponibile fino a "
+                    + "POST /admin/ricerca/ricostruisci", e);
+        }
+    }
+
+    /**
+     * Cerca le determinazioni che corrispondono al testo e ai filtri.
+     *
+     * @param filtro testo e faccette selezionate
+     * @param limite corrispondenze da restituire
+     * @return le corrispondenze più rilevanti con le faccette dell'intero risultato
+     * @throws IllegalArgumentException se il testo è vuoto o lo stato non è valido
+     */
+    public RisultatoRicerca cerca(FiltroRicerca filtro, int limite) {
+        if (filtro.testo() == null || filtro.testo().isBlank()) {
+            throw new IllegalArgumentException("Il parametro 'q' è obbligatorio");
+        }
+        StringBuilder condizioni = new StringBuilder();
+        Map<String, Object> parametri = new HashMap<>();
+        if (filtro.stato() != null) {
+            condizioni.append(" AND d.stato = :stato");
+            parametri.put("stato", StatoDeterminazione.da(filtro.stato()).name());
+        }
+        if (filtro.centroSpesa() != null) {
+            condizioni.append(" AND d.centro_spesa = :centroSpesa");
+            parametri.put("centroSpesa", filtro.centroSpesa());
+        }
+        if (filtro.livelloDirigente() != null) {
+            condizioni.append(" AND d.livello_dirigente = :livelloDirigente");
+            parametri.put("livelloDirigente", filtro.livelloDirigente());
+        }
+        if (filtro.anno() != null) {
+            condizioni.append(" AND d.data_creazione >= :da AND d.data_creazione < :a");
+            parametri.put("da", LocalDate.of(filtro.anno(), 1, 1).atStartOfDay());
+            parametri.put("a", LocalDate.of(filtro.anno() + 1, 1, 1).atStartOfDay());
+        }
+
+        Query query = Determinazione.getEntityManager()
+                .createNativeQuery(RICERCA.formatted(condizioni))
+                .setParameter("testo", filtro.testo())
+                .setParameter("massimo", maxCorrispondenze)
+                .setParameter("limite", limite)
+                .setParameter("opzioni", "StartSel=" + INIZIO + ", StopSel=" + FINE
+                        + ", MaxFragments=2, MaxWords=25, MinWords=8, FragmentDelimiter=\" … \"");
+        parametri.forEach(query::setParameter);
+
+        List<RisultatoRicerca.Corrispondenza> elementi = new ArrayList<>(limite);
+        Map<String, Map<String, Long>> faccette = new LinkedHashMap<>();
+        List.of("stato", "centroSpesa", "livelloDirigente", "anno").forEach(f -> faccette.put(f, new LinkedHashMap<>()));
+        long totale = 0;
+        List<Object[]> valori = new ArrayList<>();
+        for (Object riga : query.getResultList()) {
+            Object[] colonne = (Object[]) riga;
+            if (((Number) colonne[0]).intValue() == 0) {
+                elementi.add(corrispondenza(colonne));
+            } else if (((Number) colonne[12]).intValue() == 15) {
+                totale = ((Number) colonne[14]).longValue();
+            } else {
+                valori.add(colonne);
+            }
+        }
+        // l'ordine delle righe di una UNION ALL non è garantito
+        elementi.sort(Comparator.comparingDouble(RisultatoRicerca.Corrispondenza::punteggio).reversed()
+                .thenComparing(c -> c.determinazione().id(), Comparator.reverseOrder()));
+        valori.sort(Comparator.comparingLong(colonne -> -((Number) colonne[14]).longValue()));
+        for (Object[] colonne : valori) {
+            Map<String, Long> faccetta = faccette.get(FACCETTE.get(((Number) colonne[12]).intValue()));
+            if (faccetta.size() < MAX_VALORI_FACCETTA) {
+                faccetta.put(colonne[13] == null ? NON_INDICATO : (String) colonne[13], ((Number) colonne[14]).longValue());
+            }
+        }
+        return new RisultatoRicerca(totale, totale >= maxCorrispondenze, elementi, faccette);
+    }
+
+    /**
+     * Ricostruisce l'indice GIN senza bloccare le scritture e aggiorna le statistiche della tabella.
+     * Serve dopo caricamenti massivi, quando l'indice è cresciuto per gli aggiornamenti, o se una
+     * creazione concorrente precedente si è interrotta lasciandolo non valido. Crea colonna e
+     * indice se mancano, ad esempio se la preparazione all'avvio è fallita.
+     *
+     * @return durata della ricostruzione
+     * @throws IllegalStateException se un'altra ricostruzione è in corso
+     * @throws PersistenceException  se il DDL fallisce
+     */
+    public Duration ricostruisci() {
+        long inizio = System.nanoTime();
+        modificaSchema(false, COLONNA, CREA_INDICE, "REINDEX INDEX CONCURRENTLY " + INDICE, "ANALYZE determinazioni");
+        Duration durata = Duration.ofNanos(System.nanoTime() - inizio);
+        LOG.infof("Indice di ricerca %s ricostruito in %d ms", INDICE, durata.toMillis());
+        return durata;
+    }
+
+    /**
+     * Esegue il DDL in autocommit, come richiesto dalle operazioni CONCURRENTLY, con un lock
+     * consultivo di sessione che esclude le esecuzioni concorrenti dalle altre repliche.
+     *
+     * @param attendi true per attendere il lock (avvio), false per rinunciare se è già preso
+     */
+    private void modificaSchema(boolean attendi, String... ddl) {
+        try (Connection connessione = dataSource.getConnection();
+             Statement statement = connessione.createStatement()) {
+            connessione.setAutoCommit(true);
+            if (attendi) {
+                statement.execute("SELECT pg_advisory_lock(" + CHIAVE_LOCK + ")");
+            } else {
+                try (ResultSet lock = statement.executeQuery("SELECT pg_try_advisory_lock(" + CHIAVE_LOCK + ")")) {
+                    lock.next();
+                    if (!lock.getBoolean(1)) {
+                        throw new IllegalStateException("Modifica dell'indice di ricerca già in corso");
+                    }
+                }
+            }
+            try {
+                for (String sql : ddl) {
+                    statement.execute(sql);
+                }
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock(" + CHIAVE_LOCK + ")");
+            }
+        } catch (SQLException e) {
+            throw new PersistenceException("DDL dell'indice di ricerca fallito: " + e.getMessage(), e);
+        }
+    }
+
+    private static RisultatoRicerca.Corrispondenza corrispondenza(Object[] colonne) {
+        DeterminazioneSintesi sintesi = new DeterminazioneSintesi(
+                ((Number) colonne[1]).longValue(),
+                (String) colonne[2],
+                (String) colonne[3],
+                colonne[4] == null ? null : ((Number) colonne[4]).doubleValue(),
+                (String) colonne[5],
+                (String) colonne[6],
+                (String) colonne[7],
+                colonne[8] == null ? null : StatoDeterminazione.valueOf((String) colonne[8]),
+                dataOra(colonne[9]));
+        return new RisultatoRicerca.Corrispondenza(sintesi, ((Number) colonne[10]).doubleValue(),
+                evidenzia((String) colonne[11]));
+    }
+
+    private static LocalDateTime dataOra(Object valore) {
+        if (valore instanceof Timestamp timestamp) {
+            return timestamp.toLocalDateTime();
+        }
+        return (LocalDateTime) valore;
+    }
+
+    /**
+     * Applica l'escape HTML al frammento e sostituisce i delimitatori dei termini trovati con
+     * {@code <mark>}: l'oggetto è testo libero e non deve poter introdurre markup.
+     */
+    static String evidenzia(String frammento) {
+        if (frammento == null) {
+            return null;
+        }
+        StringBuilder html = new StringBuilder(frammento.length() + 32);
+        for (int i = 0; i < frammento.length(); i++) {
+            char c = frammento.charAt(i);
+            switch (c) {
+                case INIZIO -> html.append("<mark>");
+                case FINE -> html.append("</mark>");
+                case '<' -> html.append("&lt;");
+                case '>' -> html.append("&gt;");
+                case '&' -> html.append("&amp;");
+                case '"' -> html.append("&quot;");
+                case '\'' -> html.append("&#39;");
+                default -> html.append(c);
+            }
+        }
+        return html.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package it.gov.atti.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ruota temporale gerarchica (hierarchical timing wheel) di scadenze identificate da un id.
+ * <p>
+ * Il tempo avanza a tick di durata fissa. Ogni livello ha {@value #SLOT} slot: il livello 0 copre
+ * i prossimi 64 tick, il livello 1 i prossimi 64² e così via fino a {@value #LIVELLI} livelli
+ * (con tick di un minuto, circa 31 anni). Una scadenza è inserita nel livello più basso che la
+ * contiene; quando il tempo entra nel suo intervallo lo slot del livello superiore è ridistribuito
+ * su quelli inferiori, fino allo scatto dal livello 0.
+ * <p>
+ * Ogni slot è una lista doppiamente concatenata e l'indice per id punta al nodo: armare, riarmare
+ * e annullare una scadenza costano O(1) indipendentemente da quante sono in attesa. I metodi sono
+ * sincronizzati sull'istanza.
+ *
+ * @param <T> valore associato alla scadenza, restituito allo scatto
+ */
+class RuotaScadenze<T> {
+
+    static final int SLOT = 64;
+    static final int LIVELLI = 4;
+
+    private static final int BIT_SLOT = 6;
+
+    private final long durataTick;
+    private final Nodo<T>[][] slot;
+    private final Map<Long, Nodo<T>> perId = new HashMap<>();
+
+    /** Ultimo tick elaborato */
+    private long corrente;
+
+    /**
+     * @param durataTick durata di un tick in millisecondi
+     * @param inizio     istante iniziale in millisecondi
+     */
+    @SuppressWarnings("unchecked")
+    RuotaScadenze(long durataTick, long inizio) {
+        this.durataTick = durataTick;
+        this.slot = new Nodo[LIVELLI][SLOT];
+        this.corrente = inizio / durataTick;
+    }
+
+    /**
+     * Arma la scadenza di un id, sostituendo quella già presente. La scadenza scatta al primo
+     * {@link #avanza} con un istante non precedente; una scadenza già passata al prossimo.
+     *
+     * @param istante scadenza in millisecondi
+     * @return valore della scadenza sostituita, o null
+     */
+    synchronized T arma(long id, long istante, T valore) {
+        Nodo<T> precedente = perId.remove(id);
+        if (precedente != null) {
+            scollega(precedente);
+        }
+        Nodo<T> nodo = new Nodo<>(id, Math.max((istante + durataTick - 1) / durataTick, corrente + 1), valore);
+        perId.put(id, nodo);
+        inserisci(nodo);
+        return precedente == null ? null : precedente.valore;
+    }
+
+    /**
+     * Annulla la scadenza di un id.
+     *
+     * @return valore della scadenza annullata, o null se non c'era
+     */
+    synchronized T annulla(long id) {
+        Nodo<T> nodo = perId.remove(id);
+        if (nodo == null) {
+            return null;
+        }
+        scollega(nodo);
+        return nodo.valore;
+    }
+
+    /** Valore della scadenza in attesa per un id, o null */
+    synchronized T valore(long id) {
+        Nodo<T> nodo = perId.get(id);
+        return nodo == null ? null : nodo.valore;
+    }
+
+    /** Scadenze in attesa */
+    synchronized int dimensione() {
+        return perId.size();
+    }
+
+    /**
+     * Porta la ruota all'istante indicato e rimuove le scadenze raggiunte.
+     *
+     * @param istante istante corrente in millisecondi
+     * @return valori delle scadenze scattate, in ordine di tick
+     */
+    synchronized List<T> avanza(long istante) {
+        long obiettivo = istante / durataTick;
+        List<T> scattate = new ArrayList<>();
+        while (corrente < obiettivo) {
+            corrente++;
+            // dall'alto: uno slot ridistribuito può finire nello slot inferiore da ridistribuire ora
+            for (int livello = LIVELLI - 1; livello > 0; livello--) {
+                if ((corrente & ((1L << (BIT_SLOT * livello)) - 1)) == 0) {
+                    ridistribuisci(livello, indice(corrente, livello));
+                }
+            }
+            int indice = indice(corrente, 0);
+            Nodo<T> nodo = slot[0][indice];
+            slot[0][indice] = null;
+            while (nodo != null) {
+                Nodo<T> successivo = nodo.successivo;
+                perId.remove(nodo.id);
+                scattate.add(nodo.valore);
+                nodo = successivo;
+            }
+        }
+        return scattate;
+    }
+
+    private void ridistribuisci(int livello, int indice) {
+        Nodo<T> nodo = slot[livello][indice];
+        slot[livello][indice] = null;
+        while (nodo != null) {
+            Nodo<T> successivo = nodo.successivo;
+            inserisci(nodo);
+            nodo = successivo;
+        }
+    }
+
+    /** Inserisce il nodo nel livello più basso il cui orizzonte contiene la scadenza */
+    private void inserisci(Nodo<T> nodo) {
+        long distanza = nodo.tick - corrente;
+        int livello = 0;
+        while (livello < LIVELLI - 1 && distanza >= 1L << (BIT_SLOT * (livello + 1))) {
+            livello++;
+        }
+        int indice = indice(nodo.tick, livello);
+        nodo.livello = livello;
+        nodo.indice = indice;
+        nodo.precedente = null;
+        nodo.successivo = slot[livello][indice];
+        if (nodo.successivo != null) {
+            nodo.successivo.precedente = nodo;
+        }
+        slot[livello][indice] = nodo;
+    }
+
+    private void scollega(Nodo<T> nodo) {
+        if (nodo.precedente != null) {
+            nodo.precedente.successivo = nodo.successivo;
+        } else {
+            slot[nodo.livello][nodo.indice] = nodo.successivo;
+        }
+        if (nodo.successivo != null) {
+            nodo.successivo.precedente = nodo.precedente;
+        }
+    }
+
+    private static int indice(long tick, int livello) {
+        return (int) ((tick >>> (BIT_SLOT * livello)) & (SLOT - 1));
+    }
+
+    private static final class Nodo<T> {
+        final long id;
+        final long tick;
+        final T valore;
+        int livello;
+        int indice;
+        Nodo<T> precedente;
+        Nodo<T> successivo;
+
+        Nodo(long id, long tick, T valore) {
+            this.id = id;
+            this.tick = tick;
+            this.valore = valore;
+        }
+    }
+}
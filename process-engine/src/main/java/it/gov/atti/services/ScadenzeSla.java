@@ -0,0 +1,637 @@
+package it.gov.atti.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.persistence.PersistenceException;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Scadenze degli SLA delle fasi in corso ed escalation delle determinazioni in ritardo.
+ * <p>
+ * Ogni determinazione in uno stato con SLA ({@code atti.sla.<stato>}, vedi {@link MetricheProcesso})
+ * ha una scadenza in una {@link RuotaScadenze}: prima alla soglia di rischio
+ * ({@code atti.sla.scadenze.soglia-rischio} dello SLA), poi allo SLA. Le scadenze sono armate e
+ * annullate dagli eventi dell'outbox letti dal topic {@code atti.outbox.topic}, con un costo
+ * costante per transizione: nessuna interrogazione periodica degli atti aperti. Ogni replica si
+ * assegna tutte le partizioni del topic partendo dalla fine, senza gruppo di consumer. All'avvio,
+ * e ogni {@code atti.sla.scadenze.ricarica}, la ruota è ricostruita da stato e {@code stato_dal}
+ * della tabella 'determinazioni', quindi sopravvive ai riavvii e corregge eventi persi. Per le
+ * righe senza {@code stato_dal}, create prima della colonna e non ancora aggiornate dalla
+ * migrazione 007, vale la data di creazione.
+ * <p>
+ * Allo scatto la fase è verificata sulla tabella e l'escalation è registrata in
+ * {@code sla_escalation} con lo stesso comando: la chiave (determinazione, stato, livello) fa sì
+ * che ogni escalation sia registrata una sola volta anche se più repliche, o un riavvio, la fanno
+ * scattare di nuovo. Per le escalation nuove un evento SLA_A_RISCHIO o SLA_SCADUTO è scritto
+ * nell'outbox nella stessa transazione. Scadenze di fasi già concluse sono scartate.
+ * <p>
+ * Metriche:
+ * <ul>
+ *   <li>{@code atti.sla.attivita{stato, centro_spesa, esito}}: determinazioni ora a rischio o
+ *       scadute nella fase in corso; ogni replica riporta il totale di tutte (max, non somma);</li>
+ *   <li>{@code atti.sla.escalation{stato, centro_spesa, livello}}: escalation registrate da
+ *       questa replica;</li>
+ *   <li>{@code atti.sla.scadenze}: scadenze in attesa nella ruota.</li>
+ * </ul>
+ */
+@ApplicationScoped
+public class ScadenzeSla {
+
+    private static final Logger LOG = Logger.getLogger(ScadenzeSla.class);
+
+    /** Gravità di un'escalation, nell'ordine in cui sono raggiunte */
+    enum Livello {
+        A_RISCHIO(EventoDeterminazione.SLA_A_RISCHIO),
+        SCADUTA(EventoDeterminazione.SLA_SCADUTO);
+
+        final String tipoEvento;
+
+        Livello(String tipoEvento) {
+            this.tipoEvento = tipoEvento;
+        }
+    }
+
+    /**
+     * Determinazione in una fase con SLA.
+     *
+     * @param dal     ingresso nello stato
+     * @param livello escalation già raggiunta nella fase, null se nei tempi
+     */
+    record Attivita(long id, StatoDeterminazione stato, String centroSpesa, LocalDateTime dal, Livello livello) {
+
+        Attivita con(Livello raggiunto) {
+            return new Attivita(id, stato, centroSpesa, dal, raggiunto);
+        }
+    }
+
+    private static final String DDL = """
+            CREATE TABLE IF NOT EXISTS sla_escalation (
+                determinazione_id bigint NOT NULL,
+                stato varchar(255) NOT NULL,
+                livello varchar(32) NOT NULL,
+                stato_dal timestamp(6) NOT NULL,
+                registrata_il timestamp(6) NOT NULL,
+                PRIMARY KEY (determinazione_id, stato, livello)
+            )""";
+
+    /** Stati con SLA, cioè non finali */
+    private static final String STATI_APERTI = Arrays.stream(StatoDeterminazione.values())
+            .filter(stato -> !stato.finale())
+            .map(stato -> "'" + stato.name() + "'")
+            .collect(Collectors.joining(", "));
+
+    /** Ingresso nello stato corrente; la data di creazione per le righe precedenti alla colonna */
+    private static final String DAL = "COALESCE(d.stato_dal, d.data_creazione)";
+
+    /** Pagina di determinazioni aperte successive a un id, per il caricamento a pagine per chiave */
+    private static final String APERTE = "SELECT d.id, d.stato, d.centro_spesa, " + DAL + " FROM determinazioni d "
+            + "WHERE d.stato IN (" + STATI_APERTI + ") AND d.id > ? ORDER BY d.id LIMIT ?";
+
+    private static final long RIPROVA_RICARICA_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Verifica le scadenze sulla tabella (la determinazione è ancora nello stato, entrata prima del
+     * limite del livello) e registra le escalation non ancora presenti. Restituisce tutte le
+     * scadenze confermate, con true per quelle registrate ora.
+     */
+    private static final String ESCALATION = """
+            WITH attese AS (
+                SELECT * FROM unnest(?, ?, ?, ?) AS a(id, stato, livello, limite)
+            ), confermate AS (
+                SELECT d.id, d.numero, d.process_instance_id, d.centro_spesa, d.livello_dirigente, d.importo,
+                       d.data_creazione, d.stato, %1$s AS stato_dal, a.livello
+                FROM attese a JOIN determinazioni d ON d.id = a.id AND d.stato = a.stato AND %1$s <= a.limite
+            ), registrate AS (
+                INSERT INTO sla_escalation (determinazione_id, stato, livello, stato_dal, registrata_il)
+                SELECT id, stato, livello, stato_dal, ? FROM confermate
+                ON CONFLICT DO NOTHING
+                RETURNING determinazione_id
+            )
+            SELECT c.*, r.determinazione_id IS NOT NULL FROM confermate c
+            LEFT JOIN registrate r ON r.determinazione_id = c.id""".formatted(DAL);
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MeterRegistry registry;
+
+    @Inject
+    MetricheProcesso metriche;
+
+    @ConfigProperty(name = "atti.sla.scadenze.abilitato", defaultValue = "true")
+    boolean abilitato;
+
+    @ConfigProperty(name = "atti.sla.scadenze.risoluzione", defaultValue = "PT1M")
+    Duration risoluzione;
+
+    @ConfigProperty(name = "atti.sla.scadenze.soglia-rischio", defaultValue = "0.8")
+    double sogliaRischio;
+
+    @ConfigProperty(name = "atti.sla.scadenze.ricarica", defaultValue = "PT6H")
+    Duration ricarica;
+
+    @ConfigProperty(name = "atti.sla.scadenze.dimensione-batch", defaultValue = "1000")
+    int dimensioneBatch;
+
+    @ConfigProperty(name = "atti.sla.scadenze.pagina-ricarica", defaultValue = "10000")
+    int paginaRicarica;
+
+    @ConfigProperty(name = "atti.outbox.topic", defaultValue = "determinazioni-eventi")
+    String topic;
+
+    @ConfigProperty(name = "kafka.bootstrap.servers", defaultValue = "localhost:9092")
+    String bootstrapServers;
+
+    /** Consumer Kafka; sostituibile con un MockConsumer nei test */
+    Consumer<String, String> consumer;
+
+    RuotaScadenze<Attivita> ruota;
+
+    /** Scattate in attesa della verifica sulla tabella */
+    private final Map<Long, Attivita> inVerifica = new HashMap<>();
+
+    /** Scadute: non hanno più scadenze nella ruota ma restano contate finché la fase non si chiude */
+    private final Map<Long, Attivita> scadute = new HashMap<>();
+
+    private final Map<String, AtomicLong> inRitardo = new ConcurrentHashMap<>();
+    private final Map<String, Counter> escalation = new ConcurrentHashMap<>();
+    private volatile boolean attivo;
+    private Thread scadenze;
+    private Thread ascolto;
+
+    @PostConstruct
+    void inizializza() {
+        ruota = new RuotaScadenze<>(risoluzione.toMillis(), System.currentTimeMillis());
+        Gauge.builder("atti.sla.scadenze", ruota, RuotaScadenze::dimensione)
+                .description("Scadenze SLA in attesa")
+                .register(registry);
+    }
+
+    void avvia(@Observes StartupEvent evento) {
+        if (!abilitato) {
+            return;
+        }
+        attivo = true;
+        if (consumer == null) {
+            consumer = new KafkaConsumer<>(configurazioneConsumer());
+        }
+        // il consumer parte prima del caricamento: le transizioni durante la lettura non vanno perse
+        ascolto = new Thread(this::ascolta, "sla-eventi");
+        ascolto.setDaemon(true);
+        ascolto.start();
+        scadenze = new Thread(this::ciclo, "sla-scadenze");
+        scadenze.setDaemon(true);
+        scadenze.start();
+    }
+
+    void arresta(@Observes ShutdownEvent evento) throws InterruptedException {
+        attivo = false;
+        if (ascolto != null) {
+            consumer.wakeup();
+            ascolto.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (scadenze != null) {
+            scadenze.interrupt();
+        }
+    }
+
+    /**
+     * Applica alle scadenze un evento dell'outbox: la nuova fase sostituisce quella precedente,
+     * uno stato finale annulla le scadenze. Le escalation sono ignorate.
+     */
+    void applica(EventoDeterminazione evento) {
+        if (EventoDeterminazione.CREATA.equals(evento.tipo()) || EventoDeterminazione.STATO_AGGIORNATO.equals(evento.tipo())) {
+            pianifica(evento.determinazioneId(), StatoDeterminazione.da(evento.stato()), evento.centroSpesa(),
+                    evento.timestamp());
+        }
+    }
+
+    /**
+     * Registra l'ingresso di una determinazione in uno stato. Un ingresso più vecchio di quello
+     * noto, o nello stesso stato, è ignorato: eventi e caricamento dalla tabella possono arrivare
+     * in qualunque ordine.
+     */
+    synchronized void pianifica(long id, StatoDeterminazione stato, String centroSpesa, LocalDateTime dal) {
+        Attivita nota = presente(id);
+        if (nota != null && (nota.stato() == stato || nota.dal().isAfter(dal))) {
+            return;
+        }
+        rimuovi(id);
+        if (metriche.sla(stato) != null) {
+            conserva(new Attivita(id, stato, centroSpesa, dal, null));
+        }
+    }
+
+    /**
+     * Fa scattare le scadenze raggiunte: le verifica sulla tabella a blocchi, registra le
+     * escalation nuove e arma la scadenza successiva delle determinazioni a rischio.
+     */
+    void scatta(long istante) {
+        List<Attivita> scattate;
+        synchronized (this) {
+            scattate = ruota.avanza(istante);
+            scattate.forEach(attivita -> inVerifica.put(attivita.id(), attivita));
+        }
+        LocalDateTime ora = LocalDateTime.ofInstant(Instant.ofEpochMilli(istante), ZoneId.systemDefault());
+        for (int da = 0; da < scattate.size(); da += dimensioneBatch) {
+            List<Attivita> blocco = scattate.subList(da, Math.min(da + dimensioneBatch, scattate.size()));
+            Map<Long, Livello> confermate;
+            try {
+                confermate = QuarkusTransaction.requiringNew().call(() -> registraEscalation(blocco, ora));
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    // questo blocco e i successivi restano contati com'erano e sono ritentati al prossimo tick
+                    for (Attivita attivita : scattate.subList(da, scattate.size())) {
+                        if (inVerifica.remove(attivita.id(), attivita)) {
+                            ruota.arma(attivita.id(), istante, attivita);
+                        }
+                    }
+                }
+                throw e;
+            }
+            synchronized (this) {
+                for (Attivita attivita : blocco) {
+                    // una transizione arrivata durante la verifica ha già sostituito la scadenza
+                    if (!inVerifica.remove(attivita.id(), attivita)) {
+                        continue;
+                    }
+                    conta(attivita, -1);
+                    Livello raggiunto = confermate.get(attivita.id());
+                    if (raggiunto != null) {
+                        conserva(attivita.con(raggiunto));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ricostruisce le scadenze dalla tabella. Le determinazioni scadute non più aperte nello stesso
+     * stato sono rimosse; le altre scadenze non confermate sono scartate allo scatto.
+     * <p>
+     * Le determinazioni aperte sono lette a pagine di {@code atti.sla.scadenze.pagina-ricarica}
+     * per id crescente, ognuna in una propria transazione: con milioni di atti aperti una sola
+     * lettura supererebbe il timeout della transazione. Una ricarica interrotta a metà lascia le
+     * scadenze già caricate nella ruota; la rimozione delle scadute chiuse avviene solo a lettura
+     * completa.
+     */
+    void carica() {
+        long inizio = System.nanoTime();
+        LocalDateTime avvio = LocalDateTime.now();
+        Set<Long> ancoraScadute = new HashSet<>();
+        long lette = 0;
+        long ultimo = 0;
+        while (true) {
+            long dopo = ultimo;
+            long[] pagina = QuarkusTransaction.requiringNew().call(() -> caricaPagina(dopo, ancoraScadute));
+            lette += pagina[0];
+            if (pagina[0] < paginaRicarica) {
+                break;
+            }
+            ultimo = pagina[1];
+        }
+        synchronized (this) {
+            scadute.values().removeIf(attivita -> {
+                boolean chiusa = !ancoraScadute.contains(attivita.id()) && attivita.dal().isBefore(avvio);
+                if (chiusa) {
+                    conta(attivita, -1);
+                }
+                return chiusa;
+            });
+        }
+        LOG.infof("Scadenze SLA caricate da %d determinazioni aperte in %d ms", lette,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio));
+    }
+
+    /**
+     * Carica nella ruota una pagina di determinazioni aperte con id successivo a {@code dopo}.
+     *
+     * @return righe lette e ultimo id della pagina
+     */
+    private long[] caricaPagina(long dopo, Set<Long> ancoraScadute) throws SQLException {
+        long righe = 0;
+        long ultimo = dopo;
+        long senzaData = 0;
+        try (Connection connessione = dataSource.getConnection();
+             PreparedStatement aperte = connessione.prepareStatement(APERTE)) {
+            aperte.setLong(1, dopo);
+            aperte.setInt(2, paginaRicarica);
+            try (ResultSet rs = aperte.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    ultimo = id;
+                    righe++;
+                    StatoDeterminazione stato = StatoDeterminazione.valueOf(rs.getString(2));
+                    Timestamp dal = rs.getTimestamp(4);
+                    if (dal == null) {
+                        senzaData++;
+                        continue;
+                    }
+                    pianifica(id, stato, rs.getString(3), dal.toLocalDateTime());
+                    synchronized (this) {
+                        Attivita scaduta = scadute.get(id);
+                        if (scaduta != null && scaduta.stato() == stato) {
+                            ancoraScadute.add(id);
+                        }
+                    }
+                }
+            }
+        }
+        if (senzaData > 0) {
+            LOG.warnf("%d determinazioni aperte senza stato_dal né data di creazione: nessuna scadenza SLA", senzaData);
+        }
+        return new long[] {righe, ultimo};
+    }
+
+    /**
+     * Verifica e registra le escalation di un blocco nella transazione corrente e scrive
+     * nell'outbox gli eventi di quelle nuove.
+     *
+     * @return livello raggiunto dalle determinazioni ancora nella fase scattata
+     */
+    private Map<Long, Livello> registraEscalation(List<Attivita> blocco, LocalDateTime ora) throws SQLException {
+        Long[] ids = new Long[blocco.size()];
+        String[] stati = new String[blocco.size()];
+        String[] livelli = new String[blocco.size()];
+        Timestamp[] limiti = new Timestamp[blocco.size()];
+        for (int i = 0; i < blocco.size(); i++) {
+            Attivita attivita = blocco.get(i);
+            Duration sla = metriche.sla(attivita.stato());
+            Livello livello = attivita.dal().plus(sla).isAfter(ora) ? Livello.A_RISCHIO : Livello.SCADUTA;
+            ids[i] = attivita.id();
+            stati[i] = attivita.stato().name();
+            livelli[i] = livello.name();
+            limiti[i] = Timestamp.valueOf(ora.minus(livello == Livello.SCADUTA ? sla : rischio(sla)));
+        }
+        Map<Long, Livello> confermate = new HashMap<>();
+        List<EventoDeterminazione> nuove = new ArrayList<>();
+        try (Connection connessione = dataSource.getConnection()) {
+            try (PreparedStatement registra = connessione.prepareStatement(ESCALATION)) {
+                registra.setArray(1, connessione.createArrayOf("bigint", ids));
+                registra.setArray(2, connessione.createArrayOf("varchar", stati));
+                registra.setArray(3, connessione.createArrayOf("varchar", livelli));
+                registra.setArray(4, connessione.createArrayOf("timestamp", limiti));
+                registra.setTimestamp(5, Timestamp.valueOf(ora));
+                try (ResultSet rs = registra.executeQuery()) {
+                    while (rs.next()) {
+                        Livello livello = Livello.valueOf(rs.getString(10));
+                        confermate.put(rs.getLong(1), livello);
+                        if (rs.getBoolean(11)) {
+                            Timestamp creazione = rs.getTimestamp(7);
+                            nuove.add(new EventoDeterminazione(livello.tipoEvento, rs.getLong(1), rs.getString(2),
+                                    rs.getString(3), rs.getString(4), rs.getString(5),
+                                    rs.getObject(6) == null ? null : rs.getDouble(6),
+                                    creazione == null ? null : creazione.toLocalDateTime(), null, rs.getString(8), null, ora));
+                        }
+                    }
+                }
+            }
+            if (!nuove.isEmpty()) {
+                try (PreparedStatement inserisci = connessione.prepareStatement(
+                        "INSERT INTO outbox_determinazioni (determinazione_id, tipo, payload, creato_il) VALUES (?, ?, ?, ?)")) {
+                    for (EventoDeterminazione evento : nuove) {
+                        inserisci.setLong(1, evento.determinazioneId());
+                        inserisci.setString(2, evento.tipo());
+                        inserisci.setString(3, objectMapper.writeValueAsString(evento));
+                        inserisci.setTimestamp(4, Timestamp.valueOf(ora));
+                        inserisci.addBatch();
+                    }
+                    inserisci.executeBatch();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Serializzazione dell'evento di escalation fallita", e);
+        }
+        for (EventoDeterminazione evento : nuove) {
+            contatoreEscalation(evento).increment();
+        }
+        return confermate;
+    }
+
+    /** Crea la tabella delle escalation se manca */
+    void preparaSchema() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            try (Connection connessione = dataSource.getConnection();
+                 Statement statement = connessione.createStatement()) {
+                statement.execute(DDL);
+            } catch (SQLException e) {
+                throw new PersistenceException("DDL delle escalation SLA fallito: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private void ciclo() {
+        boolean schemaPronto = false;
+        long prossimaRicarica = 0;
+        while (attivo) {
+            try {
+                if (!schemaPronto) {
+                    preparaSchema();
+                    schemaPronto = true;
+                }
+                if (System.currentTimeMillis() >= prossimaRicarica) {
+                    try {
+                        carica();
+                        prossimaRicarica = System.currentTimeMillis() + ricarica.toMillis();
+                    } catch (RuntimeException e) {
+                        // la ruota continua a girare con le scadenze già note e dagli eventi
+                        LOG.warnf(e, "Caricamento delle scadenze SLA fallito, nuovo tentativo tra 30 secondi");
+                        prossimaRicarica = System.currentTimeMillis() + RIPROVA_RICARICA_MS;
+                    }
+                }
+                scatta(System.currentTimeMillis());
+                Thread.sleep(risoluzione.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOG.warnf(e, "Elaborazione delle scadenze SLA fallita, nuovo tentativo tra 30 secondi");
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException interrotto) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void ascolta() {
+        try {
+            if (!assegnaPartizioni()) {
+                return;
+            }
+            while (attivo) {
+                for (ConsumerRecord<String, String> messaggio : consumer.poll(Duration.ofSeconds(1))) {
+                    try {
+                        applica(objectMapper.readValue(messaggio.value(), EventoDeterminazione.class));
+                    } catch (JsonProcessingException | IllegalArgumentException e) {
+                        LOG.warnf("Evento di determinazione non applicabile alle scadenze SLA: %s", e.getMessage());
+                    }
+                }
+            }
+        } catch (WakeupException e) {
+            // arresto dell'applicazione
+        } catch (RuntimeException e) {
+            LOG.error("Lettura degli eventi per le scadenze SLA interrotta: aggiornate solo dalle ricariche", e);
+        } finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Assegna al consumer tutte le partizioni del topic, posizionato alla fine: le fasi aperte
+     * prima dell'avvio sono lette dalla tabella. Attende che il topic esista.
+     *
+     * @return false se l'applicazione si arresta prima
+     */
+    private boolean assegnaPartizioni() {
+        while (attivo) {
+            List<TopicPartition> partizioni = consumer.partitionsFor(topic).stream()
+                    .map(partizione -> new TopicPartition(topic, partizione.partition()))
+                    .toList();
+            if (!partizioni.isEmpty()) {
+                consumer.assign(partizioni);
+                consumer.seekToEnd(partizioni);
+                return true;
+            }
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /** Attività nota per un id, in qualunque fase dell'elaborazione */
+    private Attivita presente(long id) {
+        Attivita attivita = ruota.valore(id);
+        if (attivita == null) {
+            attivita = inVerifica.get(id);
+        }
+        return attivita != null ? attivita : scadute.get(id);
+    }
+
+    private void rimuovi(long id) {
+        Attivita rimossa = ruota.annulla(id);
+        if (rimossa == null) {
+            rimossa = inVerifica.remove(id);
+        }
+        if (rimossa == null) {
+            rimossa = scadute.remove(id);
+        }
+        if (rimossa != null) {
+            conta(rimossa, -1);
+        }
+    }
+
+    /** Conta l'attività nel suo livello e arma la scadenza successiva, se ne ha una */
+    private void conserva(Attivita attivita) {
+        conta(attivita, 1);
+        if (attivita.livello() == Livello.SCADUTA) {
+            scadute.put(attivita.id(), attivita);
+            return;
+        }
+        Duration sla = metriche.sla(attivita.stato());
+        LocalDateTime scadenza = attivita.dal().plus(attivita.livello() == null ? rischio(sla) : sla);
+        ruota.arma(attivita.id(), scadenza.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), attivita);
+    }
+
+    private Duration rischio(Duration sla) {
+        return Duration.ofMillis((long) (sla.toMillis() * sogliaRischio));
+    }
+
+    private void conta(Attivita attivita, int variazione) {
+        if (attivita.livello() == null) {
+            return;
+        }
+        String stato = attivita.stato().name().toLowerCase(Locale.ROOT);
+        String centro = chiave(attivita.centroSpesa());
+        String esito = attivita.livello().name().toLowerCase(Locale.ROOT);
+        inRitardo.computeIfAbsent(stato + '|' + centro + '|' + esito, k -> {
+            AtomicLong numero = new AtomicLong();
+            Gauge.builder("atti.sla.attivita", numero, AtomicLong::get)
+                    .description("Determinazioni a rischio o oltre lo SLA della fase in corso, su tutte le repliche")
+                    .tag("stato", stato)
+                    .tag("centro_spesa", centro)
+                    .tag("esito", esito)
+                    .register(registry);
+            return numero;
+        }).addAndGet(variazione);
+    }
+
+    private Counter contatoreEscalation(EventoDeterminazione evento) {
+        String stato = evento.stato().toLowerCase(Locale.ROOT);
+        String centro = chiave(evento.centroSpesa());
+        String livello = evento.tipo().equals(EventoDeterminazione.SLA_SCADUTO) ? "scaduta" : "a_rischio";
+        return escalation.computeIfAbsent(stato + '|' + centro + '|' + livello, k -> Counter.builder("atti.sla.escalation")
+                .description("Escalation SLA registrate")
+                .tag("stato", stato)
+                .tag("centro_spesa", centro)
+                .tag("livello", livello)
+                .register(registry));
+    }
+
+    private static String chiave(String valore) {
+        return valore == null || valore.isBlank() ? AggregatiDeterminazioni.NON_INDICATO : valore;
+    }
+
+    private Properties configurazioneConsumer() {
+        Properties proprieta = new Properties();
+        proprieta.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        // partizioni assegnate senza gruppo: nessun offset confermato, nessun gruppo lasciato sul broker
+        proprieta.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        proprieta.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        proprieta.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        return proprieta;
+    }
+}
@@ -0,0 +1,45 @@
+package it.gov.atti.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della tabella delle transizioni di stato, confrontata con il flusso del processo BPMN.
+ */
+public class StatoDeterminazioneTest {
+
+    @Test
+    public void testFlussoCompletoFinoAllaPubblicazione() {
+        StatoDeterminazione[] flusso = {
+                StatoDeterminazione.BOZZA, StatoDeterminazione.ISTRUTTORIA, StatoDeterminazione.VISTO_CONTABILE,
+                StatoDeterminazione.FIRMATA, StatoDeterminazione.PUBBLICATA
+        };
+        for (int i = 1; i < flusso.length; i++) {
+            assertTrue(flusso[i - 1].ammette(flusso[i]), flusso[i - 1] + " → " + flusso[i]);
+        }
+        assertTrue(StatoDeterminazione.PUBBLICATA.finale());
+    }
+
+    @Test
+    public void testTransizioniNonAmmesse() {
+        assertFalse(StatoDeterminazione.BOZZA.ammette(StatoDeterminazione.FIRMATA));
+        assertFalse(StatoDeterminazione.BOZZA.ammette(StatoDeterminazione.RIFIUTATA));
+        assertFalse(StatoDeterminazione.VISTO_CONTABILE.ammette(StatoDeterminazione.ISTRUTTORIA));
+        assertFalse(StatoDeterminazione.FIRMATA.ammette(StatoDeterminazione.FIRMATA));
+        assertFalse(StatoDeterminazione.RIFIUTATA.ammette(StatoDeterminazione.ISTRUTTORIA));
+        assertEquals(EnumSet.of(StatoDeterminazione.VISTO_CONTABILE, StatoDeterminazione.RIFIUTATA),
+                StatoDeterminazione.ISTRUTTORIA.successivi());
+    }
+
+    @Test
+    public void testNomeStato() {
+        assertEquals(StatoDeterminazione.VISTO_CONTABILE, StatoDeterminazione.da(" visto_contabile"));
+        assertThrows(IllegalArgumentException.class, () -> StatoDeterminazione.da("IN_ISTRUTTORIA"));
+    }
+}
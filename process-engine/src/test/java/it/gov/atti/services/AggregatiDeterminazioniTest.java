@@ -0,0 +1,119 @@
+package it.gov.atti.services;
+
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.MetricheDeterminazioni;
+import it.gov.atti.model.StatoDeterminazione;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test dell'aggiornamento incrementale degli aggregati dagli eventi dell'outbox.
+ */
+public class AggregatiDeterminazioniTest {
+
+    private static final LocalDateTime MARZO = LocalDateTime.of(2026, 3, 14, 10, 30);
+
+    @Test
+    public void testCreazioniETransizioni() {
+        AggregatiDeterminazioni aggregati = new AggregatiDeterminazioni();
+        aggregati.applica(creata(1L, "CDC-01", "D1", 1_000.0));
+        aggregati.applica(creata(2L, "CDC-01", "D2", 2_500.0));
+        aggregati.applica(creata(3L, null, "D2", null));
+        aggregati.applica(transizione(1L, StatoDeterminazione.BOZZA, StatoDeterminazione.ISTRUTTORIA));
+        aggregati.applica(transizione(1L, StatoDeterminazione.ISTRUTTORIA, StatoDeterminazione.RIFIUTATA));
+
+        MetricheDeterminazioni metriche = aggregati.metriche();
+
+        assertEquals(3, metriche.totale());
+        assertEquals(2, metriche.perStato().get(StatoDeterminazione.BOZZA));
+        assertEquals(0, metriche.perStato().get(StatoDeterminazione.ISTRUTTORIA));
+        assertEquals(1, metriche.perStato().get(StatoDeterminazione.RIFIUTATA));
+        assertEquals(new MetricheDeterminazioni.Totali(2, 3_500.0), metriche.perCentroSpesa().get("CDC-01"));
+        assertEquals(1, metriche.perCentroSpesa().get(AggregatiDeterminazioni.NON_INDICATO).numero());
+        assertEquals(2, metriche.perLivelloDirigente().get("D2"));
+        assertEquals(new MetricheDeterminazioni.Totali(3, 3_500.0), metriche.perMese().get("2026-03"));
+    }
+
+    @Test
+    public void testRiconciliazioneRiapplicaSoloGliEventiSuccessiviAlloSnapshot() {
+        AggregatiDeterminazioni aggregati = new AggregatiDeterminazioni();
+        aggregati.riconcilia(() -> {
+            // evento 10 compreso nello snapshot, evento 12 committato dopo
+            aggregati.applica(10L, creata(1L, "CDC-01", "D1", 1_000.0));
+            aggregati.applica(12L, creata(2L, "CDC-01", "D1", 2_000.0));
+            aggregati.sostituisci(List.<Object[]>of(gruppo(StatoDeterminazione.BOZZA, 1, 1_000.0)),
+                    new AggregatiDeterminazioni.Filigrana(10, Set.of()));
+        });
+
+        MetricheDeterminazioni metriche = aggregati.metriche();
+
+        assertEquals(2, metriche.totale());
+        assertEquals(new MetricheDeterminazioni.Totali(2, 3_000.0), metriche.perCentroSpesa().get("CDC-01"));
+    }
+
+    @Test
+    public void testEventiCompresiNelloSnapshotLettiDopoLaSostituzioneSonoIgnorati() {
+        AggregatiDeterminazioni aggregati = new AggregatiDeterminazioni();
+        // snapshot fino all'id 20, con l'id 18 di una transazione ancora in corso
+        aggregati.riconcilia(() -> aggregati.sostituisci(
+                List.<Object[]>of(gruppo(StatoDeterminazione.BOZZA, 2, 3_000.0)),
+                new AggregatiDeterminazioni.Filigrana(20, Set.of(18L))));
+
+        // committato prima dello snapshot, letto dal topic in ritardo: già contato
+        aggregati.applica(15L, transizione(1L, StatoDeterminazione.BOZZA, StatoDeterminazione.ISTRUTTORIA));
+        // in corso allo snapshot e committato dopo: da applicare
+        aggregati.applica(18L, creata(3L, "CDC-01", "D1", 500.0));
+        // successivo allo snapshot
+        aggregati.applica(21L, transizione(2L, StatoDeterminazione.BOZZA, StatoDeterminazione.ISTRUTTORIA));
+
+        MetricheDeterminazioni metriche = aggregati.metriche();
+
+        assertEquals(3, metriche.totale());
+        assertEquals(2, metriche.perStato().get(StatoDeterminazione.BOZZA));
+        assertEquals(1, metriche.perStato().get(StatoDeterminazione.ISTRUTTORIA));
+        assertEquals(new MetricheDeterminazioni.Totali(3, 3_500.0), metriche.perCentroSpesa().get("CDC-01"));
+    }
+
+    @Test
+    public void testLaFiligranaVieneSostituitaDallaRiconciliazioneSuccessiva() {
+        AggregatiDeterminazioni aggregati = new AggregatiDeterminazioni();
+        aggregati.riconcilia(() -> aggregati.sostituisci(
+                List.<Object[]>of(gruppo(StatoDeterminazione.BOZZA, 1, 1_000.0)),
+                new AggregatiDeterminazioni.Filigrana(10, Set.of())));
+        aggregati.riconcilia(() -> {
+            // letto durante il secondo ricalcolo, successivo anche al suo snapshot
+            aggregati.applica(11L, creata(2L, "CDC-01", "D1", 1_000.0));
+            aggregati.sostituisci(List.<Object[]>of(gruppo(StatoDeterminazione.BOZZA, 1, 1_000.0)),
+                    new AggregatiDeterminazioni.Filigrana(10, Set.of()));
+        });
+        assertEquals(2, aggregati.metriche().totale());
+
+        // dopo un ricalcolo che lo comprende lo stesso evento, riletto, non conta più
+        aggregati.riconcilia(() -> aggregati.sostituisci(
+                List.<Object[]>of(gruppo(StatoDeterminazione.BOZZA, 2, 2_000.0)),
+                new AggregatiDeterminazioni.Filigrana(11, Set.of())));
+        aggregati.applica(11L, creata(2L, "CDC-01", "D1", 1_000.0));
+
+        assertEquals(2, aggregati.metriche().totale());
+    }
+
+    /** Riga della GROUP BY di riconciliazione per il centro di spesa CDC-01, livello D1, marzo 2026 */
+    private static Object[] gruppo(StatoDeterminazione stato, long numero, double importo) {
+        return new Object[] {stato.name(), "CDC-01", "D1", 2026, 3, numero, importo};
+    }
+
+    private static EventoDeterminazione creata(Long id, String centroSpesa, String livello, Double importo) {
+        return new EventoDeterminazione(EventoDeterminazione.CREATA, id, "DET-2026-00" + id, null, centroSpesa,
+                livello, importo, MARZO, null, StatoDeterminazione.BOZZA.name(), "m.rossi", MARZO);
+    }
+
+    private static EventoDeterminazione transizione(Long id, StatoDeterminazione da, StatoDeterminazione a) {
+        return new EventoDeterminazione(EventoDeterminazione.STATO_AGGIORNATO, id, "DET-2026-00" + id, null,
+                "CDC-01", "D1", 1_000.0, MARZO, da.name(), a.name(), "m.rossi", MARZO.plusDays(1));
+    }
+}
@@ -0,0 +1,268 @@
+package it.gov.atti.services;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.EsitoElemento;
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.RichiestaTransizioni;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.inject.Inject;
+import jakarta.persistence.OptimisticLockException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test di DeterminazioneService sul database: validazione della creazione, UPDATE condizionato
+ * delle transizioni concorrenti, che l'API traduce in 409, ed esiti per elemento delle operazioni
+ * in blocco. Le determinazioni del test hanno l'oggetto che inizia con {@link #OGGETTO}, ripulite
+ * prima di ogni test.
+ */
+@QuarkusTest
+public class DeterminazioneServiceQueryTest {
+
+    private static final String OGGETTO = "Test servizio determinazioni";
+
+    @Inject
+    DeterminazioneService service;
+
+    @BeforeEach
+    public void ripulisci() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            Determinazione.getEntityManager()
+                    .createNativeQuery("DELETE FROM outbox_determinazioni WHERE determinazione_id IN "
+                            + "(SELECT id FROM determinazioni WHERE oggetto LIKE :oggetto)")
+                    .setParameter("oggetto", OGGETTO + "%")
+                    .executeUpdate();
+            Determinazione.delete("oggetto like ?1", OGGETTO + "%");
+        });
+    }
+
+    /**
+     * La creazione singola applica le stesse verifiche della creazione in blocco.
+     */
+    @Test
+    public void testCreaRifiutaDatiNonValidi() {
+        Determinazione senzaImporto = nuova(OGGETTO, null);
+        Determinazione senzaOggetto = nuova(" ", 100.0);
+        Determinazione importoNegativo = nuova(OGGETTO, -1.0);
+
+        assertThrows(IllegalArgumentException.class, () -> service.crea(senzaImporto));
+        assertThrows(IllegalArgumentException.class, () -> service.crea(senzaOggetto));
+        assertThrows(IllegalArgumentException.class, () -> service.crea(importoNegativo));
+        assertThrows(IllegalArgumentException.class, () -> service.crea(null));
+    }
+
+    /**
+     * Una transizione decisa su uno stato letto prima di una modifica concorrente non trova la
+     * riga con l'UPDATE condizionato e fallisce; dopo la rilettura la stessa richiesta riesce.
+     */
+    @Test
+    public void testTransizioneSuStatoSuperatoRifiutata() {
+        Determinazione creata = service.crea(nuova(OGGETTO + " concorrente", 1_000.0));
+        // la copia in cache resta in BOZZA, versione 0
+        QuarkusTransaction.requiringNew().run(() -> service.trovaPerId(creata.id));
+        QuarkusTransaction.requiringNew().run(() -> Determinazione.update(
+                "stato = ?1, versione = versione + 1 where id = ?2", StatoDeterminazione.ISTRUTTORIA, creata.id));
+
+        assertThrows(OptimisticLockException.class,
+                () -> service.aggiornaStato(creata.id, StatoDeterminazione.ISTRUTTORIA, null, "m.rossi"));
+
+        Determinazione aggiornata = service.aggiornaStato(creata.id, StatoDeterminazione.VISTO_CONTABILE, null, "m.rossi");
+        assertEquals(StatoDeterminazione.VISTO_CONTABILE, aggiornata.stato);
+        assertEquals(2, aggiornata.versione);
+    }
+
+    /**
+     * Con la versione letta dal client, una transizione su una versione superata fallisce anche se
+     * lo stato ammetterebbe la transizione.
+     */
+    @Test
+    public void testTransizioneSuVersioneSuperataRifiutata() {
+        Determinazione creata = service.crea(nuova(OGGETTO + " versione", 1_000.0));
+        service.aggiornaStato(creata.id, StatoDeterminazione.ISTRUTTORIA, creata.versione, "m.rossi");
+
+        assertThrows(OptimisticLockException.class, () -> service.aggiornaStato(
+                creata.id, StatoDeterminazione.RIFIUTATA, creata.versione, "m.rossi"));
+    }
+
+    /**
+     * Due transizioni concorrenti dallo stesso stato: una sola è eseguita, l'altra fallisce per
+     * modifica concorrente o per transizione non più ammessa, entrambe 409 per l'API.
+     */
+    @Test
+    public void testTransizioniConcorrentiUnaSolaEseguita() throws Exception {
+        Determinazione creata = service.crea(nuova(OGGETTO + " parallela", 1_000.0));
+        CountDownLatch partenza = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Determinazione>> esiti = new ArrayList<>();
+            for (StatoDeterminazione stato : List.of(StatoDeterminazione.ISTRUTTORIA, StatoDeterminazione.ISTRUTTORIA)) {
+                Callable<Determinazione> transizione = () -> {
+                    partenza.await();
+                    return service.aggiornaStato(creata.id, stato, null, "m.rossi");
+                };
+                esiti.add(executor.submit(transizione));
+            }
+            partenza.countDown();
+
+            int eseguite = 0;
+            for (Future<Determinazione> esito : esiti) {
+                try {
+                    esito.get();
+                    eseguite++;
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof OptimisticLockException
+                            || e.getCause() instanceof IllegalStateException, e.getCause().toString());
+                }
+            }
+            assertEquals(1, eseguite);
+        } finally {
+            executor.shutdownNow();
+        }
+        Long versione = QuarkusTransaction.requiringNew().call(() -> Determinazione.<Determinazione>findById(creata.id).versione);
+        assertEquals(1, versione);
+    }
+
+    /**
+     * Creazione in blocco con elementi non validi: questi sono riportati nell'esito, gli altri
+     * sono creati con numeri distinti e un evento ciascuno nell'outbox.
+     */
+    @Test
+    public void testCreaTutteEsitiPerElemento() {
+        List<Determinazione> richiesta = Arrays.asList(
+                nuova(OGGETTO + " blocco 1", 1_000.0),
+                nuova(null, 500.0),
+                nuova(OGGETTO + " blocco negativo", -10.0),
+                null,
+                nuova(OGGETTO + " blocco 2", 2_000.0));
+
+        List<EsitoElemento> esiti = service.creaTutte(richiesta, "m.rossi");
+
+        assertEquals(List.of(EsitoElemento.Esito.ESEGUITA, EsitoElemento.Esito.NON_VALIDA, EsitoElemento.Esito.NON_VALIDA,
+                EsitoElemento.Esito.NON_VALIDA, EsitoElemento.Esito.ESEGUITA), esiti.stream().map(EsitoElemento::esito).toList());
+        for (int i = 0; i < esiti.size(); i++) {
+            assertEquals(i, esiti.get(i).indice());
+        }
+        assertNotNull(esiti.get(0).id());
+        assertNotNull(esiti.get(4).id());
+        assertNotEquals(esiti.get(0).numero(), esiti.get(4).numero());
+        assertEquals(2L, (long) QuarkusTransaction.requiringNew().call(() -> Determinazione.count("oggetto like ?1", OGGETTO + "%")));
+        assertEquals(List.of(EventoDeterminazione.CREATA), eventiOutbox(esiti.get(0).id()));
+        assertEquals(List.of(EventoDeterminazione.CREATA), eventiOutbox(esiti.get(4).id()));
+    }
+
+    /**
+     * Transizione in blocco con riferimenti validi, ripetuti, inesistenti, a versione superata, non
+     * ammessi e una determinazione modificata da un'altra transazione dopo la lettura degli stati:
+     * l'UPDATE condizionato con unnest la esclude e solo le righe valide cambiano stato.
+     */
+    @Test
+    public void testAggiornaStatiEsitiPerElemento() throws Exception {
+        Determinazione valida = service.crea(nuova(OGGETTO + " valida", 1_000.0));
+        Determinazione superata = service.crea(nuova(OGGETTO + " superata", 1_000.0));
+        Determinazione avanzata = service.crea(nuova(OGGETTO + " avanzata", 1_000.0));
+        Determinazione versionata = service.crea(nuova(OGGETTO + " versionata", 1_000.0));
+        service.aggiornaStato(avanzata.id, StatoDeterminazione.ISTRUTTORIA, null, "m.rossi");
+
+        CountDownLatch modificata = new CountDownLatch(1);
+        CountDownLatch rilascia = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // un'altra transazione modifica la riga e tiene il lock finché l'UPDATE in blocco non la attende
+            Future<?> concorrente = executor.submit(() -> QuarkusTransaction.requiringNew().run(() -> {
+                Determinazione.update("stato = ?1, versione = versione + 1 where id = ?2",
+                        StatoDeterminazione.ISTRUTTORIA, superata.id);
+                modificata.countDown();
+                try {
+                    rilascia.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            assertTrue(modificata.await(10, TimeUnit.SECONDS));
+            Future<List<EsitoElemento>> inBlocco = executor.submit(() -> service.aggiornaStati(
+                    StatoDeterminazione.ISTRUTTORIA, List.of(
+                            new RichiestaTransizioni.Riferimento(valida.id, null),
+                            new RichiestaTransizioni.Riferimento(superata.id, null),
+                            new RichiestaTransizioni.Riferimento(avanzata.id, null),
+                            new RichiestaTransizioni.Riferimento(-1L, null),
+                            new RichiestaTransizioni.Riferimento(valida.id, null),
+                            new RichiestaTransizioni.Riferimento(versionata.id, 5L),
+                            new RichiestaTransizioni.Riferimento(null, null)),
+                    "m.rossi"));
+            attendiLock();
+            rilascia.countDown();
+            concorrente.get(10, TimeUnit.SECONDS);
+
+            List<EsitoElemento> esiti = inBlocco.get(10, TimeUnit.SECONDS);
+
+            assertEquals(List.of(EsitoElemento.Esito.ESEGUITA, EsitoElemento.Esito.CONFLITTO,
+                    EsitoElemento.Esito.NON_AMMESSA, EsitoElemento.Esito.NON_TROVATA, EsitoElemento.Esito.NON_VALIDA,
+                    EsitoElemento.Esito.CONFLITTO, EsitoElemento.Esito.NON_VALIDA),
+                    esiti.stream().map(EsitoElemento::esito).toList());
+            assertEquals(1L, esiti.get(0).versione());
+        } finally {
+            rilascia.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(List.of(EventoDeterminazione.CREATA, EventoDeterminazione.STATO_AGGIORNATO), eventiOutbox(valida.id));
+        assertEquals(List.of(EventoDeterminazione.CREATA), eventiOutbox(superata.id));
+        assertEquals(List.of(EventoDeterminazione.CREATA), eventiOutbox(versionata.id));
+        Determinazione rilettaSuperata = QuarkusTransaction.requiringNew().call(() -> Determinazione.findById(superata.id));
+        assertEquals(1, rilettaSuperata.versione);
+        Determinazione rilettaVersionata = QuarkusTransaction.requiringNew().call(() -> Determinazione.findById(versionata.id));
+        assertEquals(StatoDeterminazione.BOZZA, rilettaVersionata.stato);
+    }
+
+    /** Attende che una sessione del database sia in attesa di un lock di riga */
+    private static void attendiLock() throws InterruptedException {
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < limite) {
+            Number inAttesa = QuarkusTransaction.requiringNew().call(() -> (Number) Determinazione.getEntityManager()
+                    .createNativeQuery("SELECT count(*) FROM pg_stat_activity "
+                            + "WHERE wait_event_type = 'Lock' AND datname = current_database()")
+                    .getSingleResult());
+            if (inAttesa.longValue() > 0) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("L'UPDATE in blocco non ha atteso il lock della riga modificata");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> eventiOutbox(Long id) {
+        return QuarkusTransaction.requiringNew().call(() -> Determinazione.getEntityManager()
+                .createNativeQuery("SELECT tipo FROM outbox_determinazioni WHERE determinazione_id = :id ORDER BY id")
+                .setParameter("id", id)
+                .getResultList());
+    }
+
+    private static Determinazione nuova(String oggetto, Double importo) {
+        Determinazione determinazione = new Determinazione();
+        determinazione.oggetto = oggetto;
+        determinazione.importo = importo;
+        determinazione.centroSpesa = "CDC-TEST";
+        determinazione.livelloDirigente = "D2";
+        determinazione.dirigente = "m.rossi";
+        return determinazione;
+    }
+}
@@ -0,0 +1,194 @@
+package it.gov.atti.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.gov.atti.model.PaginaUtenti;
+import it.gov.atti.model.UtenteDirectory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della directory utenti contro un server HTTP locale che imita la Keycloak Admin API:
+ * caricamento paginato, ruoli ereditati da gruppi e composti, aggiornamento da admin event
+ * e ricarica dell'utente dopo una scrittura.
+ */
+public class DirectoryUtentiTest {
+
+    private static final String ADMIN = "/admin/realms/atti/";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> risposte = new ConcurrentHashMap<>();
+    private final List<String> scritture = new CopyOnWriteArrayList<>();
+    private final List<JsonNode> corpiScritture = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private DirectoryUtenti directory;
+
+    @BeforeEach
+    public void avviaKeycloak() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::rispondi);
+        server.start();
+
+        risposte.put("/realms/atti/protocol/openid-connect/token", "{\"access_token\":\"t\",\"expires_in\":300}");
+        risposte.put(ADMIN + "roles", "[" + ruolo("r1", "istruttore", false) + "," + ruolo("r2", "dirigente", false)
+                + "," + ruolo("r3", "default-roles-atti", true) + "," + ruolo("r4", "responsabile", true) + "]");
+        risposte.put(ADMIN + "roles/default-roles-atti/composites/realm", "[" + ruolo("r5", "offline_access", false) + "]");
+        risposte.put(ADMIN + "roles/responsabile/composites/realm", "[" + ruolo("r2", "dirigente", false) + "]");
+        risposte.put(ADMIN + "users", "[" + utente("u1", "anna.verdi") + "," + utente("u2", "luigi.bianchi")
+                + "," + utente("u3", "mario.rossi") + "]");
+        risposte.put(ADMIN + "roles/istruttore/users", "[" + utente("u3", "mario.rossi") + "]");
+        risposte.put(ADMIN + "roles/dirigente/users", "[]");
+        risposte.put(ADMIN + "roles/responsabile/users", "[]");
+        risposte.put(ADMIN + "groups", "[{\"id\":\"g1\",\"name\":\"settore-finanze\",\"realmRoles\":[],"
+                + "\"subGroups\":[{\"id\":\"g2\",\"name\":\"responsabili\",\"realmRoles\":[\"responsabile\"],\"subGroups\":[]}]}]");
+        risposte.put(ADMIN + "groups/g1/members", "[]");
+        risposte.put(ADMIN + "groups/g2/members", "[" + utente("u1", "anna.verdi") + "]");
+
+        directory = new DirectoryUtenti();
+        directory.registry = new SimpleMeterRegistry();
+        directory.ruoliGestiti = List.of("istruttore", "ragioniere", "dirigente", "admin");
+        directory.realm = "atti";
+        directory.keycloak = new KeycloakAdmin("http://localhost:" + server.getAddress().getPort(),
+                "atti", "process-engine-admin", "segreto", 2, mapper);
+        directory.registraMetriche();
+    }
+
+    @AfterEach
+    public void arrestaKeycloak() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testCaricamentoPaginatoConRuoliEreditati() {
+        directory.caricaTutto();
+
+        assertEquals(Set.of("istruttore"), directory.ruoli("mario.rossi"));
+        // dirigente tramite il gruppo figlio e il ruolo composto responsabile
+        assertEquals(Set.of("dirigente"), directory.ruoli("anna.verdi"));
+        assertEquals(Set.of("responsabili"), directory.utente("anna.verdi").orElseThrow().gruppi());
+        assertTrue(directory.ruoli("luigi.bianchi").isEmpty());
+
+        PaginaUtenti prima = directory.pagina(null, null, 2);
+        assertEquals(List.of("anna.verdi", "luigi.bianchi"), usernames(prima));
+        PaginaUtenti seconda = directory.pagina(null, prima.cursoreSuccessivo(), 2);
+        assertEquals(List.of("mario.rossi"), usernames(seconda));
+        assertNull(seconda.cursoreSuccessivo());
+        assertEquals(List.of("anna.verdi"), usernames(directory.pagina("dirigente", null, 10)));
+    }
+
+    @Test
+    public void testAdminEventRicaricaSoloUtenteModificato() {
+        directory.caricaTutto();
+        risposte.put(ADMIN + "users/u2", utente("u2", "luigi.bianchi"));
+        risposte.put(ADMIN + "users/u2/role-mappings/realm/composite", "[" + ruolo("r1", "istruttore", false) + "]");
+        risposte.put(ADMIN + "users/u2/groups", "[]");
+        risposte.put(ADMIN + "admin-events", "[{\"time\":" + System.currentTimeMillis() + ",\"operationType\":\"CREATE\","
+                + "\"resourceType\":\"REALM_ROLE_MAPPING\",\"resourcePath\":\"users/u2/role-mappings/realm\"}]");
+
+        directory.applicaEventi();
+
+        assertEquals(List.of("luigi.bianchi", "mario.rossi"), usernames(directory.pagina("istruttore", null, 10)));
+        assertTrue(directory.haRuolo("luigi.bianchi", "istruttore"));
+    }
+
+    @Test
+    public void testAggiornaRuoliInvalidaUtente() {
+        directory.caricaTutto();
+        risposte.put(ADMIN + "users/u3/role-mappings/realm", "[" + ruolo("r1", "istruttore", false)
+                + "," + ruolo("r3", "default-roles-atti", true) + "]");
+        risposte.put(ADMIN + "users/u3", utente("u3", "mario.rossi"));
+        risposte.put(ADMIN + "users/u3/role-mappings/realm/composite", "[" + ruolo("r2", "dirigente", false) + "]");
+        risposte.put(ADMIN + "users/u3/groups", "[]");
+
+        directory.aggiornaRuoli("u3", List.of("dirigente"));
+
+        assertEquals(List.of("POST " + ADMIN + "users/u3/role-mappings/realm",
+                "DELETE " + ADMIN + "users/u3/role-mappings/realm"), scritture);
+        assertEquals("r2", corpiScritture.get(0).get(0).get("id").asText());
+        assertEquals("r1", corpiScritture.get(1).get(0).get("id").asText());
+        assertFalse(directory.haRuolo("mario.rossi", "istruttore"));
+        assertEquals(List.of("anna.verdi", "mario.rossi"), usernames(directory.pagina("dirigente", null, 10)));
+        assertTrue(directory.pagina("istruttore", null, 10).elementi().isEmpty());
+    }
+
+    /**
+     * Risponde con il JSON registrato per il percorso; gli elenchi sono tagliati con first e max
+     * come fa Keycloak. Le scritture sono registrate con il corpo e ricevono 204.
+     */
+    private void rispondi(HttpExchange scambio) throws IOException {
+        String metodo = scambio.getRequestMethod();
+        String percorso = scambio.getRequestURI().getPath();
+        byte[] corpo;
+        int stato = 200;
+        if (!percorso.endsWith("/token") && !metodo.equals("GET")) {
+            String ricevuto = new String(scambio.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            scritture.add(metodo + " " + percorso);
+            corpiScritture.add(mapper.readTree(ricevuto));
+            corpo = new byte[0];
+            stato = 204;
+        } else if (!risposte.containsKey(percorso)) {
+            corpo = "{\"error\":\"not found\"}".getBytes(StandardCharsets.UTF_8);
+            stato = 404;
+        } else {
+            JsonNode risposta = mapper.readTree(risposte.get(percorso));
+            if (risposta instanceof ArrayNode elenco && scambio.getRequestURI().getQuery() != null) {
+                risposta = pagina(elenco, scambio.getRequestURI().getQuery());
+            }
+            corpo = mapper.writeValueAsBytes(risposta);
+        }
+        scambio.sendResponseHeaders(stato, corpo.length == 0 ? -1 : corpo.length);
+        try (OutputStream uscita = scambio.getResponseBody()) {
+            uscita.write(corpo);
+        }
+    }
+
+    private ArrayNode pagina(ArrayNode elenco, String query) {
+        int primo = 0;
+        int massimo = Integer.MAX_VALUE;
+        for (String parametro : query.split("&")) {
+            String[] coppia = parametro.split("=");
+            if (coppia[0].equals("first")) {
+                primo = Integer.parseInt(coppia[1]);
+            } else if (coppia[0].equals("max")) {
+                massimo = Integer.parseInt(coppia[1]);
+            }
+        }
+        ArrayNode pagina = mapper.createArrayNode();
+        for (int i = primo; i < elenco.size() && pagina.size() < massimo; i++) {
+            pagina.add(elenco.get(i));
+        }
+        return pagina;
+    }
+
+    private static String ruolo(String id, String nome, boolean composto) {
+        return "{\"id\":\"" + id + "\",\"name\":\"" + nome + "\",\"composite\":" + composto + "}";
+    }
+
+    private static String utente(String id, String username) {
+        return "{\"id\":\"" + id + "\",\"username\":\"" + username + "\",\"enabled\":true}";
+    }
+
+    private static List<String> usernames(PaginaUtenti pagina) {
+        return pagina.elementi().stream().map(UtenteDirectory::username).toList();
+    }
+}
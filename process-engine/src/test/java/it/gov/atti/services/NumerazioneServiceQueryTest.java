@@ -0,0 +1,135 @@
+package it.gov.atti.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import it.gov.atti.model.ContatoreNumerazione;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.StatoDeterminazione;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test di concorrenza di NumerazioneService sul database: UPDATE ... RETURNING del contatore
+ * e inserimento della prima riga dell'anno con ON CONFLICT, a partire dal registro esistente.
+ * Ogni test usa un anno riservato, ripulito prima dell'esecuzione.
+ */
+@QuarkusTest
+public class NumerazioneServiceQueryTest {
+
+    private static final int THREAD = 8;
+    private static final int NUMERI_PER_THREAD = 100;
+
+    private static final int ANNO_CONTINUA = 2901;
+    private static final int ANNO_BLOCCHI = 2902;
+    private static final int ANNO_REGISTRO = 2903;
+
+    @BeforeEach
+    public void ripulisci() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            ContatoreNumerazione.delete("anno in ?1", List.of(ANNO_CONTINUA, ANNO_BLOCCHI, ANNO_REGISTRO));
+            Determinazione.delete("numero like ?1", "DET-29__-%");
+        });
+    }
+
+    /**
+     * Modalità continua: ogni numero nella transazione della richiesta, nessun duplicato né salto
+     * anche quando la prima riga del contatore è inserita da più transazioni concorrenti.
+     */
+    @Test
+    public void testModalitaContinuaSenzaSalti() throws Exception {
+        NumerazioneService servizio = servizio(NumerazioneService.Modalita.CONTINUA);
+
+        Set<String> numeri = generaInParallelo(servizio, servizio, ANNO_CONTINUA);
+
+        int attesi = THREAD * NUMERI_PER_THREAD;
+        assertEquals(attesi, numeri.size());
+        for (int i = 1; i <= attesi; i++) {
+            assertTrue(numeri.contains(NumerazioneService.formatta(ANNO_CONTINUA, i)), "Numero mancante: " + i);
+        }
+    }
+
+    /**
+     * Modalità blocchi: due nodi riservano blocchi dallo stesso contatore senza duplicati.
+     */
+    @Test
+    public void testModalitaBlocchiNessunDuplicatoTraNodi() throws Exception {
+        NumerazioneService nodoA = servizio(NumerazioneService.Modalita.BLOCCHI);
+        NumerazioneService nodoB = servizio(NumerazioneService.Modalita.BLOCCHI);
+
+        Set<String> numeri = generaInParallelo(nodoA, nodoB, ANNO_BLOCCHI);
+
+        assertEquals(THREAD * NUMERI_PER_THREAD, numeri.size());
+    }
+
+    /**
+     * Il contatore di un anno nuovo prosegue dal massimo numero già presente nel registro.
+     */
+    @Test
+    public void testPrimoNumeroProsegueIlRegistro() {
+        QuarkusTransaction.requiringNew().run(() -> {
+            Determinazione esistente = new Determinazione();
+            esistente.oggetto = "Determinazione importata";
+            esistente.stato = StatoDeterminazione.BOZZA;
+            esistente.dataCreazione = LocalDateTime.now();
+            esistente.numero = NumerazioneService.formatta(ANNO_REGISTRO, 41);
+            esistente.persist();
+        });
+        NumerazioneService servizio = servizio(NumerazioneService.Modalita.CONTINUA);
+
+        assertEquals(NumerazioneService.formatta(ANNO_REGISTRO, 42),
+                QuarkusTransaction.requiringNew().call(() -> servizio.prossimoNumero(ANNO_REGISTRO)));
+        assertEquals(List.of(NumerazioneService.formatta(ANNO_REGISTRO, 43), NumerazioneService.formatta(ANNO_REGISTRO, 44)),
+                QuarkusTransaction.requiringNew().call(() -> servizio.prossimiNumeri(ANNO_REGISTRO, 2)));
+    }
+
+    private Set<String> generaInParallelo(NumerazioneService primo, NumerazioneService secondo, int anno) throws Exception {
+        Set<String> numeri = ConcurrentHashMap.newKeySet();
+        CountDownLatch partenza = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD);
+        try {
+            List<Future<?>> esiti = new ArrayList<>();
+            for (int t = 0; t < THREAD; t++) {
+                NumerazioneService servizio = t % 2 == 0 ? primo : secondo;
+                esiti.add(executor.submit(() -> {
+                    partenza.await();
+                    for (int i = 0; i < NUMERI_PER_THREAD; i++) {
+                        String numero = QuarkusTransaction.requiringNew().call(() -> servizio.prossimoNumero(anno));
+                        assertTrue(numeri.add(numero), "Numero duplicato: " + numero);
+                    }
+                    return null;
+                }));
+            }
+            partenza.countDown();
+            for (Future<?> esito : esiti) {
+                esito.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return numeri;
+    }
+
+    /** Servizio con il contatore reale, fuori dal contenitore per scegliere la modalità */
+    private static NumerazioneService servizio(NumerazioneService.Modalita modalita) {
+        NumerazioneService servizio = new NumerazioneService();
+        servizio.modalita = modalita;
+        servizio.dimensioneBlocco = 7;
+        servizio.registry = new SimpleMeterRegistry();
+        servizio.registraMetriche();
+        return servizio;
+    }
+}
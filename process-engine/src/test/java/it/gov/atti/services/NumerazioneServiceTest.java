@@ -0,0 +1,107 @@
+package it.gov.atti.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test di concorrenza per NumerazioneService.
+ * Il contatore su database è sostituito da un contatore in memoria con la stessa semantica
+ * dell'UPDATE atomico; si verifica l'assenza di duplicati sotto carico parallelo.
+ * Le istruzioni SQL del contatore sono verificate da {@link NumerazioneServiceQueryTest}.
+ */
+public class NumerazioneServiceTest {
+
+    private static final int THREAD = 16;
+    private static final int NUMERI_PER_THREAD = 2_000;
+    private static final int ANNO = 2026;
+
+    /**
+     * Modalità blocchi: più nodi simulati condividono lo stesso contatore e nessun numero si ripete.
+     */
+    @Test
+    public void testModalitaBlocchiNessunDuplicatoTraNodi() throws Exception {
+        AtomicLong contatore = new AtomicLong();
+        NumerazioneService nodoA = servizio(NumerazioneService.Modalita.BLOCCHI, contatore);
+        NumerazioneService nodoB = servizio(NumerazioneService.Modalita.BLOCCHI, contatore);
+
+        Set<String> numeri = generaInParallelo(nodoA, nodoB);
+
+        assertEquals(THREAD * NUMERI_PER_THREAD, numeri.size());
+    }
+
+    /**
+     * Modalità continua: nessun duplicato e nessun salto nella sequenza.
+     */
+    @Test
+    public void testModalitaContinuaSenzaSalti() throws Exception {
+        AtomicLong contatore = new AtomicLong();
+        NumerazioneService servizio = servizio(NumerazioneService.Modalita.CONTINUA, contatore);
+
+        Set<String> numeri = generaInParallelo(servizio, servizio);
+
+        int attesi = THREAD * NUMERI_PER_THREAD;
+        assertEquals(attesi, numeri.size());
+        for (int i = 1; i <= attesi; i++) {
+            assertTrue(numeri.contains(NumerazioneService.formatta(ANNO, i)), "Numero mancante: " + i);
+        }
+    }
+
+    private Set<String> generaInParallelo(NumerazioneService primo, NumerazioneService secondo) throws Exception {
+        Set<String> numeri = ConcurrentHashMap.newKeySet();
+        CountDownLatch partenza = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD);
+        try {
+            List<Future<?>> esiti = new ArrayList<>();
+            for (int t = 0; t < THREAD; t++) {
+                NumerazioneService servizio = t % 2 == 0 ? primo : secondo;
+                esiti.add(executor.submit(() -> {
+                    partenza.await();
+                    for (int i = 0; i < NUMERI_PER_THREAD; i++) {
+                        String numero = servizio.prossimoNumero(ANNO);
+                        assertTrue(numeri.add(numero), "Numero duplicato: " + numero);
+                    }
+                    return null;
+                }));
+            }
+            partenza.countDown();
+            for (Future<?> esito : esiti) {
+                esito.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return numeri;
+    }
+
+    private NumerazioneService servizio(NumerazioneService.Modalita modalita, AtomicLong contatore) {
+        NumerazioneService servizio = new NumerazioneService() {
+            @Override
+            long riservaIntervallo(int anno, int quantita) {
+                return contatore.addAndGet(quantita);
+            }
+
+            @Override
+            long riservaBlocco(int anno, int quantita) {
+                return riservaIntervallo(anno, quantita);
+            }
+        };
+        servizio.modalita = modalita;
+        servizio.dimensioneBlocco = 37;
+        servizio.registry = new SimpleMeterRegistry();
+        servizio.registraMetriche();
+        return servizio;
+    }
+}
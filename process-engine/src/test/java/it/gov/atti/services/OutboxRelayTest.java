@@ -0,0 +1,74 @@
+package it.gov.atti.services;
+
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.EventoOutbox;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Test della pubblicazione degli eventi dell'outbox.
+ * Il broker è sostituito dal MockProducer di Kafka; si verificano chiave, ordine e header
+ * dei messaggi e la propagazione degli errori, che annulla la marcatura degli eventi come inviati.
+ */
+public class OutboxRelayTest {
+
+    private MockProducer<String, String> producer;
+    private OutboxRelay relay;
+
+    @BeforeEach
+    public void preparaRelay() {
+        producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        relay = new OutboxRelay();
+        relay.producer = producer;
+        relay.topic = "determinazioni-eventi";
+    }
+
+    @Test
+    public void testEventiPubblicatiInOrdineConChiaveDeterminazione() {
+        List<EventoOutbox> eventi = new ArrayList<>();
+        eventi.add(evento(1L, 10L, EventoDeterminazione.CREATA));
+        eventi.add(evento(2L, 11L, EventoDeterminazione.CREATA));
+        eventi.add(evento(3L, 10L, EventoDeterminazione.STATO_AGGIORNATO));
+
+        relay.pubblica(eventi);
+
+        List<ProducerRecord<String, String>> inviati = producer.history();
+        assertEquals(3, inviati.size());
+        assertEquals(List.of("10", "11", "10"), inviati.stream().map(ProducerRecord::key).toList());
+        assertEquals("3", header(inviati.get(2), OutboxRelay.HEADER_ID_EVENTO));
+        assertEquals(EventoDeterminazione.STATO_AGGIORNATO, header(inviati.get(2), OutboxRelay.HEADER_TIPO));
+        assertEquals(eventi.get(2).payload, inviati.get(2).value());
+    }
+
+    @Test
+    public void testErroreDelBrokerPropagato() {
+        producer.sendException = new KafkaException("broker non raggiungibile");
+
+        assertThrows(KafkaException.class,
+                () -> relay.pubblica(List.of(evento(1L, 10L, EventoDeterminazione.CREATA))));
+    }
+
+    private static EventoOutbox evento(Long id, Long determinazioneId, String tipo) {
+        EventoOutbox evento = new EventoOutbox();
+        evento.id = id;
+        evento.determinazioneId = determinazioneId;
+        evento.tipo = tipo;
+        evento.payload = "{\"tipo\":\"" + tipo + "\",\"determinazioneId\":" + determinazioneId + "}";
+        return evento;
+    }
+
+    private static String header(ProducerRecord<String, String> messaggio, String nome) {
+        return new String(messaggio.headers().lastHeader(nome).value(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package it.gov.atti.services;
+
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.FiltroRicerca;
+import it.gov.atti.model.RisultatoRicerca;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della query di ricerca sul database: colonna tsvector e indice creati all'avvio,
+ * limite delle corrispondenze ridotto a 3.
+ */
+@QuarkusTest
+@TestProfile(RicercaDeterminazioniQueryTest.Profilo.class)
+public class RicercaDeterminazioniQueryTest {
+
+    public static class Profilo implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("atti.ricerca.prepara-schema", "true",
+                    "atti.ricerca.max-corrispondenze", "3");
+        }
+    }
+
+    @Inject
+    RicercaDeterminazioni ricerca;
+
+    @Test
+    public void testRankingFaccetteEdEvidenziazione() {
+        String termine = "verifica" + System.nanoTime();
+        List<Long> ids = crea(termine + " " + termine + " impianti", termine + " strade");
+
+        RisultatoRicerca risultato = ricerca.cerca(new FiltroRicerca(termine, null, null, null, null), 10);
+
+        assertEquals(2, risultato.totale());
+        assertFalse(risultato.approssimato());
+        assertEquals(List.of(ids.get(0), ids.get(1)),
+                risultato.elementi().stream().map(c -> c.determinazione().id()).toList());
+        assertTrue(risultato.elementi().get(0).evidenziato().contains("<mark>" + termine + "</mark>"));
+        assertEquals(Map.of("BOZZA", 2L), risultato.faccette().get("stato"));
+    }
+
+    @Test
+    public void testOltreIlLimiteConsideraLePiuRecenti() {
+        String termine = "limite" + System.nanoTime();
+        // la più vecchia ha il punteggio più alto ma resta fuori dal limite
+        List<Long> ids = crea(termine + " " + termine + " " + termine, termine, termine, termine);
+
+        RisultatoRicerca risultato = ricerca.cerca(new FiltroRicerca(termine, null, null, null, null), 10);
+
+        assertEquals(3, risultato.totale());
+        assertTrue(risultato.approssimato());
+        assertEquals(List.of(ids.get(3), ids.get(2), ids.get(1)),
+                risultato.elementi().stream().map(c -> c.determinazione().id()).toList());
+    }
+
+    private static List<Long> crea(String... oggetti) {
+        List<Long> ids = new ArrayList<>();
+        for (String oggetto : oggetti) {
+            ids.add(QuarkusTransaction.requiringNew().call(() -> {
+                Determinazione determinazione = new Determinazione();
+                determinazione.oggetto = oggetto;
+                determinazione.importo = 1000.0;
+                determinazione.centroSpesa = "CS-RICERCA";
+                determinazione.stato = StatoDeterminazione.BOZZA;
+                determinazione.dataCreazione = LocalDateTime.now();
+                determinazione.persist();
+                return determinazione.id;
+            }));
+        }
+        return ids;
+    }
+}
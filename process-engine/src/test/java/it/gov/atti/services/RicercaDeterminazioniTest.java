@@ -0,0 +1,25 @@
+package it.gov.atti.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Test dell'evidenziazione dei termini trovati restituita dalla ricerca.
+ */
+public class RicercaDeterminazioniTest {
+
+    @Test
+    public void testTerminiEvidenziati() {
+        assertEquals("Affidamento <mark>manutenzione</mark> del <mark>verde</mark> pubblico",
+                RicercaDeterminazioni.evidenzia("Affidamento \u0002manutenzione\u0003 del \u0002verde\u0003 pubblico"));
+        assertNull(RicercaDeterminazioni.evidenzia(null));
+    }
+
+    @Test
+    public void testMarkupDellOggettoInEscape() {
+        assertEquals("Lavori &lt;script&gt; &amp; <mark>strade</mark> &quot;comunali&quot;",
+                RicercaDeterminazioni.evidenzia("Lavori <script> & \u0002strade\u0003 \"comunali\""));
+    }
+}
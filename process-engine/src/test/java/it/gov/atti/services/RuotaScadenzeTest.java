@@ -0,0 +1,88 @@
+package it.gov.atti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test della ruota temporale delle scadenze SLA: scatto al tick della scadenza, riarmo,
+ * annullamento e ridistribuzione dai livelli superiori.
+ */
+public class RuotaScadenzeTest {
+
+    @Test
+    public void testScattoAlTickDellaScadenza() {
+        RuotaScadenze<String> ruota = new RuotaScadenze<>(1_000, 0);
+        ruota.arma(1, 5_500, "istruttoria");
+
+        assertTrue(ruota.avanza(5_999).isEmpty());
+        assertEquals(List.of("istruttoria"), ruota.avanza(6_000));
+        assertEquals(0, ruota.dimensione());
+    }
+
+    @Test
+    public void testRiarmoEAnnullamento() {
+        RuotaScadenze<String> ruota = new RuotaScadenze<>(1_000, 0);
+        ruota.arma(1, 10_000, "bozza");
+        ruota.arma(2, 10_000, "bozza");
+
+        assertEquals("bozza", ruota.annulla(1));
+        assertNull(ruota.annulla(1));
+        assertEquals("bozza", ruota.arma(2, 200_000, "istruttoria"));
+        assertTrue(ruota.avanza(150_000).isEmpty());
+        assertEquals("istruttoria", ruota.valore(2));
+        assertEquals(List.of("istruttoria"), ruota.avanza(200_000));
+    }
+
+    @Test
+    public void testScadenzaPassataScattaAlProssimoAvanza() {
+        RuotaScadenze<String> ruota = new RuotaScadenze<>(1_000, 100_000);
+        ruota.arma(1, 50_000, "firmata");
+
+        assertTrue(ruota.avanza(100_500).isEmpty());
+        assertEquals(List.of("firmata"), ruota.avanza(101_000));
+    }
+
+    @Test
+    public void testScadenzeSuTuttiILivelli() {
+        RuotaScadenze<Long> ruota = new RuotaScadenze<>(1, 0);
+        Random casuale = new Random(42);
+        Map<Long, Long> attese = new HashMap<>();
+        // oltre 64³ tick, quindi anche nel livello più alto; alcune annullate o riarmate
+        for (long id = 0; id < 5_000; id++) {
+            long scadenza = 1 + casuale.nextInt(20_000_000);
+            ruota.arma(id, scadenza, scadenza);
+            attese.put(id, scadenza);
+        }
+        for (long id = 0; id < 5_000; id += 7) {
+            ruota.annulla(id);
+            attese.remove(id);
+        }
+        for (long id = 3; id < 5_000; id += 11) {
+            long scadenza = 1 + casuale.nextInt(20_000_000);
+            ruota.arma(id, scadenza, scadenza);
+            attese.put(id, scadenza);
+        }
+
+        long istante = 0;
+        int scattate = 0;
+        while (istante < 20_000_000) {
+            long precedente = istante;
+            istante = Math.min(20_000_000, istante + 1 + casuale.nextInt(100_000));
+            for (long scadenza : ruota.avanza(istante)) {
+                assertTrue(scadenza > precedente && scadenza <= istante,
+                        "scadenza " + scadenza + " scattata tra " + precedente + " e " + istante);
+                scattate++;
+            }
+        }
+        assertEquals(attese.size(), scattate);
+        assertEquals(0, ruota.dimensione());
+    }
+}
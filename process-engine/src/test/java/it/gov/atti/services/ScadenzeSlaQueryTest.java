@@ -0,0 +1,208 @@
+package it.gov.atti.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.narayana.jta.QuarkusTransaction;
+import io.quarkus.test.junit.QuarkusTest;
+import it.gov.atti.model.Determinazione;
+import it.gov.atti.model.EventoDeterminazione;
+import it.gov.atti.model.StatoDeterminazione;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Test delle scadenze SLA sul database: armo e annullamento dagli eventi, ricarica dalla tabella
+ * anche per le righe senza stato_dal, verifica e registrazione delle escalation una sola volta.
+ * Le determinazioni del test hanno numero DET-2904-*, ripulite prima di ogni test.
+ */
+@QuarkusTest
+public class ScadenzeSlaQueryTest {
+
+    private static final String PREFISSO = "DET-2904-";
+    private static final AtomicInteger PROGRESSIVO = new AtomicInteger();
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Inject
+    MetricheProcesso metriche;
+
+    @BeforeEach
+    public void ripulisci() {
+        // crea sla_escalation se manca
+        servizio();
+        QuarkusTransaction.requiringNew().run(() -> {
+            var em = Determinazione.getEntityManager();
+            em.createNativeQuery("DELETE FROM sla_escalation WHERE determinazione_id IN "
+                    + "(SELECT id FROM determinazioni WHERE numero LIKE :numero)")
+                    .setParameter("numero", PREFISSO + "%").executeUpdate();
+            em.createNativeQuery("DELETE FROM outbox_determinazioni WHERE determinazione_id IN "
+                    + "(SELECT id FROM determinazioni WHERE numero LIKE :numero)")
+                    .setParameter("numero", PREFISSO + "%").executeUpdate();
+            Determinazione.delete("numero like ?1", PREFISSO + "%");
+        });
+    }
+
+    /**
+     * Ogni transizione sostituisce la scadenza della fase precedente; uno stato finale la annulla.
+     */
+    @Test
+    public void testTransizioniArmanoEAnnullanoLaScadenza() {
+        ScadenzeSla servizio = servizio();
+        LocalDateTime ora = LocalDateTime.now();
+
+        servizio.applica(evento(EventoDeterminazione.CREATA, 1L, StatoDeterminazione.BOZZA, ora));
+        assertEquals(StatoDeterminazione.BOZZA, servizio.ruota.valore(1L).stato());
+
+        servizio.applica(evento(EventoDeterminazione.STATO_AGGIORNATO, 1L, StatoDeterminazione.ISTRUTTORIA, ora.plusHours(1)));
+        assertEquals(StatoDeterminazione.ISTRUTTORIA, servizio.ruota.valore(1L).stato());
+        assertEquals(1, servizio.ruota.dimensione());
+
+        // un evento più vecchio, arrivato in ritardo, non sostituisce la fase nota
+        servizio.applica(evento(EventoDeterminazione.STATO_AGGIORNATO, 1L, StatoDeterminazione.BOZZA, ora));
+        assertEquals(StatoDeterminazione.ISTRUTTORIA, servizio.ruota.valore(1L).stato());
+
+        servizio.applica(evento(EventoDeterminazione.STATO_AGGIORNATO, 1L, StatoDeterminazione.RIFIUTATA, ora.plusHours(2)));
+        assertNull(servizio.ruota.valore(1L));
+        assertEquals(0, servizio.ruota.dimensione());
+    }
+
+    /**
+     * La ricarica arma le scadenze anche delle determinazioni senza stato_dal, dalla data di creazione.
+     */
+    @Test
+    public void testRicaricaUsaLaDataDiCreazioneSenzaStatoDal() {
+        LocalDateTime creazione = LocalDateTime.now().minusDays(3).withNano(0);
+        long id = determinazione(StatoDeterminazione.ISTRUTTORIA, creazione, null);
+        ScadenzeSla servizio = servizio();
+
+        servizio.carica();
+
+        assertEquals(StatoDeterminazione.ISTRUTTORIA, servizio.ruota.valore(id).stato());
+        assertEquals(creazione, servizio.ruota.valore(id).dal());
+    }
+
+    /**
+     * Oltre la soglia di rischio l'escalation è registrata con il suo evento nell'outbox, e la
+     * scadenza successiva è armata allo SLA. Una seconda replica che la fa scattare di nuovo non
+     * registra duplicati.
+     */
+    @Test
+    public void testEscalationARischioRegistrataUnaVolta() {
+        LocalDateTime dal = LocalDateTime.now().minusDays(9);
+        long id = determinazione(StatoDeterminazione.ISTRUTTORIA, dal, dal);
+
+        for (int replica = 0; replica < 2; replica++) {
+            ScadenzeSla servizio = servizio();
+            servizio.pianifica(id, StatoDeterminazione.ISTRUTTORIA, "CDC-SLA", dal);
+            servizio.scatta(System.currentTimeMillis() + 2_000);
+
+            assertEquals(ScadenzeSla.Livello.A_RISCHIO, servizio.ruota.valore(id).livello());
+        }
+
+        assertEquals(List.of("A_RISCHIO"), escalation(id));
+        assertEquals(List.of(EventoDeterminazione.SLA_A_RISCHIO), eventiOutbox(id));
+    }
+
+    /**
+     * Oltre lo SLA l'escalation è SCADUTA e la determinazione esce dalla ruota.
+     */
+    @Test
+    public void testEscalationScadutaOltreLoSla() {
+        LocalDateTime dal = LocalDateTime.now().minusDays(11);
+        long id = determinazione(StatoDeterminazione.ISTRUTTORIA, dal, dal);
+        ScadenzeSla servizio = servizio();
+
+        servizio.pianifica(id, StatoDeterminazione.ISTRUTTORIA, "CDC-SLA", dal);
+        servizio.scatta(System.currentTimeMillis() + 2_000);
+
+        assertNull(servizio.ruota.valore(id));
+        assertEquals(List.of("SCADUTA"), escalation(id));
+        assertEquals(List.of(EventoDeterminazione.SLA_SCADUTO), eventiOutbox(id));
+    }
+
+    /**
+     * Una scadenza scattata per una fase già conclusa sulla tabella è scartata senza escalation.
+     */
+    @Test
+    public void testScadenzaDiFaseConclusaScartata() {
+        LocalDateTime dal = LocalDateTime.now().minusDays(11);
+        long id = determinazione(StatoDeterminazione.ISTRUTTORIA, dal, dal);
+        ScadenzeSla servizio = servizio();
+        servizio.pianifica(id, StatoDeterminazione.ISTRUTTORIA, "CDC-SLA", dal);
+        // la transizione è committata ma il suo evento non è ancora arrivato
+        QuarkusTransaction.requiringNew().run(() -> Determinazione.update(
+                "stato = ?1, statoDal = ?2 where id = ?3", StatoDeterminazione.VISTO_CONTABILE, LocalDateTime.now(), id));
+
+        servizio.scatta(System.currentTimeMillis() + 2_000);
+
+        assertNull(servizio.ruota.valore(id));
+        assertEquals(List.of(), escalation(id));
+        assertEquals(List.of(), eventiOutbox(id));
+    }
+
+    private static long determinazione(StatoDeterminazione stato, LocalDateTime creazione, LocalDateTime statoDal) {
+        return QuarkusTransaction.requiringNew().call(() -> {
+            Determinazione determinazione = new Determinazione();
+            determinazione.oggetto = "Determinazione per le scadenze SLA";
+            determinazione.centroSpesa = "CDC-SLA";
+            determinazione.stato = stato;
+            determinazione.dataCreazione = creazione;
+            determinazione.statoDal = statoDal;
+            determinazione.numero = PREFISSO + PROGRESSIVO.incrementAndGet();
+            determinazione.persist();
+            return determinazione.id;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> escalation(long id) {
+        return QuarkusTransaction.requiringNew().call(() -> Determinazione.getEntityManager()
+                .createNativeQuery("SELECT livello FROM sla_escalation WHERE determinazione_id = :id ORDER BY livello")
+                .setParameter("id", id)
+                .getResultList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> eventiOutbox(long id) {
+        return QuarkusTransaction.requiringNew().call(() -> Determinazione.getEntityManager()
+                .createNativeQuery("SELECT tipo FROM outbox_determinazioni WHERE determinazione_id = :id "
+                        + "AND tipo LIKE 'SLA_%' ORDER BY id")
+                .setParameter("id", id)
+                .getResultList());
+    }
+
+    private static EventoDeterminazione evento(String tipo, long id, StatoDeterminazione stato, LocalDateTime quando) {
+        return new EventoDeterminazione(tipo, id, PREFISSO + id, null, "CDC-SLA", "D1", 1_000.0, quando, null,
+                stato.name(), "m.rossi", quando);
+    }
+
+    /** Servizio fuori dal contenitore, senza consumer né thread: la ruota è pilotata dal test */
+    private ScadenzeSla servizio() {
+        ScadenzeSla servizio = new ScadenzeSla();
+        servizio.dataSource = dataSource;
+        servizio.objectMapper = objectMapper;
+        servizio.registry = new SimpleMeterRegistry();
+        servizio.metriche = metriche;
+        servizio.risoluzione = Duration.ofSeconds(1);
+        servizio.sogliaRischio = 0.8;
+        servizio.dimensioneBatch = 100;
+        servizio.paginaRicarica = 1_000;
+        servizio.inizializza();
+        servizio.preparaSchema();
+        return servizio;
+    }
+}